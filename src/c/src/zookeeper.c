@@ -3928,6 +3928,8 @@ const char* zerror(int c)
        return "no quorum of new config is connected and up-to-date with the leader of last commmitted config - try invoking reconfiguration after new servers are connected and synced";
    case ZRECONFIGINPROGRESS:
      return "Another reconfiguration is in progress -- concurrent reconfigs not supported (yet)";
+    case ZQUOTAEXCEEDED:
+      return "quota exceeded";
     }
     if (c > 0) {
       return strerror(c);
@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * An OutputArchive writing the same format as BinaryOutputArchive straight
+ * into a ByteBuffer, which is replaced by a bigger one when it fills up.
+ * Subclasses can override grow() to take the buffers from a pool.
+ *
+ * reserveInt() leaves room for an int to be filled in with fillInt() once
+ * it is known, eg. the length of a packet in front of it.
+ */
+public class ByteBufferOutputArchive implements OutputArchive {
+    private ByteBuffer bb;
+
+    /**
+     * @param bb the buffer to write into from its position, up to its limit
+     */
+    public ByteBufferOutputArchive(ByteBuffer bb) {
+        this.bb = bb;
+    }
+
+    /**
+     * Replace a full buffer with a bigger one holding what was written.
+     * @param full the buffer, its position is the end of what was written
+     * @param minCapacity capacity the new buffer needs at least
+     * @return the new buffer, positioned after what was written
+     */
+    protected ByteBuffer grow(ByteBuffer full, int minCapacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(
+                Math.max(minCapacity, full.capacity() * 2));
+        full.flip();
+        bigger.put(full);
+        return bigger;
+    }
+
+    private void ensureRemaining(int len) {
+        if (bb.remaining() < len) {
+            bb = grow(bb, bb.position() + len);
+        }
+    }
+
+    /**
+     * Skip an int, to be written later with fillInt().
+     * @return the position of the int
+     */
+    public int reserveInt() {
+        ensureRemaining(4);
+        int pos = bb.position();
+        bb.position(pos + 4);
+        return pos;
+    }
+
+    /**
+     * Write an int skipped with reserveInt().
+     */
+    public void fillInt(int pos, int i) {
+        bb.putInt(pos, i);
+    }
+
+    /**
+     * @return the number of bytes written into the current buffer
+     */
+    public int getPosition() {
+        return bb.position();
+    }
+
+    /**
+     * @return the current buffer, flipped to read what was written; the
+     *         archive can't be written to any more
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer written = bb;
+        bb = null;
+        written.flip();
+        return written;
+    }
+
+    public void writeByte(byte b, String tag) {
+        ensureRemaining(1);
+        bb.put(b);
+    }
+
+    public void writeBool(boolean b, String tag) {
+        writeByte(b ? (byte) 1 : (byte) 0, tag);
+    }
+
+    public void writeInt(int i, String tag) {
+        ensureRemaining(4);
+        bb.putInt(i);
+    }
+
+    public void writeLong(long l, String tag) {
+        ensureRemaining(8);
+        bb.putLong(l);
+    }
+
+    public void writeFloat(float f, String tag) {
+        ensureRemaining(4);
+        bb.putFloat(f);
+    }
+
+    public void writeDouble(double d, String tag) {
+        ensureRemaining(8);
+        bb.putDouble(d);
+    }
+
+    /**
+     * Encodes to utf8 in place, like BinaryOutputArchive does, and fills in
+     * the length once known.
+     */
+    public void writeString(String s, String tag) {
+        if (s == null) {
+            writeInt(-1, "len");
+            return;
+        }
+        final int len = s.length();
+        int lenPos = reserveInt();
+        ensureRemaining(len);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (!bb.hasRemaining()) {
+                    ensureRemaining(len - i);
+                }
+                bb.put((byte) c);
+            } else {
+                ensureRemaining(3);
+                if (c < 0x800) {
+                    bb.put((byte) (0xc0 | (c >> 6)));
+                    bb.put((byte) (0x80 | (c & 0x3f)));
+                } else {
+                    bb.put((byte) (0xe0 | (c >> 12)));
+                    bb.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                    bb.put((byte) (0x80 | (c & 0x3f)));
+                }
+            }
+        }
+        fillInt(lenPos, bb.position() - lenPos - 4);
+    }
+
+    public void writeBuffer(byte barr[], String tag) {
+        if (barr == null) {
+            writeInt(-1, tag);
+            return;
+        }
+        ensureRemaining(4 + barr.length);
+        bb.putInt(barr.length);
+        bb.put(barr);
+    }
+
+    /**
+     * Write the remaining bytes of a buffer the way writeBuffer(byte[])
+     * writes an array, without consuming them.
+     */
+    public void writeBuffer(ByteBuffer buf, String tag) {
+        int len = buf.remaining();
+        ensureRemaining(4 + len);
+        bb.putInt(len);
+        bb.put(buf.duplicate());
+    }
+
+    public void writeRecord(Record r, String tag) throws IOException {
+        r.serialize(this, tag);
+    }
+
+    public void startRecord(Record r, String tag) {}
+
+    public void endRecord(Record r, String tag) {}
+
+    public void startVector(List<?> v, String tag) {
+        if (v == null) {
+            writeInt(-1, tag);
+            return;
+        }
+        writeInt(v.size(), tag);
+    }
+
+    public void endVector(List<?> v, String tag) {}
+
+    public void startMap(TreeMap<?,?> v, String tag) {
+        writeInt(v.size(), tag);
+    }
+
+    public void endMap(TreeMap<?,?> v, String tag) {}
+}
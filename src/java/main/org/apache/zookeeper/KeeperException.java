@@ -135,6 +135,8 @@ public abstract class KeeperException extends Exception {
                 return new SessionMovedException();
             case NOTREADONLY:
                 return new NotReadOnlyException();
+            case QUOTAEXCEEDED:
+                return new QuotaExceededException();
             	
             case OK:
             default:
@@ -361,7 +363,9 @@ public abstract class KeeperException extends Exception {
         /** Session moved to another server, so operation is ignored */
         SESSIONMOVED (-118),
         /** State-changing request is passed to read-only server */
-        NOTREADONLY (-119);
+        NOTREADONLY (-119),
+        /** The request would take a subtree over its quota */
+        QUOTAEXCEEDED (-122);
 
         private static final Map<Integer,Code> lookup
             = new HashMap<Integer,Code>();
@@ -442,6 +446,8 @@ public abstract class KeeperException extends Exception {
                 return "Session moved";
             case NOTREADONLY:
                 return "Not a read-only call";
+            case QUOTAEXCEEDED:
+                return "Quota exceeded";
             default:
                 return "Unknown error " + code;
         }
@@ -720,6 +726,18 @@ public abstract class KeeperException extends Exception {
         }
     }
 
+    /**
+     * @see Code#QUOTAEXCEEDED
+     */
+    public static class QuotaExceededException extends KeeperException {
+        public QuotaExceededException() {
+            super(Code.QUOTAEXCEEDED);
+        }
+        public QuotaExceededException(String path) {
+            super(Code.QUOTAEXCEEDED, path);
+        }
+    }
+
     /**
      * @see Code#SYSTEMERROR
      */
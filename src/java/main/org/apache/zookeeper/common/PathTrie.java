@@ -18,13 +18,6 @@
 
 package org.apache.zookeeper.common;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
  * a class that implements prefix matching for 
  * components of a filesystem path. the trie
@@ -39,132 +32,148 @@ import org.slf4j.LoggerFactory;
  *      (bc)
  *   cf/
  *   (cf)
+ *
+ * Lookups take no locks and allocate nothing: the components of a path are
+ * hashed and compared in place, and a node keeps the path it stands for to
+ * return as the prefix. Paths are added and deleted under the lock of the
+ * trie, and the children of a node are replaced, never changed, so a
+ * lookup always sees a consistent set of them.
  */    
 public class PathTrie {
-    /**
-     * the logger for this class
-     */
-    private static final Logger LOG = LoggerFactory.getLogger(PathTrie.class);
-    
     /**
      * the root node of PathTrie
      */
     private final TrieNode rootNode ;
     
     static class TrieNode {
-        boolean property = false;
-        final HashMap<String, TrieNode> children;
-        TrieNode parent = null;
+        private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+        /** the component of the path this node stands for */
+        final String name;
+
+        /** the path this node stands for */
+        final String path;
+
+        final TrieNode parent;
+
+        volatile boolean property = false;
+
+        /**
+         * the children, in an open addressing table of a power of 2 size,
+         * at most half full. Only replaced, under the lock of the trie.
+         */
+        private volatile TrieNode[] children = NO_CHILDREN;
+
+        private int childCount;
+
         /**
          * create a trienode with parent
          * as parameter
          * @param parent the parent of this trienode
          */
-        private TrieNode(TrieNode parent) {
-            children = new HashMap<String, TrieNode>();
+        private TrieNode(TrieNode parent, String name, String path) {
             this.parent = parent;
+            this.name = name;
+            this.path = path;
         }
-        
+
         /**
-         * get the parent of this node
-         * @return the parent node
+         * return the child of a node mapping
+         * to a component of a path
+         * @param path the path
+         * @param start the index the component starts at
+         * @param end the index after the component
+         * @return the child, or null if there is none
          */
-        TrieNode getParent() {
-            return this.parent;
+        TrieNode getChild(String path, int start, int end) {
+            TrieNode[] table = children;
+            if (table.length == 0) {
+                return null;
+            }
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + path.charAt(i);
+            }
+            int len = end - start;
+            int mask = table.length - 1;
+            for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+                TrieNode child = table[i];
+                if (child == null) {
+                    return null;
+                }
+                if (child.name.length() == len
+                        && path.regionMatches(start, child.name, 0, len)) {
+                    return child;
+                }
+            }
         }
-        
-        /**
-         * set the parent of this node
-         * @param parent the parent to set to
-         */
-        void setParent(TrieNode parent) {
-            this.parent = parent;
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
         }
-        
+
         /**
-         * a property that is set 
-         * for a node - making it 
-         * special.
-         */
-        void setProperty(boolean prop) {
-            this.property = prop;
-        }
-        
-        /** the property of this
-         * node 
-         * @return the property for this
-         * node
+         * add a child to the existing node. The caller must hold the
+         * lock of the trie.
+         * @param node the node that is the child
          */
-        boolean getProperty() {
-            return this.property;
+        void addChild(TrieNode node) {
+            TrieNode[] table = children;
+            int size = table.length;
+            if ((childCount + 1) * 2 > size) {
+                size = Math.max(4, size * 2);
+            }
+            children = copy(table, size, node, null);
+            childCount++;
         }
+
         /**
-         * add a child to the existing node
-         * @param childName the string name of the child
-         * @param node the node that is the child
+         * delete child from this node. The caller must hold the lock of
+         * the trie.
+         * @param node the child to be deleted
          */
-        void addChild(String childName, TrieNode node) {
-            synchronized(children) {
-                if (children.containsKey(childName)) {
-                    return;
-                }
-                children.put(childName, node);
+        void deleteChild(TrieNode node) {
+            TrieNode[] table = children;
+            int size = table.length;
+            while (size > 4 && (childCount - 1) * 8 < size) {
+                size /= 2;
             }
+            children = childCount == 1
+                ? NO_CHILDREN : copy(table, size, null, node);
+            childCount--;
         }
-     
+
         /**
-         * delete child from this node
-         * @param childName the string name of the child to 
-         * be deleted
+         * @return a new table of the given size with the nodes of table,
+         *         plus added and less removed
          */
-        void deleteChild(String childName) {
-            synchronized(children) {
-                if (!children.containsKey(childName)) {
-                    return;
-                }
-                TrieNode childNode = children.get(childName);
-                // this is the only child node.
-                if (childNode.getChildren().length == 1) { 
-                    childNode.setParent(null);
-                    children.remove(childName);
-                }
-                else {
-                    // their are more child nodes
-                    // so just reset property.
-                    childNode.setProperty(false);
+        private static TrieNode[] copy(TrieNode[] table, int size,
+                                       TrieNode added, TrieNode removed) {
+            TrieNode[] copy = new TrieNode[size];
+            for (TrieNode child : table) {
+                if (child != null && child != removed) {
+                    insert(copy, child);
                 }
             }
+            if (added != null) {
+                insert(copy, added);
+            }
+            return copy;
         }
-        
-        /**
-         * return the child of a node mapping
-         * to the input childname
-         * @param childName the name of the child
-         * @return the child of a node
-         */
-        TrieNode getChild(String childName) {
-            synchronized(children) {
-               if (!children.containsKey(childName)) {
-                   return null;
-               }
-               else {
-                   return children.get(childName);
-               }
+
+        private static void insert(TrieNode[] table, TrieNode node) {
+            int mask = table.length - 1;
+            int i = spread(node.name.hashCode()) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
             }
+            table[i] = node;
         }
 
-        /**
-         * get the list of children of this 
-         * trienode.
-         * @param node to get its children
-         * @return the string list of its children
-         */
-        String[] getChildren() {
-           synchronized(children) {
-               return children.keySet().toArray(new String[0]);
-           }
+        boolean hasChildren() {
+            return childCount > 0;
         }
-        
+
         /**
          * get the string representation
          * for this node
@@ -172,9 +181,9 @@ public class PathTrie {
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("Children of trienode: ");
-            synchronized(children) {
-                for (String str: children.keySet()) {
-                    sb.append(" " + str);
+            for (TrieNode child : children) {
+                if (child != null) {
+                    sb.append(" " + child.name);
                 }
             }
             return sb.toString();
@@ -186,64 +195,94 @@ public class PathTrie {
      * a root node of /
      */
     public PathTrie() {
-        this.rootNode = new TrieNode(null);
+        this.rootNode = new TrieNode(null, "", "");
+    }
+
+    private static void checkPath(String path) {
+        if (!path.startsWith("/") || path.length() == 1) {
+            throw new IllegalArgumentException("Invalid path " + path);
+        }
+    }
+
+    /**
+     * @return the index of the end of the component of path that starts at
+     *         start
+     */
+    private static int componentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return end == -1 ? path.length() : end;
+    }
+
+    /**
+     * @return the node of path, or null if it is not in the trie
+     */
+    private TrieNode findNode(String path) {
+        TrieNode node = rootNode;
+        int start = 1;
+        while (node != null && start < path.length()) {
+            int end = componentEnd(path, start);
+            if (end > start) {
+                node = node.getChild(path, start, end);
+            }
+            start = end + 1;
+        }
+        return node;
     }
     
     /**
      * add a path to the path trie 
      * @param path
      */
-    public void addPath(String path) {
+    public synchronized void addPath(String path) {
         if (path == null) {
             return;
         }
-        String[] pathComponents = path.split("/");
+        checkPath(path);
         TrieNode parent = rootNode;
-        String part = null;
-        if (pathComponents.length <= 1) {
-            throw new IllegalArgumentException("Invalid path " + path);
-        }
-        for (int i=1; i<pathComponents.length; i++) {
-            part = pathComponents[i];
-            if (parent.getChild(part) == null) {
-                parent.addChild(part, new TrieNode(parent));
+        int start = 1;
+        while (start < path.length()) {
+            int end = componentEnd(path, start);
+            if (end > start) {
+                TrieNode child = parent.getChild(path, start, end);
+                if (child == null) {
+                    child = new TrieNode(parent, path.substring(start, end),
+                                         path.substring(0, end));
+                    parent.addChild(child);
+                }
+                parent = child;
             }
-            parent = parent.getChild(part);
+            start = end + 1;
         }
-        parent.setProperty(true);
+        parent.property = true;
     }
     
     /**
      * delete a path from the trie
      * @param path the path to be deleted
      */
-    public void deletePath(String path) {
+    public synchronized void deletePath(String path) {
         if (path == null) {
             return;
         }
-        String[] pathComponents = path.split("/");
-        TrieNode parent = rootNode;
-        String part = null;
-        if (pathComponents.length <= 1) { 
-            throw new IllegalArgumentException("Invalid path " + path);
+        checkPath(path);
+        TrieNode node = findNode(path);
+        if (node == null || node == rootNode) {
+            //the path does not exist 
+            return;
         }
-        for (int i=1; i<pathComponents.length; i++) {
-            part = pathComponents[i];
-            if (parent.getChild(part) == null) {
-                //the path does not exist 
-                return;
-            }
-            parent = parent.getChild(part);
-            LOG.info("{}",parent);
+        node.property = false;
+        // drop the nodes left with nothing under them
+        while (node != rootNode && !node.property && !node.hasChildren()) {
+            node.parent.deleteChild(node);
+            node = node.parent;
         }
-        TrieNode realParent  = parent.getParent();
-        realParent.deleteChild(part);
     }
     
     /**
      * return the largest prefix for the input path.
      * @param path the input path
-     * @return the largest prefix for the input path.
+     * @return the largest prefix for the input path, or an empty string if
+     *         there is none.
      */
     public String findMaxPrefix(String path) {
         if (path == null) {
@@ -252,33 +291,25 @@ public class PathTrie {
         if ("/".equals(path)) {
             return path;
         }
-        String[] pathComponents = path.split("/");
-        TrieNode parent = rootNode;
-        List<String> components = new ArrayList<String>();
-        if (pathComponents.length <= 1) {
+        if (!path.startsWith("/")) {
             throw new IllegalArgumentException("Invalid path " + path);
         }
-        int i = 1;
-        String part = null;
-        StringBuilder sb = new StringBuilder();
-        int lastindex = -1;
-        while((i < pathComponents.length)) {
-            if (parent.getChild(pathComponents[i]) != null) {
-                part = pathComponents[i];
-                parent = parent.getChild(part);
-                components.add(part);
-                if (parent.getProperty()) {
-                    lastindex = i-1;
+        TrieNode node = rootNode;
+        String prefix = "";
+        int start = 1;
+        while (start < path.length()) {
+            int end = componentEnd(path, start);
+            if (end > start) {
+                node = node.getChild(path, start, end);
+                if (node == null) {
+                    break;
+                }
+                if (node.property) {
+                    prefix = node.path;
                 }
             }
-            else {
-                break;
-            }
-            i++;
-        }
-        for (int j=0; j< (lastindex+1); j++) {
-            sb.append("/" + components.get(j));
+            start = end + 1;
         }
-        return sb.toString();
+        return prefix;
     }
 }
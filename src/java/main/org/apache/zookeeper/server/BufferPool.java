@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jute.ByteBufferOutputArchive;
+
+/**
+ * BufferPool recycles the direct buffers the connections of a
+ * ServerCnxnFactory read requests into and write responses from, so that
+ * the server doesn't allocate a buffer for every packet.
+ *
+ * Buffers come in power of 2 size classes, from 64 bytes up to 1M; bigger
+ * buffers are allocated on the heap and not pooled. Each size class keeps
+ * at most its share of zookeeper.nio.bufferPoolMaxBytes of free buffers,
+ * buffers released to a full class are left to the garbage collector.
+ *
+ * A buffer from acquire() must be released once, and only once nothing
+ * reads or writes it any more; a buffer that can't be released safely, eg.
+ * because another thread may still use it, should be discarded instead.
+ * The pool counts the buffers acquired and neither released nor discarded,
+ * which is how tests detect leaks.
+ */
+public class BufferPool {
+    /** Default: 67108864 (64M) */
+    public static final String ZOOKEEPER_NIO_BUFFER_POOL_MAX_BYTES =
+        "zookeeper.nio.bufferPoolMaxBytes";
+
+    static final int MIN_CLASS = 6;
+    static final int MAX_CLASS = 20;
+
+    /** The free buffers of a size class */
+    private static final class FreeList
+            extends ConcurrentLinkedQueue<ByteBuffer> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final FreeList[] free;
+    private final AtomicInteger[] freeCounts;
+    private final int[] maxFree;
+
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    public BufferPool() {
+        this(Long.getLong(ZOOKEEPER_NIO_BUFFER_POOL_MAX_BYTES, 64 * 1024 * 1024));
+    }
+
+    /**
+     * @param maxBytes total size of the free buffers the pool keeps
+     */
+    public BufferPool(long maxBytes) {
+        int numClasses = MAX_CLASS - MIN_CLASS + 1;
+        free = new FreeList[numClasses];
+        freeCounts = new AtomicInteger[numClasses];
+        maxFree = new int[numClasses];
+        for (int i = 0; i < numClasses; i++) {
+            free[i] = new FreeList();
+            freeCounts[i] = new AtomicInteger();
+            maxFree[i] = (int) Math.min(Integer.MAX_VALUE,
+                    maxBytes / numClasses >> (MIN_CLASS + i));
+        }
+    }
+
+    /**
+     * @return the size class of a buffer of the given size, -1 if it's too
+     *         big to be pooled
+     */
+    private static int sizeClass(int size) {
+        int bits = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (bits > MAX_CLASS) {
+            return -1;
+        }
+        return Math.max(bits, MIN_CLASS) - MIN_CLASS;
+    }
+
+    /**
+     * @return the size class of a buffer from the pool, -1 if it isn't one
+     */
+    private static int classOf(ByteBuffer bb) {
+        if (bb == null || !bb.isDirect()) {
+            return -1;
+        }
+        int capacity = bb.capacity();
+        if (Integer.bitCount(capacity) != 1) {
+            return -1;
+        }
+        return sizeClass(capacity);
+    }
+
+    /**
+     * @return a buffer with position 0 and limit size, its capacity may be
+     *         bigger
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer bb = free[sizeClass].poll();
+        if (bb == null) {
+            bb = ByteBuffer.allocateDirect(1 << (MIN_CLASS + sizeClass));
+            allocated.incrementAndGet();
+        } else {
+            freeCounts[sizeClass].decrementAndGet();
+            bb.clear();
+        }
+        bb.limit(size);
+        outstanding.incrementAndGet();
+        return bb;
+    }
+
+    /**
+     * Give back a buffer from acquire(), other buffers are ignored.
+     */
+    public void release(ByteBuffer bb) {
+        int sizeClass = classOf(bb);
+        if (sizeClass < 0) {
+            return;
+        }
+        outstanding.decrementAndGet();
+        if (freeCounts[sizeClass].incrementAndGet() <= maxFree[sizeClass]) {
+            free[sizeClass].add(bb);
+        } else {
+            freeCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * Give up a buffer from acquire() without recycling it, other buffers
+     * are ignored.
+     */
+    public void discard(ByteBuffer bb) {
+        if (classOf(bb) >= 0) {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of buffers acquired and neither released nor
+     *         discarded
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the number of direct buffers the pool allocated
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * An archive serializing into a buffer of the pool, which is swapped for
+     * a bigger one as it fills up. The buffer from getBuffer() is to be
+     * released by the caller.
+     */
+    public class BufferOutputArchive extends ByteBufferOutputArchive {
+        /**
+         * @param initialSize expected size of the output
+         */
+        public BufferOutputArchive(int initialSize) {
+            super(acquireFull(initialSize));
+        }
+
+        @Override
+        protected ByteBuffer grow(ByteBuffer full, int minCapacity) {
+            ByteBuffer bigger =
+                acquireFull(Math.max(minCapacity, full.capacity() * 2));
+            full.flip();
+            bigger.put(full);
+            release(full);
+            return bigger;
+        }
+    }
+
+    private ByteBuffer acquireFull(int size) {
+        ByteBuffer bb = acquire(size);
+        bb.limit(bb.capacity());
+        return bb;
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The children of a DataNode in a sorted array, which takes a reference per
+ * child where a HashSet takes an entry object and a slot in its table. Adding
+ * and removing a child shifts the array, so a DataNode replaces the set with a
+ * HashSet once it has more than {@link #MAX_SIZE} children.
+ * <p>
+ * Like the HashSet it replaces, it isn't thread safe.
+ */
+class CompactChildSet extends AbstractSet<String> {
+    /** The number of children above which a HashSet is used instead */
+    static final int MAX_SIZE = 256;
+
+    private static final String[] EMPTY = new String[0];
+
+    private String[] names;
+
+    private int size;
+
+    /** Changed by each add and remove, to fail fast in the iterator */
+    private int modCount;
+
+    CompactChildSet() {
+        names = EMPTY;
+    }
+
+    CompactChildSet(CompactChildSet other) {
+        names = copy(other.names, other.size);
+        size = other.size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof String && indexOf((String) o) >= 0;
+    }
+
+    /**
+     * @return the index of the name, or (-(insertion point) - 1) if it
+     * isn't there
+     */
+    private int indexOf(String name) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = names[mid].compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public boolean add(String name) {
+        int i = indexOf(name);
+        if (i >= 0) {
+            return false;
+        }
+        i = -(i + 1);
+        if (size == names.length) {
+            String[] grown = new String[Math.max(2, size + (size >> 1))];
+            System.arraycopy(names, 0, grown, 0, i);
+            System.arraycopy(names, i, grown, i + 1, size - i);
+            names = grown;
+        } else {
+            System.arraycopy(names, i, names, i + 1, size - i);
+        }
+        names[i] = name;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        int i = indexOf((String) o);
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    private void removeAt(int i) {
+        size--;
+        System.arraycopy(names, i + 1, names, i, size - i);
+        names[size] = null;
+        if (size == 0) {
+            names = EMPTY;
+        } else if (size < names.length >> 2) {
+            // give back the room of children that were deleted
+            names = copy(names, size << 1);
+        }
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        names = EMPTY;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Object[] toArray() {
+        Object[] array = new Object[size];
+        System.arraycopy(names, 0, array, 0, size);
+        return array;
+    }
+
+    private static String[] copy(String[] names, int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        String[] copy = new String[length];
+        System.arraycopy(names, 0, copy, 0, Math.min(length, names.length));
+        return copy;
+    }
+
+    /**
+     * Iterates over the children in sorted order.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next;
+            private int last = -1;
+            private int expectedModCount = modCount;
+
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            public String next() {
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                last = next++;
+                return names[last];
+            }
+
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                removeAt(last);
+                next = last;
+                last = -1;
+                expectedModCount = modCount;
+            }
+        };
+    }
+}
@@ -0,0 +1,382 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+
+/**
+ * A WatchManager for servers with a large number of watches and connections.
+ *   - The path table is lock striped by path, so adding and triggering
+ *     watches on different paths don't contend with each other.
+ *   - Every watched path is interned to an integer id while it has watchers,
+ *     and each watcher keeps the ids of its paths in a compact PathIdSet
+ *     instead of a HashSet of path strings.
+ *   - Removing a watcher only takes the stripe locks of the paths it was
+ *     watching, one at a time, so closing a busy connection doesn't block
+ *     triggers on unrelated paths.
+ * Locks are always taken in stripe, then PathIdSet order.
+ */
+class ConcurrentWatchManager implements WatchManager {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ConcurrentWatchManager.class);
+
+    /**
+     * Number of lock stripes guarding watchTable, must be a power of 2.
+     */
+    private static final int NUM_STRIPES = 64;
+
+    /**
+     * Maps each watched path to its id and watchers. The watchers of a path
+     * are guarded by the stripe lock of that path.
+     */
+    private final ConcurrentHashMap<String, PathWatchers> watchTable =
+        new ConcurrentHashMap<String, PathWatchers>();
+
+    private final ConcurrentHashMap<Watcher, PathIdSet> watch2Paths =
+        new ConcurrentHashMap<Watcher, PathIdSet>();
+
+    private final PathIdIndex pathIds = new PathIdIndex();
+
+    private final Object[] stripes = new Object[NUM_STRIPES];
+
+    private final AtomicInteger watchCount = new AtomicInteger();
+
+    ConcurrentWatchManager() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    private Object stripeFor(String path) {
+        int h = path.hashCode();
+        // spread the high bits, String hashes of similar paths differ mostly
+        // in the low bits
+        h ^= (h >>> 16);
+        return stripes[h & (NUM_STRIPES - 1)];
+    }
+
+    public int size() {
+        return watchCount.get();
+    }
+
+    public void addWatch(String path, Watcher watcher) {
+        PathIdSet paths = watch2Paths.get(watcher);
+        if (paths == null) {
+            paths = new PathIdSet();
+            PathIdSet existing = watch2Paths.putIfAbsent(watcher, paths);
+            if (existing != null) {
+                paths = existing;
+            }
+        }
+        synchronized (stripeFor(path)) {
+            PathWatchers pw = watchTable.get(path);
+            if (pw == null) {
+                pw = new PathWatchers(pathIds.intern(path));
+                watchTable.put(path, pw);
+            }
+            if (!pw.watchers.add(watcher)) {
+                // already watching this path
+                return;
+            }
+            if (paths.add(pw.id)) {
+                watchCount.incrementAndGet();
+                return;
+            }
+            // The watcher was removed while we were adding the watch; its
+            // connection is gone so don't leave a watch behind for it.
+            pw.watchers.remove(watcher);
+            if (pw.watchers.isEmpty()) {
+                watchTable.remove(path);
+                pathIds.release(pw.id);
+            }
+        }
+    }
+
+    public void removeWatcher(Watcher watcher) {
+        PathIdSet paths = watch2Paths.remove(watcher);
+        if (paths == null) {
+            return;
+        }
+        for (int id : paths.close()) {
+            String path = pathIds.getPath(id);
+            if (path == null) {
+                continue;
+            }
+            synchronized (stripeFor(path)) {
+                PathWatchers pw = watchTable.get(path);
+                // the id may have been released and reused by another path
+                // since we took the snapshot
+                if (pw == null || pw.id != id) {
+                    continue;
+                }
+                if (pw.watchers.remove(watcher)) {
+                    watchCount.decrementAndGet();
+                    if (pw.watchers.isEmpty()) {
+                        watchTable.remove(path);
+                        pathIds.release(id);
+                    }
+                }
+            }
+        }
+    }
+
+    public Set<Watcher> triggerWatch(String path, EventType type) {
+        return triggerWatch(path, type, null);
+    }
+
+    public Set<Watcher> triggerWatch(String path, EventType type,
+                                     Set<Watcher> supress) {
+        WatchedEvent e = new WatchNotification(type,
+                KeeperState.SyncConnected, path);
+        HashSet<Watcher> watchers;
+        synchronized (stripeFor(path)) {
+            PathWatchers pw = watchTable.remove(path);
+            if (pw == null) {
+                if (LOG.isTraceEnabled()) {
+                    ZooTrace.logTraceMessage(LOG,
+                            ZooTrace.EVENT_DELIVERY_TRACE_MASK,
+                            "No watchers for " + path);
+                }
+                return null;
+            }
+            watchers = pw.watchers;
+            for (Watcher w : watchers) {
+                PathIdSet paths = watch2Paths.get(w);
+                if (paths != null) {
+                    paths.remove(pw.id);
+                }
+            }
+            watchCount.addAndGet(-watchers.size());
+            pathIds.release(pw.id);
+        }
+        for (Watcher w : watchers) {
+            if (supress != null && supress.contains(w)) {
+                continue;
+            }
+            w.process(e);
+        }
+        return watchers;
+    }
+
+    /**
+     * Brief description of this object.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(watch2Paths.size()).append(" connections watching ")
+            .append(watchTable.size()).append(" paths\n");
+        sb.append("Total watches:").append(watchCount.get());
+
+        return sb.toString();
+    }
+
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
+        if (byPath) {
+            for (Entry<String, PathWatchers> e : watchTable.entrySet()) {
+                ArrayList<Watcher> watchers;
+                synchronized (stripeFor(e.getKey())) {
+                    watchers = new ArrayList<Watcher>(e.getValue().watchers);
+                }
+                pwriter.println(e.getKey());
+                for (Watcher w : watchers) {
+                    pwriter.print("\t0x");
+                    pwriter.print(Long.toHexString(((ServerCnxn)w).getSessionId()));
+                    pwriter.print("\n");
+                }
+            }
+        } else {
+            for (Entry<Watcher, PathIdSet> e : watch2Paths.entrySet()) {
+                pwriter.print("0x");
+                pwriter.println(Long.toHexString(((ServerCnxn)e.getKey()).getSessionId()));
+                for (int id : e.getValue().toArray()) {
+                    String path = pathIds.getPath(id);
+                    if (path != null) {
+                        pwriter.print("\t");
+                        pwriter.println(path);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The watchers of one path, guarded by the stripe lock of the path.
+     */
+    private static class PathWatchers {
+        final int id;
+        // don't waste memory if there are few watches on a node
+        final HashSet<Watcher> watchers = new HashSet<Watcher>(4);
+
+        PathWatchers(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Assigns small integer ids to watched paths. Ids are released when the
+     * last watch on a path goes away and are reused, so they stay dense and
+     * the PathIdSets stay small.
+     */
+    private static class PathIdIndex {
+        private String[] paths = new String[1024];
+        private int[] freeIds = new int[64];
+        private int numFreeIds = 0;
+        private int nextId = 0;
+
+        synchronized int intern(String path) {
+            int id;
+            if (numFreeIds > 0) {
+                id = freeIds[--numFreeIds];
+            } else {
+                id = nextId++;
+                if (id == paths.length) {
+                    paths = Arrays.copyOf(paths, paths.length * 2);
+                }
+            }
+            paths[id] = path;
+            return id;
+        }
+
+        synchronized void release(int id) {
+            paths[id] = null;
+            if (numFreeIds == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+            }
+            freeIds[numFreeIds++] = id;
+        }
+
+        synchronized String getPath(int id) {
+            return id < nextId ? paths[id] : null;
+        }
+    }
+
+    /**
+     * The set of path ids watched by one watcher. Small or sparse sets are
+     * kept as a sorted int array; once a BitSet spanning the ids would be no
+     * larger than the array the set switches to the BitSet.
+     */
+    static class PathIdSet {
+        private int[] ids = new int[4];
+        private int size = 0;
+        private BitSet bits = null;
+        private boolean closed = false;
+
+        /**
+         * @return false if the set has been closed and the id wasn't added
+         */
+        synchronized boolean add(int id) {
+            if (closed) {
+                return false;
+            }
+            if (bits != null) {
+                if (!bits.get(id)) {
+                    bits.set(id);
+                    size++;
+                }
+                return true;
+            }
+            int pos = Arrays.binarySearch(ids, 0, size, id);
+            if (pos >= 0) {
+                return true;
+            }
+            pos = -(pos + 1);
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            ids[pos] = id;
+            size++;
+            // a BitSet costs one bit per id up to the largest one, the
+            // array 32 bits per entry
+            if (size > 16 && ids[size - 1] <= size * 32) {
+                bits = new BitSet(ids[size - 1] + 1);
+                for (int i = 0; i < size; i++) {
+                    bits.set(ids[i]);
+                }
+                ids = null;
+            }
+            return true;
+        }
+
+        synchronized void remove(int id) {
+            if (bits != null) {
+                if (bits.get(id)) {
+                    bits.clear(id);
+                    size--;
+                }
+                return;
+            }
+            int pos = Arrays.binarySearch(ids, 0, size, id);
+            if (pos >= 0) {
+                System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+                size--;
+            }
+        }
+
+        synchronized boolean contains(int id) {
+            if (bits != null) {
+                return bits.get(id);
+            }
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized int[] toArray() {
+            if (bits == null) {
+                return Arrays.copyOf(ids, size);
+            }
+            int[] result = new int[size];
+            int i = 0;
+            for (int id = bits.nextSetBit(0); id >= 0;
+                 id = bits.nextSetBit(id + 1)) {
+                result[i++] = id;
+            }
+            return result;
+        }
+
+        /**
+         * Close the set so that no more ids can be added to it.
+         * @return the ids in the set at the time it was closed
+         */
+        synchronized int[] close() {
+            closed = true;
+            return toArray();
+        }
+    }
+}
@@ -170,4 +170,20 @@ public class ConnectionBean implements ConnectionMXBean, ZKMBeanInfo {
     public long getLastLatency() {
         return stats.getLastLatency();
     }
+
+    public long getThrottleCount() {
+        return stats.getThrottleCount();
+    }
+
+    public long getThrottledTime() {
+        return stats.getThrottledTime();
+    }
+
+    public long getOutgoingBytes() {
+        return stats.getOutgoingBytes();
+    }
+
+    public long getOutgoingQueueAge() {
+        return stats.getOutgoingQueueAge();
+    }
 }
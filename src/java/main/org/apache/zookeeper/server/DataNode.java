@@ -39,6 +39,12 @@ public class DataNode implements Record {
     /** the data for this datanode */
     byte data[];
 
+    /**
+     * the data for this datanode when kept in an OffHeapDataStore, data is
+     * then null. The chunk is released once the node is deleted.
+     */
+    OffHeapDataStore.Chunk offHeapData;
+
     /**
      * the acl map long for this datanode. the datatree has the map
      */
@@ -56,6 +62,12 @@ public class DataNode implements Record {
      */
     private Set<String> children = null;
 
+    /**
+     * the id of the last SnapshotView that read this node, see
+     * SnapshotView.get()
+     */
+    volatile long snapshotViewId;
+
     /**
      * default constructor for the datanode
      */
@@ -96,6 +108,27 @@ public class DataNode implements Record {
         return children.add(child);
     }
 
+    /**
+     * Insert a child into a CompactChildSet, or into a HashSet once the node
+     * has more than CompactChildSet.MAX_SIZE children.
+     *
+     * @param child
+     *            to be inserted
+     * @return true if this set did not already contain the specified element
+     */
+    synchronized boolean addCompactChild(String child) {
+        if (children == null) {
+            children = new CompactChildSet();
+        } else if (children instanceof CompactChildSet
+                && children.size() >= CompactChildSet.MAX_SIZE) {
+            if (children.contains(child)) {
+                return false;
+            }
+            children = new HashSet<String>(children);
+        }
+        return children.add(child);
+    }
+
     /**
      * Method that removes a child from the children set
      * 
@@ -127,9 +160,48 @@ public class DataNode implements Record {
         return children;
     }
 
+    /**
+     * Copy the node without locking it, for a SnapshotView. The copy shares
+     * the data and ACL of the node, which are replaced rather than modified,
+     * and has its own stat and children. Data kept off heap is copied onto
+     * the heap. The caller must make sure the node isn't modified during the
+     * copy.
+     *
+     * @return a copy of this node
+     */
+    DataNode copy() {
+        StatPersisted statCopy = new StatPersisted();
+        DataTree.copyStatPersisted(stat, statCopy);
+        DataNode copy = new DataNode(getData(), acl, statCopy);
+        if (children instanceof CompactChildSet) {
+            copy.children =
+                new CompactChildSet((CompactChildSet) children);
+        } else if (children != null) {
+            copy.children = new HashSet<String>(children);
+        }
+        return copy;
+    }
+
     public synchronized long getApproximateDataSize() {
-        if(null==data) return 0;
-        return data.length;
+        return getDataLength();
+    }
+
+    /**
+     * @return the data of the node, copied if it is kept off heap, or null
+     *         if it was kept off heap and the node was deleted
+     */
+    byte[] getData() {
+        if (offHeapData != null) {
+            return offHeapData.toByteArray();
+        }
+        return data;
+    }
+
+    int getDataLength() {
+        if (offHeapData != null) {
+            return offHeapData.getLength();
+        }
+        return data == null ? 0 : data.length;
     }
 
     synchronized public void copyStat(Stat to) {
@@ -141,7 +213,7 @@ public class DataNode implements Record {
         to.setPzxid(stat.getPzxid());
         to.setVersion(stat.getVersion());
         to.setEphemeralOwner(stat.getEphemeralOwner());
-        to.setDataLength(data == null ? 0 : data.length);
+        to.setDataLength(getDataLength());
         int numChildren = 0;
         if (this.children != null) {
             numChildren = children.size();
@@ -166,7 +238,7 @@ public class DataNode implements Record {
     synchronized public void serialize(OutputArchive archive, String tag)
             throws IOException {
         archive.startRecord(this, "node");
-        archive.writeBuffer(data, "data");
+        archive.writeBuffer(getData(), "data");
         archive.writeLong(acl, "acl");
         stat.serialize(archive, "statpersisted");
         archive.endRecord(this, "node");
@@ -18,6 +18,8 @@
 
 package org.apache.zookeeper.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
@@ -29,9 +31,20 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-
-import org.apache.jute.Index;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Checksum;
+
+import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -47,12 +60,13 @@ import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.Watcher.Event;
 import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
-import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.PathTrie;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.data.StatPersisted;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.apache.zookeeper.server.persistence.SnapshotIndex;
 import org.apache.zookeeper.txn.CheckVersionTxn;
 import org.apache.zookeeper.txn.CreateTxn;
 import org.apache.zookeeper.txn.DeleteTxn;
@@ -84,9 +98,11 @@ public class DataTree {
     private final ConcurrentHashMap<String, DataNode> nodes =
         new ConcurrentHashMap<String, DataNode>();
 
-    private final WatchManager dataWatches = new WatchManager();
+    private final WatchManager dataWatches =
+        WatchManagerFactory.createWatchManager();
 
-    private final WatchManager childWatches = new WatchManager();
+    private final WatchManager childWatches =
+        WatchManagerFactory.createWatchManager();
 
     /** the root of zookeeper tree */
     private static final String rootZookeeper = "/";
@@ -122,29 +138,75 @@ public class DataTree {
      */
     private final PathTrie pTrie = new PathTrie();
 
+    /** the usage and limits of each quota, by the path it is set on */
+    private final ConcurrentHashMap<String, QuotaUsage> quotaUsages =
+        new ConcurrentHashMap<String, QuotaUsage>();
+
+    /** how the path of a zookeeper_stats node ends */
+    private static final String statNodeSuffix = "/" + Quotas.statNode;
+
+    /** how the path of a zookeeper_limits node ends */
+    private static final String limitNodeSuffix = "/" + Quotas.limitNode;
+
+    /** Default: false */
+    public static final String ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE =
+        "zookeeper.snapshot.copyOnWrite";
+
     /**
-     * This hashtable lists the paths of the ephemeral nodes of a session.
+     * If true, snapshots are serialized from a SnapshotView rather than
+     * from the live nodes.
      */
-    private final Map<Long, HashSet<String>> ephemerals =
-        new ConcurrentHashMap<Long, HashSet<String>>();
+    private final boolean copyOnWriteSnapshots =
+        Boolean.getBoolean(ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE);
+
+    /** Default: false */
+    public static final String ZOOKEEPER_DATATREE_COMPACT =
+        "zookeeper.dataTree.compact";
+
+    /**
+     * If true, the children of a node are kept in a CompactChildSet and
+     * their names are interned.
+     */
+    private final boolean compact =
+        Boolean.getBoolean(ZOOKEEPER_DATATREE_COMPACT);
+
+    /**
+     * The store of the data kept off heap, null if it is all on the heap.
+     */
+    private final OffHeapDataStore offHeapDataStore = OffHeapDataStore.create();
+
+    /**
+     * Held shared by txns while they are applied, and exclusively to open
+     * a SnapshotView between txns.
+     */
+    private final ReentrantReadWriteLock snapshotViewLock =
+        new ReentrantReadWriteLock();
+
+    /** The views snapshots are being serialized from */
+    private final List<SnapshotView> snapshotViews =
+        new CopyOnWriteArrayList<SnapshotView>();
 
     /**
-     * this is map from longs to acl's. It saves acl's being stored for each
-     * datanode.
+     * Held to purge the unused acls and write the acls of a snapshot, so no
+     * purge drops an acl a snapshot refers to between the two.
      */
-    private final Map<Long, List<ACL>> longKeyMap =
-        new HashMap<Long, List<ACL>>();
+    private final Object serializeLock = new Object();
+
+    /** The snapshots being serialized, guarded by serializeLock */
+    private int serializing;
 
     /**
-     * this a map from acls to long.
+     * This hashtable lists the paths of the ephemeral nodes of a session.
      */
-    private final Map<List<ACL>, Long> aclKeyMap =
-        new HashMap<List<ACL>, Long>();
+    private final Map<Long, HashSet<String>> ephemerals =
+        new ConcurrentHashMap<Long, HashSet<String>>();
 
     /**
-     * these are the number of acls that we have in the datatree
+     * the distinct acls of the datatree, so that each datanode only stores
+     * a long for its acl.
      */
-    private long aclIndex = 0;
+    private final ReferenceCountedACLCache aclCache =
+        new ReferenceCountedACLCache();
 
     @SuppressWarnings("unchecked")
     public Set<String> getEphemerals(long sessionId) {
@@ -160,31 +222,29 @@ public class DataTree {
     }
 
     int getAclSize() {
-        return longKeyMap.size();
+        return aclCache.size();
     }
 
-    private long incrementIndex() {
-        return ++aclIndex;
+    /**
+     * @return a rough number of bytes of heap taken by the acls
+     */
+    public long approximateAclSize() {
+        return aclCache.approximateSize();
+    }
+
+    ReferenceCountedACLCache getAclCache() {
+        return aclCache;
     }
 
     /**
-     * converts the list of acls to a list of longs.
+     * converts the list of acls to a list of longs. The acls are counted
+     * as used by one more datanode.
      *
      * @param acls
      * @return a list of longs that map to the acls
      */
-    public synchronized Long convertAcls(List<ACL> acls) {
-        if (acls == null)
-            return -1L;
-        // get the value from the map
-        Long ret = aclKeyMap.get(acls);
-        // could not find the map
-        if (ret != null)
-            return ret;
-        long val = incrementIndex();
-        longKeyMap.put(val, acls);
-        aclKeyMap.put(acls, val);
-        return val;
+    public Long convertAcls(List<ACL> acls) {
+        return aclCache.convertAcls(acls);
     }
 
     /**
@@ -194,17 +254,25 @@ public class DataTree {
      *            the list of longs
      * @return a list of ACLs that map to longs
      */
-    public synchronized List<ACL> convertLong(Long longVal) {
-        if (longVal == null)
-            return null;
-        if (longVal == -1L)
-            return Ids.OPEN_ACL_UNSAFE;
-        List<ACL> acls = longKeyMap.get(longVal);
-        if (acls == null) {
-            LOG.error("ERROR: ACL not available for long " + longVal);
-            throw new RuntimeException("Failed to fetch acls for " + longVal);
+    public List<ACL> convertLong(Long longVal) {
+        return aclCache.convertLong(longVal);
+    }
+
+    /**
+     * @param node a node looked up in the tree
+     * @return the acl of the node
+     * @throws KeeperException.NoNodeException if the node was deleted since
+     *         it was looked up, and its acl purged
+     */
+    public List<ACL> getACL(DataNode node)
+            throws KeeperException.NoNodeException {
+        synchronized (node) {
+            List<ACL> acl = aclCache.findAcls(node.acl);
+            if (acl == null) {
+                throw new KeeperException.NoNodeException();
+            }
+            return acl;
         }
-        return acls;
     }
 
     public Collection<Long> getSessions() {
@@ -215,6 +283,42 @@ public class DataTree {
         return nodes.get(path);
     }
 
+    /**
+     * @return the store of the data kept off heap, or null if it is all
+     *         on the heap
+     */
+    public OffHeapDataStore getOffHeapDataStore() {
+        return offHeapDataStore;
+    }
+
+    /**
+     * Move the data of a node into the OffHeapDataStore, if it is to be
+     * kept there. The quota nodes stay on the heap, they are updated in
+     * place. The caller must hold the lock of the node, or be the only one
+     * accessing it.
+     */
+    private void storeOffHeap(String path, DataNode node) {
+        if (offHeapDataStore == null || path.startsWith(quotaZookeeper)) {
+            return;
+        }
+        OffHeapDataStore.Chunk chunk = offHeapDataStore.store(node.data);
+        if (chunk != null) {
+            node.offHeapData = chunk;
+            node.data = null;
+        }
+    }
+
+    /**
+     * Drop the reference of a node to its data kept off heap, once the
+     * data is replaced or the node deleted. The caller must hold the lock
+     * of the node.
+     */
+    private static void releaseOffHeap(DataNode node) {
+        if (node.offHeapData != null) {
+            node.offHeapData.release();
+        }
+    }
+
     public int getNodeCount() {
         return nodes.size();
     }
@@ -278,10 +382,10 @@ public class DataTree {
         nodes.put(rootZookeeper, root);
 
         /** add the proc node and quota node */
-        root.addChild(procChildZookeeper);
+        addChild(root, procChildZookeeper);
         nodes.put(procZookeeper, procDataNode);
 
-        procDataNode.addChild(quotaChildZookeeper);
+        addChild(procDataNode, quotaChildZookeeper);
         nodes.put(quotaZookeeper, quotaDataNode);
         
         addConfigNode();
@@ -290,7 +394,7 @@ public class DataTree {
      public void addConfigNode() {
     	 DataNode zookeeperZnode = nodes.get(procZookeeper);
          if (zookeeperZnode!=null) { // should always be the case
-        	 zookeeperZnode.addChild(configChildZookeeper);
+        	 addChild(zookeeperZnode, configChildZookeeper);
          } else {
         	 LOG.error("There's no /zookeeper znode - this should never happen");
          }
@@ -347,36 +451,20 @@ public class DataTree {
      *            the diff to be added to the count
      */
     public void updateCount(String lastPrefix, int diff) {
-        String statNode = Quotas.statPath(lastPrefix);
-        DataNode node = nodes.get(statNode);
-        StatsTrack updatedStat = null;
-        if (node == null) {
+        QuotaUsage usage = quotaUsages.get(lastPrefix);
+        if (usage == null) {
             // should not happen
-            LOG.error("Missing count node for stat " + statNode);
+            LOG.error("Missing count node for stat "
+                    + Quotas.statPath(lastPrefix));
             return;
         }
-        synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
-            updatedStat.setCount(updatedStat.getCount() + diff);
-            node.data = updatedStat.toString().getBytes();
-        }
-        // now check if the counts match the quota
-        String quotaNode = Quotas.quotaPath(lastPrefix);
-        node = nodes.get(quotaNode);
-        StatsTrack thisStats = null;
-        if (node == null) {
-            // should not happen
-            LOG.error("Missing count node for quota " + quotaNode);
-            return;
-        }
-        synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
-        }
-        if (thisStats.getCount() > -1 && (thisStats.getCount() < updatedStat.getCount())) {
+        int count = usage.addCount(diff);
+        int limit = usage.getCountLimit();
+        if (limit > -1 && limit < count) {
             LOG
             .warn("Quota exceeded: " + lastPrefix + " count="
-                    + updatedStat.getCount() + " limit="
-                    + thisStats.getCount());
+                    + count + " limit="
+                    + limit);
         }
     }
 
@@ -391,41 +479,150 @@ public class DataTree {
      *             if path is not found
      */
     public void updateBytes(String lastPrefix, long diff) {
-        String statNode = Quotas.statPath(lastPrefix);
-        DataNode node = nodes.get(statNode);
-        if (node == null) {
+        QuotaUsage usage = quotaUsages.get(lastPrefix);
+        if (usage == null) {
             // should never be null but just to make
             // findbugs happy
-            LOG.error("Missing stat node for bytes " + statNode);
+            LOG.error("Missing stat node for bytes "
+                    + Quotas.statPath(lastPrefix));
             return;
         }
-        StatsTrack updatedStat = null;
-        synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
-            updatedStat.setBytes(updatedStat.getBytes() + diff);
-            node.data = updatedStat.toString().getBytes();
+        long bytes = usage.addBytes(diff);
+        long limit = usage.getBytesLimit();
+        if (limit > -1 && limit < bytes) {
+            LOG
+            .warn("Quota exceeded: " + lastPrefix + " bytes="
+                    + bytes + " limit="
+                    + limit);
         }
-        // now check if the bytes match the quota
-        String quotaNode = Quotas.quotaPath(lastPrefix);
-        node = nodes.get(quotaNode);
-        if (node == null) {
-            // should never be null but just to make
-            // findbugs happy
-            LOG.error("Missing quota node for bytes " + quotaNode);
+    }
+
+    /**
+     * Check that a write under a quota doesn't take it over its limits.
+     * Only the usage of the transactions already applied is counted, so
+     * writes that are in flight together can still go over.
+     *
+     * @param path
+     *            the path of the node written
+     * @param countDiff
+     *            the nodes the write adds
+     * @param bytesDiff
+     *            the bytes the write adds
+     * @throws KeeperException.QuotaExceededException
+     *             if the write takes the quota over a limit
+     */
+    public void checkQuota(String path, int countDiff, long bytesDiff)
+            throws KeeperException.QuotaExceededException {
+        String lastPrefix = getMaxPrefixWithQuota(path);
+        if (lastPrefix == null) {
             return;
         }
-        StatsTrack thisStats = null;
-        synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
+        QuotaUsage usage = quotaUsages.get(lastPrefix);
+        if (usage != null && usage.exceeds(countDiff, bytesDiff)) {
+            throw new KeeperException.QuotaExceededException(path);
         }
-        if (thisStats.getBytes() > -1 && (thisStats.getBytes() < updatedStat.getBytes())) {
-            LOG
-            .warn("Quota exceeded: " + lastPrefix + " bytes="
-                    + updatedStat.getBytes() + " limit="
-                    + thisStats.getBytes());
+    }
+
+    private QuotaUsage getQuotaUsage(String path) {
+        QuotaUsage usage = quotaUsages.get(path);
+        if (usage == null) {
+            QuotaUsage newUsage = new QuotaUsage();
+            usage = quotaUsages.putIfAbsent(path, newUsage);
+            if (usage == null) {
+                usage = newUsage;
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Set the limits of a quota from the data of its zookeeper_limits node.
+     *
+     * @param path
+     *            the path the quota is set on
+     */
+    private void updateQuotaLimits(String path, byte[] data) {
+        StatsTrack limits;
+        try {
+            limits = new StatsTrack(data == null ? null : new String(data));
+        } catch (RuntimeException e) {
+            LOG.warn("Invalid quota limits for " + path, e);
+            limits = new StatsTrack();
+        }
+        getQuotaUsage(path).setLimits(limits);
+    }
+
+    /**
+     * Bring the data of a zookeeper_stats node up to date with the usage of
+     * its quota. The caller must hold the lock of the node.
+     *
+     * @param path
+     *            the path of a node under the quota node
+     */
+    private void updateQuotaStats(String path, DataNode node) {
+        if (!path.endsWith(statNodeSuffix)) {
+            return;
+        }
+        QuotaUsage usage = quotaUsages.get(path.substring(
+                quotaZookeeper.length(),
+                path.length() - statNodeSuffix.length()));
+        if (usage == null) {
+            return;
+        }
+        byte[] stats = usage.takeStats();
+        if (stats != null) {
+            preserve(path, node);
+            node.data = stats;
+        }
+    }
+
+    /**
+     * Bring the data of all the zookeeper_stats nodes up to date.
+     */
+    private void updateAllQuotaStats() {
+        for (String path : quotaUsages.keySet()) {
+            String statPath = Quotas.statPath(path);
+            DataNode node = nodes.get(statPath);
+            if (node != null) {
+                synchronized (node) {
+                    updateQuotaStats(statPath, node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a child name to the children of its parent. The caller must hold
+     * the lock of the parent, or be the only one adding to it.
+     */
+    private void addChild(DataNode parent, String childName) {
+        if (compact) {
+            parent.addCompactChild(intern(childName));
+        } else {
+            parent.addChild(childName);
         }
     }
 
+    /**
+     * Intern a child name, so the names that repeat under many parents, eg.
+     * "config" or "leader", are kept once. The names of sequential nodes
+     * are unique, and are not worth a slot in the string table.
+     */
+    private static String intern(String childName) {
+        int len = childName.length();
+        if (len >= 10) {
+            boolean sequential = true;
+            for (int i = len - 10; i < len && sequential; i++) {
+                char c = childName.charAt(i);
+                sequential = c >= '0' && c <= '9';
+            }
+            if (sequential) {
+                return childName;
+            }
+        }
+        return childName.intern();
+    }
+
     /**
      * Add a new node to the DataTree.
      * @param path
@@ -495,6 +692,7 @@ public class DataTree {
             if (children != null && children.contains(childName)) {
                 throw new KeeperException.NodeExistsException();
             }
+            preserve(parentName, parent);
 
             if (parentCVersion == -1) {
                 parentCVersion = parent.stat.getCversion();
@@ -504,7 +702,8 @@ public class DataTree {
             parent.stat.setPzxid(zxid);
             Long longval = convertAcls(acl);
             DataNode child = new DataNode(data, longval, stat);
-            parent.addChild(childName);
+            storeOffHeap(path, child);
+            addChild(parent, childName);
             nodes.put(path, child);
             if (ephemeralOwner != 0) {
                 HashSet<String> list = ephemerals.get(ephemeralOwner);
@@ -526,7 +725,9 @@ public class DataTree {
             if (Quotas.limitNode.equals(childName)) {
                 // this is the limit node
                 // get the parent and add it to the trie
-                pTrie.addPath(parentName.substring(quotaZookeeper.length()));
+                String realPath = parentName.substring(quotaZookeeper.length());
+                updateQuotaLimits(realPath, data);
+                pTrie.addPath(realPath);
             }
             if (Quotas.statNode.equals(childName)) {
                 updateQuotaForPath(parentName
@@ -563,12 +764,23 @@ public class DataTree {
         if (node == null) {
             throw new KeeperException.NoNodeException();
         }
+        if (!snapshotViews.isEmpty()) {
+            synchronized (node) {
+                preserve(path, node);
+            }
+        }
         nodes.remove(path);
         DataNode parent = nodes.get(parentName);
         if (parent == null) {
             throw new KeeperException.NoNodeException();
         }
+        synchronized (node) {
+            // a reader that still finds the node can't read the data
+            releaseOffHeap(node);
+            aclCache.removeUsage(node.acl);
+        }
         synchronized (parent) {
+            preserve(parentName, parent);
             parent.removeChild(childName);
             parent.stat.setPzxid(zxid);
             long eowner = node.stat.getEphemeralOwner();
@@ -584,7 +796,9 @@ public class DataTree {
         if (parentName.startsWith(procZookeeper) && Quotas.limitNode.equals(childName)) {
             // delete the node in the trie.
             // we need to update the trie as well
-            pTrie.deletePath(parentName.substring(quotaZookeeper.length()));
+            String realPath = parentName.substring(quotaZookeeper.length());
+            pTrie.deletePath(realPath);
+            quotaUsages.remove(realPath);
         }
 
         // also check to update the quotas for this node
@@ -594,7 +808,7 @@ public class DataTree {
             updateCount(lastPrefix, -1);
             int bytes = 0;
             synchronized (node) {
-                bytes = (node.data == null ? 0 : -(node.data.length));
+                bytes = -node.getDataLength();
             }
             updateBytes(lastPrefix, bytes);
         }
@@ -618,20 +832,27 @@ public class DataTree {
         if (n == null) {
             throw new KeeperException.NoNodeException();
         }
-        byte lastdata[] = null;
+        int lastLength;
         synchronized (n) {
-            lastdata = n.data;
+            preserve(path, n);
+            lastLength = n.getDataLength();
+            releaseOffHeap(n);
+            n.offHeapData = null;
             n.data = data;
+            storeOffHeap(path, n);
             n.stat.setMtime(time);
             n.stat.setMzxid(zxid);
             n.stat.setVersion(version);
             n.copyStat(s);
         }
+        if (path.startsWith(quotaZookeeper)) {
+            updateQuotaNode(path, data);
+        }
         // now update if the path is in a quota subtree.
         String lastPrefix = getMaxPrefixWithQuota(path);
         if(lastPrefix != null) {
           this.updateBytes(lastPrefix, (data == null ? 0 : data.length)
-              - (lastdata == null ? 0 : lastdata.length));
+              - lastLength);
         }
         dataWatches.triggerWatch(path, EventType.NodeDataChanged);
         return s;
@@ -664,11 +885,56 @@ public class DataTree {
             throw new KeeperException.NoNodeException();
         }
         synchronized (n) {
+            if (path.startsWith(quotaZookeeper)) {
+                updateQuotaStats(path, n);
+            }
+            byte[] data = n.data;
+            if (n.offHeapData != null) {
+                data = n.offHeapData.toByteArray();
+                if (data == null) {
+                    // deleted since it was looked up
+                    throw new KeeperException.NoNodeException();
+                }
+            }
+            n.copyStat(stat);
+            if (watcher != null) {
+                dataWatches.addWatch(path, watcher);
+            }
+            return data;
+        }
+    }
+
+    /**
+     * getData for a response to a client. The data of a node kept off heap
+     * isn't copied, the response refers to it until released.
+     *
+     * @return a GetDataResponse, or an OffHeapDataResponse which must be
+     *         released once serialized
+     */
+    public Record getDataResponse(String path, Stat stat, Watcher watcher)
+            throws KeeperException.NoNodeException {
+        DataNode n = nodes.get(path);
+        if (n == null) {
+            throw new KeeperException.NoNodeException();
+        }
+        synchronized (n) {
+            if (path.startsWith(quotaZookeeper)) {
+                updateQuotaStats(path, n);
+            }
+            Record rsp;
+            if (n.offHeapData == null) {
+                rsp = new GetDataResponse(n.data, stat);
+            } else if (n.offHeapData.retain()) {
+                rsp = new OffHeapDataResponse(n.offHeapData, stat);
+            } else {
+                // deleted since it was looked up
+                throw new KeeperException.NoNodeException();
+            }
             n.copyStat(stat);
             if (watcher != null) {
                 dataWatches.addWatch(path, watcher);
             }
-            return n.data;
+            return rsp;
         }
     }
 
@@ -683,6 +949,9 @@ public class DataTree {
             throw new KeeperException.NoNodeException();
         }
         synchronized (n) {
+            if (path.startsWith(quotaZookeeper)) {
+                updateQuotaStats(path, n);
+            }
             n.copyStat(stat);
             return stat;
         }
@@ -721,8 +990,11 @@ public class DataTree {
             throw new KeeperException.NoNodeException();
         }
         synchronized (n) {
+            preserve(path, n);
             n.stat.setAversion(version);
+            Long lastAcl = n.acl;
             n.acl = convertAcls(acl);
+            aclCache.removeUsage(lastAcl);
             n.copyStat(stat);
             return stat;
         }
@@ -736,7 +1008,7 @@ public class DataTree {
         }
         synchronized (n) {
             n.copyStat(stat);
-            return new ArrayList<ACL>(convertLong(n.acl));
+            return new ArrayList<ACL>(getACL(n));
         }
     }
 
@@ -788,6 +1060,19 @@ public class DataTree {
     public volatile long lastProcessedZxid = 0;
 
     public ProcessTxnResult processTxn(TxnHeader header, Record txn)
+    {
+        if (!copyOnWriteSnapshots) {
+            return applyTxn(header, txn);
+        }
+        snapshotViewLock.readLock().lock();
+        try {
+            return applyTxn(header, txn);
+        } finally {
+            snapshotViewLock.readLock().unlock();
+        }
+    }
+
+    private ProcessTxnResult applyTxn(TxnHeader header, Record txn)
     {
         ProcessTxnResult rc = new ProcessTxnResult();
 
@@ -1035,7 +1320,7 @@ public class DataTree {
             if (childs != null) {
                 children = childs.toArray(new String[childs.size()]);
             }
-            len = (node.data == null ? 0 : node.data.length);
+            len = node.getDataLength();
         }
         // add itself
         counts.count += 1;
@@ -1057,9 +1342,6 @@ public class DataTree {
     private void updateQuotaForPath(String path) {
         Counts c = new Counts();
         getCounts(path, c);
-        StatsTrack strack = new StatsTrack();
-        strack.setBytes(c.bytes);
-        strack.setCount(c.count);
         String statPath = Quotas.quotaZookeeper + path + "/" + Quotas.statNode;
         DataNode node = getNode(statPath);
         // it should exist
@@ -1067,8 +1349,33 @@ public class DataTree {
             LOG.warn("Missing quota stat node " + statPath);
             return;
         }
-        synchronized (node) {
-            node.data = strack.toString().getBytes();
+        getQuotaUsage(path).setUsage(c.count, c.bytes);
+    }
+
+    /**
+     * Take the limits of a quota, or its usage, from data set on its
+     * zookeeper_limits or zookeeper_stats node.
+     *
+     * @param path
+     *            the path of a node under the quota node
+     */
+    private void updateQuotaNode(String path, byte[] data) {
+        if (path.endsWith(limitNodeSuffix)) {
+            updateQuotaLimits(path.substring(quotaZookeeper.length(),
+                    path.length() - limitNodeSuffix.length()), data);
+        } else if (path.endsWith(statNodeSuffix)) {
+            QuotaUsage usage = quotaUsages.get(path.substring(
+                    quotaZookeeper.length(),
+                    path.length() - statNodeSuffix.length()));
+            if (usage == null || data == null) {
+                return;
+            }
+            try {
+                StatsTrack stats = new StatsTrack(new String(data));
+                usage.setUsage(stats.getCount(), stats.getBytes());
+            } catch (RuntimeException e) {
+                LOG.warn("Invalid quota stats for " + path, e);
+            }
         }
     }
 
@@ -1097,6 +1404,9 @@ public class DataTree {
                 // the count and the bytes
                 String realPath = path.substring(Quotas.quotaZookeeper
                         .length(), path.indexOf(endString));
+                synchronized (node) {
+                    updateQuotaLimits(realPath, node.data);
+                }
                 updateQuotaForPath(realPath);
                 this.pTrie.addPath(realPath);
             }
@@ -1130,7 +1440,8 @@ public class DataTree {
      * @throws IOException
      * @throws InterruptedException
      */
-    void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
+    void serializeNode(OutputArchive oa, StringBuilder path,
+            NodeBoundaryListener listener) throws IOException {
         String pathString = path.toString();
         DataNode node = getNode(pathString);
         if (node == null) {
@@ -1138,6 +1449,9 @@ public class DataTree {
         }
         String children[] = null;
         synchronized (node) {
+            if (listener != null) {
+                listener.nodeStart();
+            }
             oa.writeString(pathString, "path");
             oa.writeRecord(node, "node");
             Set<String> childs = node.getChildren();
@@ -1154,51 +1468,126 @@ public class DataTree {
                 // to truncate the previous bytes of string.
                 path.delete(off, Integer.MAX_VALUE);
                 path.append(child);
-                serializeNode(oa, path);
+                serializeNode(oa, path, listener);
             }
         }
     }
 
-    private void deserializeList(Map<Long, List<ACL>> longKeyMap,
-            InputArchive ia) throws IOException {
-        int i = ia.readInt("map");
-        while (i > 0) {
-            Long val = ia.readLong("long");
-            if (aclIndex < val) {
-                aclIndex = val;
-            }
-            List<ACL> aclList = new ArrayList<ACL>();
-            Index j = ia.startVector("acls");
-            while (!j.done()) {
-                ACL acl = new ACL();
-                acl.deserialize(ia, "acl");
-                aclList.add(acl);
-                j.incr();
-            }
-            longKeyMap.put(val, aclList);
-            aclKeyMap.put(aclList, val);
-            i--;
+    /**
+     * Open a view of the tree between two txns.
+     */
+    private SnapshotView openSnapshotView() {
+        SnapshotView view = new SnapshotView(nodes);
+        snapshotViewLock.writeLock().lock();
+        try {
+            snapshotViews.add(view);
+        } finally {
+            snapshotViewLock.writeLock().unlock();
         }
+        return view;
     }
 
-    private synchronized void serializeList(Map<Long, List<ACL>> longKeyMap,
-            OutputArchive oa) throws IOException {
-        oa.writeInt(longKeyMap.size(), "map");
-        Set<Map.Entry<Long, List<ACL>>> set = longKeyMap.entrySet();
-        for (Map.Entry<Long, List<ACL>> val : set) {
-            oa.writeLong(val.getKey(), "long");
-            List<ACL> aclList = val.getValue();
-            oa.startVector(aclList, "acls");
-            for (ACL acl : aclList) {
-                acl.serialize(oa, "acl");
-            }
-            oa.endVector(aclList, "acls");
+    /**
+     * Preserve a node in the open SnapshotViews, if any, before modifying
+     * it. The caller must hold the lock of the node.
+     */
+    private void preserve(String path, DataNode node) {
+        if (snapshotViews.isEmpty()) {
+            return;
+        }
+        for (SnapshotView view : snapshotViews) {
+            view.preserve(path, node);
+        }
+    }
+
+    /**
+     * serializeNode for a snapshot serialized from a view, which doesn't
+     * lock the nodes.
+     */
+    private void serializeNode(OutputArchive oa, StringBuilder path,
+            NodeBoundaryListener listener, SnapshotView view)
+            throws IOException {
+        String pathString = path.toString();
+        DataNode node = view.get(pathString);
+        if (node == null) {
+            return;
+        }
+        if (listener != null) {
+            listener.nodeStart();
+        }
+        oa.writeString(pathString, "path");
+        oa.writeRecord(node, "node");
+        // the node is a private copy
+        Set<String> children = node.getChildren();
+        if (children == null) {
+            return;
         }
+        path.append('/');
+        int off = path.length();
+        for (String child : children) {
+            path.delete(off, Integer.MAX_VALUE);
+            path.append(child);
+            serializeNode(oa, path, listener, view);
+        }
+    }
+
+    /**
+     * Told where the nodes start in the stream written by serialize, so the
+     * serialized tree can be split into chunks of whole nodes.
+     */
+    public interface NodeBoundaryListener {
+        /** Called before each node is written */
+        void nodeStart() throws IOException;
+
+        /** Called after the last node is written */
+        void nodesEnd() throws IOException;
     }
 
     public void serialize(OutputArchive oa, String tag) throws IOException {
-        serializeList(longKeyMap, oa);
-        serializeNode(oa, new StringBuilder(""));
+        serialize(oa, tag, null);
+    }
+
+    /**
+     * @param listener if not null, told where the nodes start
+     */
+    public void serialize(OutputArchive oa, String tag,
+            NodeBoundaryListener listener) throws IOException {
+        updateAllQuotaStats();
+        SnapshotView view = null;
+        synchronized (serializeLock) {
+            // a snapshot already being serialized may still write nodes
+            // whose acls are no longer used
+            if (serializing == 0) {
+                aclCache.purgeUnused();
+            }
+            serializing++;
+            if (copyOnWriteSnapshots) {
+                view = openSnapshotView();
+            }
+            try {
+                aclCache.serialize(oa);
+            } catch (IOException e) {
+                endSerialize(view);
+                throw e;
+            }
+        }
+        try {
+            if (view != null) {
+                serializeNode(oa, new StringBuilder(""), listener, view);
+            } else {
+                serializeNode(oa, new StringBuilder(""), listener);
+            }
+        } finally {
+            endSerialize(view);
+        }
+        if (view != null) {
+            LOG.info("Serialized snapshot, "
+                    + view.getCopiedOnWriteCount()
+                    + " nodes were copied on write");
+        }
+        if (listener != null) {
+            listener.nodesEnd();
+        }
         // / marks end of stream
         // we need to check if clear had been called in between the snapshot.
         if (root != null) {
@@ -1206,13 +1595,24 @@ public class DataTree {
         }
     }
 
+    private void endSerialize(SnapshotView view) {
+        if (view != null) {
+            snapshotViews.remove(view);
+        }
+        synchronized (serializeLock) {
+            serializing--;
+        }
+    }
+
     public void deserialize(InputArchive ia, String tag) throws IOException {
-        deserializeList(longKeyMap, ia);
+        aclCache.deserialize(ia);
         nodes.clear();
         String path = ia.readString("path");
         while (!"/".equals(path)) {
             DataNode node = new DataNode();
             ia.readRecord(node, "node");
+            node.acl = aclCache.addUsage(node.acl);
+            storeOffHeap(path, node);
             nodes.put(path, node);
             int lastSlash = path.lastIndexOf('/');
             if (lastSlash == -1) {
@@ -1224,7 +1624,7 @@ public class DataTree {
                     throw new IOException("Invalid Datatree, unable to find " +
                             "parent " + parentPath + " of path " + path);
                 }
-                parent.addChild(path.substring(lastSlash + 1));
+                addChild(parent, path.substring(lastSlash + 1));
                 long eowner = node.stat.getEphemeralOwner();
                 if (eowner != 0) {
                     HashSet<String> list = ephemerals.get(eowner);
@@ -1245,6 +1645,204 @@ public class DataTree {
         setupQuota();
     }
 
+    /**
+     * Deserialize the tree from a snapshot split into chunks, see
+     * SnapshotIndex. The reading thread hands the bytes of each chunk to a
+     * pool of threads that verify its checksum and deserialize its nodes,
+     * with at most two chunks per thread in memory waiting to be parsed.
+     * Once all the nodes are in the tree the pool links them to their
+     * parents and collects the ephemerals, chunk by chunk.
+     *
+     * @param ia the archive the snapshot is read from
+     * @param in the input the archive reads from, the chunks are read from
+     *           it as raw bytes
+     * @param index the chunks of the tree
+     * @param numThreads the number of threads to deserialize with
+     */
+    public void deserialize(InputArchive ia, DataInput in,
+            final SnapshotIndex index, int numThreads) throws IOException {
+        long start = System.nanoTime();
+        aclCache.deserialize(ia);
+        nodes.clear();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactory() {
+                    private final AtomicInteger threadNum = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SnapshotLoader-"
+                                + threadNum.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            final Semaphore inFlight = new Semaphore(2 * numThreads);
+            List<Future<DeserializedChunk>> parsing =
+                new ArrayList<Future<DeserializedChunk>>();
+            for (int i = 0; i < index.getChunkCount(); i++) {
+                inFlight.acquireUninterruptibly();
+                final int chunk = i;
+                final byte[] bytes = new byte[index.getLength(i)];
+                in.readFully(bytes);
+                parsing.add(pool.submit(new Callable<DeserializedChunk>() {
+                    public DeserializedChunk call() throws IOException {
+                        try {
+                            return deserializeChunk(index, chunk, bytes);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }));
+            }
+            if (!"/".equals(ia.readString("path"))) {
+                throw new IOException("Invalid Datatree, nodes past the "
+                        + "end of the snapshot index");
+            }
+            List<DeserializedChunk> chunks = waitFor(parsing);
+            long parsed = System.nanoTime();
+
+            for (DeserializedChunk chunk : chunks) {
+                if (chunk.root != null) {
+                    root = chunk.root;
+                }
+            }
+            List<Future<Map<Long, HashSet<String>>>> linking =
+                new ArrayList<Future<Map<Long, HashSet<String>>>>();
+            for (final DeserializedChunk chunk : chunks) {
+                linking.add(pool.submit(
+                        new Callable<Map<Long, HashSet<String>>>() {
+                    public Map<Long, HashSet<String>> call()
+                        throws IOException
+                    {
+                        return linkChunk(chunk);
+                    }
+                }));
+            }
+            for (Map<Long, HashSet<String>> chunkEphemerals : waitFor(linking)) {
+                for (Map.Entry<Long, HashSet<String>> entry
+                        : chunkEphemerals.entrySet()) {
+                    HashSet<String> list = ephemerals.get(entry.getKey());
+                    if (list == null) {
+                        ephemerals.put(entry.getKey(), entry.getValue());
+                    } else {
+                        list.addAll(entry.getValue());
+                    }
+                }
+            }
+            long linked = System.nanoTime();
+
+            nodes.put("/", root);
+            setupQuota();
+            long end = System.nanoTime();
+            LOG.info("Deserialized " + nodes.size() + " nodes in "
+                    + index.getChunkCount() + " chunks with " + numThreads
+                    + " threads: read and parse "
+                    + (parsed - start) / 1000000 + " ms, link "
+                    + (linked - parsed) / 1000000 + " ms, quotas "
+                    + (end - linked) / 1000000 + " ms");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * The nodes of a chunk, in the order they were serialized
+     */
+    private static class DeserializedChunk {
+        final String[] paths;
+        final DataNode[] nodes;
+        DataNode root;
+
+        DeserializedChunk(int nodeCount) {
+            paths = new String[nodeCount];
+            nodes = new DataNode[nodeCount];
+        }
+    }
+
+    private DeserializedChunk deserializeChunk(SnapshotIndex index, int i,
+            byte[] bytes) throws IOException {
+        Checksum crc = index.getChecksum().create();
+        crc.update(bytes, 0, bytes.length);
+        if (crc.getValue() != index.getChecksum(i)) {
+            throw new IOException("CRC corruption in snapshot chunk " + i);
+        }
+        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+        InputArchive chunkIa = BinaryInputArchive.getArchive(bais);
+        DeserializedChunk chunk =
+            new DeserializedChunk(index.getNodeCount(i));
+        for (int j = 0; j < chunk.nodes.length; j++) {
+            String path = chunkIa.readString("path");
+            DataNode node = new DataNode();
+            chunkIa.readRecord(node, "node");
+            node.acl = aclCache.addUsage(node.acl);
+            storeOffHeap(path, node);
+            nodes.put(path, node);
+            if (path.lastIndexOf('/') == -1) {
+                chunk.root = node;
+            }
+            chunk.paths[j] = path;
+            chunk.nodes[j] = node;
+        }
+        if (bais.available() != 0) {
+            throw new IOException("Invalid Datatree, " + bais.available()
+                    + " bytes left over in snapshot chunk " + i);
+        }
+        return chunk;
+    }
+
+    /**
+     * Add the nodes of a chunk to the children of their parents
+     * @return the ephemerals of the chunk
+     */
+    private Map<Long, HashSet<String>> linkChunk(DeserializedChunk chunk)
+        throws IOException
+    {
+        Map<Long, HashSet<String>> chunkEphemerals =
+            new HashMap<Long, HashSet<String>>();
+        for (int j = 0; j < chunk.nodes.length; j++) {
+            String path = chunk.paths[j];
+            int lastSlash = path.lastIndexOf('/');
+            if (lastSlash == -1) {
+                continue;
+            }
+            String parentPath = path.substring(0, lastSlash);
+            DataNode parent = nodes.get(parentPath);
+            if (parent == null) {
+                throw new IOException("Invalid Datatree, unable to find " +
+                        "parent " + parentPath + " of path " + path);
+            }
+            addChild(parent, path.substring(lastSlash + 1));
+            long eowner = chunk.nodes[j].stat.getEphemeralOwner();
+            if (eowner != 0) {
+                HashSet<String> list = chunkEphemerals.get(eowner);
+                if (list == null) {
+                    list = new HashSet<String>();
+                    chunkEphemerals.put(eowner, list);
+                }
+                list.add(path);
+            }
+        }
+        return chunkEphemerals;
+    }
+
+    private static <T> List<T> waitFor(List<Future<T>> futures)
+        throws IOException
+    {
+        List<T> results = new ArrayList<T>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while loading snapshot", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to load snapshot", e.getCause());
+        }
+        return results;
+    }
+
     /**
      * Summary of the watches on the datatree.
      * @param pwriter the output to write to
@@ -1371,6 +1969,7 @@ public class DataTree {
             throw new KeeperException.NoNodeException(path);
         }
         synchronized (node) {
+            preserve(path, node);
             if(newCversion == -1) {
                 newCversion = node.stat.getCversion() + 1;
             }
@@ -22,31 +22,101 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * ExpiryQueue tracks elements in time sorted fixed duration buckets.
  * It's used by SessionTrackerImpl to expire sessions and NIOServerCnxnFactory
  * to expire connections.
+ *
+ * The buckets form a timing wheel: the element expiring at time t is in
+ * bucket (t / expirationInterval) modulo the size of the wheel, and stays
+ * there for as many turns of the wheel as its timeout spans. Each element
+ * carries its own Slot, which links it into its bucket, so adding, moving
+ * or removing an element only relinks the slot under the lock of the
+ * buckets involved, and doesn't allocate.
  */
-public class ExpiryQueue<E> {
-    private final ConcurrentHashMap<E, Long> elemMap =
-        new ConcurrentHashMap<E, Long>();
+public class ExpiryQueue<E extends ExpiryQueue.Expirable> {
+    /**
+     * An element of an ExpiryQueue.
+     */
+    public interface Expirable {
+        /**
+         * @return the slot of the element, the same one every time
+         */
+        Slot getExpirySlot();
+    }
+
+    /**
+     * The place of an element in the ExpiryQueue it is in, an element can
+     * be in only one queue. The links and the bucket of the slot are
+     * guarded by the lock of its bucket, moving it to another bucket is
+     * guarded by the lock of the slot itself.
+     */
+    public static final class Slot {
+        private final Object elem;
+        private Slot prev;
+        private Slot next;
+        private Bucket bucket;
+        /** 0 if the element isn't queued */
+        private volatile long expiryTime;
+
+        public Slot(Object elem) {
+            this.elem = elem;
+        }
+    }
+
+    /** The elements expiring at the same time, modulo the wheel size */
+    private static final class Bucket {
+        private final Slot head = new Slot(null);
+
+        Bucket() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        void link(Slot slot, long expiryTime) {
+            slot.prev = head.prev;
+            slot.next = head;
+            head.prev.next = slot;
+            head.prev = slot;
+            slot.bucket = this;
+            slot.expiryTime = expiryTime;
+        }
+
+        void unlink(Slot slot) {
+            slot.prev.next = slot.next;
+            slot.next.prev = slot.prev;
+            slot.prev = null;
+            slot.next = null;
+            slot.bucket = null;
+        }
+    }
+
     /**
-     * The maximum number of buckets is equal to max timeout/expirationInterval,
-     * so the expirationInterval should not be too small compared to the
-     * max timeout that this expiry queue needs to maintain.
+     * The number of buckets, a power of 2. Timeouts longer than that many
+     * expirationIntervals still work, but go around the wheel more than
+     * once.
      */
-    private final ConcurrentHashMap<Long, Set<E>> expiryMap =
-        new ConcurrentHashMap<Long, Set<E>>();
+    private static final int WHEEL_SIZE = 512;
+
+    private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+    private final AtomicInteger size = new AtomicInteger();
 
     private final AtomicLong nextExpirationTime = new AtomicLong();
     private final int expirationInterval;
 
     public ExpiryQueue(int expirationInterval) {
         this.expirationInterval = expirationInterval;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new Bucket();
+        }
         nextExpirationTime.set(roundToNextInterval(System.currentTimeMillis()));
     }
 
@@ -54,23 +124,47 @@ public class ExpiryQueue<E> {
         return (time / expirationInterval + 1) * expirationInterval;
     }
 
+    private Bucket bucketOf(long expiryTime) {
+        return wheel[(int) ((expiryTime / expirationInterval)
+                            & (WHEEL_SIZE - 1))];
+    }
+
+    /**
+     * Unlink the slot from its bucket.
+     * @return whether the slot was in a bucket
+     */
+    private static boolean unlink(Slot slot) {
+        // the bucket is only cleared without the lock of the slot, by poll()
+        Bucket bucket = slot.bucket;
+        if (bucket == null) {
+            return false;
+        }
+        synchronized (bucket) {
+            if (slot.bucket != bucket) {
+                return false;
+            }
+            bucket.unlink(slot);
+            return true;
+        }
+    }
+
     /**
      * Removes element from the queue.
      * @param elem  element to remove
-     * @return      time at which the element was set to expire, or null if
+     * @return      time at which the element was set to expire, or -1 if
      *              it wasn't present
      */
-    public Long remove(E elem) {
-        Long expiryTime = elemMap.remove(elem);
-        if (expiryTime != null) {
-            Set<E> set = expiryMap.get(expiryTime);
-            if (set != null) {
-                set.remove(elem);
-                // We don't need to worry about removing empty sets,
-                // they'll eventually be removed when they expire.
+    public long remove(E elem) {
+        Slot slot = elem.getExpirySlot();
+        synchronized (slot) {
+            long expiryTime = slot.expiryTime;
+            if (!unlink(slot)) {
+                return -1;
             }
+            slot.expiryTime = 0;
+            size.decrementAndGet();
+            return expiryTime;
         }
-        return expiryTime;
     }
 
     /**
@@ -79,40 +173,26 @@ public class ExpiryQueue<E> {
      * @param elem     element to add/update
      * @param timeout  timout in milliseconds
      * @return         time at which the element is now set to expire if
-     *                 changed, or null if unchanged
+     *                 changed, or -1 if unchanged
      */
-    public Long update(E elem, int timeout) {
-        Long prevExpiryTime = elemMap.get(elem);
-        long now = System.currentTimeMillis();
-        Long newExpiryTime = roundToNextInterval(now + timeout);
-
-        if (newExpiryTime.equals(prevExpiryTime)) {
+    public long update(E elem, int timeout) {
+        Slot slot = elem.getExpirySlot();
+        long newExpiryTime =
+            roundToNextInterval(System.currentTimeMillis() + timeout);
+        if (slot.expiryTime == newExpiryTime) {
             // No change, so nothing to update
-            return null;
+            return -1;
         }
-
-        // First add the elem to the new expiry time bucket in expiryMap.
-        Set<E> set = expiryMap.get(newExpiryTime);
-        if (set == null) {
-            // Construct a ConcurrentHashSet using a ConcurrentHashMap
-            set = Collections.newSetFromMap(
-                new ConcurrentHashMap<E, Boolean>());
-            // Put the new set in the map, but only if another thread
-            // hasn't beaten us to it
-            Set<E> existingSet = expiryMap.putIfAbsent(newExpiryTime, set);
-            if (existingSet != null) {
-                set = existingSet;
+        synchronized (slot) {
+            if (slot.expiryTime == newExpiryTime) {
+                return -1;
             }
-        }
-        set.add(elem);
-
-        // Map the elem to the new expiry time. If a different previous
-        // mapping was present, clean up the previous expiry bucket.
-        prevExpiryTime = elemMap.put(elem, newExpiryTime);
-        if (prevExpiryTime != null && !newExpiryTime.equals(prevExpiryTime)) {
-            Set<E> prevSet = expiryMap.get(prevExpiryTime);
-            if (prevSet != null) {
-                prevSet.remove(elem);
+            if (!unlink(slot)) {
+                size.incrementAndGet();
+            }
+            Bucket bucket = bucketOf(newExpiryTime);
+            synchronized (bucket) {
+                bucket.link(slot, newExpiryTime);
             }
         }
         return newExpiryTime;
@@ -128,13 +208,14 @@ public class ExpiryQueue<E> {
     }
 
     /**
-     * Remove the next expired set of elements from expireMap. This method needs
-     * to be called frequently enough by checking getWaitTime(), otherwise there
-     * will be a backlog of empty sets queued up in expiryMap.
+     * Remove the next expired set of elements from the queue. This method
+     * needs to be called frequently enough by checking getWaitTime(),
+     * otherwise there will be a backlog of expiration times to go through.
      *
      * @return next set of expired elements, or an empty set if none are
      *         ready
      */
+    @SuppressWarnings("unchecked")
     public Set<E> poll() {
         long now = System.currentTimeMillis();
         long expirationTime = nextExpirationTime.get();
@@ -142,11 +223,29 @@ public class ExpiryQueue<E> {
             return Collections.emptySet();
         }
 
-        Set<E> set = null;
         long newExpirationTime = expirationTime + expirationInterval;
-        if (nextExpirationTime.compareAndSet(
+        if (!nextExpirationTime.compareAndSet(
               expirationTime, newExpirationTime)) {
-            set = expiryMap.remove(expirationTime);
+            return Collections.emptySet();
+        }
+        Set<E> set = null;
+        Bucket bucket = bucketOf(expirationTime);
+        synchronized (bucket) {
+            Slot slot = bucket.head.next;
+            while (slot != bucket.head) {
+                Slot next = slot.next;
+                // the others expire on a later turn of the wheel
+                if (slot.expiryTime <= expirationTime) {
+                    bucket.unlink(slot);
+                    slot.expiryTime = 0;
+                    size.decrementAndGet();
+                    if (set == null) {
+                        set = new HashSet<E>();
+                    }
+                    set.add((E) slot.elem);
+                }
+                slot = next;
+            }
         }
         if (set == null) {
             return Collections.emptySet();
@@ -154,27 +253,36 @@ public class ExpiryQueue<E> {
         return set;
     }
 
+    @SuppressWarnings("unchecked")
     public void dump(PrintWriter pwriter) {
+        Map<Long, List<E>> sets = new TreeMap<Long, List<E>>();
+        for (Bucket bucket : wheel) {
+            synchronized (bucket) {
+                for (Slot slot = bucket.head.next; slot != bucket.head;
+                     slot = slot.next) {
+                    List<E> set = sets.get(slot.expiryTime);
+                    if (set == null) {
+                        set = new ArrayList<E>();
+                        sets.put(slot.expiryTime, set);
+                    }
+                    set.add((E) slot.elem);
+                }
+            }
+        }
         pwriter.print("Sets (");
-        pwriter.print(expiryMap.size());
+        pwriter.print(sets.size());
         pwriter.print(")/(");
-        pwriter.print(elemMap.size());
+        pwriter.print(size.get());
         pwriter.println("):");
-        ArrayList<Long> keys = new ArrayList<Long>(expiryMap.keySet());
-        Collections.sort(keys);
-        for (long time : keys) {
-            Set<E> set = expiryMap.get(time);
-            if (set != null) {
-                pwriter.print(set.size());
-                pwriter.print(" expire at ");
-                pwriter.print(new Date(time));
-                pwriter.println(":");
-                for (E elem : set) {
-                    pwriter.print("\t");
-                    pwriter.println(elem.toString());
-                }
+        for (Map.Entry<Long, List<E>> entry : sets.entrySet()) {
+            pwriter.print(entry.getValue().size());
+            pwriter.print(" expire at ");
+            pwriter.print(new Date(entry.getKey()));
+            pwriter.println(":");
+            for (E elem : entry.getValue()) {
+                pwriter.print("\t");
+                pwriter.println(elem.toString());
             }
         }
     }
 }
-
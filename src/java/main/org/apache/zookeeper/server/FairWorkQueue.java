@@ -0,0 +1,304 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FairWorkQueue is the queue of a single thread worker of a WorkerService
+ * that shares the worker fairly between the ids work is scheduled for, by
+ * deficit round robin.
+ *
+ * The work for each id is queued in order in a flow, and the flows with work
+ * take turns. On its turn a flow gets a quantum of time added to its deficit,
+ * and runs work until the time its work took uses up the deficit. As the
+ * cost of work is only known once it has run, a flow can go over and owe
+ * time, which it pays back by skipping turns. Work for the same id is still
+ * run in the order it was scheduled, so an id with a lot of expensive work
+ * only delays its own work, not the work of the other ids on the worker.
+ *
+ * The worker must call charge() after running each piece of work it took
+ * from the queue.
+ */
+class FairWorkQueue extends AbstractQueue<Runnable>
+    implements BlockingQueue<Runnable> {
+
+    /**
+     * Work that belongs to a flow, other work belongs to the flow of id 0.
+     */
+    interface Keyed {
+        long getKey();
+    }
+
+    private static class Flow {
+        final long key;
+        final ArrayDeque<Runnable> work = new ArrayDeque<Runnable>();
+        /** time in ns the flow can run for before its next turn */
+        long deficit;
+        /** whether the flow is in the round */
+        boolean active;
+
+        Flow(long key) {
+            this.key = key;
+        }
+    }
+
+    private final long quantum;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // guarded by lock
+    private final HashMap<Long, Flow> flows = new HashMap<Long, Flow>();
+    /** The flows with work, the head has the turn */
+    private final ArrayDeque<Flow> round = new ArrayDeque<Flow>();
+    private int size;
+    /** The flow of the work being run, until it is charged */
+    private Flow running;
+
+    /**
+     * @param quantum time in ns a flow gets on each turn
+     */
+    FairWorkQueue(long quantum) {
+        this.quantum = Math.max(1, quantum);
+    }
+
+    private static long keyOf(Object work) {
+        return work instanceof Keyed ? ((Keyed) work).getKey() : 0;
+    }
+
+    public boolean offer(Runnable work) {
+        if (work == null) {
+            throw new NullPointerException();
+        }
+        long key = keyOf(work);
+        lock.lock();
+        try {
+            Flow flow = flows.get(key);
+            if (flow == null) {
+                flow = new Flow(key);
+                flows.put(key, flow);
+            }
+            flow.work.add(work);
+            size++;
+            if (!flow.active) {
+                flow.active = true;
+                round.add(flow);
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next work of the flow that has the turn. Must hold the lock.
+     */
+    private Runnable dequeue() {
+        if (size == 0) {
+            return null;
+        }
+        while (true) {
+            Flow flow = round.peek();
+            if (flow.deficit <= 0) {
+                flow.deficit += quantum;
+                if (flow.deficit <= 0) {
+                    // still paying back, skip this turn
+                    round.add(round.poll());
+                    continue;
+                }
+            }
+            Runnable work = flow.work.poll();
+            size--;
+            if (flow.work.isEmpty()) {
+                round.poll();
+                flow.active = false;
+            }
+            running = flow;
+            return work;
+        }
+    }
+
+    /**
+     * Charge the flow of the work last taken from the queue for the time it
+     * took to run.
+     * @param cost time in ns the work took
+     */
+    void charge(long cost) {
+        lock.lock();
+        try {
+            Flow flow = running;
+            running = null;
+            if (flow == null) {
+                return;
+            }
+            flow.deficit -= cost;
+            if (!flow.active) {
+                // idle flows don't keep credit or debt
+                flows.remove(flow.key);
+            } else if (flow.deficit <= 0 && round.peek() == flow) {
+                round.add(round.poll());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable poll(long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Flow flow = round.peek();
+            return flow == null ? null : flow.work.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(Runnable work) {
+        offer(work);
+    }
+
+    public boolean offer(Runnable work, long timeout, TimeUnit unit) {
+        return offer(work);
+    }
+
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object work) {
+        lock.lock();
+        try {
+            Flow flow = flows.get(keyOf(work));
+            if (flow == null || !flow.work.remove(work)) {
+                return false;
+            }
+            size--;
+            if (flow.work.isEmpty() && flow.active) {
+                round.remove(flow);
+                flow.active = false;
+                if (flow != running) {
+                    flows.remove(flow.key);
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            Runnable work;
+            while (n < maxElements && (work = dequeue()) != null) {
+                c.add(work);
+                n++;
+            }
+            running = null;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return an iterator over a snapshot of the queued work, in no
+     *         particular order
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<Runnable>(size);
+            for (Flow flow : round) {
+                snapshot.addAll(flow.work);
+            }
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -23,13 +23,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.util.Date;
-import java.util.zip.Adler32;
 import java.util.zip.Checksum;
 
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.zookeeper.server.persistence.FileChecksum;
 import org.apache.zookeeper.server.persistence.FileHeader;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
 import org.apache.zookeeper.server.util.SerializeUtils;
@@ -58,6 +58,7 @@ public class LogFormatter {
         System.out.println("ZooKeeper Transactional Log File with dbid "
                 + fhdr.getDbid() + " txnlog format version "
                 + fhdr.getVersion());
+        FileChecksum checksum = FileChecksum.forVersion(fhdr.getVersion());
 
         int count = 0;
         while (true) {
@@ -77,7 +78,7 @@ public class LogFormatter {
                 System.out.println("EOF reached after " + count + " txns.");
                 return;
             }
-            Checksum crc = new Adler32();
+            Checksum crc = checksum.create();
             crc.update(bytes, 0, bytes.length);
             if (crcValue != crc.getValue()) {
                 throw new IOException("CRC doesn't match " + crcValue +
@@ -19,7 +19,6 @@
 package org.apache.zookeeper.server;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -37,7 +36,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.jute.BinaryInputArchive;
-import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
 import org.apache.jute.Record;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,7 +46,6 @@ import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
-import org.apache.zookeeper.proto.WatcherEvent;
 import org.apache.zookeeper.server.NIOServerCnxnFactory.SelectorThread;
 import org.apache.zookeeper.server.quorum.Leader;
 import org.apache.zookeeper.server.quorum.LeaderZooKeeperServer;
@@ -58,7 +56,9 @@ import org.apache.zookeeper.server.util.OSMXBean;
  * This class handles communication with clients using NIO. There is one per
  * client, but only one thread doing the communication.
  */
-public class NIOServerCnxn extends ServerCnxn {
+public class NIOServerCnxn extends ServerCnxn
+    implements ExpiryQueue.Expirable
+{
     static final Logger LOG = LoggerFactory.getLogger(NIOServerCnxn.class);
 
     private final NIOServerCnxnFactory factory;
@@ -75,9 +75,17 @@ public class NIOServerCnxn extends ServerCnxn {
 
     private ByteBuffer incomingBuffer = lenBuffer;
 
+    /** The pooled buffer of the packet being processed, until claimed */
+    private ByteBuffer packetBuffer;
+
     private final Queue<ByteBuffer> outgoingBuffers =
         new LinkedBlockingQueue<ByteBuffer>();
 
+    /** The thread running doIO() on the connection, if any */
+    private volatile Thread ioThread;
+
+    private volatile boolean closed;
+
     private int sessionTimeout;
 
     private final ZooKeeperServer zkServer;
@@ -93,7 +101,8 @@ public class NIOServerCnxn extends ServerCnxn {
      */
     private long sessionId;
 
-    private final int outstandingLimit;
+    /** The place of the connection in the connection expiry queue */
+    private final ExpiryQueue.Slot expirySlot = new ExpiryQueue.Slot(this);
 
     public NIOServerCnxn(ZooKeeperServer zk, SocketChannel sock,
                          SelectionKey sk, NIOServerCnxnFactory factory,
@@ -106,11 +115,6 @@ public class NIOServerCnxn extends ServerCnxn {
         if (this.factory.login != null) {
             this.zooKeeperSaslServer = new ZooKeeperSaslServer(factory.login);
         }
-        if (zk != null) {
-            outstandingLimit = zk.getGlobalOutstandingLimit();
-        } else {
-            outstandingLimit = 1;
-        }
         sock.socket().setTcpNoDelay(true);
         /* set socket linger to false, so that socket close does not block */
         sock.socket().setSoLinger(false, -1);
@@ -152,15 +156,32 @@ public class NIOServerCnxn extends ServerCnxn {
 
     /**
      * sendBuffer pushes a byte buffer onto the outgoing buffer queue for
-     * asynchronous writes.
+     * asynchronous writes. Buffers from the buffer pool of the factory are
+     * released once written. The buffer is dropped if the connection gets
+     * closed for having too many bytes waiting to be sent.
      */
     public void sendBuffer(ByteBuffer bb) {
+        sendBuffer(bb, false);
+    }
+
+    @Override
+    void sendBuffer(ByteBuffer bb, boolean notification) {
         if (LOG.isTraceEnabled()) {
             LOG.trace("Add a buffer to outgoingBuffers, sk " + sk
                       + " is valid: " + sk.isValid());
         }
+        if (bb != ServerCnxnFactory.closeConn
+                && !outgoingQueued(bb.remaining(), notification)) {
+            factory.getBufferPool().release(bb);
+            return;
+        }
         outgoingBuffers.add(bb);
-        requestInterestOpsUpdate();
+        if (closed) {
+            // too late for close() to free it
+            freeBuffers();
+            return;
+        }
+        requestWriteInterest();
     }
 
     /** Read the request payload (everything following the length prefix) */
@@ -178,13 +199,23 @@ public class NIOServerCnxn extends ServerCnxn {
         if (incomingBuffer.remaining() == 0) { // have we read length bytes?
             packetReceived();
             incomingBuffer.flip();
-            if (!initialized) {
-                readConnectRequest();
-            } else {
-                readRequest();
-            }
+            ByteBuffer packet = incomingBuffer;
+            packetBuffer = packet;
             lenBuffer.clear();
             incomingBuffer = lenBuffer;
+            try {
+                if (!initialized) {
+                    readConnectRequest(packet);
+                } else {
+                    readRequest(packet);
+                }
+            } finally {
+                // unless a request holds on to it
+                if (packetBuffer != null) {
+                    factory.getBufferPool().release(packetBuffer);
+                    packetBuffer = null;
+                }
+            }
         }
     }
 
@@ -196,6 +227,10 @@ public class NIOServerCnxn extends ServerCnxn {
      */
     private final AtomicBoolean selectable = new AtomicBoolean(true);
 
+    SelectorThread getSelectorThread() {
+        return selectorThread;
+    }
+
     public boolean isSelectable() {
         return sk.isValid() && selectable.get();
     }
@@ -214,98 +249,150 @@ public class NIOServerCnxn extends ServerCnxn {
         }
     }
 
+    /** Set while an interest ops update requested by sendBuffer is queued */
+    private final AtomicBoolean interestOpsUpdatePending = new AtomicBoolean();
+
+    /**
+     * Have the selector select the connection for writing. When coalescing
+     * writes, the buffers queued until the selector updates the interest
+     * ops share one request, and one wakeup of the selector.
+     */
+    private void requestWriteInterest() {
+        boolean wakeup = isSelectable() && (!factory.coalesceWrites
+                || interestOpsUpdatePending.compareAndSet(false, true));
+        factory.bufferQueued(wakeup);
+        if (wakeup) {
+            selectorThread.addInterestOpsUpdateRequest(sk);
+        }
+    }
+
+    /**
+     * Called by the selector before it updates the interest ops.
+     */
+    void interestOpsUpdated() {
+        interestOpsUpdatePending.set(false);
+    }
+
+    /** Most buffers handed to a single gathering write */
+    static final int MAX_GATHERED_BUFFERS = 128;
+
+    /**
+     * Write as much of the queued buffers as possible with a single
+     * gathering write. Direct buffers, such as the ones from the buffer
+     * pool, are written as is, while consecutive heap buffers are first
+     * coalesced into the thread's direct buffer, so that many small
+     * responses take one system call and no copy by the JDK.
+     */
     void handleWrite(SelectionKey k) throws IOException, CloseRequestException {
         if (outgoingBuffers.isEmpty()) {
             return;
         }
 
         /*
-         * This is going to reset the buffer position to 0 and the
-         * limit to the size of the buffer, so that we can fill it
-         * with data from the non-direct buffers that we need to
-         * send.
+         * The buffers are gathered as duplicates, so that the write doesn't
+         * move their positions; we do that after the write, as far as it
+         * got.
          */
         ByteBuffer directBuffer = NIOServerCnxnFactory.getDirectBuffer();
-        if (directBuffer == null) {
-            ByteBuffer[] bufferList = new ByteBuffer[outgoingBuffers.size()];
-            // Use gathered write call. This updates the positions of the
-            // byte buffers to reflect the bytes that were written out.
-            sock.write(outgoingBuffers.toArray(bufferList));
-
-            // Remove the buffers that we have sent
-            ByteBuffer bb;
-            while ((bb = outgoingBuffers.peek()) != null) {
-                if (bb == ServerCnxnFactory.closeConn) {
-                    throw new CloseRequestException("close requested");
-                }
-                if (bb.remaining() > 0) {
-                    break;
-                }
-                packetSent();
-                outgoingBuffers.remove();
-            }
-         } else {
+        if (directBuffer != null) {
             directBuffer.clear();
-
-            for (ByteBuffer b : outgoingBuffers) {
-                if (directBuffer.remaining() < b.remaining()) {
-                    /*
-                     * When we call put later, if the directBuffer is to
-                     * small to hold everything, nothing will be copied,
-                     * so we've got to slice the buffer if it's too big.
-                     */
-                    b = (ByteBuffer) b.slice().limit(
-                        directBuffer.remaining());
-                }
-                /*
-                 * put() is going to modify the positions of both
-                 * buffers, put we don't want to change the position of
-                 * the source buffers (we'll do that after the send, if
-                 * needed), so we save and reset the position after the
-                 * copy
-                 */
+        }
+        ByteBuffer[] gathered = new ByteBuffer[
+            Math.min(outgoingBuffers.size(), MAX_GATHERED_BUFFERS)];
+        int count = 0;
+        int coalescedStart = 0;
+        for (ByteBuffer b : outgoingBuffers) {
+            if (b == ServerCnxnFactory.closeConn
+                    || count == gathered.length) {
+                break;
+            }
+            if (!b.isDirect() && directBuffer != null
+                    && b.remaining() <= directBuffer.remaining()) {
                 int p = b.position();
                 directBuffer.put(b);
                 b.position(p);
-                if (directBuffer.remaining() == 0) {
+                continue;
+            }
+            if (directBuffer != null
+                    && directBuffer.position() > coalescedStart) {
+                if (count == gathered.length - 1) {
                     break;
                 }
+                gathered[count++] =
+                    coalesced(directBuffer, coalescedStart);
+                coalescedStart = directBuffer.position();
             }
-            /*
-             * Do the flip: limit becomes position, position gets set to
-             * 0. This sets us up for the write.
-             */
-            directBuffer.flip();
+            gathered[count++] = b.duplicate();
+        }
+        if (directBuffer != null
+                && directBuffer.position() > coalescedStart
+                && count < gathered.length) {
+            gathered[count++] = coalesced(directBuffer, coalescedStart);
+        }
 
-            int sent = sock.write(directBuffer);
+        long sent = 0;
+        if (count > 0) {
+            sent = sock.write(gathered, 0, count);
+            factory.bytesWritten(sent);
+            outgoingSent(sent);
+        }
 
-            ByteBuffer bb;
+        ByteBuffer bb;
 
-            // Remove the buffers that we have sent
-            while ((bb = outgoingBuffers.peek()) != null) {
-                if (bb == ServerCnxnFactory.closeConn) {
-                    throw new CloseRequestException("close requested");
-                }
-                if (sent < bb.remaining()) {
-                    /*
-                     * We only partially sent this buffer, so we update
-                     * the position and exit the loop.
-                     */
-                    bb.position(bb.position() + sent);
-                    break;
-                }
-                packetSent();
-                /* We've sent the whole buffer, so drop the buffer */
-                sent -= bb.remaining();
-                outgoingBuffers.remove();
+        // Remove the buffers that we have sent
+        while ((bb = outgoingBuffers.peek()) != null) {
+            if (bb == ServerCnxnFactory.closeConn) {
+                throw new CloseRequestException("close requested");
+            }
+            if (sent < bb.remaining()) {
+                /*
+                 * We only partially sent this buffer, so we update
+                 * the position and exit the loop.
+                 */
+                bb.position(bb.position() + (int) sent);
+                break;
+            }
+            packetSent();
+            /* We've sent the whole buffer, so drop the buffer */
+            sent -= bb.remaining();
+            ByteBuffer head = outgoingBuffers.poll();
+            factory.getBufferPool().release(head);
+            if (head != bb) {
+                // close() took bb, and whatever follows it, off the queue
+                break;
             }
         }
     }
 
+    /**
+     * @return the part of the direct buffer filled since start
+     */
+    private static ByteBuffer coalesced(ByteBuffer directBuffer, int start) {
+        ByteBuffer part = directBuffer.duplicate();
+        part.flip();
+        part.position(start);
+        return part;
+    }
+
     /**
      * Handles read/write IO on connection.
      */
     void doIO(SelectionKey k) throws InterruptedException {
+        ioThread = Thread.currentThread();
+        try {
+            if (!closed) {
+                doIOUnlessClosed(k);
+            }
+        } finally {
+            ioThread = null;
+            if (closed) {
+                freeBuffers();
+            }
+        }
+    }
+
+    private void doIOUnlessClosed(SelectionKey k)
+            throws InterruptedException {
         try {
             if (sock == null) {
                 LOG.warn("trying to do i/o on a null socket for session:0x"
@@ -326,7 +413,7 @@ public class NIOServerCnxn extends ServerCnxn {
                     if (incomingBuffer == lenBuffer) { // start of next request
                         incomingBuffer.flip();
                         isPayload = readLength(k);
-                        incomingBuffer.clear();
+                        lenBuffer.clear();
                     } else {
                         // continuation
                         isPayload = true;
@@ -372,22 +459,26 @@ public class NIOServerCnxn extends ServerCnxn {
         }
     }
 
-    private void readRequest() throws IOException {
-        zkServer.processPacket(this, incomingBuffer);
+    private void readRequest(ByteBuffer packet) throws IOException {
+        zkServer.processPacket(this, packet);
+    }
+
+    @Override
+    ByteBuffer claimPacketBuffer() {
+        ByteBuffer bb = packetBuffer;
+        packetBuffer = null;
+        return bb;
+    }
+
+    @Override
+    void releasePacketBuffer(ByteBuffer bb) {
+        factory.getBufferPool().release(bb);
     }
 
     // Only called as callback from zkServer.processPacket()
     protected void incrOutstandingRequests(RequestHeader h) {
         if (h.getXid() >= 0) {
             outstandingRequests.incrementAndGet();
-            // check throttling
-            int inProcess = zkServer.getInProcess();
-            if (inProcess > outstandingLimit) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Throttling recv " + inProcess);
-                }
-                disableRecv();
-            }
         }
     }
 
@@ -422,11 +513,12 @@ public class NIOServerCnxn extends ServerCnxn {
         }
     }
 
-    private void readConnectRequest() throws IOException, InterruptedException {
+    private void readConnectRequest(ByteBuffer packet)
+            throws IOException, InterruptedException {
         if (zkServer == null) {
             throw new IOException("ZooKeeperServer not running");
         }
-        zkServer.processConnectRequest(this, incomingBuffer);
+        zkServer.processConnectRequest(this, packet);
         initialized = true;
     }
 
@@ -769,6 +861,68 @@ public class NIOServerCnxn extends ServerCnxn {
             print("watch_count", zkdb.getDataTree().getWatchCount());
             print("ephemerals_count", zkdb.getDataTree().getEphemeralsCount());
             print("approximate_data_size", zkdb.getDataTree().approximateDataSize());
+            print("acl_count", zkdb.getAclSize());
+            print("approximate_acl_size", zkdb.getDataTree().approximateAclSize());
+
+            OffHeapDataStore offHeapData =
+                zkdb.getDataTree().getOffHeapDataStore();
+            if (offHeapData != null) {
+                print("offheap_data_capacity", offHeapData.getCapacity());
+                print("offheap_data_allocated", offHeapData.getAllocatedBytes());
+                print("offheap_data_used", offHeapData.getUsedBytes());
+                print("offheap_data_chunks", offHeapData.getChunkCount());
+                print("offheap_data_fallbacks", offHeapData.getFallbacks());
+            }
+
+            WatchNotificationDispatcher dispatcher =
+                zkServer.getWatchNotificationDispatcher();
+            if (dispatcher != null) {
+                print("watch_notifications_queued", dispatcher.getQueuedNotifications());
+                print("watch_notifications_sent", dispatcher.getSentNotifications());
+                print("watch_notification_batches", dispatcher.getSentBatches());
+                print("avg_watch_notification_latency", dispatcher.getAvgLatency());
+                print("max_watch_notification_latency", dispatcher.getMaxLatency());
+                print("min_watch_notification_latency", dispatcher.getMinLatency());
+            }
+
+            RequestThrottler throttler = zkServer.getRequestThrottler();
+            if (throttler != null) {
+                print("throttle_limit", throttler.getLimit());
+                print("in_flight_request_bytes", throttler.getInFlightBytes());
+                print("throttled_connections", throttler.getThrottledConnections());
+            }
+            print("throttle_count", stats.getThrottledTime().getCount());
+            print("avg_throttled_time", stats.getThrottledTime().getAvg());
+            print("max_throttled_time", stats.getThrottledTime().getMax());
+
+            WorkerService workerPool = zkServer.getRequestWorkerPool();
+            if (workerPool != null && workerPool.getNumQueues() > 0) {
+                int queued = 0;
+                int maxQueued = 0;
+                long maxWaitTime = 0;
+                for (int i = 0; i < workerPool.getNumQueues(); i++) {
+                    int depth = workerPool.getQueueDepth(i);
+                    queued += depth;
+                    maxQueued = Math.max(maxQueued, depth);
+                    maxWaitTime = Math.max(maxWaitTime,
+                                           workerPool.getWaitTime(i).getMax());
+                }
+                print("request_worker_queued", queued);
+                print("request_worker_max_queued", maxQueued);
+                print("request_worker_max_wait_time", maxWaitTime);
+            }
+
+            // bytes per write and buffers per wakeup tell how well writes
+            // are coalesced
+            print("nio_bytes_written", factory.getBytesWritten());
+            print("nio_write_calls", factory.getWriteCalls());
+            print("nio_buffers_queued", factory.getBuffersQueued());
+            print("nio_write_wakeups", factory.getWriteWakeups());
+            for (SelectorThread thread : factory.getSelectorThreads()) {
+                String prefix = "nio_selector_" + thread.getSelectorId();
+                print(prefix + "_connections", thread.getNumConnections());
+                print(prefix + "_utilization", thread.getUtilization());
+            }
 
             OSMXBean osMbean = new OSMXBean();
             if (osMbean != null && osMbean.getUnix() == true) {
@@ -935,7 +1089,7 @@ public class NIOServerCnxn extends ServerCnxn {
         if (zkServer == null) {
             throw new IOException("ZooKeeperServer not running");
         }
-        incomingBuffer = ByteBuffer.allocate(len);
+        incomingBuffer = factory.getBufferPool().acquire(len);
         return true;
     }
 
@@ -952,6 +1106,10 @@ public class NIOServerCnxn extends ServerCnxn {
         return sessionTimeout;
     }
 
+    public ExpiryQueue.Slot getExpirySlot() {
+        return expirySlot;
+    }
+
     /**
      * Used by "dump" 4-letter command to list all connection in
      * cnxnExpiryMap
@@ -970,11 +1128,14 @@ public class NIOServerCnxn extends ServerCnxn {
         if (!factory.removeCnxn(this)) {
             return;
         }
+        closed = true;
 
         if (zkServer != null) {
             zkServer.removeCnxn(this);
         }
 
+        dropDispatchedNotifications();
+
         if (sk != null) {
             try {
                 // need to cancel this selection key from the selector
@@ -987,6 +1148,37 @@ public class NIOServerCnxn extends ServerCnxn {
         }
 
         closeSock();
+        freeBuffers();
+    }
+
+    /**
+     * Give the pooled buffers of a closed connection back to the pool.
+     * Only the thread doing IO on the connection, or any thread when none
+     * does, recycles them. Other threads discard the queued buffers, which
+     * may be being written, and leave the one being read to the IO thread,
+     * which calls this again once done.
+     */
+    private void freeBuffers() {
+        Thread t = ioThread;
+        boolean recycle = t == null || t == Thread.currentThread();
+        BufferPool pool = factory.getBufferPool();
+        ByteBuffer bb;
+        while ((bb = outgoingBuffers.poll()) != null) {
+            if (recycle) {
+                pool.release(bb);
+            } else {
+                pool.discard(bb);
+            }
+        }
+        if (recycle) {
+            // both close() and the IO thread may get here
+            synchronized (lenBuffer) {
+                if (incomingBuffer != lenBuffer) {
+                    pool.release(incomingBuffer);
+                    incomingBuffer = lenBuffer;
+                }
+            }
+        }
     }
 
     /**
@@ -1052,8 +1244,6 @@ public class NIOServerCnxn extends ServerCnxn {
         }
     }
 
-    private final static byte fourBytes[] = new byte[4];
-
     /*
      * (non-Javadoc)
      *
@@ -1063,29 +1253,19 @@ public class NIOServerCnxn extends ServerCnxn {
     @Override
     public void sendResponse(ReplyHeader h, Record r, String tag) {
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            // Make space for length
-            BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
+            flushDispatchedNotifications();
+
+            // serialized straight into a pooled buffer, released once written
+            ByteBufferOutputArchive oa =
+                factory.getBufferPool().new BufferOutputArchive(RESPONSE_SIZE);
             try {
-                baos.write(fourBytes);
-                bos.writeRecord(h, "header");
-                if (r != null) {
-                    bos.writeRecord(r, tag);
-                }
-                baos.close();
+                serializeResponse(oa, h, r, tag);
             } catch (IOException e) {
                 LOG.error("Error serializing response");
             }
-            byte b[] = baos.toByteArray();
-            ByteBuffer bb = ByteBuffer.wrap(b);
-            bb.putInt(b.length - 4).rewind();
-            sendBuffer(bb);
+            sendBuffer(oa.getBuffer());
             if (h.getXid() > 0) {
-                // check throttling
-                if (outstandingRequests.decrementAndGet() < 1 ||
-                    zkServer.getInProcess() < outstandingLimit) {
-                    enableRecv();
-                }
+                outstandingRequests.decrementAndGet();
             }
          } catch(Exception e) {
             LOG.warn("Unexpected exception. Destruction averted.", e);
@@ -1099,7 +1279,6 @@ public class NIOServerCnxn extends ServerCnxn {
      */
     @Override
     public void process(WatchedEvent event) {
-        ReplyHeader h = new ReplyHeader(-1, -1L, 0);
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK,
                                      "Deliver event " + event + " to 0x"
@@ -1107,10 +1286,13 @@ public class NIOServerCnxn extends ServerCnxn {
                                      + " through " + this);
         }
 
-        // Convert WatchedEvent to a type that can be sent over the wire
-        WatcherEvent e = event.getWrapper();
+        if (dispatchNotification(event)) {
+            return;
+        }
 
-        sendResponse(h, e, "notification");
+        // The serialized notification is shared by all the connections
+        // watching the path, each gets its own read-only view of it
+        sendBuffer(toNotification(event).getSerialized(), true);
     }
 
     /*
@@ -1165,6 +1347,11 @@ public class NIOServerCnxn extends ServerCnxn {
         return sock.socket().getInetAddress();
     }
 
+    @Override
+    protected ServerCnxnFactory serverCnxnFactory() {
+        return factory;
+    }
+
     @Override
     protected ServerStats serverStats() {
         if (zkServer == null) {
@@ -1173,4 +1360,12 @@ public class NIOServerCnxn extends ServerCnxn {
         return zkServer.serverStats();
     }
 
+    @Override
+    protected WatchNotificationDispatcher notificationDispatcher() {
+        if (zkServer == null) {
+            return null;
+        }
+        return zkServer.getWatchNotificationDispatcher();
+    }
+
 }
@@ -29,15 +29,16 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -82,6 +83,19 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
     /** Default: 64kB */
     public static final String ZOOKEEPER_NIO_DIRECT_BUFFER_BYTES =
         "zookeeper.nio.directBufferBytes";
+    /**
+     * Default: true. Buffers queued on a connection before the selector gets
+     * to it share a single selector wakeup, and are then sent together with
+     * a single gathering write.
+     */
+    public static final String ZOOKEEPER_NIO_COALESCE_WRITES =
+        "zookeeper.nio.coalesceWrites";
+    /**
+     * Default: 1. The accept threads share the listen socket, each selecting
+     * on it with its own selector.
+     */
+    public static final String ZOOKEEPER_NIO_NUM_ACCEPT_THREADS =
+        "zookeeper.nio.numAcceptThreads";
     /** Default worker pool shutdown timeout in ms: 5000 (5s) */
     public static final String ZOOKEEPER_NIO_SHUTDOWN_TIMEOUT =
         "zookeeper.nio.shutdownTimeout";
@@ -173,29 +187,26 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
     }
 
     /**
-     * There is a single AcceptThread which accepts new connections and assigns
-     * them to a SelectorThread using a simple round-robin scheme to spread
-     * them across the SelectorThreads. It enforces maximum number of
-     * connections per IP and attempts to cope with running out of file
-     * descriptors by briefly sleeping before retrying.
+     * AcceptThreads accept new connections and assign them to the least
+     * loaded SelectorThread, see chooseSelectorThread(). They enforce the
+     * maximum number of connections per IP and attempt to cope with running
+     * out of file descriptors by briefly sleeping before retrying. There is
+     * one by default; more of them share the listen socket, each selecting
+     * on it with its own selector.
      */
     private class AcceptThread extends AbstractSelectThread {
         private final ServerSocketChannel acceptSocket;
         private final SelectionKey acceptKey;
         private final RateLogger acceptErrorLogger = new RateLogger(LOG);
-        private final Collection<SelectorThread> selectorThreads;
-        private Iterator<SelectorThread> selectorIterator;
         private volatile boolean reconfiguring = false;
         
         public AcceptThread(ServerSocketChannel ss, InetSocketAddress addr,
-                Set<SelectorThread> selectorThreads) throws IOException {
-            super("NIOServerCxnFactory.AcceptThread:" + addr);
+                int id) throws IOException {
+            super("NIOServerCxnFactory.AcceptThread:" + addr
+                  + (id > 0 ? "-" + id : ""));
             this.acceptSocket = ss;
             this.acceptKey =
                 acceptSocket.register(selector, SelectionKey.OP_ACCEPT);
-            this.selectorThreads = Collections.unmodifiableList(
-                new ArrayList<SelectorThread>(selectorThreads));
-            selectorIterator = this.selectorThreads.iterator();
         }
 
         public void run() {
@@ -273,9 +284,10 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
 
         /**
          * Accept new socket connections. Enforces maximum number of connections
-         * per client IP address. Round-robin assigns to selector thread for
-         * handling. Returns whether pulled a connection off the accept queue
-         * or not. If encounters an error attempts to fast close the socket.
+         * per client IP address. Assigns to the least loaded selector thread
+         * for handling. Returns whether pulled a connection off the accept
+         * queue or not, or another accept thread did. If encounters an error
+         * attempts to fast close the socket.
          *
          * @return whether was able to accept a connection or not
          */
@@ -285,6 +297,10 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
             try {
                 sc = acceptSocket.accept();
                 accepted = true;
+                if (sc == null) {
+                    // another accept thread got it first
+                    return accepted;
+                }
                 InetAddress ia = sc.socket().getInetAddress();
                 int cnxncount = getClientCnxnCount(ia);
 
@@ -297,11 +313,7 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
                          + sc.socket().getRemoteSocketAddress());
                 sc.configureBlocking(false);
 
-                // Round-robin assign this connection to a selector thread
-                if (!selectorIterator.hasNext()) {
-                    selectorIterator = selectorThreads.iterator();
-                }
-                SelectorThread selectorThread = selectorIterator.next();
+                SelectorThread selectorThread = chooseSelectorThread();
                 if (!selectorThread.addAcceptedConnection(sc)) {
                     throw new IOException(
                         "Unable to add connection to selector queue"
@@ -320,15 +332,15 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
 
     /**
      * The SelectorThread receives newly accepted connections from the
-     * AcceptThread and is responsible for selecting for I/O readiness
+     * AcceptThreads and is responsible for selecting for I/O readiness
      * across the connections. This thread is the only thread that performs
      * any non-threadsafe or potentially blocking calls on the selector
      * (registering new connections and reading/writing interest ops).
      *
      * Assignment of a connection to a SelectorThread is permanent and only
      * one SelectorThread will ever interact with the connection. There are
-     * 1-N SelectorThreads, with connections evenly apportioned between the
-     * SelectorThreads.
+     * 1-N SelectorThreads, new connections go to the one with the fewest
+     * connections, weighted by how busy it has been recently.
      *
      * If there is a worker thread pool, when a connection has I/O to perform
      * the SelectorThread removes it from selection by clearing its interest
@@ -344,6 +356,19 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
         private final Queue<SocketChannel> acceptedQueue;
         private final Queue<SelectionKey> updateQueue;
 
+        /** Connections assigned to the thread, including queued ones */
+        private final AtomicInteger numConnections = new AtomicInteger();
+
+        // Only the thread updates these, to measure its utilization
+        private long lastWakeup;
+        private long windowStart;
+        private long windowBusy;
+
+        /** Percentage of the last window the thread wasn't selecting */
+        private volatile int utilization;
+        /** When the thread started selecting, 0 while it isn't */
+        private volatile long selectingSince;
+
         public SelectorThread(int id) throws IOException {
             super("NIOServerCxnFactory.SelectorThread-" + id);
             this.id = id;
@@ -351,13 +376,57 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
             updateQueue = new LinkedBlockingQueue<SelectionKey>();
         }
 
+        public int getSelectorId() {
+            return id;
+        }
+
+        public int getNumConnections() {
+            return numConnections.get();
+        }
+
+        /**
+         * @return the percentage of the last UTILIZATION_WINDOW_NS the
+         *         thread was busy handling I/O rather than selecting
+         */
+        public int getUtilization() {
+            long since = selectingSince;
+            if (since != 0
+                    && System.nanoTime() - since >= UTILIZATION_WINDOW_NS) {
+                // idle for the whole last window
+                return 0;
+            }
+            return utilization;
+        }
+
+        void connectionRemoved() {
+            numConnections.decrementAndGet();
+        }
+
+        private void beforeSelect() {
+            long now = System.nanoTime();
+            windowBusy += now - lastWakeup;
+            if (now - windowStart >= UTILIZATION_WINDOW_NS) {
+                utilization = (int) (windowBusy * 100 / (now - windowStart));
+                windowStart = now;
+                windowBusy = 0;
+            }
+            selectingSince = now;
+        }
+
+        private void afterSelect() {
+            selectingSince = 0;
+            lastWakeup = System.nanoTime();
+        }
+
         /**
          * Place new accepted connection onto a queue for adding. Do this
          * so only the selector thread modifies what keys are registered
          * with the selector.
          */
         public boolean addAcceptedConnection(SocketChannel accepted) {
+            numConnections.incrementAndGet();
             if (stopped || !acceptedQueue.offer(accepted)) {
+                numConnections.decrementAndGet();
                 return false;
             }
             wakeupSelector();
@@ -385,6 +454,7 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
          * queue.
          */
         public void run() {
+            lastWakeup = windowStart = System.nanoTime();
             try {
                 while (!stopped) {
                     try {
@@ -423,7 +493,12 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
 
         private void select() {
             try {
-                selector.select();
+                beforeSelect();
+                try {
+                    selector.select();
+                } finally {
+                    afterSelect();
+                }
 
                 Set<SelectionKey> selected = selector.selectedKeys();
                 ArrayList<SelectionKey> selectedList =
@@ -481,6 +556,7 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
                     addCnxn(cnxn);
                 } catch (IOException e) {
                     // register, createConnection
+                    numConnections.decrementAndGet();
                     cleanupSelectionKey(key);
                     fastCloseSock(accepted);
                 }
@@ -498,6 +574,8 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
                     cleanupSelectionKey(key);
                 }
                 NIOServerCnxn cnxn = (NIOServerCnxn) key.attachment();
+                // buffers queued from now on need another update
+                cnxn.interestOpsUpdated();
                 if (cnxn.isSelectable()) {
                     key.interestOps(cnxn.getInterestOps());
                 }
@@ -604,6 +682,43 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
         return directBufferBytes > 0 ? directBuffer.get() : null;
     }
 
+    private final AtomicLong buffersQueued = new AtomicLong();
+    private final AtomicLong writeWakeups = new AtomicLong();
+    private final AtomicLong writeCalls = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    void bufferQueued(boolean wakeup) {
+        buffersQueued.incrementAndGet();
+        if (wakeup) {
+            writeWakeups.incrementAndGet();
+        }
+    }
+
+    void bytesWritten(long bytes) {
+        writeCalls.incrementAndGet();
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /** @return the number of buffers queued to be sent to clients */
+    public long getBuffersQueued() {
+        return buffersQueued.get();
+    }
+
+    /** @return the number of selector wakeups to send queued buffers */
+    public long getWriteWakeups() {
+        return writeWakeups.get();
+    }
+
+    /** @return the number of socket writes to clients */
+    public long getWriteCalls() {
+        return writeCalls.get();
+    }
+
+    /** @return the number of bytes written to clients */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
     // sessionMap is used by closeSession()
     private final ConcurrentHashMap<Long, NIOServerCnxn> sessionMap =
         new ConcurrentHashMap<Long, NIOServerCnxn>();
@@ -620,6 +735,7 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
     protected WorkerService workerPool;
 
     private static int directBufferBytes;
+    boolean coalesceWrites;
     private int numSelectorThreads;
     private int numWorkerThreads;
     private long workerShutdownTimeoutMS;
@@ -632,11 +748,44 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
     public NIOServerCnxnFactory() {
     }
 
+    /** Window over which the utilization of selector threads is measured */
+    static final long UTILIZATION_WINDOW_NS = 1000000000L;
+
     private volatile boolean stopped = true;
     private ConnectionExpirerThread expirerThread;
-    private AcceptThread acceptThread;
-    private final Set<SelectorThread> selectorThreads =
-        new HashSet<SelectorThread>();
+    private int numAcceptThreads;
+    private final List<AcceptThread> acceptThreads =
+        new ArrayList<AcceptThread>();
+    private final List<SelectorThread> selectorThreads =
+        new ArrayList<SelectorThread>();
+
+    /**
+     * Pick the selector thread to handle a new connection: the one with the
+     * lowest number of connections weighted by its recent utilization, a
+     * thread that was fully busy counting as having twice its connections.
+     * This keeps connections evenly spread, but sends fewer of them to the
+     * threads that happen to have the busiest ones.
+     */
+    private SelectorThread chooseSelectorThread() {
+        SelectorThread chosen = null;
+        long chosenLoad = Long.MAX_VALUE;
+        for (SelectorThread thread : selectorThreads) {
+            long load = (thread.getNumConnections() + 1L)
+                * (100 + thread.getUtilization());
+            if (load < chosenLoad) {
+                chosen = thread;
+                chosenLoad = load;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * @return the selector threads, for their metrics
+     */
+    List<SelectorThread> getSelectorThreads() {
+        return Collections.unmodifiableList(selectorThreads);
+    }
 
     @Override
     public void configure(InetSocketAddress addr, int maxcc) throws IOException {
@@ -666,14 +815,23 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
             ZOOKEEPER_NIO_NUM_WORKER_THREADS, 2 * numCores);
         workerShutdownTimeoutMS = Long.getLong(
             ZOOKEEPER_NIO_SHUTDOWN_TIMEOUT, 5000);
+        coalesceWrites = Boolean.parseBoolean(
+            System.getProperty(ZOOKEEPER_NIO_COALESCE_WRITES, "true"));
+        numAcceptThreads = Integer.getInteger(
+            ZOOKEEPER_NIO_NUM_ACCEPT_THREADS, 1);
+        if (numAcceptThreads < 1) {
+            throw new IOException("numAcceptThreads must be at least 1");
+        }
 
         LOG.info("Configuring NIO connection handler with "
                  + (sessionlessCnxnTimeout/1000) + "s sessionless connection"
-                 + " timeout, " + numSelectorThreads + " selector thread(s), "
+                 + " timeout, " + numAcceptThreads + " accept thread(s), "
+                 + numSelectorThreads + " selector thread(s), "
                  + (numWorkerThreads > 0 ? numWorkerThreads : "no")
                  + " worker threads, and "
-                 + (directBufferBytes == 0 ? "gathered writes." :
-                    ("" + (directBufferBytes/1024) + " kB direct buffers.")));
+                 + (directBufferBytes == 0 ? "gathered writes" :
+                    ("" + (directBufferBytes/1024) + " kB direct buffers"))
+                 + (coalesceWrites ? ", coalescing writes." : "."));
         for(int i=0; i<numSelectorThreads; ++i) {
             selectorThreads.add(new SelectorThread(i));
         }
@@ -683,7 +841,16 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
         LOG.info("binding to port " + addr);
         ss.socket().bind(addr);
         ss.configureBlocking(false);
-        acceptThread = new AcceptThread(ss, addr, selectorThreads);
+        createAcceptThreads(addr);
+    }
+
+    private void createAcceptThreads(InetSocketAddress addr)
+        throws IOException
+    {
+        acceptThreads.clear();
+        for (int i = 0; i < numAcceptThreads; i++) {
+            acceptThreads.add(new AcceptThread(ss, addr, i));
+        }
     }
    
     @Override
@@ -695,16 +862,22 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
            LOG.info("binding to port " + addr);
            ss.socket().bind(addr);
            ss.configureBlocking(false);
-           acceptThread.setReconfiguring();
+           for (AcceptThread acceptThread : acceptThreads) {
+               acceptThread.setReconfiguring();
+           }
            oldSS.close();           
-           acceptThread.wakeupSelector();
-           try {
-			  acceptThread.join();
-		   } catch (InterruptedException e) {
-			   LOG.error("Error joining old acceptThread when reconfiguring client port " + e.getMessage());
-		   }
-           acceptThread = new AcceptThread(ss, addr, selectorThreads);
-           acceptThread.start();
+           for (AcceptThread acceptThread : acceptThreads) {
+               acceptThread.wakeupSelector();
+               try {
+                   acceptThread.join();
+               } catch (InterruptedException e) {
+                   LOG.error("Error joining old acceptThread when reconfiguring client port " + e.getMessage());
+               }
+           }
+           createAcceptThreads(addr);
+           for (AcceptThread acceptThread : acceptThreads) {
+               acceptThread.start();
+           }
         } catch(IOException e) {
            LOG.error("Error reconfiguring client port to " + addr + " " + e.getMessage());
         }
@@ -733,8 +906,10 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
             }
         }
         // ensure thread is started once and only once
-        if (acceptThread.getState() == Thread.State.NEW) {
-            acceptThread.start();
+        for (AcceptThread acceptThread : acceptThreads) {
+            if (acceptThread.getState() == Thread.State.NEW) {
+                acceptThread.start();
+            }
         }
         if (expirerThread.getState() == Thread.State.NEW) {
             expirerThread.start();
@@ -786,6 +961,8 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
             }
         }
 
+        cnxn.getSelectorThread().connectionRemoved();
+
         // unregister from JMX
         unregisterConnection(cnxn);
         return true;
@@ -864,7 +1041,7 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
             LOG.warn("Error closing listen socket", e);
         }
 
-        if (acceptThread != null) {
+        for (AcceptThread acceptThread : acceptThreads) {
             acceptThread.wakeupSelector();
         }
         if (expirerThread != null) {
@@ -917,7 +1094,7 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
 
     @Override
     public void join() throws InterruptedException {
-        if (acceptThread != null) {
+        for (AcceptThread acceptThread : acceptThreads) {
             acceptThread.join();
         }
         for (SelectorThread thread : selectorThreads) {
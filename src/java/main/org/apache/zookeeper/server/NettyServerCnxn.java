@@ -21,7 +21,6 @@ package org.apache.zookeeper.server;
 import static org.jboss.netty.buffer.ChannelBuffers.wrappedBuffer;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -35,7 +34,7 @@ import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.jute.BinaryInputArchive;
-import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
 import org.apache.jute.Record;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,7 +42,6 @@ import org.apache.zookeeper.Environment;
 import org.apache.zookeeper.Version;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.proto.ReplyHeader;
-import org.apache.zookeeper.proto.WatcherEvent;
 import org.apache.zookeeper.server.quorum.Leader;
 import org.apache.zookeeper.server.quorum.LeaderZooKeeperServer;
 import org.apache.zookeeper.server.quorum.ReadOnlyZooKeeperServer;
@@ -52,9 +50,11 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.MessageEvent;
 
-public class NettyServerCnxn extends ServerCnxn {
+public class NettyServerCnxn extends ServerCnxn
+    implements ExpiryQueue.Expirable {
     Logger LOG = LoggerFactory.getLogger(NettyServerCnxn.class);
     Channel channel;
     ChannelBuffer queuedBuffer;
@@ -73,11 +73,18 @@ public class NettyServerCnxn extends ServerCnxn {
 
     NettyServerCnxnFactory factory;
     boolean initialized;
+
+    /** The pooled buffer of the packet being processed, until claimed */
+    private ByteBuffer packetBuffer;
+
+    /** The place of the connection in the connection expiry queue */
+    private final ExpiryQueue.Slot expirySlot = new ExpiryQueue.Slot(this);
     
     NettyServerCnxn(Channel channel, ZooKeeperServer zks, NettyServerCnxnFactory factory) {
         this.channel = channel;
         this.zkServer = zks;
         this.factory = factory;
+        this.sessionTimeout = factory.sessionlessCnxnTimeout;
         if (this.factory.login != null) {
             this.zooKeeperSaslServer = new ZooKeeperSaslServer(factory.login);
         }
@@ -89,31 +96,22 @@ public class NettyServerCnxn extends ServerCnxn {
             LOG.debug("close called for sessionid:0x"
                     + Long.toHexString(sessionId));
         }
-        synchronized(factory.cnxns){
-            // if this is not in cnxns then it's already closed
-            if (!factory.cnxns.remove(this)) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("cnxns size:" + factory.cnxns.size());
-                }
-                return;
-            }
+        // if this is not in cnxns then it's already closed
+        if (!factory.removeCnxn(this)) {
             if (LOG.isDebugEnabled()) {
-                LOG.debug("close in progress for sessionid:0x"
-                        + Long.toHexString(sessionId));
+                LOG.debug("cnxns size:" + factory.cnxns.size());
             }
+            return;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("close in progress for sessionid:0x"
+                    + Long.toHexString(sessionId));
+        }
 
-            synchronized (factory.ipMap) {
-                Set<NettyServerCnxn> s =
-                    factory.ipMap.get(((InetSocketAddress)channel
-                            .getRemoteAddress()).getAddress());
-                s.remove(this);
-            }
-    
-            if (channel.isOpen()) {
-                channel.close();
-            }
-            factory.unregisterConnection(this);
+        if (channel.isOpen()) {
+            channel.close();
         }
+        dropDispatchedNotifications();
     }
 
     @Override
@@ -126,9 +124,12 @@ public class NettyServerCnxn extends ServerCnxn {
         return sessionTimeout;
     }
 
+    public ExpiryQueue.Slot getExpirySlot() {
+        return expirySlot;
+    }
+
     @Override
     public void process(WatchedEvent event) {
-        ReplyHeader h = new ReplyHeader(-1, -1L, 0);
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK,
                                      "Deliver event " + event + " to 0x"
@@ -136,20 +137,18 @@ public class NettyServerCnxn extends ServerCnxn {
                                      + " through " + this);
         }
 
-        // Convert WatchedEvent to a type that can be sent over the wire
-        WatcherEvent e = event.getWrapper();
+        if (dispatchNotification(event)) {
+            return;
+        }
 
-        try {
-            sendResponse(h, e, "notification");
-        } catch (IOException e1) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Problem sending to " + getRemoteSocketAddress(), e1);
-            }
-            close();
+        if (!channel.isOpen()) {
+            return;
         }
+        // The serialized notification is shared by all the connections
+        // watching the path, each gets its own read-only view of it
+        sendBuffer(toNotification(event).getSerialized(), true);
     }
 
-    private static final byte[] fourBytes = new byte[4];
     static class ResumeMessageEvent implements MessageEvent {
         Channel channel;
         ResumeMessageEvent(Channel channel) {
@@ -167,34 +166,25 @@ public class NettyServerCnxn extends ServerCnxn {
         if (!channel.isOpen()) {
             return;
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        // Make space for length
-        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
+        flushDispatchedNotifications();
+        // serialized straight into a pooled buffer, released once written
+        ByteBufferOutputArchive oa =
+            factory.getBufferPool().new BufferOutputArchive(RESPONSE_SIZE);
         try {
-            baos.write(fourBytes);
-            bos.writeRecord(h, "header");
-            if (r != null) {
-                bos.writeRecord(r, tag);
-            }
-            baos.close();
+            serializeResponse(oa, h, r, tag);
         } catch (IOException e) {
             LOG.error("Error serializing response");
         }
-        byte b[] = baos.toByteArray();
-        ByteBuffer bb = ByteBuffer.wrap(b);
-        bb.putInt(b.length - 4).rewind();
-        sendBuffer(bb);
+        sendBuffer(oa.getBuffer());
         if (h.getXid() > 0) {
-            // zks cannot be null otherwise we would not have gotten here!
-            if (!zkServer.shouldThrottle(outstandingCount.decrementAndGet())) {
-                enableRecv();
-            }
+            outstandingCount.decrementAndGet();
         }
     }
 
     @Override
     public void setSessionId(long sessionId) {
         this.sessionId = sessionId;
+        factory.addSession(sessionId, this);
     }
 
     @Override
@@ -210,11 +200,30 @@ public class NettyServerCnxn extends ServerCnxn {
 
     @Override
     public void sendBuffer(ByteBuffer sendBuffer) {
+        sendBuffer(sendBuffer, false);
+    }
+
+    @Override
+    void sendBuffer(final ByteBuffer sendBuffer, boolean notification) {
         if (sendBuffer == ServerCnxnFactory.closeConn) {
-            channel.close();
+            // close once what was queued before is written
+            channel.write(ChannelBuffers.EMPTY_BUFFER)
+                .addListener(ChannelFutureListener.CLOSE);
             return;
         }
-        channel.write(wrappedBuffer(sendBuffer));
+        final int size = sendBuffer.remaining();
+        if (!outgoingQueued(size, notification)) {
+            factory.getBufferPool().release(sendBuffer);
+            return;
+        }
+        ChannelFuture future = channel.write(wrappedBuffer(sendBuffer));
+        // buffers from the buffer pool go back once written, or failed
+        future.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture f) {
+                outgoingSent(size);
+                factory.getBufferPool().release(sendBuffer);
+            }
+        });
         packetSent();
     }
 
@@ -438,6 +447,8 @@ public class NettyServerCnxn extends ServerCnxn {
                 zkServer.sessionTracker.dumpSessions(pw);
                 pw.println("ephemeral nodes dump:");
                 zkServer.dumpEphemerals(pw);
+                pw.println("Connections dump:");
+                factory.dumpConnections(pw);
             }
         }
     }
@@ -567,6 +578,56 @@ public class NettyServerCnxn extends ServerCnxn {
             print("watch_count", zkdb.getDataTree().getWatchCount());
             print("ephemerals_count", zkdb.getDataTree().getEphemeralsCount());
             print("approximate_data_size", zkdb.getDataTree().approximateDataSize());
+            print("acl_count", zkdb.getAclSize());
+            print("approximate_acl_size", zkdb.getDataTree().approximateAclSize());
+
+            OffHeapDataStore offHeapData =
+                zkdb.getDataTree().getOffHeapDataStore();
+            if (offHeapData != null) {
+                print("offheap_data_capacity", offHeapData.getCapacity());
+                print("offheap_data_allocated", offHeapData.getAllocatedBytes());
+                print("offheap_data_used", offHeapData.getUsedBytes());
+                print("offheap_data_chunks", offHeapData.getChunkCount());
+                print("offheap_data_fallbacks", offHeapData.getFallbacks());
+            }
+
+            WatchNotificationDispatcher dispatcher =
+                zkServer.getWatchNotificationDispatcher();
+            if (dispatcher != null) {
+                print("watch_notifications_queued", dispatcher.getQueuedNotifications());
+                print("watch_notifications_sent", dispatcher.getSentNotifications());
+                print("watch_notification_batches", dispatcher.getSentBatches());
+                print("avg_watch_notification_latency", dispatcher.getAvgLatency());
+                print("max_watch_notification_latency", dispatcher.getMaxLatency());
+                print("min_watch_notification_latency", dispatcher.getMinLatency());
+            }
+
+            RequestThrottler throttler = zkServer.getRequestThrottler();
+            if (throttler != null) {
+                print("throttle_limit", throttler.getLimit());
+                print("in_flight_request_bytes", throttler.getInFlightBytes());
+                print("throttled_connections", throttler.getThrottledConnections());
+            }
+            print("throttle_count", stats.getThrottledTime().getCount());
+            print("avg_throttled_time", stats.getThrottledTime().getAvg());
+            print("max_throttled_time", stats.getThrottledTime().getMax());
+
+            WorkerService workerPool = zkServer.getRequestWorkerPool();
+            if (workerPool != null && workerPool.getNumQueues() > 0) {
+                int queued = 0;
+                int maxQueued = 0;
+                long maxWaitTime = 0;
+                for (int i = 0; i < workerPool.getNumQueues(); i++) {
+                    int depth = workerPool.getQueueDepth(i);
+                    queued += depth;
+                    maxQueued = Math.max(maxQueued, depth);
+                    maxWaitTime = Math.max(maxWaitTime,
+                                           workerPool.getWaitTime(i).getMax());
+                }
+                print("request_worker_queued", queued);
+                print("request_worker_max_queued", maxQueued);
+                print("request_worker_max_wait_time", maxWaitTime);
+            }
 
             OSMXBean osMbean = new OSMXBean();
             if (osMbean != null && osMbean.getUnix() == true) {
@@ -708,12 +769,14 @@ public class NettyServerCnxn extends ServerCnxn {
                                         ChannelBuffers.copiedBuffer(dat)));
                     }
 
+                    // the buffer may be bigger than the packet
+                    int packetLimit = bb.limit();
                     if (bb.remaining() > message.readableBytes()) {
                         int newLimit = bb.position() + message.readableBytes();
                         bb.limit(newLimit);
                     }
                     message.readBytes(bb);
-                    bb.limit(bb.capacity());
+                    bb.limit(packetLimit);
 
                     if (LOG.isTraceEnabled()) {
                         LOG.trace("after readBytes message readable "
@@ -731,23 +794,29 @@ public class NettyServerCnxn extends ServerCnxn {
                         packetReceived();
                         bb.flip();
 
-                        ZooKeeperServer zks = this.zkServer;
-                        if (zks == null) {
-                            throw new IOException("ZK down");
-                        }
-                        if (initialized) {
-                            zks.processPacket(this, bb);
-
-                            if (zks.shouldThrottle(outstandingCount.incrementAndGet())) {
-                                disableRecv();
+                        packetBuffer = bb;
+                        bb = null;
+                        try {
+                            ZooKeeperServer zks = this.zkServer;
+                            if (zks == null) {
+                                throw new IOException("ZK down");
+                            }
+                            if (initialized) {
+                                zks.processPacket(this, packetBuffer);
+                                outstandingCount.incrementAndGet();
+                            } else {
+                                LOG.debug("got conn req request from "
+                                        + getRemoteSocketAddress());
+                                zks.processConnectRequest(this, packetBuffer);
+                                initialized = true;
+                            }
+                        } finally {
+                            // unless a request holds on to it
+                            if (packetBuffer != null) {
+                                factory.getBufferPool().release(packetBuffer);
+                                packetBuffer = null;
                             }
-                        } else {
-                            LOG.debug("got conn req request from "
-                                    + getRemoteSocketAddress());
-                            zks.processConnectRequest(this, bb);
-                            initialized = true;
                         }
-                        bb = null;
                     }
                 } else {
                     if (LOG.isTraceEnabled()) {
@@ -791,7 +860,7 @@ public class NettyServerCnxn extends ServerCnxn {
                         if (len < 0 || len > BinaryInputArchive.maxBuffer) {
                             throw new IOException("Len error " + len);
                         }
-                        bb = ByteBuffer.allocate(len);
+                        bb = factory.getBufferPool().acquire(len);
                     }
                 }
             }
@@ -801,6 +870,18 @@ public class NettyServerCnxn extends ServerCnxn {
         }
     }
 
+    @Override
+    ByteBuffer claimPacketBuffer() {
+        ByteBuffer claimed = packetBuffer;
+        packetBuffer = null;
+        return claimed;
+    }
+
+    @Override
+    void releasePacketBuffer(ByteBuffer buffer) {
+        factory.getBufferPool().release(buffer);
+    }
+
     @Override
     public void disableRecv() {
         throttled = true;
@@ -818,6 +899,7 @@ public class NettyServerCnxn extends ServerCnxn {
     @Override
     public void setSessionTimeout(int sessionTimeout) {
         this.sessionTimeout = sessionTimeout;
+        factory.touchCnxn(this);
     }
 
     @Override
@@ -836,6 +918,11 @@ public class NettyServerCnxn extends ServerCnxn {
         sendBuffer(ServerCnxnFactory.closeConn);
     }
 
+    @Override
+    protected ServerCnxnFactory serverCnxnFactory() {
+        return factory;
+    }
+
     @Override
     protected ServerStats serverStats() {
         if (zkServer == null) {
@@ -844,4 +931,13 @@ public class NettyServerCnxn extends ServerCnxn {
         return zkServer.serverStats();
     }
 
+    @Override
+    protected WatchNotificationDispatcher notificationDispatcher() {
+        ZooKeeperServer zks = zkServer;
+        if (zks == null) {
+            return null;
+        }
+        return zks.getWatchNotificationDispatcher();
+    }
+
 }
@@ -21,11 +21,12 @@ package org.apache.zookeeper.server;
 import static org.jboss.netty.buffer.ChannelBuffers.dynamicBuffer;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
@@ -45,16 +46,53 @@ import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 
+/**
+ * NettyServerCnxnFactory serves client connections with Netty, like
+ * NIOServerCnxnFactory does with its own threads:
+ *   - Netty's boss thread accepts connections, and closes the ones over the
+ *     per host limit.
+ *   - Netty's I/O threads read and write the sockets.
+ *   - worker threads deserialize and submit the requests, so that a busy
+ *     connection doesn't hold up the I/O thread it shares with others. The
+ *     messages of a connection are all processed in order by the same
+ *     worker thread, once its session is set up.
+ *   - a connection expiration thread closes the connections that haven't
+ *     sent anything within their session timeout, or the sessionless
+ *     connection timeout until a session is established.
+ */
 public class NettyServerCnxnFactory extends ServerCnxnFactory {
     Logger LOG = LoggerFactory.getLogger(NettyServerCnxnFactory.class);
 
+    /** Default: 2 * numCores */
+    public static final String ZOOKEEPER_NETTY_NUM_IO_THREADS =
+        "zookeeper.netty.numIOThreads";
+    /** Default: 2 * numCores, 0 processes requests on the I/O threads */
+    public static final String ZOOKEEPER_NETTY_NUM_WORKER_THREADS =
+        "zookeeper.netty.numWorkerThreads";
+    /** Default sessionless connection timeout in ms: 10000 (10s) */
+    public static final String ZOOKEEPER_NETTY_SESSIONLESS_CNXN_TIMEOUT =
+        "zookeeper.netty.sessionlessCnxnTimeout";
+
     ServerBootstrap bootstrap;
     Channel parentChannel;
     ChannelGroup allChannels = new DefaultChannelGroup("zkServerCnxns");
-    HashMap<InetAddress, Set<NettyServerCnxn>> ipMap =
-        new HashMap<InetAddress, Set<NettyServerCnxn>>( );
+    // ipMap is used to limit connections per IP
+    final ConcurrentHashMap<InetAddress, Set<NettyServerCnxn>> ipMap =
+        new ConcurrentHashMap<InetAddress, Set<NettyServerCnxn>>();
+    // sessionMap is used by closeSession()
+    private final ConcurrentHashMap<Long, NettyServerCnxn> sessionMap =
+        new ConcurrentHashMap<Long, NettyServerCnxn>();
     InetSocketAddress localAddress;
     int maxClientCnxns = 60;
+
+    int sessionlessCnxnTimeout;
+    private ExpiryQueue<NettyServerCnxn> cnxnExpiryQueue;
+    private ConnectionExpirerThread expirerThread;
+
+    private final int numIOThreads;
+    private final int numWorkerThreads;
+    private WorkerService workerPool;
+    private volatile boolean stopped = true;
     
     /**
      * This is an inner class since we need to extend SimpleChannelHandler, but
@@ -81,8 +119,18 @@ public class NettyServerCnxnFactory extends ServerCnxnFactory {
             if (LOG.isTraceEnabled()) {
                 LOG.trace("Channel connected " + e);
             }
-            allChannels.add(ctx.getChannel());
-            NettyServerCnxn cnxn = new NettyServerCnxn(ctx.getChannel(),
+            Channel channel = ctx.getChannel();
+            InetAddress addr =
+                ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            int cnxncount = getClientCnxnCount(addr);
+            if (maxClientCnxns > 0 && cnxncount >= maxClientCnxns) {
+                LOG.warn("Too many connections from " + addr
+                         + " - max is " + maxClientCnxns);
+                channel.close();
+                return;
+            }
+            allChannels.add(channel);
+            NettyServerCnxn cnxn = new NettyServerCnxn(channel,
                     zkServer, NettyServerCnxnFactory.this);
             ctx.setAttachment(cnxn);
             addCnxn(cnxn);
@@ -125,18 +173,55 @@ public class NettyServerCnxnFactory extends ServerCnxnFactory {
             if (LOG.isTraceEnabled()) {
                 LOG.trace("message received called " + e.getMessage());
             }
-            try {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("New message " + e.toString()
-                            + " from " + ctx.getChannel());
-                }
-                NettyServerCnxn cnxn = (NettyServerCnxn)ctx.getAttachment();
-                synchronized(cnxn) {
-                    processMessage(e, cnxn);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("New message " + e.toString()
+                        + " from " + ctx.getChannel());
+            }
+            NettyServerCnxn cnxn = (NettyServerCnxn)ctx.getAttachment();
+            if (cnxn == null) {
+                // refused connection
+                return;
+            }
+            touchCnxn(cnxn);
+            MessageWorkRequest workRequest = new MessageWorkRequest(cnxn, e);
+            if (cnxn.initialized) {
+                workerPool.schedule(workRequest, cnxn.channel.getId());
+            } else {
+                // Connect requests and four letter words are processed right
+                // away: Netty closes a connection as soon as the client shuts
+                // down its output, as four letter word clients do, so the
+                // response would be lost if it waited for a worker.
+                workRequest.doWork();
+            }
+        }
+
+        /**
+         * Processes a message of a connection on a worker thread.
+         */
+        private class MessageWorkRequest extends WorkerService.WorkRequest {
+            private final NettyServerCnxn cnxn;
+            private final MessageEvent event;
+
+            MessageWorkRequest(NettyServerCnxn cnxn, MessageEvent event) {
+                this.cnxn = cnxn;
+                this.event = event;
+            }
+
+            @Override
+            public void doWork() {
+                try {
+                    synchronized(cnxn) {
+                        processMessage(event, cnxn);
+                    }
+                } catch(Exception ex) {
+                    LOG.error("Unexpected exception in receive", ex);
+                    cnxn.close();
                 }
-            } catch(Exception ex) {
-                LOG.error("Unexpected exception in receive", ex);
-                throw ex;
+            }
+
+            @Override
+            public void cleanup() {
+                cnxn.close();
             }
         }
 
@@ -238,13 +323,47 @@ public class NettyServerCnxnFactory extends ServerCnxnFactory {
         
     }
     
+    /**
+     * This thread is responsible for closing stale connections so that
+     * connections on which no session is established are properly expired.
+     */
+    private class ConnectionExpirerThread extends Thread {
+        ConnectionExpirerThread() {
+            super("NettyConnectionExpirer");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (!stopped) {
+                    long waitTime = cnxnExpiryQueue.getWaitTime();
+                    if (waitTime > 0) {
+                        Thread.sleep(waitTime);
+                        continue;
+                    }
+                    for (NettyServerCnxn conn : cnxnExpiryQueue.poll()) {
+                        conn.close();
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOG.info("ConnectionExpirerThread interrupted");
+            }
+        }
+    }
+
     CnxnChannelHandler channelHandler = new CnxnChannelHandler();
     
     NettyServerCnxnFactory() {
+        int numCores = Runtime.getRuntime().availableProcessors();
+        numIOThreads = Integer.getInteger(
+            ZOOKEEPER_NETTY_NUM_IO_THREADS, 2 * numCores);
+        numWorkerThreads = Integer.getInteger(
+            ZOOKEEPER_NETTY_NUM_WORKER_THREADS, 2 * numCores);
         bootstrap = new ServerBootstrap(
                 new NioServerSocketChannelFactory(
                         Executors.newCachedThreadPool(),
-                        Executors.newCachedThreadPool()));
+                        Executors.newCachedThreadPool(),
+                        Math.max(1, numIOThreads)));
         // parent channel
         bootstrap.setOption("reuseAddress", true);
         // child channels
@@ -261,15 +380,13 @@ public class NettyServerCnxnFactory extends ServerCnxnFactory {
             LOG.debug("closeAll()");
         }
 
-        synchronized (cnxns) {
-            // got to clear all the connections that we have in the selector
-            for (NettyServerCnxn cnxn : cnxns.toArray(new NettyServerCnxn[cnxns.size()])) {
-                try {
-                    cnxn.close();
-                } catch (Exception e) {
-                    LOG.warn("Ignoring exception closing cnxn sessionid 0x"
-                            + Long.toHexString(cnxn.getSessionId()), e);
-                }
+        for (ServerCnxn cnxn : cnxns) {
+            try {
+                // This will remove the cnxn from cnxns
+                cnxn.close();
+            } catch (Exception e) {
+                LOG.warn("Ignoring exception closing cnxn sessionid 0x"
+                        + Long.toHexString(cnxn.getSessionId()), e);
             }
         }
         if (LOG.isDebugEnabled()) {
@@ -284,16 +401,12 @@ public class NettyServerCnxnFactory extends ServerCnxnFactory {
             LOG.debug("closeSession sessionid:0x" + sessionId);
         }
 
-        synchronized (cnxns) {
-            for (NettyServerCnxn cnxn : cnxns.toArray(new NettyServerCnxn[cnxns.size()])) {
-                if (cnxn.getSessionId() == sessionId) {
-                    try {
-                        cnxn.close();
-                    } catch (Exception e) {
-                        LOG.warn("exception during session close", e);
-                    }
-                    break;
-                }
+        NettyServerCnxn cnxn = sessionMap.remove(sessionId);
+        if (cnxn != null) {
+            try {
+                cnxn.close();
+            } catch (Exception e) {
+                LOG.warn("exception during session close", e);
             }
         }
     }
@@ -305,6 +418,16 @@ public class NettyServerCnxnFactory extends ServerCnxnFactory {
         configureSaslLogin();
         localAddress = addr;
         this.maxClientCnxns = maxClientCnxns;
+        sessionlessCnxnTimeout = Integer.getInteger(
+            ZOOKEEPER_NETTY_SESSIONLESS_CNXN_TIMEOUT, 10000);
+        cnxnExpiryQueue =
+            new ExpiryQueue<NettyServerCnxn>(sessionlessCnxnTimeout);
+        expirerThread = new ConnectionExpirerThread();
+        LOG.info("Configuring Netty connection handler with "
+                 + (sessionlessCnxnTimeout/1000) + "s sessionless connection"
+                 + " timeout, " + Math.max(1, numIOThreads) + " I/O thread(s)"
+                 + " and " + (numWorkerThreads > 0 ? numWorkerThreads : "no")
+                 + " worker threads.");
     }
 
     /** {@inheritDoc} */
@@ -335,9 +458,13 @@ public class NettyServerCnxnFactory extends ServerCnxnFactory {
     @Override
     public void shutdown() {
         LOG.info("shutdown called " + localAddress);
+        stopped = true;
         if (login != null) {
             login.shutdown();
         }
+        if (expirerThread != null) {
+            expirerThread.interrupt();
+        }
         // null if factory never started
         if (parentChannel != null) {
             parentChannel.close().awaitUninterruptibly();
@@ -345,6 +472,9 @@ public class NettyServerCnxnFactory extends ServerCnxnFactory {
             allChannels.close().awaitUninterruptibly();
             bootstrap.releaseExternalResources();
         }
+        if (workerPool != null) {
+            workerPool.stop();
+        }
 
         if (zkServer != null) {
             zkServer.shutdown();
@@ -357,6 +487,14 @@ public class NettyServerCnxnFactory extends ServerCnxnFactory {
     
     @Override
     public void start() {
+        stopped = false;
+        if (workerPool == null) {
+            workerPool = new WorkerService(
+                "NettyWorker", numWorkerThreads, true);
+        }
+        if (expirerThread.getState() == Thread.State.NEW) {
+            expirerThread.start();
+        }
         LOG.info("binding to port " + localAddress);
         parentChannel = bootstrap.bind(localAddress);
     }
@@ -390,20 +528,70 @@ public class NettyServerCnxnFactory extends ServerCnxnFactory {
     }
 
     private void addCnxn(NettyServerCnxn cnxn) {
-        synchronized (cnxns) {
-            cnxns.add(cnxn);
-            synchronized (ipMap){
-                InetAddress addr =
-                    ((InetSocketAddress)cnxn.channel.getRemoteAddress())
-                        .getAddress();
-                Set<NettyServerCnxn> s = ipMap.get(addr);
-                if (s == null) {
-                    s = new HashSet<NettyServerCnxn>();
-                }
-                s.add(cnxn);
-                ipMap.put(addr,s);
+        InetAddress addr = cnxn.getRemoteSocketAddress().getAddress();
+        Set<NettyServerCnxn> set = ipMap.get(addr);
+        if (set == null) {
+            set = Collections.newSetFromMap(
+                new ConcurrentHashMap<NettyServerCnxn, Boolean>(2));
+            Set<NettyServerCnxn> existingSet = ipMap.putIfAbsent(addr, set);
+            if (existingSet != null) {
+                set = existingSet;
+            }
+        }
+        set.add(cnxn);
+
+        cnxns.add(cnxn);
+        touchCnxn(cnxn);
+    }
+
+    /**
+     * De-registers the connection from the various mappings maintained
+     * by the factory.
+     * @return false if the connection was already removed
+     */
+    boolean removeCnxn(NettyServerCnxn cnxn) {
+        // If the connection is not in the master list it's already been closed
+        if (!cnxns.remove(cnxn)) {
+            return false;
+        }
+        cnxnExpiryQueue.remove(cnxn);
+
+        long sessionId = cnxn.getSessionId();
+        if (sessionId != 0) {
+            sessionMap.remove(sessionId, cnxn);
+        }
+
+        InetSocketAddress remote = cnxn.getRemoteSocketAddress();
+        if (remote != null) {
+            Set<NettyServerCnxn> set = ipMap.get(remote.getAddress());
+            if (set != null) {
+                set.remove(cnxn);
             }
         }
+
+        unregisterConnection(cnxn);
+        return true;
     }
 
+    /**
+     * Add or update cnxn in our cnxnExpiryQueue
+     */
+    void touchCnxn(NettyServerCnxn cnxn) {
+        cnxnExpiryQueue.update(cnxn, cnxn.getSessionTimeout());
+    }
+
+    void addSession(long sessionId, NettyServerCnxn cnxn) {
+        sessionMap.put(sessionId, cnxn);
+    }
+
+    private int getClientCnxnCount(InetAddress cl) {
+        Set<NettyServerCnxn> s = ipMap.get(cl);
+        if (s == null) return 0;
+        return s.size();
+    }
+
+    public void dumpConnections(PrintWriter pwriter) {
+        pwriter.print("Connections ");
+        cnxnExpiryQueue.dump(pwriter);
+    }
 }
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.IOException;
+
+import org.apache.jute.ByteBufferOutputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * A GetDataResponse for the data of a node kept in an OffHeapDataStore. It
+ * serializes like a GetDataResponse, copying the data straight from the
+ * store into a ByteBufferOutputArchive. It holds a reference to the chunk of
+ * the data, which must be released once the response is serialized.
+ */
+class OffHeapDataResponse implements Record {
+    private final OffHeapDataStore.Chunk chunk;
+    private final Stat stat;
+
+    /**
+     * @param chunk the data, retained for the response
+     */
+    OffHeapDataResponse(OffHeapDataStore.Chunk chunk, Stat stat) {
+        this.chunk = chunk;
+        this.stat = stat;
+    }
+
+    public void serialize(OutputArchive a, String tag) throws IOException {
+        a.startRecord(this, tag);
+        if (a instanceof ByteBufferOutputArchive) {
+            ((ByteBufferOutputArchive) a).writeBuffer(
+                    chunk.asReadOnlyBuffer(), "data");
+        } else {
+            byte[] data = new byte[chunk.getLength()];
+            chunk.asReadOnlyBuffer().get(data);
+            a.writeBuffer(data, "data");
+        }
+        a.writeRecord(stat, "stat");
+        a.endRecord(this, tag);
+    }
+
+    public void deserialize(InputArchive a, String tag) {
+        throw new UnsupportedOperationException(
+                "OffHeapDataResponse is only serialized");
+    }
+
+    /**
+     * Drop the reference to the data.
+     */
+    void release() {
+        chunk.release();
+    }
+}
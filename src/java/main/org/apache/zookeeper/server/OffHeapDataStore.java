@@ -0,0 +1,330 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * OffHeapDataStore keeps the data of the nodes of a DataTree in direct
+ * memory, so that big payloads neither take heap nor have to be copied by
+ * the garbage collector.
+ *
+ * The memory is allocated in slabs of up to 4M, which are carved into
+ * chunks of power of 2 size classes, from 64 bytes up to the size of a
+ * slab. Freed chunks are kept in a free list of their size class for data
+ * of the same class, they are neither split nor merged. Data smaller than
+ * zookeeper.offHeapData.minSize, bigger than a slab, or that doesn't fit in
+ * zookeeper.offHeapData.capacity stays on the heap.
+ *
+ * A Chunk starts with a reference held by its node. Readers retain it
+ * while they read, and the node releases its reference once the node is
+ * deleted or its data replaced; the chunk is freed once the last reference
+ * is released.
+ */
+public class OffHeapDataStore {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(OffHeapDataStore.class);
+
+    /** Default: 0, data is kept on the heap */
+    public static final String ZOOKEEPER_OFFHEAP_DATA_CAPACITY =
+        "zookeeper.offHeapData.capacity";
+
+    /** Default: 1024 */
+    public static final String ZOOKEEPER_OFFHEAP_DATA_MIN_SIZE =
+        "zookeeper.offHeapData.minSize";
+
+    static final int MIN_CLASS = 6;
+    static final int MAX_SLAB_CLASS = 22;
+
+    private final long capacity;
+    private final int minSize;
+    private final int slabSize;
+    private final int maxClass;
+
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+    /** The offset of the part of the last slab not carved into chunks */
+    private int slabTail;
+
+    /** The free chunks of each size class, as slab << 32 | offset */
+    private final long[][] free;
+    private final int[] freeCounts;
+
+    private long usedBytes;
+    private long chunkCount;
+    private long fallbacks;
+
+    /**
+     * @return a store configured by the system properties, or null if
+     *         data is to be kept on the heap
+     */
+    static OffHeapDataStore create() {
+        long capacity = Long.getLong(ZOOKEEPER_OFFHEAP_DATA_CAPACITY, 0);
+        if (capacity <= 0) {
+            return null;
+        }
+        int minSize = Integer.getInteger(ZOOKEEPER_OFFHEAP_DATA_MIN_SIZE,
+                                         1024);
+        LOG.info("Keeping node data of at least " + minSize
+                 + " bytes off heap, capacity " + capacity + " bytes");
+        return new OffHeapDataStore(capacity, minSize);
+    }
+
+    /**
+     * @param capacity bytes of direct memory the store takes at most
+     * @param minSize size of the smallest data kept off heap
+     */
+    public OffHeapDataStore(long capacity, int minSize) {
+        this.capacity = capacity;
+        this.minSize = Math.max(1, minSize);
+        int slabClass = MAX_SLAB_CLASS;
+        while (slabClass > MIN_CLASS && (1L << slabClass) > capacity) {
+            slabClass--;
+        }
+        maxClass = slabClass;
+        slabSize = 1 << slabClass;
+        free = new long[maxClass + 1][];
+        freeCounts = new int[maxClass + 1];
+        for (int i = MIN_CLASS; i <= maxClass; i++) {
+            free[i] = new long[16];
+        }
+    }
+
+    private static int sizeClass(int size) {
+        int sizeClass = MIN_CLASS;
+        while ((1 << sizeClass) < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Copy data into the store.
+     *
+     * @return the chunk the data was copied into, or null if the data is
+     *         to stay on the heap
+     */
+    Chunk store(byte[] data) {
+        if (data == null || data.length < minSize || data.length > slabSize) {
+            return null;
+        }
+        int sizeClass = sizeClass(data.length);
+        Chunk chunk;
+        synchronized (this) {
+            long location = allocate(sizeClass);
+            if (location < 0) {
+                fallbacks++;
+                return null;
+            }
+            usedBytes += data.length;
+            chunkCount++;
+            int slab = (int) (location >>> 32);
+            chunk = new Chunk(this, slabs.get(slab), slab, (int) location,
+                              data.length, sizeClass);
+        }
+        ByteBuffer dup = chunk.slab.duplicate();
+        dup.position(chunk.offset);
+        dup.put(data);
+        return chunk;
+    }
+
+    /**
+     * @return the location of a free chunk, or -1 if the store is full
+     */
+    private long allocate(int sizeClass) {
+        if (freeCounts[sizeClass] > 0) {
+            return free[sizeClass][--freeCounts[sizeClass]];
+        }
+        int size = 1 << sizeClass;
+        if (slabs.isEmpty() || slabTail + size > slabSize) {
+            if ((long) (slabs.size() + 1) * slabSize > capacity) {
+                return -1;
+            }
+            if (!slabs.isEmpty()) {
+                freeTail();
+            }
+            slabs.add(ByteBuffer.allocateDirect(slabSize));
+            slabTail = 0;
+        }
+        long location = ((long) (slabs.size() - 1) << 32) | slabTail;
+        slabTail += size;
+        return location;
+    }
+
+    /**
+     * Add the rest of the last slab to the free lists, in the biggest
+     * chunks it fits.
+     */
+    private void freeTail() {
+        long slab = (long) (slabs.size() - 1) << 32;
+        int sizeClass = maxClass;
+        while (sizeClass >= MIN_CLASS) {
+            if (slabTail + (1 << sizeClass) <= slabSize) {
+                addFree(sizeClass, slab | slabTail);
+                slabTail += 1 << sizeClass;
+            } else {
+                sizeClass--;
+            }
+        }
+        slabTail = slabSize;
+    }
+
+    private void addFree(int sizeClass, long location) {
+        long[] list = free[sizeClass];
+        if (freeCounts[sizeClass] == list.length) {
+            long[] grown = new long[list.length * 2];
+            System.arraycopy(list, 0, grown, 0, list.length);
+            free[sizeClass] = list = grown;
+        }
+        list[freeCounts[sizeClass]++] = location;
+    }
+
+    private synchronized void free(Chunk chunk) {
+        addFree(chunk.sizeClass,
+                ((long) chunk.slabIndex << 32) | chunk.offset);
+        usedBytes -= chunk.length;
+        chunkCount--;
+    }
+
+    /**
+     * @return the bytes of direct memory the store takes at most
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the bytes of direct memory taken by slabs
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    /**
+     * @return the bytes of data in the store
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the number of chunks of data in the store
+     */
+    public synchronized long getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return the number of times data big enough to be kept off heap
+     *         stayed on the heap because the store was full
+     */
+    public synchronized long getFallbacks() {
+        return fallbacks;
+    }
+
+    /**
+     * The data of a node, in a slab of the store.
+     */
+    static final class Chunk {
+        private static final AtomicIntegerFieldUpdater<Chunk> refCountUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "refCount");
+
+        private final OffHeapDataStore store;
+        private final ByteBuffer slab;
+        private final int slabIndex;
+        private final int offset;
+        private final int length;
+        private final int sizeClass;
+
+        private volatile int refCount = 1;
+
+        private Chunk(OffHeapDataStore store, ByteBuffer slab, int slabIndex,
+                      int offset, int length, int sizeClass) {
+            this.store = store;
+            this.slab = slab;
+            this.slabIndex = slabIndex;
+            this.offset = offset;
+            this.length = length;
+            this.sizeClass = sizeClass;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        /**
+         * Take a reference to the chunk, to read it.
+         *
+         * @return false if the chunk was freed, it can't be read any more
+         */
+        boolean retain() {
+            while (true) {
+                int count = refCount;
+                if (count == 0) {
+                    return false;
+                }
+                if (refCountUpdater.compareAndSet(this, count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Drop a reference to the chunk, the last one frees it.
+         */
+        void release() {
+            if (refCountUpdater.decrementAndGet(this) == 0) {
+                store.free(this);
+            }
+        }
+
+        /**
+         * @return a buffer of the data, which can only be read while a
+         *         reference to the chunk is held
+         */
+        ByteBuffer asReadOnlyBuffer() {
+            ByteBuffer dup = slab.asReadOnlyBuffer();
+            dup.limit(offset + length);
+            dup.position(offset);
+            return dup;
+        }
+
+        /**
+         * @return a copy of the data, or null if the chunk was freed
+         */
+        byte[] toByteArray() {
+            if (!retain()) {
+                return null;
+            }
+            try {
+                byte[] data = new byte[length];
+                asReadOnlyBuffer().get(data);
+                return data;
+            } finally {
+                release();
+            }
+        }
+    }
+}
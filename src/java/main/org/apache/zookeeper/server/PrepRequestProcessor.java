@@ -100,12 +100,23 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
         }
     }
 
+    /** Default: false */
+    public static final String ZOOKEEPER_ENFORCE_QUOTA =
+        "zookeeper.enforceQuota";
+
     /**
      * this is only for testing purposes.
      * should never be useed otherwise
      */
     private static  boolean failCreate = false;
 
+    /**
+     * If true, writes that take a subtree over its quota are rejected
+     * rather than only logged.
+     */
+    private final boolean enforceQuota =
+        Boolean.getBoolean(ZOOKEEPER_ENFORCE_QUOTA);
+
     LinkedBlockingQueue<Request> submittedRequests = new LinkedBlockingQueue<Request>();
 
     private final RequestProcessor nextProcessor;
@@ -171,15 +182,14 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
             if (lastChange == null) {
                 DataNode n = zks.getZKDatabase().getNode(path);
                 if (n != null) {
-                    Long acl;
+                    List<ACL> acl;
                     Set<String> children;
                     synchronized(n) {
-                        acl = n.acl;
+                        acl = zks.getZKDatabase().getACL(n);
                         children = n.getChildren();
                     }
                     lastChange = new ChangeRecord(-1, path, n.stat,
-                        children != null ? children.size() : 0,
-                            zks.getZKDatabase().convertLong(acl));
+                        children != null ? children.size() : 0, acl);
                 }
             }
         }
@@ -387,6 +397,7 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
                 if (ephemeralParent) {
                     throw new KeeperException.NoChildrenForEphemeralsException(path);
                 }
+                checkQuota(path, createRequest.getData(), true);
                 int newCversion = parentRecord.stat.getCversion()+1;
                 request.setTxn(new CreateTxn(path, createRequest.getData(), listACL, createMode.isEphemeral(),
                         newCversion));
@@ -440,6 +451,7 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
                 if (ephemeralParent) {
                     throw new KeeperException.NoChildrenForEphemeralsException(path);
                 }
+                checkQuota(path, createRequest.getData(), true);
                 int newCversion = parentRecord.stat.getCversion()+1;
                 request.setTxn(new CreateTxn(path, createRequest.getData(), listACL, createMode.isEphemeral(),
                         newCversion));
@@ -488,6 +500,7 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
                 nodeRecord = getRecordForPath(path);
                 checkACL(zks, nodeRecord.acl, ZooDefs.Perms.WRITE, request.authInfo);
                 int newVersion = checkAndIncVersion(nodeRecord.stat.getVersion(), setDataRequest.getVersion(), path);
+                checkQuota(path, setDataRequest.getData(), false);
                 request.setTxn(new SetDataTxn(path, setDataRequest.getData(), newVersion));
                 nodeRecord = nodeRecord.duplicate(request.getHdr().getZxid());
                 nodeRecord.stat.setVersion(newVersion);
@@ -667,6 +680,29 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
         }
     }
 
+    /**
+     * Check that a create or setData doesn't take the quota of its path
+     * over its limits, if quotas are enforced.
+     *
+     * @param create true for a create, false for a setData
+     */
+    private void checkQuota(String path, byte[] data, boolean create)
+            throws KeeperException.QuotaExceededException {
+        if (!enforceQuota) {
+            return;
+        }
+        long bytes = data == null ? 0 : data.length;
+        if (!create) {
+            DataNode node = zks.getZKDatabase().getNode(path);
+            if (node != null) {
+                synchronized (node) {
+                    bytes -= node.getDataLength();
+                }
+            }
+        }
+        zks.getZKDatabase().checkQuota(path, create ? 1 : 0, bytes);
+    }
+
     private static int checkAndIncVersion(int currentVersion, int expectedVersion, String path)
             throws KeeperException.BadVersionException {
         if (expectedVersion != -1 && expectedVersion != currentVersion) {
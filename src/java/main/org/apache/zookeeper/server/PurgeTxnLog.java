@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Set;
 
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.SegmentTxnLog;
 import org.apache.zookeeper.server.persistence.Util;
 
 /**
@@ -97,9 +98,14 @@ public class PurgeTxnLog {
         // remove the old files
         for(File f: files)
         {
-            System.out.println("Removing file: "+
-                DateFormat.getDateTimeInstance().format(f.lastModified())+
-                "\t"+f.getPath());
+            String desc = DateFormat.getDateTimeInstance().format(f.lastModified())+
+                "\t"+f.getPath();
+            // segmented txn logs reuse old logs as new segments
+            if (f.getName().startsWith("log.") && SegmentTxnLog.recycle(f)) {
+                System.out.println("Recycling file: "+desc);
+                continue;
+            }
+            System.out.println("Removing file: "+desc);
             if(!f.delete()){
                 System.err.println("Failed to remove "+f.getPath());
             }
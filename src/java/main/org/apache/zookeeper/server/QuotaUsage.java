@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import org.apache.zookeeper.StatsTrack;
+
+/**
+ * The usage and the limits of the subtree under a quota root.
+ *
+ * The usage is counted here rather than in the zookeeper_stats node of the
+ * quota, which is only brought up to date when it is read or snapshotted.
+ * The limits are those of the zookeeper_limits node of the quota, parsed
+ * when the node is created or set.
+ */
+class QuotaUsage {
+    private static final AtomicIntegerFieldUpdater<QuotaUsage> countUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(QuotaUsage.class, "count");
+    private static final AtomicLongFieldUpdater<QuotaUsage> bytesUpdater =
+        AtomicLongFieldUpdater.newUpdater(QuotaUsage.class, "bytes");
+
+    private volatile int count;
+    private volatile long bytes;
+
+    /** set when the counts changed since the stats node was written */
+    private volatile boolean dirty;
+
+    private volatile int countLimit = -1;
+    private volatile long bytesLimit = -1;
+
+    /**
+     * @return the new count
+     */
+    int addCount(int diff) {
+        int updated = countUpdater.addAndGet(this, diff);
+        dirty = true;
+        return updated;
+    }
+
+    /**
+     * @return the new number of bytes
+     */
+    long addBytes(long diff) {
+        long updated = bytesUpdater.addAndGet(this, diff);
+        dirty = true;
+        return updated;
+    }
+
+    void setUsage(int count, long bytes) {
+        this.count = count;
+        this.bytes = bytes;
+        dirty = true;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    void setLimits(StatsTrack limits) {
+        countLimit = limits.getCount();
+        bytesLimit = limits.getBytes();
+    }
+
+    /**
+     * @return the limit of the count, or -1 if there is none
+     */
+    int getCountLimit() {
+        return countLimit;
+    }
+
+    /**
+     * @return the limit of the bytes, or -1 if there is none
+     */
+    long getBytesLimit() {
+        return bytesLimit;
+    }
+
+    /**
+     * @return true if adding to the usage takes it over a limit. Removing
+     *         from the usage never does, even if it is already over.
+     */
+    boolean exceeds(int countDiff, long bytesDiff) {
+        int countLimit = this.countLimit;
+        long bytesLimit = this.bytesLimit;
+        return (countDiff > 0 && countLimit > -1
+                && count + countDiff > countLimit)
+            || (bytesDiff > 0 && bytesLimit > -1
+                && bytes + bytesDiff > bytesLimit);
+    }
+
+    /**
+     * @return the data of the stats node if the counts changed since it was
+     *         last asked for, or null if they didn't
+     */
+    byte[] takeStats() {
+        if (!dirty) {
+            return null;
+        }
+        // a change racing with this marks it dirty again
+        dirty = false;
+        return ("count=" + count + ",bytes=" + bytes).getBytes();
+    }
+}
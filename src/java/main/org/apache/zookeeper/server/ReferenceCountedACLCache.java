@@ -0,0 +1,318 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jute.Index;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.ACL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The distinct ACLs of a DataTree, each stored once under a long that the
+ * nodes with that ACL refer to.
+ *
+ * Looking up an ACL by its long, or a known ACL by its list, takes no lock.
+ * Only a new ACL takes the lock of the cache to get its long.
+ *
+ * Each ACL counts the nodes that refer to it. An ACL no node refers to any
+ * more is kept until the next snapshot, which purges it before writing the
+ * ACLs, so the ACLs of nodes created in between can still be found. A node
+ * refers to an ACL that is counted for as long as the node is in the tree,
+ * so a reader that finds the ACL of a node gone, under the lock of the
+ * node, can take the node as deleted.
+ */
+class ReferenceCountedACLCache {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ReferenceCountedACLCache.class);
+
+    /** A rough size of an Entry and its place in the maps */
+    private static final int ENTRY_OVERHEAD = 160;
+
+    /** A rough size of an ACL, not counting the strings of its Id */
+    private static final int ACL_OVERHEAD = 72;
+
+    private static final class Entry {
+        final Long id;
+        final List<ACL> acls;
+        final long approximateSize;
+
+        /** the nodes that refer to the ACL, -1 once it is purged */
+        final AtomicInteger refCount = new AtomicInteger();
+
+        Entry(long id, List<ACL> acls) {
+            this.id = id;
+            this.acls = acls;
+            long size = ENTRY_OVERHEAD;
+            for (ACL acl : acls) {
+                size += ACL_OVERHEAD;
+                if (acl.getId() != null) {
+                    size += 2 * (length(acl.getId().getScheme())
+                                 + length(acl.getId().getId()));
+                }
+            }
+            approximateSize = size;
+        }
+
+        private static int length(String s) {
+            return s == null ? 0 : s.length();
+        }
+
+        /**
+         * @return false if the entry was purged
+         */
+        boolean retain() {
+            while (true) {
+                int count = refCount.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            while (true) {
+                int count = refCount.get();
+                if (count <= 0) {
+                    return;
+                }
+                if (refCount.compareAndSet(count, count - 1)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * the ACLs by their long. A long of an ACL that was read twice from a
+     * snapshot maps to the entry of the first, until the next purge.
+     */
+    private final ConcurrentHashMap<Long, Entry> longKeyMap =
+        new ConcurrentHashMap<Long, Entry>();
+
+    /** the ACLs by their list */
+    private final ConcurrentHashMap<List<ACL>, Entry> aclKeyMap =
+        new ConcurrentHashMap<List<ACL>, Entry>();
+
+    /** the last long handed out, guarded by this */
+    private long aclIndex = 0;
+
+    private final AtomicLong approximateSize = new AtomicLong();
+
+    /**
+     * Get the long of an ACL for a node, and count the node as referring
+     * to it.
+     *
+     * @return the long of the ACL, -1 for a null ACL
+     */
+    Long convertAcls(List<ACL> acls) {
+        if (acls == null) {
+            return -1L;
+        }
+        Entry entry = aclKeyMap.get(acls);
+        if (entry != null && entry.retain()) {
+            return entry.id;
+        }
+        synchronized (this) {
+            // entries are only purged under the lock
+            entry = aclKeyMap.get(acls);
+            if (entry == null) {
+                entry = new Entry(++aclIndex, acls);
+                add(entry);
+            }
+            entry.retain();
+            return entry.id;
+        }
+    }
+
+    /**
+     * @return the ACL of a long
+     * @throws RuntimeException if there is no such ACL
+     */
+    List<ACL> convertLong(Long longVal) {
+        if (longVal == null) {
+            return null;
+        }
+        List<ACL> acls = findAcls(longVal);
+        if (acls == null) {
+            LOG.error("ERROR: ACL not available for long " + longVal);
+            throw new RuntimeException("Failed to fetch acls for " + longVal);
+        }
+        return acls;
+    }
+
+    /**
+     * @return the ACL of a long, or null if there is no such ACL, eg.
+     *         because the last node referring to it was deleted and the ACL
+     *         purged
+     */
+    List<ACL> findAcls(long longVal) {
+        if (longVal == -1L) {
+            return Ids.OPEN_ACL_UNSAFE;
+        }
+        Entry entry = longKeyMap.get(longVal);
+        return entry == null ? null : entry.acls;
+    }
+
+    /**
+     * Count a node read from a snapshot as referring to its ACL.
+     *
+     * @return the long the node is to refer to the ACL by, which is
+     *         shared by the nodes with the same ACL
+     */
+    Long addUsage(Long acl) {
+        if (acl == null || acl.longValue() == -1L) {
+            return acl;
+        }
+        Entry entry = longKeyMap.get(acl);
+        if (entry == null || !entry.retain()) {
+            return acl;
+        }
+        return entry.id;
+    }
+
+    /**
+     * Count a node as no longer referring to its ACL.
+     */
+    void removeUsage(Long acl) {
+        if (acl == null || acl.longValue() == -1L) {
+            return;
+        }
+        Entry entry = longKeyMap.get(acl);
+        if (entry != null) {
+            entry.release();
+        }
+    }
+
+    private void add(Entry entry) {
+        longKeyMap.put(entry.id, entry);
+        aclKeyMap.put(entry.acls, entry);
+        approximateSize.addAndGet(entry.approximateSize);
+    }
+
+    /**
+     * Drop the ACLs no node refers to, and the longs of the ACLs that were
+     * read twice from a snapshot.
+     *
+     * @return the number of ACLs dropped
+     */
+    synchronized int purgeUnused() {
+        int purged = 0;
+        Iterator<Map.Entry<Long, Entry>> it = longKeyMap.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Entry> e = it.next();
+            Entry entry = e.getValue();
+            if (!entry.id.equals(e.getKey())) {
+                it.remove();
+            } else if (entry.refCount.compareAndSet(0, -1)) {
+                it.remove();
+                aclKeyMap.remove(entry.acls, entry);
+                approximateSize.addAndGet(-entry.approximateSize);
+                purged++;
+            }
+        }
+        if (purged > 0) {
+            LOG.info("Purged " + purged + " unused ACLs, "
+                     + aclKeyMap.size() + " left");
+        }
+        return purged;
+    }
+
+    synchronized void serialize(OutputArchive oa) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>(aclKeyMap.values());
+        oa.writeInt(entries.size(), "map");
+        for (Entry entry : entries) {
+            oa.writeLong(entry.id, "long");
+            oa.startVector(entry.acls, "acls");
+            for (ACL acl : entry.acls) {
+                acl.serialize(oa, "acl");
+            }
+            oa.endVector(entry.acls, "acls");
+        }
+    }
+
+    synchronized void deserialize(InputArchive ia) throws IOException {
+        clear();
+        int i = ia.readInt("map");
+        while (i > 0) {
+            long val = ia.readLong("long");
+            if (aclIndex < val) {
+                aclIndex = val;
+            }
+            List<ACL> aclList = new ArrayList<ACL>();
+            Index j = ia.startVector("acls");
+            while (!j.done()) {
+                ACL acl = new ACL();
+                acl.deserialize(ia, "acl");
+                aclList.add(acl);
+                j.incr();
+            }
+            Entry entry = aclKeyMap.get(aclList);
+            if (entry == null) {
+                add(new Entry(val, aclList));
+            } else {
+                longKeyMap.put(val, entry);
+            }
+            i--;
+        }
+    }
+
+    private void clear() {
+        longKeyMap.clear();
+        aclKeyMap.clear();
+        approximateSize.set(0);
+    }
+
+    /**
+     * @return the number of distinct ACLs
+     */
+    int size() {
+        return aclKeyMap.size();
+    }
+
+    /**
+     * @return a rough number of bytes of heap taken by the ACLs
+     */
+    long approximateSize() {
+        return approximateSize.get();
+    }
+
+    /**
+     * @return the number of nodes that refer to the ACL of a long, or -1
+     *         if there is no such ACL
+     */
+    int getReferenceCount(Long acl) {
+        Entry entry = longKeyMap.get(acl);
+        return entry == null ? -1 : entry.refCount.get();
+    }
+}
@@ -77,12 +77,37 @@ public class Request {
 
     public final long createTime = System.currentTimeMillis();
 
+    /**
+     * Size of the request counted in flight by the RequestThrottler, -1 if
+     * it isn't counted
+     */
+    int admittedBytes = -1;
+
+    /** Pooled buffer the request was read into, see releasePacketBuffer() */
+    private ByteBuffer packetBuffer;
+
     private Object owner;
 
     private KeeperException e;
 
     public QuorumVerifier qv = null;
     
+    void setPacketBuffer(ByteBuffer packetBuffer) {
+        this.packetBuffer = packetBuffer;
+    }
+
+    /**
+     * Give the buffer the request was read into back to its connection, once
+     * nothing will read the request any more.
+     */
+    void releasePacketBuffer() {
+        ByteBuffer bb = packetBuffer;
+        if (bb != null) {
+            packetBuffer = null;
+            cnxn.releasePacketBuffer(bb);
+        }
+    }
+
     public Object getOwner() {
         return owner;
     }
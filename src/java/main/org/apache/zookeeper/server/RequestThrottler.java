@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RequestThrottler limits the client requests in flight in the request
+ * processor pipeline, from ZooKeeperServer.submitRequest until they reach
+ * FinalRequestProcessor, whichever processor they are queued in.
+ *
+ * A request is always admitted, but when the requests in flight are over
+ * the limit on their number or on their total size, the connection that
+ * submitted it stops reading requests and is queued. Throttled connections
+ * resume reading in the order they were throttled, as requests complete and
+ * the server drops back under half of the limits. Once the server is half
+ * full, a connection that has more than its share of the requests in flight
+ * is throttled as well, so that a few busy sessions can't take all of the
+ * limit from the others.
+ *
+ * The limit on the number of requests is zookeeper.globalOutstandingLimit.
+ * If zookeeper.throttle.targetLatency is set, it adapts to the latency of the
+ * requests completing: it shrinks by a quarter when their average latency
+ * goes over the target, and grows back slowly while it stays under.
+ */
+public class RequestThrottler {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(RequestThrottler.class);
+
+    /** Default: 104857600 (100M), 0 for no limit */
+    public static final String ZOOKEEPER_THROTTLE_MAX_IN_FLIGHT_BYTES =
+        "zookeeper.throttle.maxInFlightBytes";
+    /** Default: 0, the limit doesn't adapt to the latency */
+    public static final String ZOOKEEPER_THROTTLE_TARGET_LATENCY =
+        "zookeeper.throttle.targetLatency";
+
+    /** Requests completed between two adjustments of the limit */
+    static final int ADJUST_WINDOW = 128;
+    /** Lowest limit the latency can bring the limit down to */
+    static final int MIN_ADAPTIVE_LIMIT = 10;
+
+    private final ZooKeeperServer zks;
+    private final int maxLimit;
+    private final int minLimit;
+    private final long maxInFlightBytes;
+    private final long targetLatency;
+
+    private volatile int limit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+
+    private final ConcurrentLinkedQueue<ServerCnxn> throttled =
+        new ConcurrentLinkedQueue<ServerCnxn>();
+    private final AtomicInteger throttledCount = new AtomicInteger();
+
+    // guarded by this, only FinalRequestProcessor updates them
+    private int windowCount;
+    private long windowLatency;
+
+    RequestThrottler(ZooKeeperServer zks) {
+        this(zks, zks.getGlobalOutstandingLimit(),
+             Long.getLong(ZOOKEEPER_THROTTLE_MAX_IN_FLIGHT_BYTES,
+                          100 * 1024 * 1024),
+             Long.getLong(ZOOKEEPER_THROTTLE_TARGET_LATENCY, 0));
+    }
+
+    RequestThrottler(ZooKeeperServer zks, int maxLimit,
+                     long maxInFlightBytes, long targetLatency) {
+        this.zks = zks;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.minLimit = Math.min(this.maxLimit, MIN_ADAPTIVE_LIMIT);
+        this.maxInFlightBytes =
+            maxInFlightBytes > 0 ? maxInFlightBytes : Long.MAX_VALUE;
+        this.targetLatency = targetLatency;
+        this.limit = this.maxLimit;
+        LOG.info("Throttling at " + this.maxLimit + " requests and "
+                 + maxInFlightBytes + " bytes in flight, target latency "
+                 + targetLatency + "ms");
+    }
+
+    /**
+     * Count the request in flight, and throttle the connection it comes from
+     * if the server is over its limits.
+     */
+    public void admit(Request request) {
+        ServerCnxn cnxn = request.cnxn;
+        if (cnxn == null || request.admittedBytes >= 0) {
+            return;
+        }
+        int bytes = request.request == null ? 0 : request.request.limit();
+        request.admittedBytes = bytes;
+        int count = inFlight.incrementAndGet();
+        long totalBytes = inFlightBytes.addAndGet(bytes);
+        int cnxnCount = cnxn.admittedRequests.incrementAndGet();
+
+        // don't hold up session setup, pings or watch registration
+        if (request.cxid < 0 || request.type == OpCode.createSession) {
+            return;
+        }
+        int currentLimit = limit;
+        boolean throttle = count > currentLimit
+            || totalBytes > maxInFlightBytes;
+        if (!throttle && count > currentLimit / 2) {
+            int connections = Math.max(1, zks.getNumAliveConnections());
+            throttle = cnxnCount > Math.max(1, currentLimit / connections);
+        }
+        if (throttle && cnxn.startThrottle()) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Throttling 0x" + Long.toHexString(cnxn.getSessionId())
+                          + " at " + count + " requests, " + totalBytes
+                          + " bytes in flight");
+            }
+            throttledCount.incrementAndGet();
+            throttled.add(cnxn);
+            // the requests in flight may have all completed meanwhile
+            resume();
+        }
+    }
+
+    /**
+     * Take a request reaching the end of the pipeline out of flight, and
+     * resume the throttled connections the server has room for.
+     */
+    public void finish(Request request) {
+        int bytes = request.admittedBytes;
+        if (bytes < 0) {
+            return;
+        }
+        request.admittedBytes = -1;
+        inFlight.decrementAndGet();
+        inFlightBytes.addAndGet(-bytes);
+        request.cnxn.admittedRequests.decrementAndGet();
+        if (targetLatency > 0) {
+            adjust(System.currentTimeMillis() - request.createTime);
+        }
+        resume();
+    }
+
+    private synchronized void adjust(long latency) {
+        windowLatency += latency;
+        if (++windowCount < ADJUST_WINDOW) {
+            return;
+        }
+        long avgLatency = windowLatency / windowCount;
+        windowCount = 0;
+        windowLatency = 0;
+        int oldLimit = limit;
+        if (avgLatency > targetLatency) {
+            limit = Math.max(minLimit, oldLimit - oldLimit / 4);
+        } else {
+            limit = Math.min(maxLimit, oldLimit + oldLimit / 32 + 1);
+        }
+        if (limit != oldLimit && LOG.isDebugEnabled()) {
+            LOG.debug("Average latency " + avgLatency + "ms, limit changed from "
+                      + oldLimit + " to " + limit);
+        }
+    }
+
+    private void resume() {
+        if (throttledCount.get() == 0
+            || inFlightBytes.get() > maxInFlightBytes / 2) {
+            return;
+        }
+        // each connection resumed sends at least one more request
+        int room = Math.max(1, limit / 2) - inFlight.get();
+        while (room-- > 0) {
+            ServerCnxn cnxn = throttled.poll();
+            if (cnxn == null) {
+                break;
+            }
+            throttledCount.decrementAndGet();
+            long throttledTime = cnxn.endThrottle();
+            zks.serverStats().updateThrottle(throttledTime);
+        }
+    }
+
+    /**
+     * @return the current limit on the number of requests in flight
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the total size in bytes of the requests in flight
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    /**
+     * @return the number of connections currently throttled
+     */
+    public int getThrottledConnections() {
+        return throttledCount.get();
+    }
+}
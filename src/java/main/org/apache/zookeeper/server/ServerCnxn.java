@@ -28,20 +28,30 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.jute.ByteBufferOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.server.ServerCnxnFactory.SlowClientPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Interface to a Server connection - represents a connection from a client
  * to the server.
  */
 public abstract class ServerCnxn implements Stats, Watcher {
+    private static final Logger LOG = LoggerFactory.getLogger(ServerCnxn.class);
+
     // This is just an arbitrary object to represent requests issued by
     // (aka owned by) this class
     final public static Object me = new Object();
@@ -62,6 +72,27 @@ public abstract class ServerCnxn implements Stats, Watcher {
     public abstract void sendResponse(ReplyHeader h, Record r, String tag)
         throws IOException;
 
+    /** Size of the buffer a response is first serialized into */
+    static final int RESPONSE_SIZE = 256;
+
+    /**
+     * Serialize a response into an archive, after its length, which is
+     * filled in once the response is written. The length covers what was
+     * written even if serialization fails midway.
+     */
+    static void serializeResponse(ByteBufferOutputArchive oa, ReplyHeader h,
+            Record r, String tag) throws IOException {
+        int lengthPos = oa.reserveInt();
+        try {
+            oa.writeRecord(h, "header");
+            if (r != null) {
+                oa.writeRecord(r, tag);
+            }
+        } finally {
+            oa.fillInt(lengthPos, oa.getPosition() - lengthPos - 4);
+        }
+    }
+
     /* notify the client the session is closing and close/cleanup socket */
     abstract void sendCloseSession();
 
@@ -88,10 +119,187 @@ public abstract class ServerCnxn implements Stats, Watcher {
 
     abstract void sendBuffer(ByteBuffer closeConn);
 
+    /**
+     * Queue a buffer to be sent to the client.
+     * @param notification true if the buffer holds watch notifications,
+     *        which aren't bounded by the requests read from the client
+     */
+    abstract void sendBuffer(ByteBuffer bb, boolean notification);
+
     abstract void enableRecv();
 
     abstract void disableRecv();
 
+    /**
+     * Take over the pooled buffer the packet being processed was read into,
+     * for the request made from the packet to release it once processed.
+     * @return the buffer, or null if the packet isn't in a pooled buffer
+     */
+    ByteBuffer claimPacketBuffer() {
+        return null;
+    }
+
+    /**
+     * Release a buffer taken over with claimPacketBuffer().
+     */
+    void releasePacketBuffer(ByteBuffer bb) {
+    }
+
+    /** Requests of the connection in flight, see RequestThrottler */
+    final AtomicInteger admittedRequests = new AtomicInteger();
+
+    /** When the RequestThrottler stopped reading, 0 if it didn't */
+    private final AtomicLong throttleStart = new AtomicLong();
+
+    /** Reasons to stop reading requests, bits of recvHolds */
+    private static final int HOLD_THROTTLE = 1;
+    private static final int HOLD_BACKLOG = 2;
+
+    private final AtomicInteger recvHolds = new AtomicInteger();
+
+    /** Updates of recvHolds not applied yet, see updateRecv() */
+    private final AtomicInteger recvUpdates = new AtomicInteger();
+
+    /**
+     * @return false if reading was already held for the reason
+     */
+    private boolean holdRecv(int reason) {
+        int holds;
+        do {
+            holds = recvHolds.get();
+            if ((holds & reason) != 0) {
+                return false;
+            }
+        } while (!recvHolds.compareAndSet(holds, holds | reason));
+        updateRecv();
+        return true;
+    }
+
+    /**
+     * @return false if reading wasn't held for the reason
+     */
+    private boolean releaseRecv(int reason) {
+        int holds;
+        do {
+            holds = recvHolds.get();
+            if ((holds & reason) == 0) {
+                return false;
+            }
+        } while (!recvHolds.compareAndSet(holds, holds & ~reason));
+        updateRecv();
+        return true;
+    }
+
+    /**
+     * Disable or enable reading to match recvHolds. Only one thread at a
+     * time applies the holds, until it sees no more updates, so that the
+     * last update always wins.
+     */
+    private void updateRecv() {
+        if (recvUpdates.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            if (recvHolds.get() != 0) {
+                disableRecv();
+            } else {
+                enableRecv();
+            }
+        } while (recvUpdates.decrementAndGet() != 0);
+    }
+
+    /**
+     * Stop reading requests until endThrottle() is called.
+     * @return false if the connection is already throttled
+     */
+    boolean startThrottle() {
+        if (!throttleStart.compareAndSet(0, System.currentTimeMillis())) {
+            return false;
+        }
+        holdRecv(HOLD_THROTTLE);
+        return true;
+    }
+
+    /**
+     * Resume reading requests stopped by startThrottle().
+     * @return the time in ms the connection was throttled
+     */
+    long endThrottle() {
+        long start = throttleStart.getAndSet(0);
+        if (start == 0) {
+            return 0;
+        }
+        releaseRecv(HOLD_THROTTLE);
+        long elapsed = System.currentTimeMillis() - start;
+        synchronized (this) {
+            throttleCount++;
+            throttledTime += elapsed;
+        }
+        return elapsed;
+    }
+
+    /** Bytes waiting to be sent to the client */
+    private final AtomicLong outgoingBytes = new AtomicLong();
+
+    /** When the outgoing bytes last went up from 0 */
+    private volatile long outgoingSince;
+
+    private final AtomicBoolean closedAsSlow = new AtomicBoolean();
+
+    /**
+     * Account for a buffer about to be queued to be sent to the client, and
+     * apply the slow client policy of the factory if too many bytes are
+     * waiting to be sent already.
+     * @param notification true if the buffer holds watch notifications
+     * @return false if the buffer must not be queued, because the
+     *         connection is closed
+     */
+    protected boolean outgoingQueued(int bytes, boolean notification) {
+        long queued = outgoingBytes.addAndGet(bytes);
+        if (queued == bytes) {
+            outgoingSince = System.currentTimeMillis();
+        }
+        ServerCnxnFactory factory = serverCnxnFactory();
+        long max = factory.getMaxOutgoingBytes();
+        if (max <= 0 || queued <= max) {
+            return true;
+        }
+        // once reading stops, responses are bounded by the requests already
+        // read, but notifications keep coming
+        if (factory.getSlowClientPolicy() == SlowClientPolicy.THROTTLE
+                && (!notification || queued <= 2 * max)) {
+            if (holdRecv(HOLD_BACKLOG)) {
+                LOG.info("Not reading requests from slow client 0x"
+                         + Long.toHexString(getSessionId()) + ", " + queued
+                         + " bytes waiting to be sent");
+            }
+            return true;
+        }
+        outgoingBytes.addAndGet(-bytes);
+        if (closedAsSlow.compareAndSet(false, true)) {
+            LOG.warn("Closing connection to slow client 0x"
+                     + Long.toHexString(getSessionId()) + " "
+                     + getRemoteSocketAddress() + ", " + queued
+                     + " bytes waiting to be sent since "
+                     + getOutgoingQueueAge() + " ms");
+            close();
+        }
+        return false;
+    }
+
+    /**
+     * Account for bytes sent to the client.
+     */
+    protected void outgoingSent(long bytes) {
+        long queued = outgoingBytes.addAndGet(-bytes);
+        if ((recvHolds.get() & HOLD_BACKLOG) != 0
+                && queued <= serverCnxnFactory().getMaxOutgoingBytes() / 2
+                && releaseRecv(HOLD_BACKLOG)) {
+            LOG.info("Reading requests from client 0x"
+                     + Long.toHexString(getSessionId()) + " again");
+        }
+    }
+
     abstract void setSessionTimeout(int sessionTimeout);
 
     protected ZooKeeperSaslServer zooKeeperSaslServer = null;
@@ -276,6 +484,126 @@ public abstract class ServerCnxn implements Stats, Watcher {
     }
 
     protected abstract ServerStats serverStats();
+
+    protected abstract ServerCnxnFactory serverCnxnFactory();
+
+    /**
+     * @return the dispatcher that sends watch notifications for this
+     *         connection, or null if they are sent by the triggering thread
+     */
+    protected abstract WatchNotificationDispatcher notificationDispatcher();
+
+    /**
+     * Notifications waiting to be sent by a WatchNotificationDispatcher
+     * worker, in trigger order. Locked while a batch is being sent so that
+     * batches and responses go out in order.
+     */
+    private final Queue<WatchNotification> dispatchedNotifications =
+        new ConcurrentLinkedQueue<WatchNotification>();
+
+    private final AtomicBoolean notificationsScheduled = new AtomicBoolean();
+
+    /**
+     * @return the event as a WatchNotification, whose serialized form is
+     *         shared with the other connections it is sent to
+     */
+    protected static WatchNotification toNotification(WatchedEvent event) {
+        return (event instanceof WatchNotification)
+            ? (WatchNotification) event : new WatchNotification(event);
+    }
+
+    /**
+     * Queue the event to be sent by the notification dispatcher.
+     * @return false if there is no dispatcher, in which case the caller
+     *         must send the event itself
+     */
+    protected boolean dispatchNotification(WatchedEvent event) {
+        WatchNotificationDispatcher dispatcher = notificationDispatcher();
+        if (dispatcher == null) {
+            return false;
+        }
+        dispatchedNotifications.add(toNotification(event));
+        dispatcher.notificationQueued();
+        if (notificationsScheduled.compareAndSet(false, true)) {
+            dispatcher.schedule(this);
+        }
+        return true;
+    }
+
+    /**
+     * Called by a dispatcher worker to send the queued notifications.
+     */
+    void sendDispatchedNotifications() {
+        notificationsScheduled.set(false);
+        flushDispatchedNotifications();
+    }
+
+    /**
+     * Send the queued notifications as a single buffer. This is called
+     * before every response, so that a client always sees the notifications
+     * triggered before a request ahead of its response.
+     *
+     * The queue is only checked under the lock: an empty queue may just
+     * mean that a worker has taken a batch it hasn't sent yet, which the
+     * response has to wait for.
+     */
+    protected void flushDispatchedNotifications() {
+        synchronized (dispatchedNotifications) {
+            ArrayList<WatchNotification> batch =
+                new ArrayList<WatchNotification>();
+            int size = 0;
+            WatchNotification n;
+            while ((n = dispatchedNotifications.poll()) != null) {
+                batch.add(n);
+                size += n.getSerializedSize();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            ByteBuffer bb;
+            if (batch.size() == 1) {
+                // nothing to coalesce, send the shared buffer as is
+                bb = batch.get(0).getSerialized();
+            } else {
+                bb = ByteBuffer.allocate(size);
+                for (WatchNotification notification : batch) {
+                    bb.put(notification.getSerialized());
+                }
+                bb.flip();
+            }
+            long now = System.currentTimeMillis();
+            long totalLatency = 0;
+            long maxLatency = 0;
+            long minLatency = Long.MAX_VALUE;
+            for (WatchNotification notification : batch) {
+                long latency = now - notification.getTriggerTime();
+                totalLatency += latency;
+                maxLatency = Math.max(maxLatency, latency);
+                minLatency = Math.min(minLatency, latency);
+            }
+            sendBuffer(bb, true);
+            WatchNotificationDispatcher dispatcher = notificationDispatcher();
+            if (dispatcher != null) {
+                dispatcher.notificationsSent(batch.size(), totalLatency,
+                                             maxLatency, minLatency);
+            }
+        }
+    }
+
+    /**
+     * Drop the queued notifications, eg. because the connection is closed.
+     */
+    void dropDispatchedNotifications() {
+        notificationsScheduled.set(false);
+        int count = 0;
+        while (dispatchedNotifications.poll() != null) {
+            count++;
+        }
+        WatchNotificationDispatcher dispatcher = notificationDispatcher();
+        if (count > 0 && dispatcher != null) {
+            dispatcher.notificationsDropped(count);
+        }
+    }
     
     protected final Date established = new Date();
 
@@ -293,6 +621,9 @@ public abstract class ServerCnxn implements Stats, Watcher {
     protected long count;
     protected long totalLatency;
 
+    protected long throttleCount;
+    protected long throttledTime;
+
     public synchronized void resetStats() {
         packetsReceived.set(0);
         packetsSent.set(0);
@@ -306,6 +637,9 @@ public abstract class ServerCnxn implements Stats, Watcher {
 
         count = 0;
         totalLatency = 0;
+
+        throttleCount = 0;
+        throttledTime = 0;
     }
 
     protected long incrPacketsReceived() {
@@ -388,6 +722,26 @@ public abstract class ServerCnxn implements Stats, Watcher {
         return lastLatency;
     }
 
+    public synchronized long getThrottleCount() {
+        return throttleCount;
+    }
+
+    public synchronized long getThrottledTime() {
+        return throttledTime;
+    }
+
+    public long getOutgoingBytes() {
+        return outgoingBytes.get();
+    }
+
+    public long getOutgoingQueueAge() {
+        long since = outgoingSince;
+        if (outgoingBytes.get() <= 0) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - since);
+    }
+
     /**
      * Prints detailed stats information for the connection.
      *
@@ -453,6 +807,14 @@ public abstract class ServerCnxn implements Stats, Watcher {
                 pwriter.print(getAvgLatency());
                 pwriter.print(",maxlat=");
                 pwriter.print(getMaxLatency());
+                pwriter.print(",thr=");
+                pwriter.print(getThrottleCount());
+                pwriter.print(",thrtime=");
+                pwriter.print(getThrottledTime());
+                pwriter.print(",outb=");
+                pwriter.print(getOutgoingBytes());
+                pwriter.print(",outage=");
+                pwriter.print(getOutgoingQueueAge());
             }
         }
         pwriter.print(")");
@@ -42,6 +42,41 @@ public abstract class ServerCnxnFactory {
 
     public static final String ZOOKEEPER_SERVER_CNXN_FACTORY = "zookeeper.serverCnxnFactory";
 
+    /** Default: 67108864 (64M), 0 for no limit */
+    public static final String ZOOKEEPER_CNXN_MAX_OUTGOING_BYTES =
+        "zookeeper.cnxn.maxOutgoingBytes";
+
+    /** Default: close */
+    public static final String ZOOKEEPER_CNXN_SLOW_CLIENT_POLICY =
+        "zookeeper.cnxn.slowClientPolicy";
+
+    /**
+     * What to do with a connection whose client doesn't read what is sent to
+     * it fast enough, once more than maxOutgoingBytes are waiting to be sent.
+     */
+    public enum SlowClientPolicy {
+        /** Close the connection */
+        CLOSE,
+        /**
+         * Stop reading requests from the connection until half of the
+         * backlog is sent, and close it if notifications alone grow the
+         * backlog to twice the limit
+         */
+        THROTTLE;
+
+        static SlowClientPolicy parse(String policy) {
+            for (SlowClientPolicy p : values()) {
+                if (p.name().equalsIgnoreCase(policy)) {
+                    return p;
+                }
+            }
+            LoggerFactory.getLogger(ServerCnxnFactory.class).warn(
+                    "Unknown " + ZOOKEEPER_CNXN_SLOW_CLIENT_POLICY + " "
+                    + policy + ", using " + CLOSE.name().toLowerCase());
+            return CLOSE;
+        }
+    }
+
     public interface PacketProcessor {
         public void processPacket(ByteBuffer packet, ServerCnxn src);
     }
@@ -137,6 +172,32 @@ public abstract class ServerCnxnFactory {
     // Construct a ConcurrentHashSet using a ConcurrentHashMap
     protected final Set<ServerCnxn> cnxns = Collections.newSetFromMap(
         new ConcurrentHashMap<ServerCnxn, Boolean>());
+
+    /** The buffers connections read requests into and send responses from */
+    private final BufferPool bufferPool = new BufferPool();
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    private final long maxOutgoingBytes =
+        Long.getLong(ZOOKEEPER_CNXN_MAX_OUTGOING_BYTES, 64 * 1024 * 1024);
+
+    private final SlowClientPolicy slowClientPolicy = SlowClientPolicy.parse(
+            System.getProperty(ZOOKEEPER_CNXN_SLOW_CLIENT_POLICY, "close"));
+
+    /**
+     * @return the bytes a connection may have waiting to be sent before its
+     *         client is deemed too slow, 0 for no limit
+     */
+    public long getMaxOutgoingBytes() {
+        return maxOutgoingBytes;
+    }
+
+    public SlowClientPolicy getSlowClientPolicy() {
+        return slowClientPolicy;
+    }
+
     public void unregisterConnection(ServerCnxn serverCnxn) {
         ConnectionBean jmxConnectionBean = connectionBeans.remove(serverCnxn);
         if (jmxConnectionBean != null){
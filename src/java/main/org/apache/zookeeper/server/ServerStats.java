@@ -18,7 +18,7 @@
 
 package org.apache.zookeeper.server;
 
-
+import org.apache.zookeeper.server.util.Histogram;
 
 /**
  * Basic Server Statistics
@@ -31,6 +31,15 @@ public class ServerStats {
     private long totalLatency = 0;
     private long count = 0;
 
+    /** Number of requests made durable by each txn log fsync */
+    private final Histogram fsyncBatchSize = new Histogram(12);
+    /** Number of bytes made durable by each txn log fsync */
+    private final Histogram fsyncBatchBytes = new Histogram(24);
+    /** Time taken by each txn log fsync, in ms */
+    private final Histogram fsyncLatency = new Histogram(14);
+    /** Time each throttled connection didn't read requests, in ms */
+    private final Histogram throttledTime = new Histogram(16);
+
     private final Provider provider;
 
     public interface Provider {
@@ -85,6 +94,22 @@ public class ServerStats {
     	return provider.getNumAliveConnections();
     }
 
+    public Histogram getFsyncBatchSize() {
+        return fsyncBatchSize;
+    }
+
+    public Histogram getFsyncBatchBytes() {
+        return fsyncBatchBytes;
+    }
+
+    public Histogram getFsyncLatency() {
+        return fsyncLatency;
+    }
+
+    public Histogram getThrottledTime() {
+        return throttledTime;
+    }
+
     @Override
     public String toString(){
         StringBuilder sb = new StringBuilder();
@@ -113,6 +138,32 @@ public class ServerStats {
             maxLatency = latency;
         }
     }
+    /**
+     * Record a flush of the txn log.
+     * @param batchSize number of requests in the flush
+     * @param batchBytes number of bytes in the flush
+     * @param latency time the flush took in ms
+     */
+    void updateFsync(int batchSize, long batchBytes, long latency) {
+        fsyncBatchSize.add(batchSize);
+        fsyncBatchBytes.add(batchBytes);
+        fsyncLatency.add(latency);
+    }
+    synchronized public void resetFsync() {
+        fsyncBatchSize.reset();
+        fsyncBatchBytes.reset();
+        fsyncLatency.reset();
+    }
+    /**
+     * Record a connection resuming after it was throttled.
+     * @param time time in ms the connection didn't read requests
+     */
+    void updateThrottle(long time) {
+        throttledTime.add(time);
+    }
+    synchronized public void resetThrottle() {
+        throttledTime.reset();
+    }
     synchronized public void resetLatency(){
         totalLatency = 0;
         count = 0;
@@ -135,6 +186,8 @@ public class ServerStats {
     synchronized public void reset() {
         resetLatency();
         resetRequestCounters();
+        resetFsync();
+        resetThrottle();
     }
 
 }
@@ -26,6 +26,7 @@ import java.util.Date;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
@@ -38,6 +39,13 @@ import org.apache.zookeeper.KeeperException.SessionExpiredException;
  * interval. It always rounds up the tick interval to provide a sort of grace
  * period. Sessions are thus expired in batches made up of sessions that expire
  * in a given interval.
+ *
+ * None of the methods lock the tracker, so that the pings and requests of
+ * different sessions don't contend with each other. The state of a session
+ * is its closing flag and its owner, both changed atomically. Closing a
+ * session only sets its flag, and a touch that races with the closing or
+ * removal of its session checks the session again once it has updated the
+ * expiry queue, so a session that is closing is never touched back to life.
  */
 public class SessionTrackerImpl extends Thread implements SessionTracker {
     private static final Logger LOG = LoggerFactory.getLogger(SessionTrackerImpl.class);
@@ -51,7 +59,13 @@ public class SessionTrackerImpl extends Thread implements SessionTracker {
     private final long serverId;
     private final AtomicLong nextSessionId = new AtomicLong();
 
-    public static class SessionImpl implements Session {
+    public static class SessionImpl
+        implements Session, ExpiryQueue.Expirable
+    {
+        private static final AtomicReferenceFieldUpdater<SessionImpl, Object>
+            OWNER = AtomicReferenceFieldUpdater.newUpdater(
+                    SessionImpl.class, Object.class, "owner");
+
         SessionImpl(long sessionId, int timeout) {
             this.sessionId = sessionId;
             this.timeout = timeout;
@@ -60,9 +74,13 @@ public class SessionTrackerImpl extends Thread implements SessionTracker {
 
         final long sessionId;
         final int timeout;
-        boolean isClosing;
+        volatile boolean isClosing;
+
+        volatile Object owner;
 
-        Object owner;
+        private final ExpiryQueue.Slot expirySlot = new ExpiryQueue.Slot(this);
+
+        public ExpiryQueue.Slot getExpirySlot() { return expirySlot; }
 
         public long getSessionId() { return sessionId; }
         public int getTimeout() { return timeout; }
@@ -126,6 +144,9 @@ public class SessionTrackerImpl extends Thread implements SessionTracker {
 
                 for (SessionImpl s : sessionExpiryQueue.poll()) {
                     setSessionClosing(s.sessionId);
+                    // a touch that got past its closing check before the
+                    // session was marked may have queued it again
+                    sessionExpiryQueue.remove(s);
                     expirer.expire(s);
                 }
             }
@@ -135,7 +156,7 @@ public class SessionTrackerImpl extends Thread implements SessionTracker {
         LOG.info("SessionTrackerImpl exited loop!");
     }
 
-    synchronized public boolean touchSession(long sessionId, int timeout) {
+    public boolean touchSession(long sessionId, int timeout) {
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(LOG,
                                      ZooTrace.CLIENT_PING_TRACE_MASK,
@@ -148,10 +169,16 @@ public class SessionTrackerImpl extends Thread implements SessionTracker {
             return false;
         }
         sessionExpiryQueue.update(s, timeout);
+        if (sessionsById.get(sessionId) != s || s.isClosing()) {
+            // removed or marked closing while we were touching it, make sure
+            // it isn't left in the queue to expire again
+            sessionExpiryQueue.remove(s);
+            return false;
+        }
         return true;
     }
 
-    synchronized public void setSessionClosing(long sessionId) {
+    public void setSessionClosing(long sessionId) {
         if (LOG.isTraceEnabled()) {
             LOG.info("Session closing: 0x" + Long.toHexString(sessionId));
         }
@@ -162,7 +189,7 @@ public class SessionTrackerImpl extends Thread implements SessionTracker {
         s.isClosing = true;
     }
 
-    synchronized public void removeSession(long sessionId) {
+    public void removeSession(long sessionId) {
         LOG.debug("Removing session 0x" + Long.toHexString(sessionId));
         SessionImpl s = sessionsById.remove(sessionId);
         sessionsWithTimeout.remove(sessionId);
@@ -192,11 +219,11 @@ public class SessionTrackerImpl extends Thread implements SessionTracker {
         return sessionId;
     }
 
-    synchronized public void addSession(long id, int sessionTimeout) {
+    public void addSession(long id, int sessionTimeout) {
         sessionsWithTimeout.put(id, sessionTimeout);
-        if (sessionsById.get(id) == null) {
-            SessionImpl s = new SessionImpl(id, sessionTimeout);
-            sessionsById.put(id, s);
+        if (sessionsById.get(id) == null
+                && sessionsById.putIfAbsent(id,
+                        new SessionImpl(id, sessionTimeout)) == null) {
             if (LOG.isTraceEnabled()) {
                 ZooTrace.logTraceMessage(LOG, ZooTrace.SESSION_TRACE_MASK,
                         "SessionTrackerImpl --- Adding session 0x"
@@ -212,19 +239,19 @@ public class SessionTrackerImpl extends Thread implements SessionTracker {
         touchSession(id, sessionTimeout);
     }
 
-    synchronized public void checkSession(long sessionId, Object owner) throws KeeperException.SessionExpiredException, KeeperException.SessionMovedException {
+    public void checkSession(long sessionId, Object owner) throws KeeperException.SessionExpiredException, KeeperException.SessionMovedException {
         SessionImpl session = sessionsById.get(sessionId);
         if (session == null || session.isClosing()) {
             throw new KeeperException.SessionExpiredException();
         }
-        if (session.owner == null) {
-            session.owner = owner;
-        } else if (session.owner != owner) {
+        if (session.owner != owner
+                && !SessionImpl.OWNER.compareAndSet(session, null, owner)
+                && session.owner != owner) {
             throw new KeeperException.SessionMovedException();
         }
     }
 
-    synchronized public void setOwner(long id, Object owner) throws SessionExpiredException {
+    public void setOwner(long id, Object owner) throws SessionExpiredException {
         SessionImpl session = sessionsById.get(id);
         if (session == null || session.isClosing()) {
             throw new KeeperException.SessionExpiredException();
@@ -26,13 +26,14 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.Adler32;
 import java.util.zip.CheckedInputStream;
 
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.zookeeper.data.StatPersisted;
+import org.apache.zookeeper.server.persistence.FileChecksum;
 import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.SnapshotCompression;
 
 /**
  * Dump a snapshot file to stdout.
@@ -52,9 +53,10 @@ public class SnapshotFormatter {
     }
     
     public void run(String snapshotFileName) throws IOException {
-        InputStream is = new CheckedInputStream(
-                new BufferedInputStream(new FileInputStream(snapshotFileName)),
-                new Adler32());
+        InputStream snapIS = SnapshotCompression.open(
+            new BufferedInputStream(new FileInputStream(snapshotFileName)));
+        InputStream is = new CheckedInputStream(snapIS,
+                FileChecksum.peek(snapIS).create());
         InputArchive ia = BinaryInputArchive.getArchive(is);
         
         FileSnap fileSnap = new FileSnap(null);
@@ -87,7 +89,7 @@ public class SnapshotFormatter {
         synchronized(n) { // keep findbugs happy
             System.out.println(name);
             printStat(n.stat);
-            System.out.println("  dataLength = " + n.data.length);
+            System.out.println("  dataLength = " + n.getDataLength());
             children = n.getChildren();
         }
         if (children != null) {
@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A copy-on-write, point-in-time view of the nodes of a DataTree, which the
+ * snapshot is serialized from while txns keep being applied to the tree.
+ *
+ * While a view is open, a txn preserves a copy of each node before it first
+ * modifies or deletes it, under the lock of the node it already holds. The
+ * snapshot reads a node from its preserved copy if there is one. Otherwise
+ * it claims the node, so that a txn about to modify the node waits for the
+ * snapshot to copy it, and copies the live node itself. Either way the
+ * snapshot sees every node as it was when the view was opened, and never
+ * locks a live node. The only writes that wait for the snapshot are the
+ * ones racing with it for the same node, and only for as long as the node
+ * takes to copy; in particular no write waits for the snapshot to be
+ * written out.
+ *
+ * A node is read by the snapshot once, after which its copy is dropped from
+ * the view. The snapshot marks the live nodes it read with the id of the
+ * view, rather than keeping them in the view, so that later txns don't
+ * preserve them again. A node only keeps the id of the last view that read
+ * it, so when views overlap, a node may get preserved again for a view that
+ * already read it, which is wasted but harmless.
+ */
+class SnapshotView {
+    /** A node the snapshot is copying */
+    private static class Claim {
+        final CountDownLatch copied = new CountDownLatch(1);
+    }
+
+    private static final AtomicLong lastId = new AtomicLong();
+
+    private final long id = lastId.incrementAndGet();
+
+    private final Map<String, DataNode> nodes;
+
+    /** The nodes as of the opening of the view, or claims on them */
+    private final ConcurrentHashMap<String, Object> preserved =
+        new ConcurrentHashMap<String, Object>();
+
+    private final AtomicInteger copiedOnWrite = new AtomicInteger();
+
+    /**
+     * @param nodes the live nodes of the tree
+     */
+    SnapshotView(Map<String, DataNode> nodes) {
+        this.nodes = nodes;
+    }
+
+    /** The root is in the tree as both "" and "/" */
+    private static String key(String path) {
+        return "/".equals(path) ? "" : path;
+    }
+
+    /**
+     * Preserve the node before a txn modifies or deletes it for the first
+     * time since the view was opened. The caller must hold the lock of the
+     * node.
+     */
+    void preserve(String path, DataNode node) {
+        String key = key(path);
+        Object existing = preserved.get(key);
+        if (existing == null) {
+            if (node.snapshotViewId == id) {
+                // already read
+                return;
+            }
+            existing = preserved.putIfAbsent(key, node.copy());
+            if (existing == null) {
+                copiedOnWrite.incrementAndGet();
+            }
+        }
+        if (existing instanceof Claim) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    ((Claim) existing).copied.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Read a node for the snapshot, each node must be read only once.
+     * @return the node as it was when the view was opened, or null if it
+     *         didn't exist. The node is private to the view.
+     */
+    DataNode get(String path) {
+        String key = key(path);
+        Object node = preserved.get(key);
+        if (node == null) {
+            Claim claim = new Claim();
+            node = preserved.putIfAbsent(key, claim);
+            if (node == null) {
+                try {
+                    DataNode live = nodes.get(key);
+                    if (live == null) {
+                        return null;
+                    }
+                    if (live.snapshotViewId == id) {
+                        throw new IllegalStateException(
+                                path + " was already read");
+                    }
+                    DataNode copy = live.copy();
+                    // before txns can modify the node again
+                    live.snapshotViewId = id;
+                    return copy;
+                } finally {
+                    preserved.remove(key);
+                    claim.copied.countDown();
+                }
+            }
+        }
+        DataNode live = nodes.get(key);
+        if (live != null) {
+            // before the copy goes, so that txns don't preserve it again
+            live.snapshotViewId = id;
+        }
+        preserved.remove(key);
+        return (DataNode) node;
+    }
+
+    /**
+     * @return the number of preserved nodes the snapshot hasn't read yet
+     */
+    int getPreservedCount() {
+        return preserved.size();
+    }
+
+    /**
+     * @return the number of nodes txns copied since the view was opened
+     */
+    int getCopiedOnWriteCount() {
+        return copiedOnWrite.get();
+    }
+}
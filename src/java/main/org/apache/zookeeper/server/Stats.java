@@ -61,6 +61,18 @@ interface Stats {
     /** Latency of last response to client on this connection in ms
      * @since 3.3.0 */
     long getLastLatency();
+    /** Number of times the server stopped reading requests from this
+     * connection because it had too many requests in flight */
+    long getThrottleCount();
+    /** Total time in ms the server didn't read requests from this connection
+     * because it had too many requests in flight */
+    long getThrottledTime();
+    /** Bytes of responses and notifications waiting to be sent to the
+     * client */
+    long getOutgoingBytes();
+    /** Time in ms the connection has had bytes waiting to be sent, 0 if it
+     * has none */
+    long getOutgoingQueueAge();
 
     /** Reset counters
      * @since 3.3.0 */
@@ -20,9 +20,15 @@ package org.apache.zookeeper.server;
 
 import java.io.Flushable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.server.persistence.TxnLog;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,9 +38,40 @@ import org.slf4j.LoggerFactory;
  * This RequestProcessor logs requests to disk. It batches the requests to do
  * the io efficiently. The request is not passed to the next RequestProcessor
  * until its log has been synced to disk.
+ *
+ * By default the log is flushed as soon as there are no more queued
+ * requests. In group commit mode (zookeeper.syncGroupCommit) the processor
+ * instead keeps collecting requests for up to the recent average fsync time,
+ * bounded by zookeeper.syncGroupCommit.maxDelay, as long as the previous
+ * flush was shared by more than one request. It flushes early once
+ * zookeeper.syncGroupCommit.maxBytes have been appended. Requests are always
+ * passed on in the order they were logged.
+ *
+ * In pipeline mode (zookeeper.syncPipeline) the log is forced to disk by a
+ * separate LogSyncThread, which also passes the requests of a batch on once
+ * the batch is persisted. The sync thread keeps appending the next batch in
+ * the meantime, so serializing transactions overlaps with the fsync of the
+ * previous ones. A request is still not passed on, and so not acked, before
+ * its transaction is on disk.
  */
 public class SyncRequestProcessor extends Thread implements RequestProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(SyncRequestProcessor.class);
+
+    /** Default: false, flush as soon as the queue is empty */
+    public static final String GROUP_COMMIT = "zookeeper.syncGroupCommit";
+    /** Default max time in ms a request waits for others to share its fsync: 5 */
+    public static final String GROUP_COMMIT_MAX_DELAY =
+        "zookeeper.syncGroupCommit.maxDelay";
+    /** Default max bytes logged before a flush: 1MB */
+    public static final String GROUP_COMMIT_MAX_BYTES =
+        "zookeeper.syncGroupCommit.maxBytes";
+
+    /** Default: false, the sync thread waits for each fsync */
+    public static final String PIPELINE = "zookeeper.syncPipeline";
+
+    /** Max number of requests logged before a flush */
+    private static final int MAX_BATCH_SIZE = 1000;
+
     private final ZooKeeperServer zks;
     private final LinkedBlockingQueue<Request> queuedRequests =
         new LinkedBlockingQueue<Request>();
@@ -57,6 +94,24 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
 
     private final Request requestOfDeath = Request.requestOfDeath;
 
+    /** Queued by the LogSyncer when it has synced all its batches */
+    private static final Request syncDone =
+        new Request(null, 0, 0, 0, null, null);
+
+    /** Syncs the log in pipeline mode, null otherwise */
+    private final LogSyncer syncer;
+
+    private final boolean groupCommit;
+    private final long maxBatchDelayNS;
+    private final long maxBatchBytes;
+
+    /** Moving average of the time taken by a flush, in ns */
+    private volatile long avgFlushTimeNS;
+    /** Number of requests in the last flush */
+    private volatile int lastBatchSize;
+    /** Time by which the current batch must be flushed, in group commit mode */
+    private long batchDeadlineNS;
+
     public SyncRequestProcessor(ZooKeeperServer zks,
             RequestProcessor nextProcessor)
     {
@@ -64,6 +119,21 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
         this.zks = zks;
         this.nextProcessor = nextProcessor;
         running = true;
+        groupCommit = Boolean.getBoolean(GROUP_COMMIT);
+        maxBatchDelayNS = TimeUnit.MILLISECONDS.toNanos(
+                Long.getLong(GROUP_COMMIT_MAX_DELAY, 5));
+        maxBatchBytes = Long.getLong(GROUP_COMMIT_MAX_BYTES, 1024 * 1024);
+        if (groupCommit) {
+            LOG.info("Group commit enabled, maxDelay "
+                     + TimeUnit.NANOSECONDS.toMillis(maxBatchDelayNS)
+                     + "ms, maxBytes " + maxBatchBytes);
+        }
+        if (Boolean.getBoolean(PIPELINE)) {
+            LOG.info("Log sync pipeline enabled");
+            syncer = new LogSyncer();
+        } else {
+            syncer = null;
+        }
     }
 
     /**
@@ -91,17 +161,36 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
             // we do this in an attempt to ensure that not all of the servers
             // in the ensemble take a snapshot at the same time
             int randRoll = r.nextInt(snapCount/2);
+            if (syncer != null) {
+                syncer.start();
+            }
             while (true) {
                 Request si = null;
                 if (toFlush.isEmpty()) {
                     si = queuedRequests.take();
                 } else {
                     si = queuedRequests.poll();
+                    if (si == null && groupCommit) {
+                        long waitNS = batchDeadlineNS - System.nanoTime();
+                        if (waitNS > 0) {
+                            si = queuedRequests.poll(waitNS,
+                                    TimeUnit.NANOSECONDS);
+                        }
+                    }
                     if (si == null) {
-                        flush(toFlush);
-                        continue;
+                        if (syncer != null && syncer.isBusy()) {
+                            // keep adding to the batch until the sync in
+                            // progress is done, the syncer queues syncDone
+                            si = queuedRequests.take();
+                        } else {
+                            flush(toFlush);
+                            continue;
+                        }
                     }
                 }
+                if (si == syncDone) {
+                    continue;
+                }
                 if (si == requestOfDeath) {
                     break;
                 }
@@ -130,7 +219,8 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
                             }
                             logCount = 0;
                         }
-                    } else if (toFlush.isEmpty()) {
+                    } else if (toFlush.isEmpty()
+                               && (syncer == null || !syncer.isBusy())) {
                         // optimization for read heavy workloads
                         // iff this is a read, and there are no pending
                         // flushes (writes), then just pass this to the next
@@ -141,12 +231,21 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
                         }
                         continue;
                     }
+                    if (toFlush.isEmpty() && groupCommit) {
+                        batchDeadlineNS = System.nanoTime() + batchDelayNS();
+                    }
                     toFlush.add(si);
-                    if (toFlush.size() > 1000) {
+                    if (toFlush.size() > MAX_BATCH_SIZE) {
+                        flush(toFlush);
+                    } else if (groupCommit && zks.getZKDatabase()
+                               .getUncommittedBytes() >= maxBatchBytes) {
                         flush(toFlush);
                     }
                 }
             }
+            if (syncer != null) {
+                syncer.finish();
+            }
         } catch (Throwable t) {
             LOG.error("Severe unrecoverable error, exiting", t);
             running = false;
@@ -161,9 +260,35 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
         if (toFlush.isEmpty())
             return;
 
+        long batchBytes = zks.getZKDatabase().getUncommittedBytes();
+        if (syncer != null) {
+            syncer.submit(new Batch(zks.getZKDatabase().startCommit(),
+                    new ArrayList<Request>(toFlush), batchBytes));
+            toFlush.clear();
+            return;
+        }
+        int batchSize = toFlush.size();
+        long startNS = System.nanoTime();
         zks.getZKDatabase().commit();
-        while (!toFlush.isEmpty()) {
-            Request i = toFlush.remove();
+        flushed(batchSize, batchBytes, System.nanoTime() - startNS);
+        passOn(toFlush);
+        toFlush.clear();
+    }
+
+    private void flushed(int batchSize, long batchBytes, long flushTimeNS) {
+        zks.serverStats().updateFsync(batchSize, batchBytes,
+                TimeUnit.NANOSECONDS.toMillis(flushTimeNS));
+        avgFlushTimeNS = (avgFlushTimeNS * 7 + flushTimeNS) / 8;
+        lastBatchSize = batchSize;
+    }
+
+    /**
+     * Pass persisted requests on to the next processor.
+     */
+    private void passOn(List<Request> requests)
+        throws IOException, RequestProcessorException
+    {
+        for (Request i : requests) {
             nextProcessor.processRequest(i);
         }
         if (nextProcessor instanceof Flushable) {
@@ -171,6 +296,95 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
         }
     }
 
+    /**
+     * How long to wait for more requests before flushing a new batch. If the
+     * last flush wasn't shared there is no concurrent load to wait for, so
+     * flush right away rather than add latency. Otherwise wait about as long
+     * as a flush takes, which lets the batch grow to roughly the number of
+     * requests arriving during one fsync.
+     */
+    private long batchDelayNS() {
+        if (lastBatchSize <= 1) {
+            return 0;
+        }
+        return Math.min(avgFlushTimeNS, maxBatchDelayNS);
+    }
+
+    /**
+     * Requests whose transactions have been written out to the log and are
+     * waiting for the LogSyncer to persist them.
+     */
+    private static class Batch {
+        final TxnLog.PendingCommit commit;
+        final List<Request> requests;
+        final long bytes;
+
+        Batch(TxnLog.PendingCommit commit, List<Request> requests,
+              long bytes) {
+            this.commit = commit;
+            this.requests = requests;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Persists the batches handed over by the sync thread, one at a time in
+     * the order they were handed over, and passes their requests on.
+     */
+    private class LogSyncer extends Thread {
+        private final Batch endOfBatches = new Batch(null, null, 0);
+
+        private final LinkedBlockingQueue<Batch> batches =
+            new LinkedBlockingQueue<Batch>();
+
+        /** Batches submitted and not yet passed on */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        LogSyncer() {
+            super("LogSyncThread:" + zks.getServerId());
+        }
+
+        boolean isBusy() {
+            return pending.get() > 0;
+        }
+
+        void submit(Batch batch) {
+            pending.incrementAndGet();
+            batches.add(batch);
+        }
+
+        /**
+         * Sync and pass on the batches submitted so far and stop.
+         */
+        void finish() throws InterruptedException {
+            batches.add(endOfBatches);
+            join();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Batch batch = batches.take();
+                    if (batch == endOfBatches) {
+                        break;
+                    }
+                    long startNS = System.nanoTime();
+                    batch.commit.sync();
+                    flushed(batch.requests.size(), batch.bytes,
+                            System.nanoTime() - startNS);
+                    passOn(batch.requests);
+                    if (pending.decrementAndGet() == 0) {
+                        queuedRequests.add(syncDone);
+                    }
+                }
+            } catch (Throwable t) {
+                LOG.error("Severe unrecoverable error, exiting", t);
+                System.exit(11);
+            }
+        }
+    }
+
     public void shutdown() {
         LOG.info("Shutting down");
         queuedRequests.add(requestOfDeath);
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.proto.ReplyHeader;
+
+/**
+ * A WatchedEvent triggered on the server. The WatchManagers create one per
+ * trigger and hand the same instance to every watcher of the path, so the
+ * wire format of the notification is serialized at most once no matter how
+ * many connections it is sent to. Each connection is given its own read-only
+ * duplicate of the serialized buffer rather than a copy.
+ */
+public class WatchNotification extends WatchedEvent {
+    private final long triggerTime;
+
+    private ByteBuffer serialized;
+
+    public WatchNotification(EventType eventType, KeeperState keeperState,
+                             String path) {
+        super(eventType, keeperState, path);
+        this.triggerTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Wraps an event that wasn't created by a WatchManager, eg. one created
+     * while re-registering the watches of a reconnecting client.
+     */
+    public WatchNotification(WatchedEvent event) {
+        this(event.getType(), event.getState(), event.getPath());
+    }
+
+    /**
+     * @return time in milliseconds at which the watch was triggered
+     */
+    public long getTriggerTime() {
+        return triggerTime;
+    }
+
+    /**
+     * @return a read-only view of the length prefixed notification packet,
+     * as it is sent to clients. The packet is serialized on the first call
+     * and every later call returns a new view of the same bytes, with its
+     * own position and limit, so the views can be queued on any number of
+     * connections and consumed independently.
+     */
+    public ByteBuffer getSerialized() {
+        return serialize().duplicate();
+    }
+
+    /**
+     * @return the size in bytes of the serialized packet
+     */
+    public int getSerializedSize() {
+        return serialize().capacity();
+    }
+
+    private synchronized ByteBuffer serialize() {
+        if (serialized == null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
+            try {
+                // Make space for length
+                bos.writeInt(-1, "len");
+                bos.writeRecord(new ReplyHeader(-1, -1L, 0), "header");
+                bos.writeRecord(getWrapper(), "notification");
+                baos.close();
+            } catch (IOException e) {
+                // ByteArrayOutputStream doesn't throw IOException
+                throw new RuntimeException("Error serializing notification", e);
+            }
+            byte b[] = baos.toByteArray();
+            ByteBuffer bb = ByteBuffer.wrap(b);
+            bb.putInt(b.length - 4).rewind();
+            serialized = bb.asReadOnlyBuffer();
+        }
+        return serialized;
+    }
+}
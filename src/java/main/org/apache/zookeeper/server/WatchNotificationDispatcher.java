@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * WatchNotificationDispatcher moves the delivery of watch notifications off
+ * the commit path. Without it, a watch triggered by a txn is serialized and
+ * queued on every watching connection by the thread applying the txn, so a
+ * change to a node with many watchers stalls every request behind it.
+ *
+ * With a dispatcher, ServerCnxn.process only appends the notification to a
+ * per-connection queue and schedules the connection on a worker pool. The
+ * worker sends all the notifications queued on the connection as a single
+ * buffer, using the serialized form shared by all the connections the
+ * notification goes to (see WatchNotification). To keep the guarantee that a
+ * client sees a watch event before the response to any later request, a
+ * connection also sends its queued notifications before each response.
+ *
+ * The dispatcher is disabled unless zookeeper.watchDispatcher.numWorkerThreads
+ * is set to a positive number of threads.
+ */
+public class WatchNotificationDispatcher {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(WatchNotificationDispatcher.class);
+
+    /** Default: 0, notifications are sent by the triggering thread */
+    public static final String ZOOKEEPER_WATCH_DISPATCHER_NUM_WORKER_THREADS =
+        "zookeeper.watchDispatcher.numWorkerThreads";
+    /** Default worker pool shutdown timeout in ms: 5000 (5s) */
+    public static final String ZOOKEEPER_WATCH_DISPATCHER_SHUTDOWN_TIMEOUT =
+        "zookeeper.watchDispatcher.shutdownTimeout";
+
+    private final WorkerService workerPool;
+    private final long workerShutdownTimeoutMS;
+
+    /** Notifications queued on connections but not yet sent */
+    private final AtomicLong queuedNotifications = new AtomicLong();
+
+    private long sentNotifications;
+    private long sentBatches;
+    private long maxLatency;
+    private long minLatency = Long.MAX_VALUE;
+    private long totalLatency;
+
+    /**
+     * @return a dispatcher configured from the system properties, or null if
+     *         notifications should be sent inline
+     */
+    static WatchNotificationDispatcher createDispatcher() {
+        int numWorkerThreads = Integer.getInteger(
+            ZOOKEEPER_WATCH_DISPATCHER_NUM_WORKER_THREADS, 0);
+        if (numWorkerThreads <= 0) {
+            return null;
+        }
+        long shutdownTimeoutMS = Long.getLong(
+            ZOOKEEPER_WATCH_DISPATCHER_SHUTDOWN_TIMEOUT, 5000);
+        LOG.info("Configuring watch notification dispatcher with "
+                 + numWorkerThreads + " worker threads.");
+        return new WatchNotificationDispatcher(numWorkerThreads,
+                                               shutdownTimeoutMS);
+    }
+
+    public WatchNotificationDispatcher(int numWorkerThreads,
+                                       long workerShutdownTimeoutMS) {
+        this.workerShutdownTimeoutMS = workerShutdownTimeoutMS;
+        // Connections are flushed under their own lock, so they don't need
+        // to be pinned to a thread.
+        this.workerPool = new WorkerService(
+            "WatchDispatchWork", numWorkerThreads, false);
+    }
+
+    /**
+     * Called by a connection after it queues a notification.
+     */
+    void notificationQueued() {
+        queuedNotifications.incrementAndGet();
+    }
+
+    /**
+     * Schedule a worker to send the notifications queued on the connection.
+     */
+    void schedule(ServerCnxn cnxn) {
+        workerPool.schedule(new FlushWorkRequest(cnxn));
+    }
+
+    /**
+     * Called by a connection after it sends a batch of notifications.
+     * @param count        number of notifications in the batch
+     * @param totalLatency sum of the times the notifications spent between
+     *                     being triggered and being sent
+     * @param maxLatency   the longest of those times
+     * @param minLatency   the shortest of those times
+     */
+    void notificationsSent(int count, long totalLatency, long maxLatency,
+                           long minLatency) {
+        queuedNotifications.addAndGet(-count);
+        synchronized (this) {
+            sentNotifications += count;
+            sentBatches++;
+            this.totalLatency += totalLatency;
+            if (maxLatency > this.maxLatency) {
+                this.maxLatency = maxLatency;
+            }
+            if (minLatency < this.minLatency) {
+                this.minLatency = minLatency;
+            }
+        }
+    }
+
+    /**
+     * Called by a connection that dropped its queued notifications, eg.
+     * because it was closed.
+     */
+    void notificationsDropped(int count) {
+        queuedNotifications.addAndGet(-count);
+    }
+
+    public long getQueuedNotifications() {
+        return queuedNotifications.get();
+    }
+
+    synchronized public long getSentNotifications() {
+        return sentNotifications;
+    }
+
+    synchronized public long getSentBatches() {
+        return sentBatches;
+    }
+
+    synchronized public long getMinLatency() {
+        return minLatency == Long.MAX_VALUE ? 0 : minLatency;
+    }
+
+    synchronized public long getAvgLatency() {
+        if (sentNotifications != 0) {
+            return totalLatency / sentNotifications;
+        }
+        return 0;
+    }
+
+    synchronized public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    synchronized public void resetStatistics() {
+        sentNotifications = 0;
+        sentBatches = 0;
+        totalLatency = 0;
+        maxLatency = 0;
+        minLatency = Long.MAX_VALUE;
+    }
+
+    public void shutdown() {
+        LOG.info("Shutting down watch notification dispatcher");
+        workerPool.stop();
+        workerPool.join(workerShutdownTimeoutMS);
+    }
+
+    private static class FlushWorkRequest extends WorkerService.WorkRequest {
+        private final ServerCnxn cnxn;
+
+        FlushWorkRequest(ServerCnxn cnxn) {
+            this.cnxn = cnxn;
+        }
+
+        @Override
+        public void doWork() throws Exception {
+            cnxn.sendDispatchedNotifications();
+        }
+
+        @Override
+        public void cleanup() {
+            cnxn.dropDispatchedNotifications();
+        }
+    }
+}
@@ -24,8 +24,11 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.zookeeper.server.util.Histogram;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +45,14 @@ import org.slf4j.LoggerFactory;
  *     a given session must be processed in order.
  * ExecutorService provides queue management and thread restarting, so it's
  * useful even with a single thread.
+ *
+ * Assignable threads run the work assigned to them in the order it was
+ * scheduled, unless they are given a fair scheduling quantum: they then share
+ * their time between the ids assigned to them (see FairWorkQueue), still
+ * running the work of each id in order.
+ *
+ * The service keeps the number of pieces of work queued on each thread (or
+ * on the pool for non-assignable threads), and how long they waited.
  */
 public class WorkerService {
     private static final Logger LOG =
@@ -53,8 +64,15 @@ public class WorkerService {
     private final String threadNamePrefix;
     private int numWorkerThreads;
     private boolean threadsAreAssignable;
+    private final long fairQuantumNS;
     private long shutdownTimeoutMS = 5000;
 
+    /** Work queued on each worker, one for the pool if not assignable */
+    private final ArrayList<AtomicInteger> queueDepths =
+        new ArrayList<AtomicInteger>();
+    /** Time in us work waited in the queue of each worker */
+    private final ArrayList<Histogram> waitTimes = new ArrayList<Histogram>();
+
     private volatile boolean stopped = true;
 
     /**
@@ -67,9 +85,26 @@ public class WorkerService {
      */
     public WorkerService(String name, int numThreads,
                          boolean useAssignableThreads) {
+        this(name, numThreads, useAssignableThreads, 0);
+    }
+
+    /**
+     * @param name                  worker threads are named <name>Thread-##
+     * @param numThreads            number of worker threads (0 - N)
+     *                              If 0, scheduled work is run immediately by
+     *                              the calling thread.
+     * @param useAssignableThreads  whether the worker threads should be
+     *                              individually assignable or not
+     * @param fairQuantumNS         if positive and the threads are assignable,
+     *                              the time in ns each id assigned to a thread
+     *                              gets to run on its turn
+     */
+    public WorkerService(String name, int numThreads,
+                         boolean useAssignableThreads, long fairQuantumNS) {
         this.threadNamePrefix = (name == null ? "" : name) + "Thread";
         this.numWorkerThreads = numThreads;
         this.threadsAreAssignable = useAssignableThreads;
+        this.fairQuantumNS = fairQuantumNS;
         start();
     }
 
@@ -113,36 +148,52 @@ public class WorkerService {
             return;
         }
 
-        ScheduledWorkRequest scheduledWorkRequest =
-            new ScheduledWorkRequest(workRequest);
-
         // If we have a worker thread pool, use that; otherwise, do the work
         // directly.
         int size = workers.size();
         if (size > 0) {
+            // make sure to map negative ids as well to [0, size-1]
+            int workerNum = ((int) (id % size) + size) % size;
+            ScheduledWorkRequest scheduledWorkRequest =
+                new ScheduledWorkRequest(workRequest, id, workerNum);
+            queueDepths.get(workerNum).incrementAndGet();
             try {
-                // make sure to map negative ids as well to [0, size-1]
-                int workerNum = ((int) (id % size) + size) % size;
                 ExecutorService worker = workers.get(workerNum);
                 worker.execute(scheduledWorkRequest);
             } catch (RejectedExecutionException e) {
                 LOG.warn("ExecutorService rejected execution", e);
+                queueDepths.get(workerNum).decrementAndGet();
                 workRequest.cleanup();
             }
         } else {
-            scheduledWorkRequest.run();
+            new ScheduledWorkRequest(workRequest, id, -1).run();
         }
     }
 
-    private class ScheduledWorkRequest implements Runnable {
+    private class ScheduledWorkRequest
+        implements Runnable, FairWorkQueue.Keyed {
         private final WorkRequest workRequest;
+        private final long id;
+        private final int workerNum;
+        private final long scheduledTime = System.nanoTime();
 
-        ScheduledWorkRequest(WorkRequest workRequest) {
+        ScheduledWorkRequest(WorkRequest workRequest, long id, int workerNum) {
             this.workRequest = workRequest;
+            this.id = id;
+            this.workerNum = workerNum;
+        }
+
+        public long getKey() {
+            return id;
         }
 
         @Override
         public void run() {
+            if (workerNum >= 0) {
+                queueDepths.get(workerNum).decrementAndGet();
+                waitTimes.get(workerNum).add(
+                    (System.nanoTime() - scheduledTime) / 1000);
+            }
             try {
                 // Check if stopped while request was on queue
                 if (stopped) {
@@ -192,21 +243,88 @@ public class WorkerService {
         }
     }
 
+    /**
+     * A single thread executor that takes its work from a FairWorkQueue, and
+     * charges it for the time each piece of work takes.
+     */
+    private static class FairWorker extends ThreadPoolExecutor {
+        private final FairWorkQueue queue;
+        // only accessed by the worker thread
+        private long startTime;
+
+        FairWorker(FairWorkQueue queue, ThreadFactory threadFactory) {
+            super(1, 1, 0L, TimeUnit.MILLISECONDS, queue, threadFactory);
+            this.queue = queue;
+            // so that all the work goes through the queue
+            prestartAllCoreThreads();
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            startTime = System.nanoTime();
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            queue.charge(System.nanoTime() - startTime);
+        }
+    }
+
     public void start() {
         if (numWorkerThreads > 0) {
             if (threadsAreAssignable) {
                 for(int i = 1; i <= numWorkerThreads; ++i) {
-                    workers.add(Executors.newFixedThreadPool(
-                        1, new DaemonThreadFactory(threadNamePrefix, i)));
+                    ThreadFactory threadFactory =
+                        new DaemonThreadFactory(threadNamePrefix, i);
+                    if (fairQuantumNS > 0) {
+                        workers.add(new FairWorker(
+                            new FairWorkQueue(fairQuantumNS), threadFactory));
+                    } else {
+                        workers.add(Executors.newFixedThreadPool(
+                            1, threadFactory));
+                    }
                 }
             } else {
                 workers.add(Executors.newFixedThreadPool(
                     numWorkerThreads, new DaemonThreadFactory(threadNamePrefix)));
             }
+            while (queueDepths.size() < workers.size()) {
+                queueDepths.add(new AtomicInteger());
+                waitTimes.add(new Histogram(24));
+            }
         }
         stopped = false;
     }
 
+    /**
+     * @return the number of worker queues: one per thread if the threads
+     *         are assignable, one for the pool otherwise, none if work is
+     *         run by the scheduling thread
+     */
+    public int getNumQueues() {
+        return queueDepths.size();
+    }
+
+    /**
+     * @return the number of pieces of work waiting in the given queue
+     */
+    public int getQueueDepth(int queue) {
+        return queueDepths.get(queue).get();
+    }
+
+    /**
+     * @return the time in us work waited in the given queue before it ran
+     */
+    public Histogram getWaitTime(int queue) {
+        return waitTimes.get(queue);
+    }
+
+    public void resetStatistics() {
+        for (Histogram waitTime : waitTimes) {
+            waitTime.reset();
+        }
+    }
+
     public void stop() {
         stopped = true;
 
@@ -45,6 +45,7 @@ import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog.PlayBackListener;
+import org.apache.zookeeper.server.persistence.TxnLog;
 import org.apache.zookeeper.server.quorum.Leader;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.quorum.QuorumPacket;
@@ -330,6 +331,18 @@ public class ZKDatabase {
         return dataTree.statNode(path, serverCnxn);
     }
 
+    /**
+     * check that a write doesn't take a quota over its limits
+     * @param path the path of the node written
+     * @param countDiff the nodes the write adds
+     * @param bytesDiff the bytes the write adds
+     * @throws KeeperException.QuotaExceededException
+     */
+    public void checkQuota(String path, int countDiff, long bytesDiff)
+            throws KeeperException.QuotaExceededException {
+        dataTree.checkQuota(path, countDiff, bytesDiff);
+    }
+
     /**
      * get the datanode for this path
      * @param path the path to lookup
@@ -348,6 +361,16 @@ public class ZKDatabase {
         return dataTree.convertLong(aclL);
     }
 
+    /**
+     * get the acl of a node
+     * @param node a node looked up in the tree
+     * @return the acl of the node
+     * @throws NoNodeException if the node was deleted since it was looked up
+     */
+    public List<ACL> getACL(DataNode node) throws NoNodeException {
+        return dataTree.getACL(node);
+    }
+
     /**
      * get data and stat for a path
      * @param path the path being queried
@@ -361,6 +384,15 @@ public class ZKDatabase {
         return dataTree.getData(path, stat, watcher);
     }
 
+    /**
+     * get the response to a getData request for a path
+     * @see DataTree#getDataResponse(String, Stat, Watcher)
+     */
+    public Record getDataResponse(String path, Stat stat, Watcher watcher)
+    throws KeeperException.NoNodeException {
+        return dataTree.getDataResponse(path, stat, watcher);
+    }
+
     /**
      * set watches on the datatree
      * @param relativeZxid the relative zxid that client has seen
@@ -481,6 +513,23 @@ public class ZKDatabase {
         this.snapLog.commit();
     }
 
+    /**
+     * start a commit to the underlying transaction log, the
+     * transactions are persisted by the returned commit
+     * @throws IOException
+     */
+    public TxnLog.PendingCommit startCommit() throws IOException {
+        return this.snapLog.startCommit();
+    }
+
+    /**
+     * @return the number of bytes appended to the underlying transaction
+     * log since the last commit
+     */
+    public long getUncommittedBytes() {
+        return this.snapLog.getUncommittedBytes();
+    }
+
     /**
      * close this database. free the resources
      * @throws IOException
@@ -116,6 +116,10 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
 
     private final ServerStats serverStats;
 
+    private volatile WatchNotificationDispatcher watchNotificationDispatcher;
+
+    private volatile RequestThrottler requestThrottler;
+
     void removeCnxn(ServerCnxn cnxn) {
         zkDb.removeCnxn(cnxn);
     }
@@ -362,6 +366,13 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
             createSessionTracker();
         }
         startSessionTracker();
+        if (watchNotificationDispatcher == null) {
+            watchNotificationDispatcher =
+                WatchNotificationDispatcher.createDispatcher();
+        }
+        if (requestThrottler == null) {
+            requestThrottler = new RequestThrottler(this);
+        }
         setupRequestProcessors();
 
         registerJMX();
@@ -408,6 +419,10 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
         if (firstProcessor != null) {
             firstProcessor.shutdown();
         }
+        if (watchNotificationDispatcher != null) {
+            watchNotificationDispatcher.shutdown();
+            watchNotificationDispatcher = null;
+        }
         if (zkDb != null) {
             zkDb.clear();
         }
@@ -620,10 +635,15 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
                 }
             }
         }
+        // null if the processors were set up without startup()
+        RequestThrottler throttler = requestThrottler;
         try {
             touch(si.cnxn);
             boolean validpacket = Request.isValid(si.type);
             if (validpacket) {
+                if (throttler != null) {
+                    throttler.admit(si);
+                }
                 firstProcessor.processRequest(si);
                 if (si.cnxn != null) {
                     incInProcess();
@@ -631,16 +651,33 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
             } else {
                 LOG.warn("Received packet at server of unknown type " + si.type);
                 new UnimplementedRequestProcessor().processRequest(si);
+                si.releasePacketBuffer();
             }
         } catch (MissingSessionException e) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Dropping request: " + e.getMessage());
             }
+            si.releasePacketBuffer();
         } catch (RequestProcessorException e) {
             LOG.error("Unable to process request:" + e.getMessage(), e);
+            requestFinished(si);
         }
     }
 
+    /**
+     * Called for a request that leaves the processor pipeline without
+     * reaching FinalRequestProcessor, eg. a write refused by a read-only
+     * server, to take it out of flight and give back the buffer it was
+     * read into.
+     */
+    public void requestFinished(Request request) {
+        RequestThrottler throttler = requestThrottler;
+        if (throttler != null) {
+            throttler.finish(request);
+        }
+        request.releasePacketBuffer();
+    }
+
     public static int getSnapCount() {
         String sc = System.getProperty("zookeeper.snapCount");
         try {
@@ -661,6 +698,30 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
         return limit;
     }
 
+    /**
+     * @return the throttler of the requests in flight, or null if the
+     *         server isn't started
+     */
+    public RequestThrottler getRequestThrottler() {
+        return requestThrottler;
+    }
+
+    /**
+     * @return the worker threads running the end of the request processor
+     *         pipeline, or null if it is run by the pipeline threads
+     */
+    public WorkerService getRequestWorkerPool() {
+        return null;
+    }
+
+    /**
+     * @return the dispatcher that sends watch notifications, or null if
+     *         they are sent by the thread that triggers them
+     */
+    public WatchNotificationDispatcher getWatchNotificationDispatcher() {
+        return watchNotificationDispatcher;
+    }
+
     public void setServerCnxnFactory(ServerCnxnFactory factory) {
         serverCnxnFactory = factory;
     }
@@ -821,13 +882,6 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
         }
     }
 
-    public boolean shouldThrottle(long outStandingCount) {
-        if (getGlobalOutstandingLimit() < getInProcess()) {
-            return outStandingCount > 0;
-        }
-        return false;
-    }
-
     public void processPacket(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOException {
         // We have the request, now process and setup for next
         InputStream bais = new ByteBufferInputStream(incomingBuffer);
@@ -888,6 +942,7 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
                 Request si = new Request(cnxn, cnxn.getSessionId(), h.getXid(),
                   h.getType(), incomingBuffer, cnxn.getAuthInfo());
                 si.setOwner(ServerCnxn.me);
+                si.setPacketBuffer(cnxn.claimPacketBuffer());
                 submitRequest(si);
             }
         }
@@ -24,6 +24,7 @@ import java.util.Date;
 
 import org.apache.zookeeper.Version;
 import org.apache.zookeeper.jmx.ZKMBeanInfo;
+import org.apache.zookeeper.server.util.Histogram;
 
 /**
  * This class implements the ZooKeeper server MBean interface.
@@ -139,9 +140,102 @@ public class ZooKeeperServerBean implements ZooKeeperServerMXBean, ZKMBeanInfo {
         ServerStats serverStats = zks.serverStats();
         serverStats.resetRequestCounters();
         serverStats.resetLatency();
+        serverStats.resetFsync();
+        serverStats.resetThrottle();
+        WorkerService workerPool = zks.getRequestWorkerPool();
+        if (workerPool != null) {
+            workerPool.resetStatistics();
+        }
+        WatchNotificationDispatcher dispatcher =
+            zks.getWatchNotificationDispatcher();
+        if (dispatcher != null) {
+            dispatcher.resetStatistics();
+        }
     }
 
     public long getNumAliveConnections() {
         return zks.getNumAliveConnections();
     }
+
+    public long getWatchNotificationsQueued() {
+        WatchNotificationDispatcher dispatcher =
+            zks.getWatchNotificationDispatcher();
+        return dispatcher == null ? 0 : dispatcher.getQueuedNotifications();
+    }
+
+    public long getAvgWatchNotificationLatency() {
+        WatchNotificationDispatcher dispatcher =
+            zks.getWatchNotificationDispatcher();
+        return dispatcher == null ? 0 : dispatcher.getAvgLatency();
+    }
+
+    public long getMaxWatchNotificationLatency() {
+        WatchNotificationDispatcher dispatcher =
+            zks.getWatchNotificationDispatcher();
+        return dispatcher == null ? 0 : dispatcher.getMaxLatency();
+    }
+
+    public long getFsyncCount() {
+        return zks.serverStats().getFsyncLatency().getCount();
+    }
+
+    public long getAvgFsyncBatchSize() {
+        return zks.serverStats().getFsyncBatchSize().getAvg();
+    }
+
+    public String getFsyncBatchSizeHistogram() {
+        return zks.serverStats().getFsyncBatchSize().toString();
+    }
+
+    public String getFsyncBatchBytesHistogram() {
+        return zks.serverStats().getFsyncBatchBytes().toString();
+    }
+
+    public String getFsyncLatencyHistogram() {
+        return zks.serverStats().getFsyncLatency().toString();
+    }
+
+    public int getThrottleLimit() {
+        RequestThrottler throttler = zks.getRequestThrottler();
+        return throttler == null ? 0 : throttler.getLimit();
+    }
+
+    public long getInFlightRequestBytes() {
+        RequestThrottler throttler = zks.getRequestThrottler();
+        return throttler == null ? 0 : throttler.getInFlightBytes();
+    }
+
+    public int getThrottledConnections() {
+        RequestThrottler throttler = zks.getRequestThrottler();
+        return throttler == null ? 0 : throttler.getThrottledConnections();
+    }
+
+    public String getThrottledTimeHistogram() {
+        return zks.serverStats().getThrottledTime().toString();
+    }
+
+    public String getRequestWorkerQueueDepths() {
+        WorkerService workerPool = zks.getRequestWorkerPool();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; workerPool != null && i < workerPool.getNumQueues(); i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(workerPool.getQueueDepth(i));
+        }
+        return sb.toString();
+    }
+
+    public String getRequestWorkerWaitTimes() {
+        WorkerService workerPool = zks.getRequestWorkerPool();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; workerPool != null && i < workerPool.getNumQueues(); i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            Histogram waitTime = workerPool.getWaitTime(i);
+            sb.append(waitTime.getAvg()).append('/').append(waitTime.getMax());
+        }
+        return sb.toString();
+    }
 }
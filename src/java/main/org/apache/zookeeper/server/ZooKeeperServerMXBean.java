@@ -107,4 +107,70 @@ public interface ZooKeeperServerMXBean {
      * @return number of alive client connections
      */
     public long getNumAliveConnections();
+    /**
+     * @return number of watch notifications queued on connections by the
+     * watch notification dispatcher but not yet sent
+     */
+    public long getWatchNotificationsQueued();
+    /**
+     * @return average time in ms between a watch being triggered and its
+     * notification being sent by the watch notification dispatcher
+     */
+    public long getAvgWatchNotificationLatency();
+    /**
+     * @return max time in ms between a watch being triggered and its
+     * notification being sent by the watch notification dispatcher
+     */
+    public long getMaxWatchNotificationLatency();
+    /**
+     * @return number of txn log flushes so far
+     */
+    public long getFsyncCount();
+    /**
+     * @return average number of requests made durable by a txn log flush
+     */
+    public long getAvgFsyncBatchSize();
+    /**
+     * @return histogram of the number of requests made durable by each txn
+     * log flush, as power of 2 "lower-upper:count" buckets
+     */
+    public String getFsyncBatchSizeHistogram();
+    /**
+     * @return histogram of the number of bytes made durable by each txn log
+     * flush, as power of 2 "lower-upper:count" buckets
+     */
+    public String getFsyncBatchBytesHistogram();
+    /**
+     * @return histogram of the time in ms taken by each txn log flush, as
+     * power of 2 "lower-upper:count" buckets
+     */
+    public String getFsyncLatencyHistogram();
+    /**
+     * @return current limit on the number of requests in flight, over which
+     * connections are throttled
+     */
+    public int getThrottleLimit();
+    /**
+     * @return total size in bytes of the requests in flight
+     */
+    public long getInFlightRequestBytes();
+    /**
+     * @return number of connections currently throttled
+     */
+    public int getThrottledConnections();
+    /**
+     * @return histogram of the time in ms connections were throttled for,
+     * as power of 2 "lower-upper:count" buckets
+     */
+    public String getThrottledTimeHistogram();
+    /**
+     * @return number of requests queued on each worker thread of the
+     * request processor pipeline, space separated
+     */
+    public String getRequestWorkerQueueDepths();
+    /**
+     * @return "avg/max" time in us requests waited in the queue of each
+     * worker thread of the request processor pipeline, space separated
+     */
+    public String getRequestWorkerWaitTimes();
 }
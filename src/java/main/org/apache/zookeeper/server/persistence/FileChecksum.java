@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The checksums used by transaction logs and snapshots. The checksum of a
+ * file is given by the version in its FileHeader, so logs and snapshots
+ * written with either checksum can be read whichever one is configured for
+ * writing.
+ *
+ * CRC32C is computed by java.util.zip.CRC32C when the JVM has it (Java 9 and
+ * later, where it is an intrinsic), and by a table driven implementation
+ * otherwise.
+ *
+ * New files are written with Adler32 unless zookeeper.fileChecksum is set
+ * to "crc32c". Servers older than version 3.5.0 can't read files written
+ * with CRC32C.
+ */
+public enum FileChecksum {
+    /** The checksum of version 2 files */
+    ADLER32(2) {
+        @Override
+        public Checksum create() {
+            return new Adler32();
+        }
+    },
+    /** The checksum of version 3 files */
+    CRC32C(3) {
+        @Override
+        public Checksum create() {
+            if (CRC32C_CONSTRUCTOR != null) {
+                try {
+                    return CRC32C_CONSTRUCTOR.newInstance();
+                } catch (Exception e) {
+                    // cannot happen, the constructor was looked up already
+                    throw new RuntimeException("Unable to create CRC32C", e);
+                }
+            }
+            return new PureJavaCrc32C();
+        }
+    };
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileChecksum.class);
+
+    /** Default: adler32 */
+    public static final String ZOOKEEPER_FILE_CHECKSUM =
+        "zookeeper.fileChecksum";
+
+    private static final Constructor<? extends Checksum> CRC32C_CONSTRUCTOR =
+        findCrc32C();
+
+    private final int version;
+
+    private FileChecksum(int version) {
+        this.version = version;
+    }
+
+    /**
+     * @return a new instance of the checksum
+     */
+    public abstract Checksum create();
+
+    /**
+     * @return the FileHeader version of the files using this checksum
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the checksum new files are written with
+     */
+    public static FileChecksum configured() {
+        String name = System.getProperty(ZOOKEEPER_FILE_CHECKSUM);
+        if (name == null) {
+            return ADLER32;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warn(name + " is not a valid value for "
+                     + ZOOKEEPER_FILE_CHECKSUM + ", using adler32");
+            return ADLER32;
+        }
+    }
+
+    /**
+     * @param version the version of a FileHeader
+     * @return the checksum of the file with that header
+     * @throws IOException if the version is newer than this server knows
+     */
+    public static FileChecksum forVersion(int version) throws IOException {
+        if (version <= ADLER32.version) {
+            return ADLER32;
+        }
+        if (version == CRC32C.version) {
+            return CRC32C;
+        }
+        throw new IOException("Unsupported file version " + version);
+    }
+
+    /**
+     * Read the version from the FileHeader at the start of the stream
+     * without consuming it, so the checksum can be applied to the header.
+     * @param in a stream that supports mark and reset
+     * @return the checksum of the file
+     */
+    public static FileChecksum peek(InputStream in) throws IOException {
+        in.mark(8);
+        try {
+            DataInputStream din = new DataInputStream(in);
+            din.readInt(); // magic
+            return forVersion(din.readInt());
+        } finally {
+            in.reset();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends Checksum> findCrc32C() {
+        try {
+            Class<? extends Checksum> c = (Class<? extends Checksum>)
+                Class.forName("java.util.zip.CRC32C");
+            return c.getConstructor();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * CRC32C (Castagnoli) computed a byte at a time, for JVMs without
+     * java.util.zip.CRC32C.
+     */
+    public static class PureJavaCrc32C implements Checksum {
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+        }
+
+        public void update(byte[] b, int off, int len) {
+            int c = crc;
+            for (int i = off; i < off + len; i++) {
+                c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+            }
+            crc = c;
+        }
+
+        public long getValue() {
+            return (~crc) & 0xFFFFFFFFL;
+        }
+
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
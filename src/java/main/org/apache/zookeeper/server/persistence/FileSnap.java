@@ -19,6 +19,8 @@
 package org.apache.zookeeper.server.persistence;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -29,7 +31,6 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.Adler32;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
 
@@ -51,13 +52,29 @@ import org.apache.zookeeper.server.util.SerializeUtils;
 public class FileSnap implements SnapShot {
     File snapDir;
     private volatile boolean close = false;
-    private static final int VERSION=2;
     private static final long dbId=-1;
     private static final Logger LOG = LoggerFactory.getLogger(FileSnap.class);
     public final static int SNAP_MAGIC
         = ByteBuffer.wrap("ZKSN".getBytes()).getInt();
+
+    /** Default: number of processors */
+    public static final String ZOOKEEPER_SNAPSHOT_LOAD_THREADS =
+        "zookeeper.snapshot.loadThreads";
+    /** Default: 4194304 (4MB) */
+    public static final String ZOOKEEPER_SNAPSHOT_CHUNK_SIZE =
+        "zookeeper.snapshot.chunkSize";
+
+    /** Number of threads deserializing the nodes of a snapshot */
+    private final int loadThreads;
+    /** Size of the chunks the nodes of the snapshots are split into */
+    private final long chunkSize;
+
     public FileSnap(File snapDir) {
         this.snapDir = snapDir;
+        this.loadThreads = Integer.getInteger(ZOOKEEPER_SNAPSHOT_LOAD_THREADS,
+                Runtime.getRuntime().availableProcessors());
+        this.chunkSize = Long.getLong(ZOOKEEPER_SNAPSHOT_CHUNK_SIZE,
+                4 * 1024 * 1024);
     }
 
     /**
@@ -82,9 +99,25 @@ public class FileSnap implements SnapShot {
             try {
                 LOG.info("Reading snapshot " + snap);
                 snapIS = new BufferedInputStream(new FileInputStream(snap));
-                crcIn = new CheckedInputStream(snapIS, new Adler32());
-                InputArchive ia = BinaryInputArchive.getArchive(crcIn);
-                deserialize(dt,sessions, ia);
+                SnapshotCompression compression =
+                    SnapshotCompression.peek(snapIS);
+                if (compression != null) {
+                    snapIS = compression.openInput(snapIS);
+                }
+                FileChecksum checksum = FileChecksum.peek(snapIS);
+                crcIn = new CheckedInputStream(snapIS, checksum.create());
+                DataInputStream din = new DataInputStream(crcIn);
+                InputArchive ia = new BinaryInputArchive(din);
+                SnapshotIndex index = null;
+                if (loadThreads > 1) {
+                    index = SnapshotIndex.read(snap, checksum,
+                                               compression != null);
+                }
+                if (index != null && index.getChunkCount() > 1) {
+                    deserialize(dt, sessions, ia, din, index);
+                } else {
+                    deserialize(dt,sessions, ia);
+                }
                 long checkSum = crcIn.getChecksum().getValue();
                 long val = ia.readLong("val");
                 if (val != checkSum) {
@@ -117,6 +150,11 @@ public class FileSnap implements SnapShot {
      */
     public void deserialize(DataTree dt, Map<Long, Integer> sessions,
             InputArchive ia) throws IOException {
+        readHeader(ia);
+        SerializeUtils.deserializeSnapshot(dt,ia,sessions);
+    }
+
+    private void readHeader(InputArchive ia) throws IOException {
         FileHeader header = new FileHeader();
         header.deserialize(ia, "fileheader");
         if (header.getMagic() != SNAP_MAGIC) {
@@ -124,7 +162,20 @@ public class FileSnap implements SnapShot {
                     + header.getMagic() + 
                     " !=  " + FileSnap.SNAP_MAGIC);
         }
-        SerializeUtils.deserializeSnapshot(dt,ia,sessions);
+    }
+
+    /**
+     * deserialize the datatree from an inputarchive, deserializing the
+     * chunks of the tree in parallel
+     * @param in the input the inputarchive reads from
+     * @param index the chunks of the tree
+     */
+    private void deserialize(DataTree dt, Map<Long, Integer> sessions,
+            InputArchive ia, DataInput in, SnapshotIndex index)
+            throws IOException {
+        readHeader(ia);
+        SerializeUtils.deserializeSnapshot(dt, ia, in, sessions, index,
+                loadThreads);
     }
 
     /**
@@ -204,13 +255,23 @@ public class FileSnap implements SnapShot {
      */
     protected void serialize(DataTree dt,Map<Long, Integer> sessions,
             OutputArchive oa, FileHeader header) throws IOException {
+        serialize(dt, sessions, oa, header, null);
+    }
+
+    /**
+     * serialize the datatree and sessions
+     * @param listener if not null, told where the nodes of the tree start
+     */
+    protected void serialize(DataTree dt,Map<Long, Integer> sessions,
+            OutputArchive oa, FileHeader header,
+            DataTree.NodeBoundaryListener listener) throws IOException {
         // this is really a programmatic error and not something that can
         // happen at runtime
         if(header==null)
             throw new IllegalStateException(
                     "Snapshot's not open for writing: uninitialized header");
         header.serialize(oa, "fileheader");
-        SerializeUtils.serializeSnapshot(dt,oa,sessions);
+        SerializeUtils.serializeSnapshot(dt,oa,sessions,listener);
     }
 
     /**
@@ -223,14 +284,29 @@ public class FileSnap implements SnapShot {
             throws IOException {
         if (!close) {
             OutputStream sessOS = new BufferedOutputStream(new FileOutputStream(snapShot));
-            CheckedOutputStream crcOut = new CheckedOutputStream(sessOS, new Adler32());
-            //CheckedOutputStream cout = new CheckedOutputStream()
-            OutputArchive oa = BinaryOutputArchive.getArchive(crcOut);
-            FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
-            serialize(dt,sessions,oa, header);
+            OutputStream snapOS = sessOS;
+            SnapshotCompression compression = SnapshotCompression.configured();
+            if (compression != null) {
+                snapOS = new BufferedOutputStream(
+                        compression.openOutput(sessOS));
+            }
+            FileChecksum checksum = FileChecksum.configured();
+            CheckedOutputStream crcOut =
+                new CheckedOutputStream(snapOS, checksum.create());
+            SnapshotIndex.Writer indexOut =
+                new SnapshotIndex.Writer(crcOut, checksum, chunkSize);
+            OutputArchive oa = BinaryOutputArchive.getArchive(indexOut);
+            FileHeader header = new FileHeader(SNAP_MAGIC, checksum.getVersion(), dbId);
+            serialize(dt,sessions,oa, header, indexOut);
             long val = crcOut.getChecksum().getValue();
             oa.writeLong(val, "val");
             oa.writeString("/", "path");
+            if (compression != null) {
+                // the index is written uncompressed after the snapshot
+                snapOS.close();
+                oa = BinaryOutputArchive.getArchive(sessOS);
+            }
+            indexOut.getIndex().write(oa);
             sessOS.flush();
             crcOut.close();
             sessOS.close();
@@ -28,11 +28,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.Adler32;
 import java.util.zip.Checksum;
 
 import org.apache.jute.BinaryInputArchive;
@@ -66,7 +66,7 @@ import org.slf4j.LoggerFactory;
  * Txn:
  *     checksum Txnlen TxnHeader Record 0x42
  * 
- * checksum: 8bytes Adler32 is currently used
+ * checksum: 8bytes Adler32 for version 2 files, CRC32C for version 3 files
  *   calculated across payload -- Txnlen, TxnHeader, Record and 0x42
  * 
  * Txnlen:
@@ -95,7 +95,8 @@ public class FileTxnLog implements TxnLog {
     public final static int TXNLOG_MAGIC =
         ByteBuffer.wrap("ZKLG".getBytes()).getInt();
 
-    public final static int VERSION = 2;
+    /** The latest version of the log format, see FileChecksum */
+    public final static int VERSION = 3;
 
     /** Maximum time we allow for elapsed fsync before WARNing */
     private final static long fsyncWarningThresholdMS;
@@ -122,9 +123,12 @@ public class FileTxnLog implements TxnLog {
     File logDir;
     private final boolean forceSync = !System.getProperty("zookeeper.forceSync", "yes").equals("no");;
     long dbId;
+    /** The checksum of the logs written by this TxnLog */
+    final FileChecksum checksum = FileChecksum.configured();
     private LinkedList<FileOutputStream> streamsToFlush =
         new LinkedList<FileOutputStream>();
     long currentSize;
+    private long uncommittedBytes;
     File logFileWrite = null;
 
     /**
@@ -150,7 +154,7 @@ public class FileTxnLog implements TxnLog {
      * @return the checksum used for this txnlog
      */
     protected Checksum makeChecksumAlgorithm(){
-        return new Adler32();
+        return checksum.create();
     }
 
 
@@ -205,7 +209,7 @@ public class FileTxnLog implements TxnLog {
                fos = new FileOutputStream(logFileWrite);
                logStream=new BufferedOutputStream(fos);
                oa = BinaryOutputArchive.getArchive(logStream);
-               FileHeader fhdr = new FileHeader(TXNLOG_MAGIC,VERSION, dbId);
+               FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, checksum.getVersion(), dbId);
                fhdr.serialize(oa, "fileheader");
                // Make sure that the magic number is written before padding.
                logStream.flush();
@@ -222,7 +226,9 @@ public class FileTxnLog implements TxnLog {
             crc.update(buf, 0, buf.length);
             oa.writeLong(crc.getValue(), "txnEntryCRC");
             Util.writeTxnBytes(oa, buf);
-            
+            // crc, length, entry and end of record marker
+            uncommittedBytes += 8 + 4 + buf.length + 1;
+
             return true;
         }
         return false;
@@ -305,29 +311,76 @@ public class FileTxnLog implements TxnLog {
      * disk
      */
     public synchronized void commit() throws IOException {
+        startCommit().sync();
+    }
+
+    /**
+     * flush the appended transactions to the log files. The files
+     * are forced to disk by the returned commit, which doesn't hold
+     * the lock of the log while forcing, so that appends can go on
+     * in the meantime. A file forced while it is being appended to
+     * is still persisted up to at least the end of the commit.
+     */
+    public synchronized PendingCommit startCommit() throws IOException {
         if (logStream != null) {
             logStream.flush();
         }
-        for (FileOutputStream log : streamsToFlush) {
-            log.flush();
-            if (forceSync) {
-                long startSyncNS = System.nanoTime();
-
-                log.getChannel().force(false);
-
-                long syncElapsedMS =
-                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
-                if (syncElapsedMS > fsyncWarningThresholdMS) {
-                    LOG.warn("fsync-ing the write ahead log in "
-                            + Thread.currentThread().getName()
-                            + " took " + syncElapsedMS
-                            + "ms which will adversely effect operation latency. "
-                            + "See the ZooKeeper troubleshooting guide");
-                }
+        uncommittedBytes = 0;
+        return new FilePendingCommit(
+                new ArrayList<FileOutputStream>(streamsToFlush));
+    }
+
+    public synchronized long getUncommittedBytes() {
+        return uncommittedBytes;
+    }
+
+    /**
+     * force the log file to disk, unless zookeeper.forceSync is off.
+     * @param channel the channel of the log file
+     * @throws IOException
+     */
+    void force(FileChannel channel) throws IOException {
+        if (forceSync) {
+            long startSyncNS = System.nanoTime();
+
+            channel.force(false);
+
+            long syncElapsedMS =
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
+            if (syncElapsedMS > fsyncWarningThresholdMS) {
+                LOG.warn("fsync-ing the write ahead log in "
+                        + Thread.currentThread().getName()
+                        + " took " + syncElapsedMS
+                        + "ms which will adversely effect operation latency. "
+                        + "See the ZooKeeper troubleshooting guide");
             }
         }
-        while (streamsToFlush.size() > 1) {
-            streamsToFlush.removeFirst().close();
+    }
+
+    /**
+     * forces the files of a commit and closes the ones that have been
+     * rolled over.
+     */
+    private class FilePendingCommit implements PendingCommit {
+        private final List<FileOutputStream> streams;
+
+        FilePendingCommit(List<FileOutputStream> streams) {
+            this.streams = streams;
+        }
+
+        public void sync() throws IOException {
+            for (FileOutputStream log : streams) {
+                log.flush();
+                force(log.getChannel());
+            }
+            synchronized (FileTxnLog.this) {
+                // all but the last stream have been rolled over and won't
+                // be written to again, close them once they are forced
+                while (streamsToFlush.size() > 1
+                       && streams.contains(streamsToFlush.getFirst())) {
+                    streamsToFlush.removeFirst().close();
+                }
+            }
         }
     }
 
@@ -485,9 +538,13 @@ public class FileTxnLog implements TxnLog {
         Record record;
         File logFile;
         InputArchive ia;
+        /** The checksum of logFile, given by the version in its header */
+        FileChecksum checksum = FileChecksum.ADLER32;
         static final String CRC_ERROR="CRC check failed";
        
         PositionInputStream inputStream=null;
+        /** The zxid of the last txn read from logFile */
+        private long lastZxidInLog = -1;
         //stored files is the list of files greater than
         //the zxid we are looking for.
         private ArrayList<File> storedFiles;
@@ -540,6 +597,7 @@ public class FileTxnLog implements TxnLog {
         private boolean goToNextLog() throws IOException {
             if (storedFiles.size() > 0) {
                 this.logFile = storedFiles.remove(storedFiles.size()-1);
+                lastZxidInLog = -1;
                 ia = createInputArchive(this.logFile);
                 return true;
             }
@@ -561,6 +619,7 @@ public class FileTxnLog implements TxnLog {
                         + header.getMagic()
                         + " != " + FileTxnLog.TXNLOG_MAGIC);
             }
+            checksum = FileChecksum.forVersion(header.getVersion());
         }
 
         /**
@@ -585,7 +644,7 @@ public class FileTxnLog implements TxnLog {
          * @return the checksum algorithm
          */
         protected Checksum makeChecksumAlgorithm(){
-            return new Adler32();
+            return checksum.create();
         }
 
         /**
@@ -614,6 +673,16 @@ public class FileTxnLog implements TxnLog {
                     return false;
                 hdr = new TxnHeader();
                 record = SerializeUtils.deserializeTxn(bytes, hdr);
+                if (hdr.getZxid() < lastZxidInLog) {
+                    // a txn left from an older log in a reused segment,
+                    // after a write of newer txns that didn't complete
+                    LOG.warn("Txn 0x" + Long.toHexString(hdr.getZxid())
+                            + " after 0x" + Long.toHexString(lastZxidInLog)
+                            + " in " + logFile + ", taking it as the end of"
+                            + " the log");
+                    throw new EOFException("Stale txn in " + logFile);
+                }
+                lastZxidInLog = hdr.getZxid();
             } catch (EOFException e) {
                 LOG.debug("EOF excepton " + e);
                 inputStream.close();
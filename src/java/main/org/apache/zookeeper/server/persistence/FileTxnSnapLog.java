@@ -63,6 +63,12 @@ public class FileTxnSnapLog {
 
     public static final String ZOOKEEPER_DATADIR_AUTOCREATE_DEFAULT = "true";
 
+    /**
+     * Class name of the TxnLog used to write the transaction logs, must
+     * have a constructor taking the log directory. Default: FileTxnLog
+     */
+    public static final String ZOOKEEPER_TXN_LOG = "zookeeper.txnLog";
+
     /**
      * This listener helps
      * the external apis calling
@@ -122,10 +128,29 @@ public class FileTxnSnapLog {
                         + this.snapDir);
             }
         }
-        txnLog = new FileTxnLog(this.dataDir);
+        txnLog = createTxnLog(this.dataDir);
         snapLog = new FileSnap(this.snapDir);
     }
 
+    /**
+     * create the transaction log selected by zookeeper.txnLog.
+     * @param logDir the directory of the transaction logs
+     * @return the transaction log
+     */
+    private static TxnLog createTxnLog(File logDir) {
+        String txnLogName = System.getProperty(ZOOKEEPER_TXN_LOG);
+        if (txnLogName == null) {
+            return new FileTxnLog(logDir);
+        }
+        try {
+            return (TxnLog) Class.forName(txnLogName)
+                    .getConstructor(File.class).newInstance(logDir);
+        } catch (Exception e) {
+            throw new RuntimeException("Couldn't instantiate "
+                    + txnLogName, e);
+        }
+    }
+
     /**
      * get the datadir used by this filetxn
      * snap log
@@ -157,11 +182,18 @@ public class FileTxnSnapLog {
      */
     public long restore(DataTree dt, Map<Long, Integer> sessions,
             PlayBackListener listener) throws IOException {
-        snapLog.deserialize(dt, sessions);
+        long start = System.nanoTime();
+        long snapZxid = snapLog.deserialize(dt, sessions);
+        long snapLoaded = System.nanoTime();
+        if (snapZxid != -1) {
+            LOG.info("Loaded snapshot with " + dt.getNodeCount()
+                    + " nodes in " + (snapLoaded - start) / 1000000 + " ms");
+        }
         FileTxnLog txnLog = new FileTxnLog(dataDir);
         TxnIterator itr = txnLog.read(dt.lastProcessedZxid+1);
         long highestZxid = dt.lastProcessedZxid;
         TxnHeader hdr;
+        int txnCount = 0;
         while (true) {
             // iterator points to
             // the first valid txn when initialized
@@ -170,6 +202,7 @@ public class FileTxnSnapLog {
                 //empty logs
                 return dt.lastProcessedZxid;
             }
+            txnCount++;
             if (hdr.getZxid() < highestZxid && highestZxid != 0) {
                 LOG.error(highestZxid + "(higestZxid) > "
                         + hdr.getZxid() + "(next log) for type "
@@ -187,6 +220,8 @@ public class FileTxnSnapLog {
             if (!itr.next())
                 break;
         }
+        LOG.info("Replayed " + txnCount + " txns in "
+                + (System.nanoTime() - snapLoaded) / 1000000 + " ms");
         return highestZxid;
     }
 
@@ -293,7 +328,7 @@ public class FileTxnSnapLog {
         // I'd rather just close/reopen this object itself, however that 
         // would have a big impact outside ZKDatabase as there are other
         // objects holding a reference to this object.
-        txnLog = new FileTxnLog(dataDir);
+        txnLog = createTxnLog(dataDir);
         snapLog = new FileSnap(snapDir);
 
         return truncated;
@@ -352,6 +387,24 @@ public class FileTxnSnapLog {
         txnLog.commit();
     }
 
+    /**
+     * start committing the transaction of logs without waiting for
+     * them to be persisted
+     * @return the commit that persists the transactions
+     * @throws IOException
+     */
+    public TxnLog.PendingCommit startCommit() throws IOException {
+        return txnLog.startCommit();
+    }
+
+    /**
+     * @return the number of bytes appended to the transaction log since
+     * the last commit
+     */
+    public long getUncommittedBytes() {
+        return txnLog.getUncommittedBytes();
+    }
+
     /**
      * roll the transaction logs
      * @throws IOException
@@ -0,0 +1,397 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.Checksum;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A TxnLog that writes the transaction log in fixed size, preallocated
+ * segments. The segments have the same format and names as the logs written
+ * by FileTxnLog, so they are read, truncated and formatted by the existing
+ * tools; only the writing differs:
+ * <ul>
+ * <li>Every segment is preAllocSize bytes. When the next transaction doesn't
+ * fit into the current segment, the log moves on to a new one.</li>
+ * <li>New segments are taken from a pool of spare files that a background
+ * thread fills with zeros ahead of time, so the file system allocates the
+ * blocks of a segment before it is used rather than while appending and
+ * fsyncing to it.</li>
+ * <li>PurgeTxnLog recycles old logs into spares instead of deleting them
+ * when this log is in use, saving the cost of allocating them again.</li>
+ * <li>Transactions are buffered in memory and written out at commit with a
+ * single gathering write to the FileChannel, together with an empty
+ * transaction that marks the end of the log. The next write overwrites the
+ * marker, which keeps readers from reading past the end of the log into
+ * stale transactions left in a recycled segment. Should a crash tear a
+ * write so that the marker doesn't reach the disk, readers still stop at
+ * the first stale transaction, as its zxid is lower than the one before
+ * it.</li>
+ * <li>A spare segment reads as an empty log: it starts with a file header
+ * followed by the end of log marker, both forced to disk before the file
+ * becomes a spare. A crash after a spare is renamed to a log but before the
+ * first commit to it thus leaves a log without transactions.</li>
+ * </ul>
+ * Select this log by setting zookeeper.txnLog to this class name.
+ */
+public class SegmentTxnLog extends FileTxnLog {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(SegmentTxnLog.class);
+
+    /** Prefix of the names of spare segments */
+    static final String SPARE_PREFIX = "logspare.";
+
+    /** Number of spare segments to keep, including recycled ones */
+    static final int MAX_SPARES = 2;
+
+    /** Size of the serialized FileHeader */
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+
+    /** An empty transaction, readers take it as the end of the log */
+    private static final ByteBuffer END_OF_LOG =
+        ByteBuffer.allocate(8 + 4).asReadOnlyBuffer();
+
+    private final long segmentSize;
+
+    /** Transactions appended since the last write */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final BinaryOutputArchive pendingArchive =
+        BinaryOutputArchive.getArchive(pending);
+
+    /** The segment being appended to */
+    private FileChannel channel;
+    /** The offset in the current segment at which pending is written */
+    private long position;
+    /** Segments written to since the last commit, the current one last */
+    private final LinkedList<FileChannel> channelsToForce =
+        new LinkedList<FileChannel>();
+
+    private long uncommittedBytes;
+
+    private Preallocator preallocator;
+
+    public SegmentTxnLog(File logDir) {
+        super(logDir);
+        segmentSize = preAllocSize;
+    }
+
+    @Override
+    public synchronized boolean append(TxnHeader hdr, Record txn)
+        throws IOException
+    {
+        if (hdr == null) {
+            return false;
+        }
+        if (hdr.getZxid() <= lastZxidSeen) {
+            LOG.warn("Current zxid " + hdr.getZxid()
+                    + " is <= " + lastZxidSeen + " for "
+                    + hdr.getType());
+        }
+        byte[] buf = Util.marshallTxnEntry(hdr, txn);
+        if (buf == null || buf.length == 0) {
+            throw new IOException("Faulty serialization for header " +
+                    "and txn");
+        }
+        // crc, length, entry and end of record marker
+        int size = 8 + 4 + buf.length + 1;
+        if (channel == null) {
+            openSegment(hdr.getZxid());
+        } else {
+            long end = position + pending.size();
+            // a transaction larger than a segment gets a segment of its own,
+            // which grows to fit it
+            if (end + size + END_OF_LOG.capacity() > segmentSize
+                    && end > HEADER_SIZE) {
+                write();
+                channel = null;
+                openSegment(hdr.getZxid());
+            }
+        }
+        Checksum crc = makeChecksumAlgorithm();
+        crc.update(buf, 0, buf.length);
+        pendingArchive.writeLong(crc.getValue(), "txnEntryCRC");
+        Util.writeTxnBytes(pendingArchive, buf);
+        uncommittedBytes += size;
+        return true;
+    }
+
+    /**
+     * Start a new segment for the transactions from zxid on, taking a spare
+     * segment if there is one.
+     */
+    private void openSegment(long zxid) throws IOException {
+        if (preallocator == null) {
+            preallocator = new Preallocator();
+            preallocator.start();
+        }
+        File logFile = new File(logDir, "log." + Long.toHexString(zxid));
+        File spare = findSpare(logDir);
+        if (spare != null && spare.renameTo(logFile)) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Using spare segment " + spare.getName()
+                         + " for new log file: " + logFile.getName());
+            }
+        } else {
+            LOG.info("No spare segment for new log file: "
+                     + logFile.getName());
+        }
+        preallocator.wakeup();
+        channel = new RandomAccessFile(logFile, "rw").getChannel();
+        channelsToForce.add(channel);
+        position = 0;
+        FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, checksum.getVersion(), dbId);
+        fhdr.serialize(pendingArchive, "fileheader");
+    }
+
+    /**
+     * Write the pending transactions to the current segment, followed by
+     * the end of log marker.
+     */
+    private void write() throws IOException {
+        if (channel == null || pending.size() == 0) {
+            return;
+        }
+        ByteBuffer data = ByteBuffer.wrap(pending.toByteArray());
+        ByteBuffer[] bufs = new ByteBuffer[] { data, END_OF_LOG.duplicate() };
+        channel.position(position);
+        while (bufs[1].hasRemaining()) {
+            channel.write(bufs);
+        }
+        position += data.capacity();
+        pending.reset();
+    }
+
+    @Override
+    public synchronized void rollLog() throws IOException {
+        write();
+        channel = null;
+    }
+
+    @Override
+    public synchronized PendingCommit startCommit() throws IOException {
+        write();
+        uncommittedBytes = 0;
+        final List<FileChannel> channels =
+            new ArrayList<FileChannel>(channelsToForce);
+        return new PendingCommit() {
+            public void sync() throws IOException {
+                for (FileChannel c : channels) {
+                    force(c);
+                }
+                synchronized (SegmentTxnLog.this) {
+                    // the segments before the current one are complete,
+                    // close them once they are forced
+                    while (channelsToForce.size() > 1
+                           && channels.contains(channelsToForce.getFirst())) {
+                        channelsToForce.removeFirst().close();
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized long getUncommittedBytes() {
+        return uncommittedBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (preallocator != null) {
+            preallocator.shutdown();
+            preallocator = null;
+        }
+        write();
+        for (FileChannel c : channelsToForce) {
+            c.close();
+        }
+        channelsToForce.clear();
+        channel = null;
+    }
+
+    private static final FileFilter SPARE_FILTER = new FileFilter() {
+        public boolean accept(File f) {
+            return f.getName().startsWith(SPARE_PREFIX)
+                && !f.getName().endsWith(".tmp");
+        }
+    };
+
+    private static File findSpare(File logDir) {
+        File[] spares = logDir.listFiles(SPARE_FILTER);
+        return spares == null || spares.length == 0 ? null : spares[0];
+    }
+
+    private static int countSpares(File logDir) {
+        File[] spares = logDir.listFiles(SPARE_FILTER);
+        return spares == null ? 0 : spares.length;
+    }
+
+    /**
+     * @return true if transaction logs are written by a SegmentTxnLog
+     */
+    public static boolean isEnabled() {
+        return SegmentTxnLog.class.getName().equals(
+                System.getProperty(FileTxnSnapLog.ZOOKEEPER_TXN_LOG));
+    }
+
+    /**
+     * Turn an old log file into a spare segment, if segments are enabled,
+     * the log is a full segment and there aren't enough spares already.
+     * The first transaction of the log is overwritten with the end of log
+     * marker, so the old transactions can't be read from the spare.
+     * @param logFile a log file that isn't needed anymore
+     * @return true if the file was recycled, false if it should be deleted
+     */
+    public static boolean recycle(File logFile) {
+        if (!isEnabled() || logFile.length() < preAllocSize) {
+            return false;
+        }
+        File logDir = logFile.getParentFile();
+        if (countSpares(logDir) >= MAX_SPARES) {
+            return false;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+            try {
+                FileChannel c = raf.getChannel();
+                ByteBuffer marker = END_OF_LOG.duplicate();
+                while (marker.hasRemaining()) {
+                    c.write(marker, HEADER_SIZE + marker.position());
+                }
+                c.force(false);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to recycle " + logFile, e);
+            return false;
+        }
+        return logFile.renameTo(new File(logDir,
+                SPARE_PREFIX + Long.toHexString(System.nanoTime())));
+    }
+
+    /**
+     * Keeps a spare segment ready by filling a new file with a file header
+     * and zeros whenever the log takes the last spare.
+     */
+    private class Preallocator extends Thread {
+        private boolean wakeup = true;
+        private volatile boolean running = true;
+
+        Preallocator() {
+            super("TxnLogPreallocator");
+            setDaemon(true);
+        }
+
+        synchronized void wakeup() {
+            wakeup = true;
+            notifyAll();
+        }
+
+        void shutdown() {
+            running = false;
+            wakeup();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                LOG.warn("Interrupted while waiting for preallocator", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    synchronized (this) {
+                        while (!wakeup) {
+                            wait();
+                        }
+                        wakeup = false;
+                    }
+                    if (running && countSpares(logDir) == 0) {
+                        allocate();
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("Interrupted while waiting to preallocate", e);
+            } catch (IOException e) {
+                LOG.warn("Unable to preallocate a log segment, new segments"
+                         + " will be allocated as they are written", e);
+            }
+        }
+
+        private void allocate() throws IOException {
+            File tmp = File.createTempFile(SPARE_PREFIX, ".tmp", logDir);
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                FileChannel c = raf.getChannel();
+                ByteBuffer header = serializeHeader();
+                while (header.hasRemaining()) {
+                    c.write(header, header.position());
+                }
+                // the zeros following the header are the end of log marker
+                ByteBuffer zeros = ByteBuffer.allocateDirect(64 * 1024);
+                long written = HEADER_SIZE;
+                while (written < segmentSize && running) {
+                    zeros.clear();
+                    if (segmentSize - written < zeros.capacity()) {
+                        zeros.limit((int) (segmentSize - written));
+                    }
+                    written += c.write(zeros, written);
+                }
+                c.force(true);
+            } finally {
+                raf.close();
+            }
+            if (!running) {
+                tmp.delete();
+                return;
+            }
+            File spare = new File(logDir, tmp.getName().substring(0,
+                    tmp.getName().length() - ".tmp".length()));
+            if (!tmp.renameTo(spare)) {
+                LOG.warn("Unable to rename " + tmp + " to " + spare);
+                tmp.delete();
+            }
+        }
+
+        private ByteBuffer serializeHeader() throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(HEADER_SIZE);
+            FileHeader fhdr = new FileHeader(TXNLOG_MAGIC,
+                    checksum.getVersion(), dbId);
+            fhdr.serialize(BinaryOutputArchive.getArchive(baos), "fileheader");
+            return ByteBuffer.wrap(baos.toByteArray());
+        }
+    }
+}
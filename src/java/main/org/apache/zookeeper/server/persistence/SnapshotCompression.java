@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The codecs snapshots can be compressed with. A compressed snapshot starts
+ * with COMPRESSED_SNAP_MAGIC and the id of its codec, followed by the
+ * compressed bytes of the snapshot as it would be written uncompressed, so
+ * whether a snapshot is compressed, and how, is given by its first bytes:
+ * <blockquote><pre>
+ * COMPRESSED_SNAP_MAGIC codec compressed(snapshot) index
+ * </pre></blockquote>
+ * The SnapshotIndex of a compressed snapshot is written uncompressed after
+ * it, so the snapshot still ends with "/" and its chunks can still be read
+ * in parallel. The lengths in the index are the uncompressed ones.
+ *
+ * New snapshots are written uncompressed unless zookeeper.snapshot.compression
+ * is set to the name of a codec. Servers older than version 3.5.0 can't read
+ * compressed snapshots.
+ */
+public enum SnapshotCompression {
+    /** zlib, from the JDK */
+    DEFLATE(1) {
+        @Override
+        OutputStream compress(OutputStream out) {
+            int level = Integer.getInteger(
+                    ZOOKEEPER_SNAPSHOT_COMPRESSION_LEVEL, Deflater.BEST_SPEED);
+            return new DeflaterOutputStream(out, new Deflater(level),
+                                            BUFFER_SIZE) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        finish();
+                        out.flush();
+                    } finally {
+                        def.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        InputStream decompress(InputStream in) {
+            return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+    };
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotCompression.class);
+
+    public final static int COMPRESSED_SNAP_MAGIC =
+        ByteBuffer.wrap("ZKSC".getBytes()).getInt();
+
+    /** Default: none */
+    public static final String ZOOKEEPER_SNAPSHOT_COMPRESSION =
+        "zookeeper.snapshot.compression";
+    /** Default: 1 (Deflater.BEST_SPEED) */
+    public static final String ZOOKEEPER_SNAPSHOT_COMPRESSION_LEVEL =
+        "zookeeper.snapshot.compressionLevel";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int id;
+
+    private SnapshotCompression(int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the id of the codec in the header of the snapshots it
+     *         compresses
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return a stream compressing to out. Closing it finishes the
+     *         compressed data but doesn't close out.
+     */
+    abstract OutputStream compress(OutputStream out);
+
+    /**
+     * @return a stream decompressing from in
+     */
+    abstract InputStream decompress(InputStream in);
+
+    /**
+     * Write the header of a compressed snapshot.
+     * @return a stream the snapshot is compressed through. Closing it
+     *         finishes the compressed data but doesn't close out.
+     */
+    public OutputStream openOutput(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(COMPRESSED_SNAP_MAGIC);
+        dout.writeInt(id);
+        return compress(out);
+    }
+
+    /**
+     * Read the header of a compressed snapshot.
+     * @return a buffered stream of the decompressed snapshot
+     */
+    public InputStream openInput(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() != COMPRESSED_SNAP_MAGIC || din.readInt() != id) {
+            throw new IOException("Snapshot isn't compressed with " + this);
+        }
+        return new BufferedInputStream(decompress(in));
+    }
+
+    /**
+     * @return the codec new snapshots are compressed with or null if they
+     *         are written uncompressed
+     */
+    public static SnapshotCompression configured() {
+        String name = System.getProperty(ZOOKEEPER_SNAPSHOT_COMPRESSION);
+        if (name == null || name.trim().equalsIgnoreCase("none")) {
+            return null;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warn(name + " is not a valid value for "
+                     + ZOOKEEPER_SNAPSHOT_COMPRESSION
+                     + ", writing uncompressed snapshots");
+            return null;
+        }
+    }
+
+    /**
+     * Read the header of a snapshot without consuming it.
+     * @param in a stream that supports mark and reset
+     * @return the codec the snapshot is compressed with, or null if it is
+     *         uncompressed
+     * @throws IOException if the snapshot is compressed with a codec this
+     *         server doesn't know
+     */
+    public static SnapshotCompression peek(InputStream in) throws IOException {
+        in.mark(8);
+        try {
+            DataInputStream din = new DataInputStream(in);
+            if (din.readInt() != COMPRESSED_SNAP_MAGIC) {
+                return null;
+            }
+            int id = din.readInt();
+            for (SnapshotCompression compression : values()) {
+                if (compression.id == id) {
+                    return compression;
+                }
+            }
+            throw new IOException("Unsupported snapshot compression " + id);
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Open a snapshot for reading whether it is compressed or not.
+     * @param in the snapshot, a stream that supports mark and reset
+     * @return a stream of the uncompressed snapshot, that supports mark
+     *         and reset
+     */
+    public static InputStream open(InputStream in) throws IOException {
+        SnapshotCompression compression = peek(in);
+        return compression == null ? in : compression.openInput(in);
+    }
+}
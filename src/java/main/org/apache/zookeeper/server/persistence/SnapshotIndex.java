@@ -0,0 +1,268 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Checksum;
+
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.server.DataTree;
+
+/**
+ * The chunks a serialized DataTree is split into so the nodes of a snapshot
+ * can be deserialized by several threads. Each chunk is a run of whole nodes,
+ * and has its own length, node count and checksum.
+ *
+ * The index is written as a trailer after the end of the snapshot, so the
+ * snapshot itself keeps its format and is still read by servers that don't
+ * know about the index:
+ * <blockquote><pre>
+ * ... checksum "/" numChunks (length nodeCount checksum)* indexLength INDEX_MAGIC "/"
+ * </pre></blockquote>
+ * Snapshots without an index, or with an index that doesn't make sense, are
+ * read serially. See SnapshotCompression for the index of compressed
+ * snapshots.
+ */
+public class SnapshotIndex {
+    public final static int INDEX_MAGIC =
+        ByteBuffer.wrap("ZKSI".getBytes()).getInt();
+
+    /** Size of the end of the trailer: indexLength, INDEX_MAGIC and "/" */
+    private static final int TRAILER_END_SIZE = 4 + 4 + 4 + 1;
+
+    private final FileChecksum checksum;
+    private final List<Integer> lengths = new ArrayList<Integer>();
+    private final List<Integer> nodeCounts = new ArrayList<Integer>();
+    private final List<Long> checksums = new ArrayList<Long>();
+
+    SnapshotIndex(FileChecksum checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return the checksum of the chunks
+     */
+    public FileChecksum getChecksum() {
+        return checksum;
+    }
+
+    public int getChunkCount() {
+        return lengths.size();
+    }
+
+    /**
+     * @return the length in bytes of chunk i
+     */
+    public int getLength(int i) {
+        return lengths.get(i);
+    }
+
+    /**
+     * @return the number of nodes in chunk i
+     */
+    public int getNodeCount(int i) {
+        return nodeCounts.get(i);
+    }
+
+    /**
+     * @return the checksum of the bytes of chunk i
+     */
+    public long getChecksum(int i) {
+        return checksums.get(i);
+    }
+
+    private void add(int length, int nodeCount, long checksum) {
+        lengths.add(length);
+        nodeCounts.add(nodeCount);
+        checksums.add(checksum);
+    }
+
+    /**
+     * Write the index, as the trailer of the snapshot it indexes.
+     */
+    void write(OutputArchive oa) throws IOException {
+        oa.writeInt(lengths.size(), "numChunks");
+        for (int i = 0; i < lengths.size(); i++) {
+            oa.writeInt(lengths.get(i), "length");
+            oa.writeInt(nodeCounts.get(i), "nodeCount");
+            oa.writeLong(checksums.get(i), "checksum");
+        }
+        oa.writeInt(4 + lengths.size() * (4 + 4 + 8), "indexLength");
+        oa.writeInt(INDEX_MAGIC, "indexMagic");
+        oa.writeString("/", "path");
+    }
+
+    /**
+     * Read the index from the trailer of a snapshot.
+     * @param snap the snapshot file
+     * @param checksum the checksum of the snapshot
+     * @return the index or null if the snapshot doesn't have a valid one
+     */
+    public static SnapshotIndex read(File snap, FileChecksum checksum)
+        throws IOException
+    {
+        return read(snap, checksum, false);
+    }
+
+    /**
+     * Read the index from the trailer of a snapshot.
+     * @param snap the snapshot file
+     * @param checksum the checksum of the snapshot
+     * @param compressed whether the snapshot is compressed, in which case
+     *        the chunks may add up to more than the length of the file
+     * @return the index or null if the snapshot doesn't have a valid one
+     */
+    public static SnapshotIndex read(File snap, FileChecksum checksum,
+            boolean compressed) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(snap, "r");
+        try {
+            long fileLength = raf.length();
+            if (fileLength < TRAILER_END_SIZE) {
+                return null;
+            }
+            raf.seek(fileLength - TRAILER_END_SIZE);
+            int indexLength = raf.readInt();
+            if (raf.readInt() != INDEX_MAGIC
+                    || indexLength < 4
+                    || indexLength > fileLength - TRAILER_END_SIZE) {
+                return null;
+            }
+            raf.seek(fileLength - TRAILER_END_SIZE - indexLength);
+            int numChunks = raf.readInt();
+            if (indexLength != 4 + numChunks * (4 + 4 + 8)) {
+                return null;
+            }
+            SnapshotIndex index = new SnapshotIndex(checksum);
+            long total = 0;
+            for (int i = 0; i < numChunks; i++) {
+                int length = raf.readInt();
+                int nodeCount = raf.readInt();
+                long crc = raf.readLong();
+                if (length <= 0 || nodeCount <= 0) {
+                    return null;
+                }
+                total += length;
+                index.add(length, nodeCount, crc);
+            }
+            if (!compressed && total > fileLength) {
+                return null;
+            }
+            return index;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Builds the index of the tree serialized through it. The stream is
+     * placed between the archive the tree is serialized to and the
+     * underlying stream, and DataTree tells it where the nodes start.
+     */
+    static class Writer extends OutputStream
+        implements DataTree.NodeBoundaryListener
+    {
+        private final OutputStream out;
+        private final long chunkSize;
+        private final SnapshotIndex index;
+        private final Checksum crc;
+
+        private boolean inNodes;
+        private long chunkBytes;
+        private int chunkNodes;
+
+        /**
+         * @param out the stream to write to
+         * @param checksum the checksum of the chunks
+         * @param chunkSize the size at which a chunk is ended, chunks end at
+         *        the first node boundary after it
+         */
+        Writer(OutputStream out, FileChecksum checksum, long chunkSize) {
+            this.out = out;
+            this.chunkSize = chunkSize;
+            this.index = new SnapshotIndex(checksum);
+            this.crc = checksum.create();
+        }
+
+        SnapshotIndex getIndex() {
+            return index;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (inNodes) {
+                crc.update(b);
+                chunkBytes++;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (inNodes) {
+                crc.update(b, off, len);
+                chunkBytes += len;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        public void nodeStart() throws IOException {
+            if (!inNodes) {
+                inNodes = true;
+            } else if (chunkBytes >= chunkSize) {
+                endChunk();
+            }
+            chunkNodes++;
+        }
+
+        public void nodesEnd() throws IOException {
+            if (chunkNodes > 0) {
+                endChunk();
+            }
+            inNodes = false;
+        }
+
+        private void endChunk() throws IOException {
+            if (chunkBytes > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot chunk too large: "
+                        + chunkBytes);
+            }
+            index.add((int) chunkBytes, chunkNodes, crc.getValue());
+            crc.reset();
+            chunkBytes = 0;
+            chunkNodes = 0;
+        }
+    }
+}
@@ -82,11 +82,41 @@ public interface TxnLog {
      * @throws IOException
      */
     void commit() throws IOException;
+
+    /**
+     * write the transactions appended so far out to the log, without
+     * waiting for them to be persisted. This splits commit() in two, so
+     * that new transactions can be appended while the previous ones are
+     * being persisted.
+     * @return the commit that persists the transactions
+     * @throws IOException
+     */
+    PendingCommit startCommit() throws IOException;
+
+    /**
+     * the size of the transactions appended since the last commit.
+     * @return the number of bytes appended to the log and not yet
+     * committed.
+     */
+    long getUncommittedBytes();
    
     /** 
      * close the transactions logs
      */
     void close() throws IOException;
+    /**
+     * a commit started by startCommit().
+     */
+    public interface PendingCommit {
+        /**
+         * make sure the transactions of this commit are
+         * persisted. This may be called by another thread
+         * while transactions are appended to the log.
+         * @throws IOException
+         */
+        void sync() throws IOException;
+    }
+
     /**
      * an iterating interface for reading 
      * transaction logs. 
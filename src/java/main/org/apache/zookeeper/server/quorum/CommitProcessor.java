@@ -53,6 +53,13 @@ import org.apache.zookeeper.server.WorkerService;
  * Typical (default) thread counts are: on a 32 core machine, 1 commit
  * processor thread and 32 worker threads.
  *
+ * By default a worker thread runs the requests assigned to it in order, so
+ * a session with a backlog of expensive requests delays all the sessions
+ * assigned to the same thread. If zookeeper.commitProcessor.fairQuantum is
+ * set, the worker threads instead take turns between the sessions assigned
+ * to them, each session running its requests for about that many
+ * microseconds per turn (see FairWorkQueue).
+ *
  * Multi-threading constraints:
  *   - Each session's requests must be processed in order.
  *   - Write requests must be processed in zxid order
@@ -71,6 +78,9 @@ public class CommitProcessor extends Thread implements RequestProcessor {
     /** Default worker pool shutdown timeout in ms: 5000 (5s) */
     public static final String ZOOKEEPER_COMMIT_PROC_SHUTDOWN_TIMEOUT =
         "zookeeper.commitProcessor.shutdownTimeout";
+    /** Default: 0, the requests of a worker are run in order */
+    public static final String ZOOKEEPER_COMMIT_PROC_FAIR_QUANTUM =
+        "zookeeper.commitProcessor.fairQuantum";
 
     /**
      * Requests that we are holding until the commit comes in.
@@ -225,13 +235,18 @@ public class CommitProcessor extends Thread implements RequestProcessor {
             ZOOKEEPER_COMMIT_PROC_NUM_WORKER_THREADS, numCores);
         workerShutdownTimeoutMS = Long.getLong(
             ZOOKEEPER_COMMIT_PROC_SHUTDOWN_TIMEOUT, 5000);
+        long fairQuantumUS = Long.getLong(
+            ZOOKEEPER_COMMIT_PROC_FAIR_QUANTUM, 0);
 
         LOG.info("Configuring CommitProcessor with "
                  + (numWorkerThreads > 0 ? numWorkerThreads : "no")
-                 + " worker threads.");
+                 + " worker threads"
+                 + (fairQuantumUS > 0 && numWorkerThreads > 0
+                    ? ", fair quantum " + fairQuantumUS + "us." : "."));
         if (workerPool == null) {
             workerPool = new WorkerService(
-                "CommitProcWork", numWorkerThreads, true);
+                "CommitProcWork", numWorkerThreads, true,
+                fairQuantumUS * 1000);
         }
         stopped = false;
         super.start();
@@ -290,6 +305,13 @@ public class CommitProcessor extends Thread implements RequestProcessor {
         }
     }
 
+    /**
+     * @return the pool of the worker threads, null if not started
+     */
+    WorkerService getWorkerPool() {
+        return workerPool;
+    }
+
     synchronized private void wakeup() {
         notifyAll();
     }
@@ -29,6 +29,7 @@ import org.apache.zookeeper.server.FinalRequestProcessor;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
 import org.apache.zookeeper.server.SyncRequestProcessor;
+import org.apache.zookeeper.server.WorkerService;
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.txn.TxnHeader;
@@ -125,6 +126,12 @@ public class FollowerZooKeeperServer extends LearnerZooKeeperServer {
 		commitProcessor.commit(r);
     }
 
+    @Override
+    public WorkerService getRequestWorkerPool() {
+        CommitProcessor processor = commitProcessor;
+        return processor == null ? null : processor.getWorkerPool();
+    }
+
     @Override
     public int getGlobalOutstandingLimit() {
         return super.getGlobalOutstandingLimit() / (self.getQuorumSize() - 1);
@@ -28,6 +28,7 @@ import org.apache.zookeeper.server.PrepRequestProcessor;
 import org.apache.zookeeper.server.RequestProcessor;
 import org.apache.zookeeper.server.ServerCnxn;
 import org.apache.zookeeper.server.SessionTrackerImpl;
+import org.apache.zookeeper.server.WorkerService;
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 
@@ -68,6 +69,12 @@ public class LeaderZooKeeperServer extends QuorumZooKeeperServer {
         ((PrepRequestProcessor)firstProcessor).start();
     }
 
+    @Override
+    public WorkerService getRequestWorkerPool() {
+        CommitProcessor processor = commitProcessor;
+        return processor == null ? null : processor.getWorkerPool();
+    }
+
     @Override
     public int getGlobalOutstandingLimit() {
         return super.getGlobalOutstandingLimit() / (self.getQuorumSize() - 1);
@@ -26,6 +26,7 @@ import org.apache.zookeeper.server.FinalRequestProcessor;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
 import org.apache.zookeeper.server.SyncRequestProcessor;
+import org.apache.zookeeper.server.WorkerService;
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 
@@ -108,6 +109,12 @@ public class ObserverZooKeeperServer extends LearnerZooKeeperServer {
         commitProcessor.commit(r);
     }
     
+    @Override
+    public WorkerService getRequestWorkerPool() {
+        CommitProcessor processor = commitProcessor;
+        return processor == null ? null : processor.getWorkerPool();
+    }
+
     @Override
     public String getState() {
         return "observer";
@@ -91,6 +91,7 @@ public class ReadOnlyRequestProcessor extends Thread implements RequestProcessor
                     } catch (IOException e) {
                         LOG.error("IO exception while sending response", e);
                     }
+                    zks.requestFinished(request);
                     continue;
                 }
 
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.util;
+
+/**
+ * A histogram of non-negative values with power of 2 buckets: bucket 0
+ * counts the value 0, bucket i counts the values in [2^(i-1), 2^i). Values
+ * beyond the last bucket are counted in the last bucket.
+ */
+public class Histogram {
+    private final long[] counts;
+    private long count;
+    private long total;
+    private long max;
+
+    /**
+     * @param numBuckets number of buckets, the last one counts all the
+     *                   values of at least 2^(numBuckets-2)
+     */
+    public Histogram(int numBuckets) {
+        if (numBuckets < 2 || numBuckets > 64) {
+            throw new IllegalArgumentException(
+                    "Number of buckets must be between 2 and 64");
+        }
+        counts = new long[numBuckets];
+    }
+
+    synchronized public void add(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(value);
+        if (bucket >= counts.length) {
+            bucket = counts.length - 1;
+        }
+        counts[bucket]++;
+        count++;
+        total += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    synchronized public long[] getCounts() {
+        return counts.clone();
+    }
+
+    synchronized public long getCount() {
+        return count;
+    }
+
+    synchronized public long getAvg() {
+        return count == 0 ? 0 : total / count;
+    }
+
+    synchronized public long getMax() {
+        return max;
+    }
+
+    synchronized public void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    /**
+     * @return the non-empty buckets as "lower-upper:count" pairs, eg.
+     *         "1-1:4 2-3:10 4-7:1"
+     */
+    @Override
+    synchronized public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            long lower = i == 0 ? 0 : 1L << (i - 1);
+            sb.append(lower).append('-');
+            if (i == counts.length - 1) {
+                sb.append("inf");
+            } else {
+                sb.append(i == 0 ? 0 : (1L << i) - 1);
+            }
+            sb.append(':').append(counts[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -19,6 +19,7 @@
 package org.apache.zookeeper.server.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInput;
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.HashMap;
@@ -35,6 +36,7 @@ import org.apache.jute.Record;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.server.DataTree;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.persistence.SnapshotIndex;
 import org.apache.zookeeper.txn.CreateSessionTxn;
 import org.apache.zookeeper.txn.CreateTxn;
 import org.apache.zookeeper.txn.CreateTxnV0;
@@ -114,6 +116,26 @@ public class SerializeUtils {
 
     public static void deserializeSnapshot(DataTree dt,InputArchive ia,
             Map<Long, Integer> sessions) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserialize(ia, "tree");
+    }
+
+    /**
+     * deserialize a snapshot split into chunks, the nodes of the tree are
+     * deserialized in parallel
+     * @param in the input ia reads from
+     * @param index the chunks of the tree
+     * @param numThreads the number of threads to deserialize with
+     */
+    public static void deserializeSnapshot(DataTree dt, InputArchive ia,
+            DataInput in, Map<Long, Integer> sessions, SnapshotIndex index,
+            int numThreads) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserialize(ia, in, index, numThreads);
+    }
+
+    private static void deserializeSessions(InputArchive ia,
+            Map<Long, Integer> sessions) throws IOException {
         int count = ia.readInt("count");
         while (count > 0) {
             long id = ia.readLong("id");
@@ -126,18 +148,26 @@ public class SerializeUtils {
             }
             count--;
         }
-        dt.deserialize(ia, "tree");
     }
 
     public static void serializeSnapshot(DataTree dt,OutputArchive oa,
             Map<Long, Integer> sessions) throws IOException {
+        serializeSnapshot(dt, oa, sessions, null);
+    }
+
+    /**
+     * @param listener if not null, told where the nodes of the tree start
+     */
+    public static void serializeSnapshot(DataTree dt,OutputArchive oa,
+            Map<Long, Integer> sessions,
+            DataTree.NodeBoundaryListener listener) throws IOException {
         HashMap<Long, Integer> sessSnap = new HashMap<Long, Integer>(sessions);
         oa.writeInt(sessSnap.size(), "count");
         for (Entry<Long, Integer> entry : sessSnap.entrySet()) {
             oa.writeLong(entry.getKey().longValue(), "id");
             oa.writeInt(entry.getValue().intValue(), "timeout");
         }
-        dt.serialize(oa, "tree");
+        dt.serialize(oa, "tree", listener);
     }
 
 }
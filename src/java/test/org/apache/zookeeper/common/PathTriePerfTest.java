@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.common;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Times findMaxPrefix on a trie of 10k quota roots, against a lookup that
+ * splits the path and walks synchronized maps as PathTrie used to, and
+ * checks lookups stay right while roots are added and deleted.
+ */
+public class PathTriePerfTest extends ZKTestCase {
+    protected static final Logger LOG =
+        LoggerFactory.getLogger(PathTriePerfTest.class);
+
+    private static final int TENANTS = 100;
+    private static final int APPS = 100;
+    private static final int LOOKUPS = 1000000;
+    private static final int READERS = 4;
+
+    /**
+     * The lookup PathTrie used to do, for comparison.
+     */
+    private static class SplitTrie {
+        private static class Node {
+            final HashMap<String, Node> children = new HashMap<String, Node>();
+            boolean property;
+        }
+
+        private final Node root = new Node();
+
+        void addPath(String path) {
+            Node node = root;
+            for (String part : path.substring(1).split("/")) {
+                synchronized (node.children) {
+                    Node child = node.children.get(part);
+                    if (child == null) {
+                        child = new Node();
+                        node.children.put(part, child);
+                    }
+                    node = child;
+                }
+            }
+            node.property = true;
+        }
+
+        String findMaxPrefix(String path) {
+            String[] parts = path.split("/");
+            Node node = root;
+            int last = 0;
+            for (int i = 1; i < parts.length; i++) {
+                synchronized (node.children) {
+                    node = node.children.get(parts[i]);
+                }
+                if (node == null) {
+                    break;
+                }
+                if (node.property) {
+                    last = i;
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 1; i <= last; i++) {
+                sb.append("/").append(parts[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+    private static String root(int i) {
+        return "/tenant-" + (i / APPS) + "/app-" + (i % APPS);
+    }
+
+    /**
+     * @return paths to look up, three under a root for each one outside
+     */
+    private static String[] lookupPaths() {
+        String[] paths = new String[4096];
+        for (int i = 0; i < paths.length; i++) {
+            int root = (i * 7919) % (TENANTS * APPS);
+            if (i % 4 == 3) {
+                paths[i] = "/tenant-" + (root / APPS) + "/other/node-" + i;
+            } else {
+                paths[i] = root(root) + "/service/lock-" + i;
+            }
+        }
+        return paths;
+    }
+
+    private static String expected(String path) {
+        int end = path.indexOf("/service/");
+        return end == -1 ? "" : path.substring(0, end);
+    }
+
+    @Test
+    public void testLookups() {
+        PathTrie trie = new PathTrie();
+        SplitTrie splitTrie = new SplitTrie();
+        long start = System.nanoTime();
+        for (int i = 0; i < TENANTS * APPS; i++) {
+            trie.addPath(root(i));
+        }
+        LOG.info("Added " + TENANTS * APPS + " quota roots in "
+                 + (System.nanoTime() - start) / 1000000 + " ms");
+        for (int i = 0; i < TENANTS * APPS; i++) {
+            splitTrie.addPath(root(i));
+        }
+
+        String[] paths = lookupPaths();
+        for (String path : paths) {
+            Assert.assertEquals(path, expected(path), trie.findMaxPrefix(path));
+            Assert.assertEquals(path, expected(path),
+                                splitTrie.findMaxPrefix(path));
+        }
+
+        for (int round = 0; round < 3; round++) {
+            int found = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                found += trie.findMaxPrefix(paths[i & 4095]).length();
+            }
+            long trieNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                found -= splitTrie.findMaxPrefix(paths[i & 4095]).length();
+            }
+            long splitNanos = System.nanoTime() - start;
+            Assert.assertEquals(0, found);
+            LOG.info("findMaxPrefix: " + trieNanos / LOOKUPS
+                     + " ns/lookup, splitting the path: "
+                     + splitNanos / LOOKUPS + " ns/lookup");
+        }
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final PathTrie trie = new PathTrie();
+        for (int i = 0; i < TENANTS * APPS; i++) {
+            trie.addPath(root(i));
+        }
+        final String[] paths = lookupPaths();
+        final CountDownLatch done = new CountDownLatch(READERS);
+        final AtomicInteger wrong = new AtomicInteger();
+        Thread[] readers = new Thread[READERS];
+        final long start = System.nanoTime();
+        for (int r = 0; r < READERS; r++) {
+            readers[r] = new Thread("reader-" + r) {
+                public void run() {
+                    for (int i = 0; i < LOOKUPS; i++) {
+                        String path = paths[i & 4095];
+                        if (!expected(path).equals(trie.findMaxPrefix(path))) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            };
+            readers[r].start();
+        }
+        // meanwhile add and delete roots next to those being looked up
+        int changes = 0;
+        while (done.getCount() > 0) {
+            String path = root(changes % (TENANTS * APPS)) + "/extra";
+            trie.addPath(path);
+            trie.deletePath(path);
+            changes++;
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        long nanos = System.nanoTime() - start;
+        LOG.info(READERS + " readers: " + nanos / LOOKUPS
+                 + " ns per lookup of each reader, " + changes
+                 + " roots added and deleted meanwhile");
+        Assert.assertEquals(0, wrong.get());
+    }
+}
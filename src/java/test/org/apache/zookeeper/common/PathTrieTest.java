@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PathTrieTest {
+
+    @Test
+    public void testFindMaxPrefix() {
+        PathTrie trie = new PathTrie();
+        trie.addPath("/a");
+        trie.addPath("/a/b/c");
+        trie.addPath("/x/y");
+
+        Assert.assertEquals("/", trie.findMaxPrefix("/"));
+        Assert.assertEquals("", trie.findMaxPrefix("/b"));
+        Assert.assertEquals("", trie.findMaxPrefix("/x"));
+        Assert.assertEquals("", trie.findMaxPrefix("/ab"));
+        Assert.assertEquals("/a", trie.findMaxPrefix("/a"));
+        Assert.assertEquals("/a", trie.findMaxPrefix("/a/b"));
+        Assert.assertEquals("/a", trie.findMaxPrefix("/a/bc"));
+        Assert.assertEquals("/a/b/c", trie.findMaxPrefix("/a/b/c"));
+        Assert.assertEquals("/a/b/c", trie.findMaxPrefix("/a/b/c/d/e"));
+        Assert.assertEquals("/x/y", trie.findMaxPrefix("/x/y/z"));
+        Assert.assertNull(trie.findMaxPrefix(null));
+    }
+
+    @Test
+    public void testDeletePath() {
+        PathTrie trie = new PathTrie();
+        trie.addPath("/a");
+        trie.addPath("/a/b/c");
+
+        trie.deletePath("/a/b/c");
+        Assert.assertEquals("/a", trie.findMaxPrefix("/a/b/c"));
+        trie.deletePath("/a");
+        Assert.assertEquals("", trie.findMaxPrefix("/a/b/c"));
+
+        // deleting a node that has children keeps them
+        trie.addPath("/a");
+        trie.addPath("/a/b");
+        trie.deletePath("/a");
+        Assert.assertEquals("", trie.findMaxPrefix("/a"));
+        Assert.assertEquals("/a/b", trie.findMaxPrefix("/a/b/c"));
+
+        trie.deletePath("/not/there");
+        trie.deletePath("/a/b/c");
+        Assert.assertEquals("/a/b", trie.findMaxPrefix("/a/b/c"));
+    }
+
+    @Test
+    public void testManyChildren() {
+        PathTrie trie = new PathTrie();
+        for (int i = 0; i < 1000; i++) {
+            trie.addPath("/parent/child-" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals("/parent/child-" + i,
+                    trie.findMaxPrefix("/parent/child-" + i + "/node"));
+        }
+        Assert.assertEquals("", trie.findMaxPrefix("/parent/child-1000"));
+        for (int i = 0; i < 1000; i += 2) {
+            trie.deletePath("/parent/child-" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i % 2 == 0 ? "" : "/parent/child-" + i,
+                    trie.findMaxPrefix("/parent/child-" + i));
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testAddInvalidPath() {
+        new PathTrie().addPath("not/valid");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testFindInvalidPath() {
+        new PathTrie().findMaxPrefix("not/valid");
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenResponse;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.junit.Test;
+
+public class BufferPoolTest extends ZKTestCase {
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteBuffer bb = pool.acquire(1);
+        Assert.assertTrue(bb.isDirect());
+        Assert.assertEquals(64, bb.capacity());
+        Assert.assertEquals(0, bb.position());
+        Assert.assertEquals(1, bb.limit());
+        pool.release(bb);
+
+        bb = pool.acquire(65);
+        Assert.assertEquals(128, bb.capacity());
+        Assert.assertEquals(65, bb.limit());
+        pool.release(bb);
+
+        bb = pool.acquire(1 << BufferPool.MAX_CLASS);
+        Assert.assertTrue(bb.isDirect());
+        pool.release(bb);
+
+        // too big for the pool
+        bb = pool.acquire((1 << BufferPool.MAX_CLASS) + 1);
+        Assert.assertFalse(bb.isDirect());
+        Assert.assertEquals((1 << BufferPool.MAX_CLASS) + 1, bb.capacity());
+        pool.release(bb);
+        Assert.assertEquals(0, pool.getOutstanding());
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteBuffer bb = pool.acquire(100);
+        bb.putInt(1);
+        pool.release(bb);
+        ByteBuffer again = pool.acquire(120);
+        Assert.assertSame(bb, again);
+        Assert.assertEquals(0, again.position());
+        Assert.assertEquals(120, again.limit());
+        Assert.assertEquals(1, pool.getAllocated());
+        Assert.assertEquals(1, pool.getOutstanding());
+
+        // buffers not from the pool are ignored
+        pool.release(ByteBuffer.allocate(128));
+        pool.discard(ByteBuffer.allocateDirect(100));
+        Assert.assertEquals(1, pool.getOutstanding());
+
+        pool.discard(again);
+        Assert.assertEquals(0, pool.getOutstanding());
+        Assert.assertNotSame(again, pool.acquire(100));
+    }
+
+    @Test
+    public void testMaxBytes() {
+        // room for a single free buffer of 64K in its class
+        BufferPool pool = new BufferPool(
+                (BufferPool.MAX_CLASS - BufferPool.MIN_CLASS + 1) * 64 * 1024);
+        ByteBuffer a = pool.acquire(64 * 1024);
+        ByteBuffer b = pool.acquire(64 * 1024);
+        pool.release(a);
+        pool.release(b);
+        Assert.assertEquals(0, pool.getOutstanding());
+        Assert.assertSame(a, pool.acquire(64 * 1024));
+        Assert.assertNotSame(b, pool.acquire(64 * 1024));
+        Assert.assertEquals(3, pool.getAllocated());
+    }
+
+    private static byte[] serialize(Record r) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(baos).writeRecord(r, "r");
+        return baos.toByteArray();
+    }
+
+    private static byte[] toArray(ByteBuffer bb) {
+        byte[] b = new byte[bb.remaining()];
+        bb.get(b);
+        return b;
+    }
+
+    /**
+     * The archive writes the same bytes as BinaryOutputArchive, growing
+     * through the size classes, and puts the smaller buffers back.
+     */
+    @Test
+    public void testBufferOutputArchive() throws Exception {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        List<String> children = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            children.add("child-" + i + "-\u00e9\u4e2d");
+        }
+        children.add(null);
+        Stat stat = new Stat(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+        Record[] records = {
+            new GetChildren2Response(children, stat),
+            new GetDataResponse(new byte[5000], stat),
+            new GetDataResponse(null, stat),
+            new ReplyHeader(1, 2, 3)
+        };
+        for (Record r : records) {
+            BufferPool.BufferOutputArchive oa = pool.new BufferOutputArchive(10);
+            int lengthPos = oa.reserveInt();
+            oa.writeRecord(r, "r");
+            oa.fillInt(lengthPos, oa.getPosition() - 4);
+            ByteBuffer bb = oa.getBuffer();
+            Assert.assertTrue(bb.isDirect());
+            Assert.assertEquals(bb.remaining() - 4, bb.getInt());
+            Assert.assertTrue(Arrays.equals(serialize(r), toArray(bb)));
+            Assert.assertEquals(1, pool.getOutstanding());
+            pool.release(bb);
+        }
+        Assert.assertEquals(0, pool.getOutstanding());
+    }
+
+    @Test
+    public void testHeapOutputArchive() throws Exception {
+        List<String> children = Arrays.asList("a", "\u00e9t\u00e9", "");
+        Record r = new GetChildrenResponse(children);
+        ByteBufferOutputArchive oa =
+            new ByteBufferOutputArchive(ByteBuffer.allocate(1));
+        oa.writeRecord(r, "r");
+        Assert.assertTrue(Arrays.equals(serialize(r), toArray(oa.getBuffer())));
+    }
+}
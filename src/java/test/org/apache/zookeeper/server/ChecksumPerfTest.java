@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.zip.Checksum;
+
+import junit.framework.Assert;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.persistence.FileChecksum;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the throughput of the file checksums: raw, replaying a txn log and
+ * loading a snapshot.
+ */
+public class ChecksumPerfTest extends ZKTestCase {
+    protected static final Logger LOG = LoggerFactory.getLogger(ChecksumPerfTest.class);
+
+    private static final int ROUNDS = 5;
+
+    private static double mbPerSec(long bytes, long ns) {
+        return (bytes / (1024.0 * 1024.0)) / (ns / 1000000000.0);
+    }
+
+    @Test
+    public void testRawChecksum() {
+        byte[] data = new byte[1024 * 1024];
+        for (FileChecksum checksum : FileChecksum.values()) {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                Checksum crc = checksum.create();
+                long start = System.nanoTime();
+                for (int j = 0; j < 64; j++) {
+                    crc.update(data, 0, data.length);
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            LOG.info(checksum + " checksum: "
+                     + mbPerSec(64L * data.length, best) + " MB/s");
+        }
+    }
+
+    @Test
+    public void testLogReplay() throws Exception {
+        int count = 50000;
+        for (FileChecksum checksum : FileChecksum.values()) {
+            System.setProperty(FileChecksum.ZOOKEEPER_FILE_CHECKSUM,
+                               checksum.toString());
+            File tmpDir = ClientBase.createTmpDir();
+            try {
+                FileTxnLog log = new FileTxnLog(tmpDir);
+                for (int zxid = 1; zxid <= count; zxid++) {
+                    log.append(new TxnHeader(1, 1, zxid, 1, OpCode.create),
+                            new CreateTxn("/node" + zxid, new byte[1024],
+                                    Ids.OPEN_ACL_UNSAFE, false, 1));
+                }
+                log.commit();
+                log.close();
+
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < ROUNDS; i++) {
+                    long start = System.nanoTime();
+                    TxnIterator itr = new FileTxnLog(tmpDir).read(1);
+                    int read = 0;
+                    while (itr.getHeader() != null) {
+                        read++;
+                        if (!itr.next()) {
+                            break;
+                        }
+                    }
+                    best = Math.min(best, System.nanoTime() - start);
+                    Assert.assertEquals(count, read);
+                }
+                LOG.info(checksum + " log replay: " + count + " txns in "
+                         + best / 1000000 + " ms");
+            } finally {
+                System.clearProperty(FileChecksum.ZOOKEEPER_FILE_CHECKSUM);
+                ClientBase.recursiveDelete(tmpDir);
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotLoad() throws Exception {
+        DataTree tree = new DataTree();
+        SerializationPerfTest.createNodes(tree, "/", 3, 200,
+                tree.getNode("/").stat.getCversion(), new byte[256]);
+        for (FileChecksum checksum : FileChecksum.values()) {
+            System.setProperty(FileChecksum.ZOOKEEPER_FILE_CHECKSUM,
+                               checksum.toString());
+            File tmpDir = ClientBase.createTmpDir();
+            try {
+                File snap = new File(tmpDir, "snapshot.1");
+                new FileSnap(tmpDir).serialize(tree,
+                        new HashMap<Long, Integer>(), snap);
+
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < ROUNDS; i++) {
+                    System.gc();
+                    long start = System.nanoTime();
+                    new FileSnap(tmpDir).deserialize(new DataTree(),
+                            new HashMap<Long, Integer>());
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                LOG.info(checksum + " snapshot load: "
+                         + tree.getNodeCount() + " nodes, "
+                         + mbPerSec(snap.length(), best) + " MB/s");
+            } finally {
+                System.clearProperty(FileChecksum.ZOOKEEPER_FILE_CHECKSUM);
+                ClientBase.recursiveDelete(tmpDir);
+            }
+        }
+    }
+}
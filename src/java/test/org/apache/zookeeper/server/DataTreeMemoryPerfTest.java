@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the heap taken per node by the standard and the compact DataTree
+ * layouts, and checks both hold the same tree.
+ */
+public class DataTreeMemoryPerfTest extends ZKTestCase {
+    protected static final Logger LOG =
+        LoggerFactory.getLogger(DataTreeMemoryPerfTest.class);
+
+    private static final int PARENTS = 2000;
+
+    @After
+    public void tearDown() {
+        System.clearProperty(DataTree.ZOOKEEPER_DATATREE_COMPACT);
+    }
+
+    private static DataTree newTree(boolean compact) {
+        System.setProperty(DataTree.ZOOKEEPER_DATATREE_COMPACT,
+                           Boolean.toString(compact));
+        try {
+            return new DataTree();
+        } finally {
+            System.clearProperty(DataTree.ZOOKEEPER_DATATREE_COMPACT);
+        }
+    }
+
+    /**
+     * Create PARENTS nodes with the given number of children each, the
+     * same child names under every parent.
+     */
+    private static void createNodes(DataTree tree, int children)
+            throws Exception {
+        byte[] data = new byte[16];
+        tree.createNode("/perf", data, Ids.OPEN_ACL_UNSAFE, 0, -1, 1, 1);
+        for (int i = 0; i < PARENTS; i++) {
+            String parent = "/perf/parent-" + i;
+            tree.createNode(parent, data, Ids.OPEN_ACL_UNSAFE, 0, -1, 1, 1);
+            for (int j = 0; j < children; j++) {
+                tree.createNode(parent + "/child-" + j, data,
+                                Ids.OPEN_ACL_UNSAFE, 0, -1, 1, 1);
+            }
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // settle on the smallest of a few collections
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+
+    private static long bytesPerNode(boolean compact, int children)
+            throws Exception {
+        long before = usedHeap();
+        DataTree tree = newTree(compact);
+        createNodes(tree, children);
+        long after = usedHeap();
+        int count = tree.getNodeCount();
+        long perNode = (after - before) / count;
+        LOG.info((compact ? "Compact" : "Standard") + " tree of " + count
+                 + " nodes, " + children + " children per parent: "
+                 + (after - before) / 1024 + " KB, " + perNode
+                 + " bytes/node");
+        // keep the tree reachable until it is measured
+        Assert.assertEquals(PARENTS * (children + 1) + 6, count);
+        return perNode;
+    }
+
+    private void compareLayouts(int children) throws Exception {
+        // warm up, so class loading isn't counted against the first layout
+        bytesPerNode(false, 1);
+        long standard = bytesPerNode(false, children);
+        long compact = bytesPerNode(true, children);
+        LOG.info("Compact layout saves " + (standard - compact)
+                 + " bytes/node with " + children + " children per parent");
+        Assert.assertTrue(compact < standard);
+    }
+
+    @Test
+    public void testFewChildren() throws Exception {
+        compareLayouts(4);
+    }
+
+    @Test
+    public void testManyChildren() throws Exception {
+        compareLayouts(50);
+    }
+
+    private static void assertSameTree(DataTree expected, DataTree actual,
+                                       String path) throws Exception {
+        Stat expectedStat = new Stat();
+        Stat actualStat = new Stat();
+        List<String> expectedChildren =
+            expected.getChildren(path, expectedStat, null);
+        List<String> actualChildren =
+            actual.getChildren(path, actualStat, null);
+        Assert.assertEquals(path, expectedStat, actualStat);
+        Collections.sort(expectedChildren);
+        Collections.sort(actualChildren);
+        Assert.assertEquals(path, expectedChildren, actualChildren);
+        for (String child : actualChildren) {
+            assertSameTree(expected, actual,
+                           ("/".equals(path) ? "" : path) + "/" + child);
+        }
+    }
+
+    @Test
+    public void testSameTree() throws Exception {
+        DataTree standard = newTree(false);
+        DataTree compact = newTree(true);
+        int children = CompactChildSet.MAX_SIZE + 10;
+        for (DataTree tree : new DataTree[] { standard, compact }) {
+            tree.createNode("/same", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, -1,
+                            1, 1);
+            tree.createNode("/same/small", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                            0, -1, 1, 1);
+            for (int i = 0; i < children; i++) {
+                tree.createNode("/same/" + i, new byte[0],
+                                Ids.OPEN_ACL_UNSAFE, 0, -1, 2, 2);
+            }
+            for (int i = 0; i < 100; i++) {
+                tree.createNode("/same/small/" + i, new byte[0],
+                                Ids.OPEN_ACL_UNSAFE, 0, -1, 2, 2);
+            }
+            // shrink the small one below its capacity
+            for (int i = 0; i < 100; i++) {
+                if (i % 10 != 0) {
+                    tree.deleteNode("/same/small/" + i, 3);
+                }
+            }
+        }
+        // the big one went past the compact set, the small one didn't
+        Assert.assertTrue(compact.getNode("/same").getChildren()
+                          instanceof java.util.HashSet);
+        Assert.assertTrue(compact.getNode("/same/small").getChildren()
+                          instanceof CompactChildSet);
+        assertSameTree(standard, compact, "/");
+
+        // and the compact one comes back the same from a snapshot
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        compact.serialize(BinaryOutputArchive.getArchive(baos), "tree");
+        DataTree loaded = newTree(true);
+        loaded.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "tree");
+        assertSameTree(standard, loaded, "/");
+        List<String> names = new ArrayList<String>(
+                loaded.getNode("/same/small").getChildren());
+        List<String> sorted = new ArrayList<String>(names);
+        Collections.sort(sorted);
+        Assert.assertEquals(sorted, names);
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.ExpiryQueueTest.Elem;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the time and the memory allocated per update of an ExpiryQueue
+ * holding 100k elements, as connections and sessions are touched.
+ */
+public class ExpiryQueuePerfTest extends ZKTestCase {
+    protected static final Logger LOG = LoggerFactory.getLogger(ExpiryQueuePerfTest.class);
+
+    private static final int ELEMENTS = 100000;
+    private static final int ROUNDS = 50;
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean =
+            ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * @param interval the expiration interval of the queue, the shorter the
+     *        more updates move their element to another bucket
+     */
+    private void run(int interval) {
+        ExpiryQueue<Elem> queue = new ExpiryQueue<Elem>(interval);
+        Elem[] elems = new Elem[ELEMENTS];
+        for (int i = 0; i < ELEMENTS; i++) {
+            elems[i] = new Elem(Integer.toString(i));
+            queue.update(elems[i], 30000);
+        }
+        long moved = 0;
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < ELEMENTS; i++) {
+                if (queue.update(elems[i], 30000 + round) != -1) {
+                    moved++;
+                }
+            }
+            queue.poll();
+        }
+        long ns = System.nanoTime() - start;
+        long bytes = allocatedBytes() - startBytes;
+        long updates = (long) ROUNDS * ELEMENTS;
+        LOG.info("interval " + interval + "ms: " + updates + " updates, "
+                 + moved + " moved, " + (ns / updates) + " ns/update, "
+                 + (startBytes < 0 ? "unknown"
+                    : String.format("%.2f", (double) bytes / updates))
+                 + " bytes allocated/update");
+    }
+
+    @Test
+    public void testUpdateAllocation() {
+        run(1);
+        run(2000);
+    }
+}
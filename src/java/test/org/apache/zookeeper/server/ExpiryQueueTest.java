@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Test;
+
+public class ExpiryQueueTest extends ZKTestCase {
+    static class Elem implements ExpiryQueue.Expirable {
+        private final String name;
+        private final ExpiryQueue.Slot slot = new ExpiryQueue.Slot(this);
+
+        Elem(String name) {
+            this.name = name;
+        }
+
+        public ExpiryQueue.Slot getExpirySlot() {
+            return slot;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Poll the queue until it has gone past the given time.
+     * @return the elements expired
+     */
+    private static Set<Elem> pollUntil(ExpiryQueue<Elem> queue, long time)
+        throws InterruptedException
+    {
+        Set<Elem> expired = new HashSet<Elem>();
+        while (System.currentTimeMillis() <= time) {
+            long waitTime = queue.getWaitTime();
+            if (waitTime > 0) {
+                Thread.sleep(waitTime);
+                continue;
+            }
+            expired.addAll(queue.poll());
+        }
+        expired.addAll(queue.poll());
+        return expired;
+    }
+
+    private static String dump(ExpiryQueue<Elem> queue) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pwriter = new PrintWriter(sw);
+        queue.dump(pwriter);
+        pwriter.flush();
+        return sw.toString();
+    }
+
+    @Test(timeout = 30000)
+    public void testUpdateAndExpire() throws Exception {
+        ExpiryQueue<Elem> queue = new ExpiryQueue<Elem>(10);
+        Elem a = new Elem("a");
+        Elem b = new Elem("b");
+        Elem c = new Elem("c");
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(queue.update(a, 50) > start + 50);
+        Assert.assertTrue(queue.update(b, 50) > start + 50);
+        queue.update(c, 2000);
+        // still in the same interval unless the clock moved on
+        long again = queue.update(a, 50);
+        Assert.assertTrue(again == -1 || again > start + 50);
+        Assert.assertTrue(dump(queue).contains("/(3):"));
+
+        Assert.assertTrue(queue.remove(b) > start);
+        Assert.assertEquals(-1, queue.remove(b));
+
+        Set<Elem> expired = pollUntil(queue, start + 100);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertTrue(expired.contains(a));
+        Assert.assertEquals(-1, queue.remove(a));
+        Assert.assertTrue(dump(queue).contains("/(1):"));
+        Assert.assertTrue(dump(queue).contains("\tc"));
+
+        // touching c keeps pushing it back
+        queue.update(a, 50);
+        queue.update(c, 50);
+        queue.update(c, 200);
+        expired = pollUntil(queue, System.currentTimeMillis() + 100);
+        Assert.assertTrue(expired.contains(a));
+        Assert.assertFalse(expired.contains(c));
+    }
+
+    /**
+     * A timeout longer than the wheel goes around it more than once.
+     */
+    @Test(timeout = 30000)
+    public void testTimeoutLongerThanWheel() throws Exception {
+        ExpiryQueue<Elem> queue = new ExpiryQueue<Elem>(1);
+        Elem shortLived = new Elem("short");
+        Elem longLived = new Elem("long");
+        long start = System.currentTimeMillis();
+        queue.update(shortLived, 10);
+        long expiryTime = queue.update(longLived, 1500);
+
+        Set<Elem> expired = pollUntil(queue, start + 1000);
+        Assert.assertTrue(expired.contains(shortLived));
+        Assert.assertFalse(expired.contains(longLived));
+
+        expired = pollUntil(queue, expiryTime);
+        Assert.assertTrue(expired.contains(longLived));
+        Assert.assertTrue(System.currentTimeMillis() >= expiryTime);
+        Assert.assertTrue(dump(queue).contains("Sets (0)/(0):"));
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Test;
+
+public class FairWorkQueueTest extends ZKTestCase {
+    private static final long QUANTUM = 1000000;
+
+    private static class Work implements Runnable, FairWorkQueue.Keyed {
+        final long key;
+        final int seq;
+
+        Work(long key, int seq) {
+            this.key = key;
+            this.seq = seq;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        public void run() {
+        }
+    }
+
+    @Test
+    public void testOrderWithinKey() {
+        FairWorkQueue queue = new FairWorkQueue(QUANTUM);
+        for (int i = 0; i < 10; i++) {
+            for (long key = 1; key <= 3; key++) {
+                queue.offer(new Work(key, i));
+            }
+        }
+        Assert.assertEquals(30, queue.size());
+        int[] next = new int[4];
+        Work work;
+        while ((work = (Work) queue.poll()) != null) {
+            Assert.assertEquals(next[(int) work.key]++, work.seq);
+            queue.charge(QUANTUM / 3);
+        }
+        Assert.assertEquals(0, queue.size());
+        for (int key = 1; key <= 3; key++) {
+            Assert.assertEquals(10, next[key]);
+        }
+    }
+
+    /**
+     * A key whose work costs ten quanta gets a turn for every ten turns of a
+     * key whose work is cheap.
+     */
+    @Test
+    public void testExpensiveKeyYields() {
+        FairWorkQueue queue = new FairWorkQueue(QUANTUM);
+        for (int i = 0; i < 20; i++) {
+            queue.offer(new Work(1, i));
+        }
+        for (int i = 0; i < 200; i++) {
+            queue.offer(new Work(2, i));
+        }
+        int expensiveRun = 0;
+        int cheapRun = 0;
+        Work work;
+        while ((work = (Work) queue.poll()) != null) {
+            if (work.key == 1) {
+                expensiveRun++;
+                queue.charge(10 * QUANTUM);
+            } else {
+                cheapRun++;
+                queue.charge(QUANTUM);
+            }
+            if (cheapRun == 200) {
+                break;
+            }
+        }
+        // about one expensive piece of work for ten cheap turns
+        Assert.assertTrue("expensive work ran " + expensiveRun + " times",
+                          expensiveRun <= 200 / 10 + 1);
+        Assert.assertEquals(20 - expensiveRun, queue.size());
+    }
+
+    @Test
+    public void testRemoveAndDrain() {
+        FairWorkQueue queue = new FairWorkQueue(QUANTUM);
+        Work a = new Work(1, 0);
+        Work b = new Work(2, 0);
+        Work c = new Work(2, 1);
+        queue.offer(a);
+        queue.offer(b);
+        queue.offer(c);
+        Assert.assertTrue(queue.remove(b));
+        Assert.assertFalse(queue.remove(b));
+        Assert.assertEquals(2, queue.size());
+        List<Runnable> drained = new ArrayList<Runnable>();
+        Assert.assertEquals(2, queue.drainTo(drained));
+        Assert.assertTrue(drained.contains(a));
+        Assert.assertTrue(drained.contains(c));
+        Assert.assertNull(queue.poll());
+    }
+
+    /**
+     * With fair scheduling, the work of an id isn't stuck behind the backlog
+     * of another id assigned to the same worker thread.
+     */
+    @Test(timeout = 30000)
+    public void testFairWorkerService() throws Exception {
+        WorkerService workerPool =
+            new WorkerService("FairWorkQueueTest", 1, true, QUANTUM);
+        final List<Integer> done =
+            Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(21);
+        for (int i = 0; i < 20; i++) {
+            final int seq = i;
+            workerPool.schedule(new WorkerService.WorkRequest() {
+                public void doWork() throws Exception {
+                    Thread.sleep(10);
+                    done.add(seq);
+                    latch.countDown();
+                }
+            }, 1);
+        }
+        Assert.assertEquals(1, workerPool.getNumQueues());
+        Assert.assertTrue(workerPool.getQueueDepth(0) > 0);
+        workerPool.schedule(new WorkerService.WorkRequest() {
+            public void doWork() {
+                done.add(-1);
+                latch.countDown();
+            }
+        }, 2);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        workerPool.stop();
+        workerPool.join(5000);
+
+        int cheap = done.indexOf(-1);
+        Assert.assertTrue("cheap work ran after " + cheap, cheap < 5);
+        done.remove(cheap);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(i, done.get(i).intValue());
+        }
+        Assert.assertEquals(0, workerPool.getQueueDepth(0));
+        Assert.assertEquals(21, workerPool.getWaitTime(0).getCount());
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.ByteBufferOutputArchive;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.junit.After;
+import org.junit.Test;
+
+public class OffHeapDataStoreTest extends ZKTestCase {
+    @After
+    public void tearDown() {
+        System.clearProperty(OffHeapDataStore.ZOOKEEPER_OFFHEAP_DATA_CAPACITY);
+        System.clearProperty(OffHeapDataStore.ZOOKEEPER_OFFHEAP_DATA_MIN_SIZE);
+    }
+
+    private static byte[] data(int len, int seed) {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    @Test
+    public void testStoreAndFree() {
+        OffHeapDataStore store = new OffHeapDataStore(1024 * 1024, 100);
+        Assert.assertNull(store.store(null));
+        Assert.assertNull(store.store(data(99, 0)));
+        Assert.assertEquals(0, store.getAllocatedBytes());
+
+        OffHeapDataStore.Chunk chunk = store.store(data(1000, 1));
+        Assert.assertNotNull(chunk);
+        Assert.assertEquals(1000, chunk.getLength());
+        Assert.assertTrue(Arrays.equals(data(1000, 1), chunk.toByteArray()));
+        Assert.assertEquals(1024 * 1024, store.getAllocatedBytes());
+        Assert.assertEquals(1000, store.getUsedBytes());
+        Assert.assertEquals(1, store.getChunkCount());
+
+        // a reader keeps the chunk from being freed
+        Assert.assertTrue(chunk.retain());
+        chunk.release();
+        Assert.assertEquals(1, store.getChunkCount());
+        Assert.assertTrue(Arrays.equals(data(1000, 1), chunk.toByteArray()));
+        chunk.release();
+        Assert.assertEquals(0, store.getChunkCount());
+        Assert.assertEquals(0, store.getUsedBytes());
+        Assert.assertFalse(chunk.retain());
+        Assert.assertNull(chunk.toByteArray());
+
+        // the freed chunk is reused for data of the same size class
+        OffHeapDataStore.Chunk reused = store.store(data(600, 2));
+        Assert.assertTrue(Arrays.equals(data(600, 2), reused.toByteArray()));
+        Assert.assertEquals(1024 * 1024, store.getAllocatedBytes());
+    }
+
+    @Test
+    public void testCapacity() {
+        OffHeapDataStore store = new OffHeapDataStore(4 * 1024 * 1024, 1);
+        List<OffHeapDataStore.Chunk> chunks =
+            new ArrayList<OffHeapDataStore.Chunk>();
+        for (int i = 0; i < 3; i++) {
+            OffHeapDataStore.Chunk chunk = store.store(data(1024 * 1024, i));
+            Assert.assertNotNull(chunk);
+            chunks.add(chunk);
+        }
+        // the last MB of the slab goes to smaller chunks
+        OffHeapDataStore.Chunk small = store.store(data(100, 3));
+        Assert.assertNotNull(small);
+        Assert.assertNull(store.store(data(1024 * 1024, 4)));
+        Assert.assertEquals(1, store.getFallbacks());
+        Assert.assertEquals(4 * 1024 * 1024, store.getAllocatedBytes());
+
+        // data bigger than a slab stays on the heap
+        Assert.assertNull(store.store(data(4 * 1024 * 1024 + 1, 5)));
+
+        chunks.get(1).release();
+        OffHeapDataStore.Chunk chunk = store.store(data(1024 * 1024, 6));
+        Assert.assertNotNull(chunk);
+        Assert.assertTrue(Arrays.equals(data(1024 * 1024, 0),
+                                        chunks.get(0).toByteArray()));
+        Assert.assertTrue(Arrays.equals(data(1024 * 1024, 2),
+                                        chunks.get(2).toByteArray()));
+        Assert.assertTrue(Arrays.equals(data(1024 * 1024, 6),
+                                        chunk.toByteArray()));
+        Assert.assertTrue(Arrays.equals(data(100, 3), small.toByteArray()));
+    }
+
+    @Test
+    public void testResponseSerializesLikeGetDataResponse() throws Exception {
+        OffHeapDataStore store = new OffHeapDataStore(1024 * 1024, 1);
+        byte[] data = data(5000, 7);
+        Stat stat = new Stat(1, 2, 3, 4, 5, 6, 7, 8, data.length, 10, 11);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new GetDataResponse(data, stat).serialize(
+                BinaryOutputArchive.getArchive(baos), "response");
+        byte[] expected = baos.toByteArray();
+
+        OffHeapDataStore.Chunk chunk = store.store(data);
+        Assert.assertTrue(chunk.retain());
+        OffHeapDataResponse rsp = new OffHeapDataResponse(chunk, stat);
+
+        ByteBufferOutputArchive oa =
+            new ByteBufferOutputArchive(ByteBuffer.allocate(16));
+        rsp.serialize(oa, "response");
+        ByteBuffer bb = oa.getBuffer();
+        byte[] actual = new byte[bb.remaining()];
+        bb.get(actual);
+        Assert.assertTrue(Arrays.equals(expected, actual));
+
+        baos.reset();
+        rsp.serialize(BinaryOutputArchive.getArchive(baos), "response");
+        Assert.assertTrue(Arrays.equals(expected, baos.toByteArray()));
+
+        rsp.release();
+        chunk.release();
+        Assert.assertEquals(0, store.getChunkCount());
+    }
+
+    @Test
+    public void testDataTree() throws Exception {
+        System.setProperty(OffHeapDataStore.ZOOKEEPER_OFFHEAP_DATA_CAPACITY,
+                           Integer.toString(1024 * 1024));
+        System.setProperty(OffHeapDataStore.ZOOKEEPER_OFFHEAP_DATA_MIN_SIZE,
+                           "1000");
+        DataTree dt = new DataTree();
+        OffHeapDataStore store = dt.getOffHeapDataStore();
+        Assert.assertNotNull(store);
+
+        dt.createNode("/small", data(10, 0), Ids.OPEN_ACL_UNSAFE, 0, -1, 1, 1);
+        dt.createNode("/big", data(2000, 1), Ids.OPEN_ACL_UNSAFE, 0, -1, 2, 2);
+        Assert.assertEquals(1, store.getChunkCount());
+        Assert.assertNull(dt.getNode("/big").data);
+
+        Stat stat = new Stat();
+        Assert.assertTrue(Arrays.equals(data(2000, 1),
+                                        dt.getData("/big", stat, null)));
+        Assert.assertEquals(2000, stat.getDataLength());
+
+        // a response keeps the old data readable after it is replaced
+        OffHeapDataResponse rsp = (OffHeapDataResponse)
+            dt.getDataResponse("/big", new Stat(), null);
+        dt.setData("/big", data(3000, 2), 1, 3, 3);
+        Assert.assertEquals(2, store.getChunkCount());
+        rsp.release();
+        Assert.assertEquals(1, store.getChunkCount());
+        Assert.assertEquals(3000, store.getUsedBytes());
+        Assert.assertTrue(Arrays.equals(data(3000, 2),
+                                        dt.getData("/big", stat, null)));
+        Assert.assertTrue(dt.getDataResponse("/small", stat, null)
+                          instanceof GetDataResponse);
+
+        // back on the heap when it shrinks
+        dt.setData("/big", data(10, 3), 2, 4, 4);
+        Assert.assertEquals(0, store.getChunkCount());
+        dt.setData("/big", data(3000, 4), 3, 5, 5);
+
+        DataNode node = dt.getNode("/big");
+        dt.deleteNode("/big", 6);
+        Assert.assertEquals(0, store.getChunkCount());
+        Assert.assertEquals(3000, node.getDataLength());
+        try {
+            dt.getData("/big", stat, null);
+            Assert.fail("Deleted node found");
+        } catch (KeeperException.NoNodeException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.Perms;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+public class ReferenceCountedACLCacheTest extends ZKTestCase {
+
+    private static List<ACL> acl(String ip) {
+        List<ACL> acls = new ArrayList<ACL>();
+        acls.add(new ACL(Perms.ALL, new Id("ip", ip)));
+        return acls;
+    }
+
+    private static byte[] serialize(DataTree tree) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tree.serialize(BinaryOutputArchive.getArchive(baos), "tree");
+        return baos.toByteArray();
+    }
+
+    private static DataTree deserialize(byte[] snapshot) throws Exception {
+        DataTree tree = new DataTree();
+        tree.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(snapshot)), "tree");
+        return tree;
+    }
+
+    @Test
+    public void testReferenceCounts() {
+        ReferenceCountedACLCache cache = new ReferenceCountedACLCache();
+        Assert.assertEquals(Long.valueOf(-1), cache.convertAcls(null));
+        Assert.assertEquals(Ids.OPEN_ACL_UNSAFE, cache.convertLong(-1L));
+
+        Long a = cache.convertAcls(acl("1.1.1.1"));
+        Assert.assertEquals(a, cache.convertAcls(acl("1.1.1.1")));
+        Long b = cache.convertAcls(acl("2.2.2.2"));
+        Assert.assertFalse(a.equals(b));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(2, cache.getReferenceCount(a));
+        Assert.assertEquals(acl("2.2.2.2"), cache.convertLong(b));
+        long size = cache.approximateSize();
+        Assert.assertTrue(size > 0);
+
+        cache.removeUsage(b);
+        cache.removeUsage(a);
+        Assert.assertEquals(0, cache.getReferenceCount(b));
+        // unused ACLs are kept until purged
+        Assert.assertEquals(acl("2.2.2.2"), cache.convertLong(b));
+        Assert.assertEquals(1, cache.purgeUnused());
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(size / 2, cache.approximateSize());
+        Assert.assertEquals(-1, cache.getReferenceCount(b));
+        try {
+            cache.convertLong(b);
+            Assert.fail("Found a purged ACL");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        // a purged ACL comes back under a new long
+        Long c = cache.convertAcls(acl("2.2.2.2"));
+        Assert.assertTrue(c > b);
+        Assert.assertEquals(1, cache.getReferenceCount(c));
+    }
+
+    @Test
+    public void testDataTree() throws Exception {
+        DataTree tree = new DataTree();
+        for (int i = 0; i < 10; i++) {
+            tree.createNode("/node-" + i, new byte[0], acl("1.1.1." + i),
+                            0, -1, 1, 1);
+        }
+        tree.createNode("/shared", new byte[0], acl("1.1.1.0"), 0, -1, 1, 1);
+        Assert.assertEquals(10, tree.getAclSize());
+
+        for (int i = 0; i < 5; i++) {
+            tree.deleteNode("/node-" + i, 2);
+        }
+        tree.setACL("/node-5", acl("1.1.1.0"), 1);
+        tree.setACL("/node-6", acl("1.1.1.100"), 1);
+        Assert.assertEquals(11, tree.getAclSize());
+
+        // 1.1.1.1-1.1.1.6 are no longer used
+        DataTree loaded = deserialize(serialize(tree));
+        Assert.assertEquals(5, tree.getAclSize());
+        Assert.assertEquals(5, loaded.getAclSize());
+        Assert.assertEquals(tree.approximateAclSize(),
+                            loaded.approximateAclSize());
+        for (String path : new String[] { "/shared", "/node-5", "/node-6",
+                                          "/node-7", "/node-8", "/node-9" }) {
+            Assert.assertEquals(tree.getACL(path, new Stat()),
+                                loaded.getACL(path, new Stat()));
+        }
+        ReferenceCountedACLCache cache = loaded.getAclCache();
+        Assert.assertEquals(2, cache.getReferenceCount(
+                loaded.getNode("/shared").acl));
+        Assert.assertEquals(loaded.getNode("/shared").acl,
+                            loaded.getNode("/node-5").acl);
+    }
+
+    @Test
+    public void testDuplicatesInSnapshot() throws Exception {
+        // two longs for the same ACL, as ACLs written in parallel could
+        // leave in an older snapshot
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(baos);
+        oa.writeInt(2, "map");
+        for (long id = 1; id <= 2; id++) {
+            List<ACL> acls = acl("1.1.1.1");
+            oa.writeLong(id, "long");
+            oa.startVector(acls, "acls");
+            for (ACL acl : acls) {
+                acl.serialize(oa, "acl");
+            }
+            oa.endVector(acls, "acls");
+        }
+        ReferenceCountedACLCache cache = new ReferenceCountedACLCache();
+        cache.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(Long.valueOf(1), cache.addUsage(2L));
+        Assert.assertEquals(Long.valueOf(1), cache.addUsage(1L));
+        Assert.assertEquals(2, cache.getReferenceCount(1L));
+
+        Assert.assertEquals(0, cache.purgeUnused());
+        Assert.assertEquals(-1, cache.getReferenceCount(2L));
+        Assert.assertEquals(Long.valueOf(1), cache.convertAcls(acl("1.1.1.1")));
+        Assert.assertEquals(Long.valueOf(3), cache.convertAcls(acl("3.3.3.3")));
+    }
+
+    @Test
+    public void testAclOfDeletedNode() throws Exception {
+        DataTree tree = new DataTree();
+        tree.createNode("/node", new byte[0], acl("1.1.1.1"), 0, -1, 1, 1);
+        // a reader looks the node up, then it is deleted and its acl purged
+        DataNode node = tree.getNode("/node");
+        tree.deleteNode("/node", 2);
+        serialize(tree);
+        Assert.assertEquals(0, tree.getAclSize());
+        try {
+            tree.getACL(node);
+            Assert.fail("Found the acl of a deleted node");
+        } catch (KeeperException.NoNodeException e) {
+            // expected
+        }
+
+        // a node whose acl changed still has one
+        tree.createNode("/node", new byte[0], acl("1.1.1.1"), 0, -1, 3, 3);
+        node = tree.getNode("/node");
+        tree.setACL("/node", acl("2.2.2.2"), 1);
+        serialize(tree);
+        Assert.assertEquals(acl("2.2.2.2"), tree.getACL(node));
+    }
+
+    @Test
+    public void testNoPurgeDuringSnapshot() throws Exception {
+        final DataTree tree = new DataTree();
+        tree.createNode("/node", new byte[0], acl("1.1.1.1"), 0, -1, 1, 1);
+        final Long acl = tree.getNode("/node").acl;
+        final ByteArrayOutputStream second = new ByteArrayOutputStream();
+        // another snapshot is serialized while the first writes its nodes
+        tree.serialize(BinaryOutputArchive.getArchive(
+                new ByteArrayOutputStream()), "tree",
+                new DataTree.NodeBoundaryListener() {
+                    boolean started;
+
+                    public void nodeStart() throws IOException {
+                        if (started) {
+                            return;
+                        }
+                        started = true;
+                        try {
+                            tree.deleteNode("/node", 2);
+                        } catch (KeeperException.NoNodeException e) {
+                            throw new IOException(e.toString());
+                        }
+                        tree.serialize(BinaryOutputArchive.getArchive(second),
+                                       "tree");
+                    }
+
+                    public void nodesEnd() {
+                    }
+                });
+        Assert.assertTrue(second.size() > 0);
+        // kept for the first snapshot, purged by the next one
+        Assert.assertEquals(0, tree.getAclCache().getReferenceCount(acl));
+        serialize(tree);
+        Assert.assertEquals(-1, tree.getAclCache().getReferenceCount(acl));
+    }
+
+    @Test
+    public void testConcurrentPurge() throws Exception {
+        final ReferenceCountedACLCache cache = new ReferenceCountedACLCache();
+        final int threads = 4;
+        final int rounds = 20000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger wrong = new AtomicInteger();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread("acl-user-" + t) {
+                public void run() {
+                    for (int i = 0; i < rounds; i++) {
+                        List<ACL> acls = acl("1.1.1." + (i + thread) % 8);
+                        Long id = cache.convertAcls(acls);
+                        // what a node holds stays there until released
+                        if (!acls.equals(cache.convertLong(id))) {
+                            wrong.incrementAndGet();
+                        }
+                        cache.removeUsage(id);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        while (done.getCount() > 0) {
+            cache.purgeUnused();
+        }
+        Assert.assertEquals(0, wrong.get());
+        cache.purgeUnused();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.approximateSize());
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.SessionTracker.Session;
+import org.apache.zookeeper.server.SessionTracker.SessionExpirer;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the throughput of touchSession and checkSession as the number of
+ * threads calling them grows, as selector and worker threads do.
+ */
+public class SessionTrackerPerfTest extends ZKTestCase {
+    protected static final Logger LOG = LoggerFactory.getLogger(SessionTrackerPerfTest.class);
+
+    private static final int SESSIONS = 60000;
+    private static final int TIMEOUT = 30000;
+    private static final long DURATION_MS = 2000;
+
+    private static class NullExpirer implements SessionExpirer {
+        public void expire(Session session) {
+        }
+
+        public long getServerId() {
+            return 0;
+        }
+    }
+
+    /** The connection all the sessions are checked from */
+    private final Object owner = new Object();
+
+    private long run(final SessionTrackerImpl tracker, final long firstId,
+                     int threads) throws Exception {
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long end = System.currentTimeMillis() + DURATION_MS;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * (SESSIONS / threads);
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    long ops = 0;
+                    try {
+                        start.await();
+                        int i = offset;
+                        while (System.currentTimeMillis() < end) {
+                            for (int j = 0; j < 1000; j++) {
+                                long id = firstId + (i++ % SESSIONS);
+                                tracker.touchSession(id, TIMEOUT);
+                                tracker.checkSession(id, owner);
+                                ops++;
+                            }
+                        }
+                    } catch (Exception e) {
+                        LOG.error("Touch failed", e);
+                        ops = -SESSIONS;
+                    }
+                    total.addAndGet(ops);
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return total.get();
+    }
+
+    @Test
+    public void testConcurrentTouch() throws Exception {
+        SessionTrackerImpl tracker = new SessionTrackerImpl(new NullExpirer(),
+                new ConcurrentHashMap<Long, Integer>(), 2000, 1);
+        long firstId = tracker.createSession(TIMEOUT);
+        for (int i = 1; i < SESSIONS; i++) {
+            tracker.createSession(TIMEOUT);
+        }
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            long ops = run(tracker, firstId, threads);
+            Assert.assertTrue(ops > 0);
+            LOG.info(threads + " threads: " + (ops * 1000 / DURATION_MS)
+                     + " touch+check/s");
+        }
+    }
+}
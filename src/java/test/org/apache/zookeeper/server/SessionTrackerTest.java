@@ -20,8 +20,13 @@ package org.apache.zookeeper.server;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
@@ -116,6 +121,131 @@ public class SessionTrackerTest extends ZKTestCase {
                 + " still exists after removal", actualSession);
     }
 
+    /**
+     * Sessions removed while other threads touch and check them are neither
+     * left in the expiry queue nor touched back to life.
+     */
+    @Test(timeout = 60000)
+    public void testConcurrentTouchAndRemove() throws Exception {
+        final SessionTrackerImpl tracker = new SessionTrackerImpl(
+                new SessionTracker.SessionExpirer() {
+                    public void expire(SessionTracker.Session session) {
+                    }
+
+                    public long getServerId() {
+                        return 0;
+                    }
+                }, new ConcurrentHashMap<Long, Integer>(), 3000, 1);
+        final int count = 2000;
+        final long firstId = tracker.createSession(sessionTimeout);
+        for (int i = 1; i < count; i++) {
+            tracker.createSession(sessionTimeout);
+        }
+        final Object owner = new Object();
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] touchers = new Thread[4];
+        for (int t = 0; t < touchers.length; t++) {
+            touchers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < 50; round++) {
+                        for (long id = firstId; id < firstId + count; id++) {
+                            tracker.touchSession(id, sessionTimeout);
+                            try {
+                                tracker.checkSession(id, owner);
+                            } catch (KeeperException.SessionExpiredException e) {
+                                // removed or closing
+                            } catch (KeeperException e) {
+                                // all the threads check with the same owner
+                                failed.set(true);
+                            }
+                        }
+                    }
+                }
+            };
+            touchers[t].start();
+        }
+        for (long id = firstId; id < firstId + count; id += 2) {
+            tracker.setSessionClosing(id);
+            tracker.removeSession(id);
+        }
+        for (Thread toucher : touchers) {
+            toucher.join();
+        }
+        Assert.assertFalse(failed.get());
+        Assert.assertEquals(count / 2, tracker.sessionsById.size());
+        for (long id = firstId; id < firstId + count; id += 2) {
+            Assert.assertFalse(tracker.touchSession(id, sessionTimeout));
+        }
+        // every remaining session is queued once, the removed ones are not
+        Assert.assertTrue(tracker.toString(),
+                tracker.toString().contains("/(" + count / 2 + "):"));
+    }
+
+    /**
+     * Sessions that expire while other threads touch them are expired only
+     * once, a touch racing with the expiry doesn't queue them again.
+     */
+    @Test(timeout = 60000)
+    public void testConcurrentTouchAndExpire() throws Exception {
+        final ConcurrentHashMap<Long, AtomicInteger> expired =
+            new ConcurrentHashMap<Long, AtomicInteger>();
+        final SessionTrackerImpl tracker = new SessionTrackerImpl(
+                new SessionTracker.SessionExpirer() {
+                    public void expire(SessionTracker.Session session) {
+                        expired.putIfAbsent(session.getSessionId(),
+                                            new AtomicInteger());
+                        expired.get(session.getSessionId()).incrementAndGet();
+                    }
+
+                    public long getServerId() {
+                        return 0;
+                    }
+                }, new ConcurrentHashMap<Long, Integer>(), 10, 1);
+        final int count = 200;
+        final int timeout = 20;
+        final long firstId = tracker.createSession(timeout);
+        for (int i = 1; i < count; i++) {
+            tracker.createSession(timeout);
+        }
+        tracker.start();
+        Thread[] touchers = new Thread[4];
+        for (int t = 0; t < touchers.length; t++) {
+            final Random r = new Random(t);
+            touchers[t] = new Thread() {
+                @Override
+                public void run() {
+                    long end = System.currentTimeMillis() + 2000;
+                    while (System.currentTimeMillis() < end) {
+                        for (long id = firstId; id < firstId + count; id++) {
+                            tracker.touchSession(id, timeout);
+                        }
+                        // sometimes long enough for the sessions to expire
+                        try {
+                            Thread.sleep(r.nextInt(2 * timeout));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+            touchers[t].start();
+        }
+        for (Thread toucher : touchers) {
+            toucher.join();
+        }
+        // give sessions queued again the time to expire a second time
+        Thread.sleep(10 * timeout);
+        tracker.shutdown();
+        tracker.join();
+
+        Assert.assertFalse("No session expired", expired.isEmpty());
+        for (Entry<Long, AtomicInteger> e : expired.entrySet()) {
+            Assert.assertEquals("Expiries of 0x" + Long.toHexString(e.getKey()),
+                                1, e.getValue().get());
+        }
+    }
+
     private ZooKeeperServer setupSessionTracker() throws IOException {
         File tmpDir = ClientBase.createTmpDir();
         ClientBase.setupTestEnv();
@@ -143,8 +273,9 @@ public class SessionTrackerTest extends ZKTestCase {
         public void processRequest(Request request) {
             // check session close request
             if (request.type == OpCode.closeSession) {
-                latch.countDown();
+                // counted before the test waiting on the latch can check it
                 countOfCloseSessionReq++;
+                latch.countDown();
             }
         }
 
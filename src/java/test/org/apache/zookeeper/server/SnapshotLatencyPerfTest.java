@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the latency of the txns applied while a snapshot is written, with
+ * the snapshot taken from a live traversal of the tree and from a
+ * copy-on-write view.
+ */
+public class SnapshotLatencyPerfTest extends ZKTestCase {
+    protected static final Logger LOG = LoggerFactory.getLogger(SnapshotLatencyPerfTest.class);
+
+    private static final int SNAPSHOTS = 5;
+
+    private static class Writer extends Thread {
+        private final DataTree tree;
+        private volatile boolean stop;
+        private long[] latencies = new long[1024 * 1024];
+        private int count;
+        private Exception failure;
+
+        Writer(DataTree tree) {
+            super("SnapshotLatencyWriter");
+            this.tree = tree;
+        }
+
+        @Override
+        public void run() {
+            long zxid = 1000;
+            byte[] data = new byte[256];
+            try {
+                while (!stop) {
+                    String path = "/node3/" + (zxid % 200) + "node2";
+                    long start = System.nanoTime();
+                    tree.processTxn(new TxnHeader(1, 1, zxid, 1, OpCode.setData),
+                            new SetDataTxn(path, data, -1));
+                    record(System.nanoTime() - start);
+                    zxid++;
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        private void record(long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+
+        long percentile(double p) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) (count * p))];
+        }
+    }
+
+    private void run(boolean copyOnWrite, File tmpDir) throws Exception {
+        System.setProperty(DataTree.ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE,
+                           Boolean.toString(copyOnWrite));
+        DataTree tree;
+        try {
+            tree = new DataTree();
+        } finally {
+            System.clearProperty(DataTree.ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE);
+        }
+        SerializationPerfTest.createNodes(tree, "/", 3, 200,
+                tree.getNode("/").stat.getCversion(), new byte[256]);
+
+        Writer writer = new Writer(tree);
+        writer.start();
+        long snapshotTime = 0;
+        try {
+            for (int i = 0; i < SNAPSHOTS; i++) {
+                File snap = new File(tmpDir, "snapshot." + i);
+                long start = System.nanoTime();
+                OutputStream os =
+                    new BufferedOutputStream(new FileOutputStream(snap));
+                try {
+                    tree.serialize(BinaryOutputArchive.getArchive(os), "tree");
+                } finally {
+                    os.close();
+                }
+                snapshotTime += System.nanoTime() - start;
+                snap.delete();
+            }
+        } finally {
+            writer.stop = true;
+            writer.join();
+        }
+        Assert.assertNull(writer.failure);
+
+        LOG.info((copyOnWrite ? "copy-on-write" : "live") + " snapshots of "
+                 + tree.getNodeCount() + " nodes: "
+                 + snapshotTime / SNAPSHOTS / 1000000 + " ms each, "
+                 + writer.count + " txns, latency p50 "
+                 + writer.percentile(0.5) / 1000 + " us, p99 "
+                 + writer.percentile(0.99) / 1000 + " us, max "
+                 + writer.percentile(1.0) / 1000 + " us");
+    }
+
+    @Test
+    public void testWriteLatencyDuringSnapshot() throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        try {
+            run(false, tmpDir);
+            run(true, tmpDir);
+        } finally {
+            ClientBase.recursiveDelete(tmpDir);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.StatPersisted;
+import org.junit.Test;
+
+public class SnapshotViewTest extends ZKTestCase {
+    private static final int NODES = 100;
+
+    private final Map<String, DataNode> nodes =
+        new HashMap<String, DataNode>();
+
+    private static byte[] data(int i) {
+        return new byte[] { (byte) i };
+    }
+
+    private void setData(SnapshotView view, String path, byte[] data) {
+        DataNode node = nodes.get(path);
+        synchronized (node) {
+            view.preserve(path, node);
+            node.data = data;
+        }
+    }
+
+    @Test
+    public void testNothingKeptForReadNodes() {
+        for (int i = 0; i < NODES; i++) {
+            nodes.put("/n" + i,
+                      new DataNode(data(i), -1L, new StatPersisted()));
+        }
+        SnapshotView view = new SnapshotView(nodes);
+
+        // half of the nodes are modified before they are read
+        for (int i = 0; i < NODES; i += 2) {
+            setData(view, "/n" + i, data(-1));
+        }
+        Assert.assertEquals(NODES / 2, view.getCopiedOnWriteCount());
+        Assert.assertEquals(NODES / 2, view.getPreservedCount());
+
+        for (int i = 0; i < NODES; i++) {
+            DataNode node = view.get("/n" + i);
+            Assert.assertTrue(Arrays.equals(data(i), node.data));
+        }
+        Assert.assertNull(view.get("/none"));
+        Assert.assertEquals(0, view.getPreservedCount());
+
+        // the nodes that were read aren't preserved again
+        for (int i = 0; i < NODES; i++) {
+            setData(view, "/n" + i, data(-2));
+        }
+        Assert.assertEquals(NODES / 2, view.getCopiedOnWriteCount());
+        Assert.assertEquals(0, view.getPreservedCount());
+
+        try {
+            view.get("/n1");
+            Assert.fail("A node was read twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testOverlappingViews() {
+        nodes.put("/a", new DataNode(data(1), -1L, new StatPersisted()));
+        SnapshotView first = new SnapshotView(nodes);
+        setData(first, "/a", data(2));
+        SnapshotView second = new SnapshotView(nodes);
+
+        Assert.assertTrue(Arrays.equals(data(2), second.get("/a").data));
+        setData(first, "/a", data(3));
+        setData(second, "/a", data(4));
+        Assert.assertEquals(0, second.getCopiedOnWriteCount());
+        Assert.assertTrue(Arrays.equals(data(1), first.get("/a").data));
+        Assert.assertEquals(0, first.getPreservedCount());
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.ConcurrentWatchManager.PathIdSet;
+import org.junit.Test;
+
+/**
+ * Tests the WatchManager implementations.
+ */
+public class WatchManagerTest extends ZKTestCase {
+
+    private static class CountingWatcher implements Watcher {
+        final AtomicInteger events = new AtomicInteger();
+
+        public void process(WatchedEvent event) {
+            events.incrementAndGet();
+        }
+    }
+
+    private List<WatchManager> watchManagers() {
+        List<WatchManager> result = new ArrayList<WatchManager>();
+        result.add(new WatchManagerImpl());
+        result.add(new ConcurrentWatchManager());
+        return result;
+    }
+
+    @Test
+    public void testAddTriggerRemove() {
+        for (WatchManager wm : watchManagers()) {
+            CountingWatcher w1 = new CountingWatcher();
+            CountingWatcher w2 = new CountingWatcher();
+            wm.addWatch("/a", w1);
+            wm.addWatch("/a", w1);
+            wm.addWatch("/a", w2);
+            wm.addWatch("/b", w1);
+            Assert.assertEquals(3, wm.size());
+
+            Set<Watcher> triggered = wm.triggerWatch("/a",
+                    EventType.NodeDataChanged, Collections.<Watcher>singleton(w2));
+            Assert.assertEquals(2, triggered.size());
+            Assert.assertEquals(1, w1.events.get());
+            Assert.assertEquals(0, w2.events.get());
+            Assert.assertEquals(1, wm.size());
+            Assert.assertNull(wm.triggerWatch("/a", EventType.NodeDataChanged));
+
+            wm.removeWatcher(w1);
+            Assert.assertEquals(0, wm.size());
+            Assert.assertNull(wm.triggerWatch("/b", EventType.NodeDeleted));
+            Assert.assertEquals(1, w1.events.get());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentAddRemove() throws Exception {
+        for (final WatchManager wm : watchManagers()) {
+            final int numPaths = 200;
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < 50; i++) {
+                            CountingWatcher w = new CountingWatcher();
+                            for (int p = 0; p < numPaths; p++) {
+                                wm.addWatch("/node" + p, w);
+                            }
+                            wm.triggerWatch("/node" + i, EventType.NodeDeleted);
+                            wm.removeWatcher(w);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            Assert.assertEquals(0, wm.size());
+        }
+    }
+
+    @Test
+    public void testPathIdSet() {
+        PathIdSet set = new PathIdSet();
+        // sparse ids stay in the array
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(set.add(i * 1000));
+        }
+        // dense ids switch to a BitSet
+        for (int i = 0; i < 5000; i++) {
+            set.add(i);
+        }
+        Assert.assertEquals(5000 + 95, set.size());
+        Assert.assertTrue(set.contains(99000));
+        set.remove(99000);
+        Assert.assertFalse(set.contains(99000));
+        Assert.assertEquals(5000 + 94, set.toArray().length);
+
+        set.close();
+        Assert.assertFalse(set.add(1000000));
+        Assert.assertFalse(set.contains(1000000));
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.Assert;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.proto.WatcherEvent;
+import org.junit.Test;
+
+public class WatchNotificationTest extends ZKTestCase {
+
+    @Test
+    public void testSharedSerializedBuffer() throws Exception {
+        WatchNotification n = new WatchNotification(EventType.NodeDataChanged,
+                KeeperState.SyncConnected, "/foo");
+
+        ByteBuffer b1 = n.getSerialized();
+        ByteBuffer b2 = n.getSerialized();
+        Assert.assertTrue(b1.isReadOnly());
+        Assert.assertNotSame(b1, b2);
+        Assert.assertEquals(n.getSerializedSize(), b1.remaining());
+
+        // consuming one view doesn't affect the other
+        byte[] bytes = new byte[b1.remaining()];
+        b1.get(bytes);
+        Assert.assertEquals(0, b1.remaining());
+        Assert.assertEquals(bytes.length, b2.remaining());
+
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(bytes));
+        Assert.assertEquals(bytes.length - 4, ia.readInt("len"));
+        ReplyHeader h = new ReplyHeader();
+        h.deserialize(ia, "header");
+        Assert.assertEquals(-1, h.getXid());
+        WatcherEvent e = new WatcherEvent();
+        e.deserialize(ia, "notification");
+        Assert.assertEquals("/foo", e.getPath());
+        Assert.assertEquals(EventType.NodeDataChanged.getIntValue(),
+                            e.getType());
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.util;
+
+import junit.framework.Assert;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Test;
+
+public class HistogramTest extends ZKTestCase {
+
+    @Test
+    public void testBuckets() {
+        Histogram h = new Histogram(4);
+        h.add(0);
+        h.add(1);
+        h.add(2);
+        h.add(3);
+        h.add(4);
+        h.add(1000);
+
+        long[] counts = h.getCounts();
+        Assert.assertEquals(1, counts[0]);
+        Assert.assertEquals(1, counts[1]);
+        Assert.assertEquals(2, counts[2]);
+        // everything from 4 up goes into the last bucket
+        Assert.assertEquals(2, counts[3]);
+        Assert.assertEquals(6, h.getCount());
+        Assert.assertEquals(1010 / 6, h.getAvg());
+        Assert.assertEquals(1000, h.getMax());
+        Assert.assertEquals("0-0:1 1-1:1 2-3:2 4-inf:2", h.toString());
+
+        h.reset();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals("", h.toString());
+    }
+}
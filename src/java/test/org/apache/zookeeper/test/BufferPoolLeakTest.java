@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.BufferPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the pooled buffers connections read requests into and write
+ * responses from all go back to the pool.
+ */
+public class BufferPoolLeakTest extends ClientBase {
+    @Test
+    public void testNoBufferLeaked() throws Exception {
+        BufferPool pool = serverFactory.getBufferPool();
+
+        for (int c = 0; c < 3; c++) {
+            ZooKeeper zk = createClient();
+            try {
+                // sizes across the size classes
+                int[] sizes = { 0, 100, 5000, 300000, 900000 };
+                for (int size : sizes) {
+                    String path = "/leak-" + c + "-" + size;
+                    zk.create(path, new byte[size], Ids.OPEN_ACL_UNSAFE,
+                              CreateMode.PERSISTENT);
+                    Assert.assertEquals(size,
+                            zk.getData(path, false, new Stat()).length);
+                    zk.setData(path, new byte[size / 2], -1);
+                }
+                try {
+                    zk.getData("/leak-none", false, null);
+                    Assert.fail("Node shouldn't exist");
+                } catch (KeeperException.NoNodeException e) {
+                    // expected
+                }
+                zk.getChildren("/", false);
+            } finally {
+                zk.close();
+            }
+        }
+
+        // the last responses may still be being written
+        for (int i = 0; i < 50 && pool.getOutstanding() != 0; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(0, pool.getOutstanding());
+        Assert.assertTrue(pool.getAllocated() > 0);
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.TreeSet;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataTree;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CopyOnWriteSnapshotTest extends ZKTestCase {
+    private DataTree dt;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty(DataTree.ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE, "true");
+        dt = new DataTree();
+        System.clearProperty(DataTree.ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE);
+        dt.createNode("/a", "a".getBytes(), Ids.OPEN_ACL_UNSAFE, 0, 1, 1, 1);
+        dt.createNode("/a/x", "x".getBytes(), Ids.OPEN_ACL_UNSAFE, 0, 1, 2, 1);
+        dt.createNode("/b", "b".getBytes(), Ids.OPEN_ACL_UNSAFE, 0, 1, 3, 1);
+        dt.createNode("/b/y", "y".getBytes(), Ids.OPEN_ACL_UNSAFE, 1, 1, 4, 1);
+        dt.createNode("/c", "c".getBytes(), Ids.OPEN_ACL_UNSAFE, 0, 1, 5, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dt = null;
+    }
+
+    private static byte[] serialize(DataTree tree,
+            DataTree.NodeBoundaryListener listener) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tree.serialize(BinaryOutputArchive.getArchive(baos), "tree",
+                       listener);
+        return baos.toByteArray();
+    }
+
+    private static DataTree deserialize(byte[] bytes) throws IOException {
+        DataTree tree = new DataTree();
+        tree.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(bytes)), "tree");
+        return tree;
+    }
+
+    private static void assertSameNode(DataTree expected, DataTree actual,
+                                       String path) throws Exception {
+        Stat expectedStat = new Stat();
+        Stat actualStat = new Stat();
+        Assert.assertNotNull("missing " + path, actual.getNode(path));
+        Assert.assertArrayEquals(expected.getData(path, expectedStat, null),
+                                 actual.getData(path, actualStat, null));
+        Assert.assertEquals(expectedStat, actualStat);
+        Assert.assertEquals(expected.getACL(path, new Stat()),
+                            actual.getACL(path, new Stat()));
+        TreeSet<String> children =
+            new TreeSet<String>(expected.getChildren(path, null, null));
+        Assert.assertEquals(children,
+                new TreeSet<String>(actual.getChildren(path, null, null)));
+        for (String child : children) {
+            assertSameNode(expected, actual,
+                           ("/".equals(path) ? "" : path) + "/" + child);
+        }
+    }
+
+    /**
+     * Changes made to the tree while it is serialized don't show in the
+     * snapshot, whether they are made to nodes that were already written or
+     * not.
+     */
+    @Test(timeout = 30000)
+    public void testPointInTime() throws Exception {
+        DataTree expected = deserialize(serialize(dt, null));
+
+        byte[] snapshot = serialize(dt, new DataTree.NodeBoundaryListener() {
+            private boolean changed;
+
+            public void nodeStart() throws IOException {
+                if (changed) {
+                    return;
+                }
+                // the root is being written, all the other nodes are not
+                changed = true;
+                try {
+                    dt.setData("/", "root".getBytes(), 1, 10, 10);
+                    dt.setData("/a/x", "changed".getBytes(), 1, 11, 11);
+                    dt.setACL("/c", Ids.READ_ACL_UNSAFE, 1);
+                    dt.deleteNode("/b/y", 12);
+                    dt.createNode("/b/z", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                                  0, -1, 13, 13);
+                    dt.createNode("/d", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                                  0, -1, 14, 14);
+                } catch (Exception e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+
+            public void nodesEnd() {
+            }
+        });
+
+        Assert.assertNotNull(dt.getNode("/d"));
+        Assert.assertNull(dt.getNode("/b/y"));
+        assertSameNode(expected, deserialize(snapshot), "/");
+
+        // the copies are dropped with the view
+        assertSameNode(dt, deserialize(serialize(dt, null)), "/");
+    }
+
+    /**
+     * A snapshot taken while another thread keeps changing the tree is
+     * complete and loads.
+     */
+    @Test(timeout = 60000)
+    public void testConcurrentWrites() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            dt.createNode("/c/n" + i, new byte[10], Ids.OPEN_ACL_UNSAFE,
+                          0, -1, 100 + i, 1);
+        }
+        final int baseNodeCount = dt.getNodeCount();
+        final boolean[] stop = new boolean[1];
+        final Exception[] failure = new Exception[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                long zxid = 10000;
+                try {
+                    while (true) {
+                        synchronized (stop) {
+                            if (stop[0]) {
+                                return;
+                            }
+                        }
+                        for (int i = 0; i < 1000; i++) {
+                            dt.setData("/c/n" + i, new byte[i % 20], 1,
+                                       zxid++, 1);
+                        }
+                        dt.createNode("/c/new", new byte[0],
+                                      Ids.OPEN_ACL_UNSAFE, 0, -1, zxid++, 1);
+                        dt.deleteNode("/c/new", zxid++);
+                    }
+                } catch (Exception e) {
+                    synchronized (stop) {
+                        failure[0] = e;
+                    }
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                DataTree loaded = deserialize(serialize(dt, null));
+                int count = loaded.getNodeCount();
+                Assert.assertTrue("unexpected node count " + count,
+                        count == baseNodeCount || count == baseNodeCount + 1);
+            }
+        } finally {
+            synchronized (stop) {
+                stop[0] = true;
+            }
+            writer.join();
+        }
+        Assert.assertNull(failure[0]);
+    }
+}
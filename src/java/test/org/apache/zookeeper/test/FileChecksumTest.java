@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.persistence.FileChecksum;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileChecksumTest extends ZKTestCase {
+    private File tmpDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = ClientBase.createTmpDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(FileChecksum.ZOOKEEPER_FILE_CHECKSUM);
+        ClientBase.recursiveDelete(tmpDir);
+    }
+
+    /**
+     * Both implementations of CRC32C give the standard check value.
+     */
+    @Test
+    public void testCrc32cCheckValue() {
+        byte[] data = "123456789".getBytes();
+        Checksum[] crcs = new Checksum[] {
+            FileChecksum.CRC32C.create(),
+            new FileChecksum.PureJavaCrc32C()
+        };
+        for (Checksum crc : crcs) {
+            crc.update(data, 0, data.length);
+            Assert.assertEquals(0xE3069283L, crc.getValue());
+            crc.reset();
+            for (byte b : data) {
+                crc.update(b);
+            }
+            Assert.assertEquals(0xE3069283L, crc.getValue());
+        }
+    }
+
+    @Test
+    public void testConfigured() throws Exception {
+        Assert.assertEquals(FileChecksum.ADLER32, FileChecksum.configured());
+        System.setProperty(FileChecksum.ZOOKEEPER_FILE_CHECKSUM, "crc32c");
+        Assert.assertEquals(FileChecksum.CRC32C, FileChecksum.configured());
+        System.setProperty(FileChecksum.ZOOKEEPER_FILE_CHECKSUM, "md5");
+        Assert.assertEquals(FileChecksum.ADLER32, FileChecksum.configured());
+
+        Assert.assertEquals(FileChecksum.ADLER32, FileChecksum.forVersion(2));
+        Assert.assertEquals(FileChecksum.CRC32C,
+                            FileChecksum.forVersion(FileTxnLog.VERSION));
+        try {
+            FileChecksum.forVersion(FileTxnLog.VERSION + 1);
+            Assert.fail("Unknown version should fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static void append(FileTxnLog log, long zxid) throws IOException {
+        TxnHeader hdr = new TxnHeader(1, 1, zxid, 1, OpCode.create);
+        CreateTxn txn = new CreateTxn("/node" + zxid, new byte[100],
+                Ids.OPEN_ACL_UNSAFE, false, 1);
+        log.append(hdr, txn);
+    }
+
+    private static int readVersion(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readInt();
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Logs written with Adler32 are read along with the ones written with
+     * CRC32C after the checksum is changed.
+     */
+    @Test
+    public void testMixedLogs() throws Exception {
+        FileTxnLog log = new FileTxnLog(tmpDir);
+        for (long zxid = 1; zxid <= 10; zxid++) {
+            append(log, zxid);
+        }
+        log.commit();
+        log.close();
+
+        System.setProperty(FileChecksum.ZOOKEEPER_FILE_CHECKSUM, "crc32c");
+        log = new FileTxnLog(tmpDir);
+        for (long zxid = 11; zxid <= 20; zxid++) {
+            append(log, zxid);
+        }
+        log.commit();
+        log.close();
+
+        Assert.assertEquals(2, readVersion(new File(tmpDir, "log.1")));
+        Assert.assertEquals(3, readVersion(new File(tmpDir, "log.b")));
+
+        TxnIterator itr = new FileTxnLog(tmpDir).read(1);
+        long zxid = 1;
+        do {
+            Assert.assertEquals(zxid++, itr.getHeader().getZxid());
+        } while (itr.next());
+        Assert.assertEquals(21, zxid);
+    }
+
+    /**
+     * A corrupted CRC32C log fails the checksum.
+     */
+    @Test
+    public void testCorruptedLog() throws Exception {
+        System.setProperty(FileChecksum.ZOOKEEPER_FILE_CHECKSUM, "crc32c");
+        FileTxnLog log = new FileTxnLog(tmpDir);
+        append(log, 1);
+        log.commit();
+        log.close();
+
+        RandomAccessFile raf =
+            new RandomAccessFile(new File(tmpDir, "log.1"), "rw");
+        // a byte of the path of the create txn
+        raf.seek(16 + 8 + 4 + 40);
+        raf.write('X');
+        raf.close();
+        try {
+            new FileTxnLog(tmpDir).read(1);
+            Assert.fail("Corrupted log should fail the checksum");
+        } catch (IOException e) {
+            Assert.assertEquals("CRC check failed", e.getMessage());
+        }
+    }
+
+    private void assertSnapshot(FileChecksum checksum) throws Exception {
+        DataTree dt = new DataTree();
+        dt.createNode("/" + checksum, new byte[10], null, 0, 1, 1, 1);
+        Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+        sessions.put(1L, 3000);
+        File snapDir = new File(tmpDir, checksum.toString());
+        snapDir.mkdir();
+        File snap = new File(snapDir, "snapshot.1");
+        new FileSnap(snapDir).serialize(dt, sessions, snap);
+        Assert.assertEquals(checksum.getVersion(), readVersion(snap));
+
+        DataTree restored = new DataTree();
+        Map<Long, Integer> restoredSessions = new HashMap<Long, Integer>();
+        Assert.assertEquals(1L, new FileSnap(snapDir).deserialize(
+                restored, restoredSessions));
+        Assert.assertNotNull(restored.getNode("/" + checksum));
+        Assert.assertEquals(sessions, restoredSessions);
+    }
+
+    @Test
+    public void testSnapshots() throws Exception {
+        assertSnapshot(FileChecksum.ADLER32);
+        System.setProperty(FileChecksum.ZOOKEEPER_FILE_CHECKSUM, "crc32c");
+        assertSnapshot(FileChecksum.CRC32C);
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerStats;
+import org.apache.zookeeper.server.SyncRequestProcessor;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs writes through the SyncRequestProcessor in group commit mode.
+ */
+public class GroupCommitTest extends ClientBase {
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(SyncRequestProcessor.GROUP_COMMIT, "true");
+        System.setProperty(SyncRequestProcessor.GROUP_COMMIT_MAX_BYTES, "4096");
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(SyncRequestProcessor.GROUP_COMMIT);
+        System.clearProperty(SyncRequestProcessor.GROUP_COMMIT_MAX_BYTES);
+    }
+
+    @Test(timeout = 60000)
+    public void testGroupCommit() throws Exception {
+        ZooKeeper zk = createClient();
+        int numRequests = 500;
+        final CountDownLatch latch = new CountDownLatch(numRequests);
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger lastSeq = new AtomicInteger(-1);
+        StringCallback cb = new StringCallback() {
+            public void processResult(int rc, String path, Object ctx,
+                                      String name) {
+                // responses must come back in the order the requests were sent
+                if (rc != Code.OK.intValue()
+                    || !lastSeq.compareAndSet((Integer) ctx - 1, (Integer) ctx)) {
+                    failed.incrementAndGet();
+                }
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < numRequests; i++) {
+            zk.create("/group" + i, new byte[100], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT, cb, i);
+        }
+        Assert.assertTrue(latch.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, failed.get());
+
+        ServerStats stats = getServer(serverFactory).serverStats();
+        long flushes = stats.getFsyncBatchSize().getCount();
+        Assert.assertTrue(flushes > 0);
+        // each flush is bounded by maxBytes, which only fits ~30 creates
+        Assert.assertTrue(stats.getFsyncBatchSize().getMax() < 100);
+    }
+}
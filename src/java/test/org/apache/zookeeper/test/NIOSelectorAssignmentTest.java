@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.apache.zookeeper.client.FourLetterWordMain.send4LetterWord;
+
+/**
+ * Connects clients to a server with several accept and selector threads,
+ * and checks how the connections are spread over the selector threads.
+ */
+public class NIOSelectorAssignmentTest extends ClientBase {
+    private static final int SELECTORS = 3;
+    private static final int CLIENTS = 12;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_SELECTOR_THREADS,
+                           Integer.toString(SELECTORS));
+        System.setProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_ACCEPT_THREADS,
+                           "2");
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_SELECTOR_THREADS);
+        System.clearProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_ACCEPT_THREADS);
+    }
+
+    /**
+     * @return the number of connections of each selector thread
+     */
+    private int[] selectorConnections() throws Exception {
+        String mntr = send4LetterWord(hostPort.split(":")[0],
+                serverFactory.getLocalPort(), "mntr");
+        Assert.assertTrue(mntr, mntr.contains("zk_nio_selector_0_utilization"));
+        int[] connections = new int[SELECTORS];
+        for (String line : mntr.split("\n")) {
+            for (int i = 0; i < SELECTORS; i++) {
+                String key = "zk_nio_selector_" + i + "_connections\t";
+                if (line.startsWith(key)) {
+                    connections[i] = Integer.parseInt(
+                            line.substring(key.length()).trim());
+                }
+            }
+        }
+        return connections;
+    }
+
+    @Test
+    public void testConnectionsSpread() throws Exception {
+        List<ZooKeeper> clients = new ArrayList<ZooKeeper>();
+        try {
+            for (int i = 0; i < CLIENTS; i++) {
+                ZooKeeper zk = createClient();
+                zk.exists("/", false);
+                clients.add(zk);
+            }
+
+            // the mntr connection itself is counted too
+            int[] connections = selectorConnections();
+            int total = 0;
+            int min = Integer.MAX_VALUE;
+            int max = 0;
+            for (int c : connections) {
+                total += c;
+                min = Math.min(min, c);
+                max = Math.max(max, c);
+            }
+            Assert.assertEquals(CLIENTS + 1, total);
+            Assert.assertTrue("Uneven spread " + min + "-" + max,
+                              max - min <= 2);
+        } finally {
+            for (ZooKeeper zk : clients) {
+                zk.close();
+            }
+        }
+
+        // closed connections are no longer counted
+        int total = 0;
+        for (int i = 0; i < 50; i++) {
+            total = 0;
+            for (int c : selectorConnections()) {
+                total += c;
+            }
+            if (total == 1) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(1, total);
+    }
+}
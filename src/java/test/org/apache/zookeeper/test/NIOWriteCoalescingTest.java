@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.apache.zookeeper.client.FourLetterWordMain.send4LetterWord;
+
+/**
+ * Checks that responses and notifications sent in bursts come through
+ * whole and in order with coalesced writes.
+ */
+public class NIOWriteCoalescingTest extends ClientBase {
+    private static final int NODES = 50;
+    private static final int ROUNDS = 20;
+
+    @Test(timeout = 90000)
+    public void testBursts() throws Exception {
+        Assert.assertTrue(serverFactory instanceof NIOServerCnxnFactory);
+        NIOServerCnxnFactory factory = (NIOServerCnxnFactory) serverFactory;
+
+        ZooKeeper zk = createClient();
+        ZooKeeper writer = createClient();
+        try {
+            // sizes from a few bytes to bigger than the direct buffer
+            for (int i = 0; i < NODES; i++) {
+                zk.create("/burst-" + i, data(i), Ids.OPEN_ACL_UNSAFE,
+                          CreateMode.PERSISTENT);
+            }
+
+            final AtomicInteger events = new AtomicInteger();
+            Watcher watcher = new Watcher() {
+                public void process(WatchedEvent event) {
+                    events.incrementAndGet();
+                }
+            };
+            final CountDownLatch done = new CountDownLatch(NODES * ROUNDS);
+            final AtomicInteger failed = new AtomicInteger();
+            final AtomicInteger lastOrder = new AtomicInteger(-1);
+            DataCallback cb = new DataCallback() {
+                public void processResult(int rc, String path, Object ctx,
+                                          byte[] data, Stat stat) {
+                    int order = (Integer) ctx;
+                    int i = order % NODES;
+                    if (rc != Code.OK.intValue()
+                            || !Arrays.equals(data(i), data)
+                            || lastOrder.getAndSet(order) != order - 1) {
+                        failed.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            };
+            for (int r = 0; r < ROUNDS; r++) {
+                for (int i = 0; i < NODES; i++) {
+                    // the watches of the last round are triggered below
+                    zk.getData("/burst-" + i, r == ROUNDS - 1 ? watcher : null,
+                               cb, r * NODES + i);
+                }
+            }
+            Assert.assertTrue("Not all requests completed",
+                              done.await(60, TimeUnit.SECONDS));
+            Assert.assertEquals(0, failed.get());
+
+            for (int i = 0; i < NODES; i++) {
+                writer.setData("/burst-" + i, data(i), -1);
+            }
+            for (int i = 0; i < 100 && events.get() < NODES; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(NODES, events.get());
+        } finally {
+            zk.close();
+            writer.close();
+        }
+
+        LOG.info("Queued " + factory.getBuffersQueued() + " buffers with "
+                 + factory.getWriteWakeups() + " wakeups, wrote "
+                 + factory.getBytesWritten() + " bytes with "
+                 + factory.getWriteCalls() + " writes");
+        Assert.assertTrue(factory.getWriteCalls() > 0);
+        Assert.assertTrue(factory.getWriteWakeups()
+                          <= factory.getBuffersQueued());
+        String mntr = send4LetterWord(hostPort.split(":")[0],
+                serverFactory.getLocalPort(), "mntr");
+        Assert.assertTrue(mntr, mntr.contains("zk_nio_write_calls"));
+    }
+
+    private static byte[] data(int i) {
+        byte[] data = new byte[(i * i * 37) % (100 * 1024) + 1];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+}
@@ -26,11 +26,16 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
         ACLTest.class,
         AsyncOpsTest.class,
+        BufferPoolLeakTest.class,
         ChrootClientTest.class,
         ClientTest.class,
         FourLetterWordsTest.class,
+        MaxCnxnsTest.class,
         NullDataTest.class,
+        OffHeapDataTest.class,
+        ServerCnxnTest.class,
         SessionTest.class,
+        SlowClientTest.class,
         WatcherTest.class
         })
 public class NioNettySuiteTest extends NioNettySuiteBase {
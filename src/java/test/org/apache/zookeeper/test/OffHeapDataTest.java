@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.Arrays;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.OffHeapDataStore;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.apache.zookeeper.client.FourLetterWordMain.send4LetterWord;
+
+/**
+ * Reads and writes nodes whose data is kept off heap, across a restart of
+ * the server.
+ */
+public class OffHeapDataTest extends ClientBase {
+    private static final int NODES = 20;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(OffHeapDataStore.ZOOKEEPER_OFFHEAP_DATA_CAPACITY,
+                           Integer.toString(16 * 1024 * 1024));
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(OffHeapDataStore.ZOOKEEPER_OFFHEAP_DATA_CAPACITY);
+    }
+
+    private static byte[] data(int i, int version) {
+        byte[] data = new byte[1000 * (i + 1)];
+        Arrays.fill(data, (byte) (i + version));
+        return data;
+    }
+
+    private OffHeapDataStore getStore() {
+        ZooKeeperServer zks = getServer(serverFactory);
+        return zks.getZKDatabase().getDataTree().getOffHeapDataStore();
+    }
+
+    private void assertData(ZooKeeper zk, int version) throws Exception {
+        for (int i = 0; i < NODES; i++) {
+            Stat stat = new Stat();
+            byte[] data = zk.getData("/offheap-" + i, false, stat);
+            Assert.assertTrue("Wrong data for node " + i,
+                              Arrays.equals(data(i, version), data));
+            Assert.assertEquals(data.length, stat.getDataLength());
+            Assert.assertEquals(version, stat.getVersion());
+        }
+    }
+
+    @Test
+    public void testOffHeapData() throws Exception {
+        ZooKeeper zk = createClient();
+        try {
+            for (int i = 0; i < NODES; i++) {
+                zk.create("/offheap-" + i, data(i, 0), Ids.OPEN_ACL_UNSAFE,
+                          CreateMode.PERSISTENT);
+            }
+            assertData(zk, 0);
+            // the first is smaller than the minimum size
+            Assert.assertEquals(NODES - 1, getStore().getChunkCount());
+
+            for (int i = 0; i < NODES; i++) {
+                zk.setData("/offheap-" + i, data(i, 1), 0);
+            }
+            assertData(zk, 1);
+            Assert.assertEquals(NODES - 1, getStore().getChunkCount());
+
+            String mntr = send4LetterWord(hostPort.split(":")[0],
+                    serverFactory.getLocalPort(), "mntr");
+            Assert.assertTrue(mntr, mntr.contains("zk_offheap_data_chunks\t"
+                                                  + (NODES - 1)));
+        } finally {
+            zk.close();
+        }
+
+        stopServer();
+        startServer();
+        zk = createClient();
+        try {
+            assertData(zk, 1);
+            Assert.assertEquals(NODES - 1, getStore().getChunkCount());
+            for (int i = 0; i < NODES; i++) {
+                zk.delete("/offheap-" + i, 1);
+            }
+            Assert.assertEquals(0, getStore().getChunkCount());
+            Assert.assertEquals(0, getStore().getUsedBytes());
+        } finally {
+            zk.close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.zookeeper.Quotas;
+import org.apache.zookeeper.StatsTrack;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataNode;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.persistence.FileChecksum;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.SnapshotIndex;
+import org.apache.zookeeper.server.persistence.Util;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelSnapshotLoadTest extends ZKTestCase {
+    private File tmpDir;
+    private File snap;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = ClientBase.createTmpDir();
+        snap = new File(tmpDir, "snapshot.64");
+        System.setProperty(FileSnap.ZOOKEEPER_SNAPSHOT_CHUNK_SIZE, "512");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(FileSnap.ZOOKEEPER_SNAPSHOT_CHUNK_SIZE);
+        System.clearProperty(FileSnap.ZOOKEEPER_SNAPSHOT_LOAD_THREADS);
+        ClientBase.recursiveDelete(tmpDir);
+    }
+
+    private DataTree createTree() throws Exception {
+        DataTree dt = new DataTree();
+        dt.createNode("/quota", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, 1, 1, 1);
+        for (int i = 0; i < 50; i++) {
+            String parent = "/quota/n" + i;
+            dt.createNode(parent, new byte[i], Ids.OPEN_ACL_UNSAFE, 0, 1, 1, 1);
+            for (int j = 0; j < 10; j++) {
+                // a few sessions own ephemerals spread over the chunks
+                dt.createNode(parent + "/e" + j, new byte[j],
+                        Ids.READ_ACL_UNSAFE, j % 3 + 1, 1, 1, 1);
+            }
+        }
+        dt.createNode(Quotas.quotaZookeeper + "/quota", new byte[0],
+                Ids.OPEN_ACL_UNSAFE, 0, 1, 1, 1);
+        dt.createNode(Quotas.quotaPath("/quota"),
+                new StatsTrack("count=-1,bytes=-1").toString().getBytes(),
+                Ids.OPEN_ACL_UNSAFE, 0, 1, 1, 1);
+        dt.createNode(Quotas.statPath("/quota"),
+                new StatsTrack("count=0,bytes=0").toString().getBytes(),
+                Ids.OPEN_ACL_UNSAFE, 0, 1, 1, 1);
+        return dt;
+    }
+
+    private DataTree load(int threads) throws IOException {
+        System.setProperty(FileSnap.ZOOKEEPER_SNAPSHOT_LOAD_THREADS,
+                           Integer.toString(threads));
+        DataTree dt = new DataTree();
+        Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+        Assert.assertEquals(0x64, new FileSnap(tmpDir).deserialize(dt, sessions));
+        Assert.assertEquals(3, sessions.size());
+        return dt;
+    }
+
+    private void assertSameNode(DataTree expected, DataTree actual,
+                                String path) throws Exception {
+        DataNode node = actual.getNode(path);
+        Assert.assertNotNull("missing " + path, node);
+        Stat expectedStat = new Stat();
+        Stat actualStat = new Stat();
+        Assert.assertArrayEquals(expected.getData(path, expectedStat, null),
+                                 actual.getData(path, actualStat, null));
+        Assert.assertEquals(expectedStat, actualStat);
+        Assert.assertEquals(expected.getACL(path, new Stat()),
+                            actual.getACL(path, new Stat()));
+        TreeSet<String> children =
+            new TreeSet<String>(expected.getChildren(path, null, null));
+        Assert.assertEquals(children,
+                new TreeSet<String>(actual.getChildren(path, null, null)));
+        for (String child : children) {
+            assertSameNode(expected, actual,
+                           ("/".equals(path) ? "" : path) + "/" + child);
+        }
+    }
+
+    @Test
+    public void testParallelLoad() throws Exception {
+        DataTree dt = createTree();
+        Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+        for (long id = 1; id <= 3; id++) {
+            sessions.put(id, 30000);
+        }
+        new FileSnap(tmpDir).serialize(dt, sessions, snap);
+        Assert.assertTrue(Util.isValidSnapshot(snap));
+        SnapshotIndex index = SnapshotIndex.read(snap, FileChecksum.ADLER32);
+        Assert.assertNotNull(index);
+        Assert.assertTrue(index.getChunkCount() > 10);
+
+        DataTree serial = load(1);
+        DataTree parallel = load(4);
+        Assert.assertEquals(dt.getNodeCount(), parallel.getNodeCount());
+        assertSameNode(serial, parallel, "/");
+        for (long id = 1; id <= 3; id++) {
+            Assert.assertEquals(serial.getEphemerals(id),
+                                parallel.getEphemerals(id));
+            Assert.assertEquals(dt.getEphemerals(id),
+                                parallel.getEphemerals(id));
+        }
+        // the quota stats are rebuilt after the nodes are linked
+        StatsTrack stats = new StatsTrack(new String(parallel.getData(
+                Quotas.statPath("/quota"), new Stat(), null)));
+        Assert.assertEquals(551, stats.getCount());
+    }
+
+    /**
+     * A snapshot written before the index was added is loaded serially.
+     */
+    @Test
+    public void testNoIndex() throws Exception {
+        DataTree dt = createTree();
+        Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+        for (long id = 1; id <= 3; id++) {
+            sessions.put(id, 30000);
+        }
+        new FileSnap(tmpDir).serialize(dt, sessions, snap);
+        SnapshotIndex index = SnapshotIndex.read(snap, FileChecksum.ADLER32);
+        RandomAccessFile raf = new RandomAccessFile(snap, "rw");
+        raf.setLength(raf.length()
+                - (4 + index.getChunkCount() * 16) - (4 + 4 + 5));
+        raf.close();
+        Assert.assertTrue(Util.isValidSnapshot(snap));
+        Assert.assertNull(SnapshotIndex.read(snap, FileChecksum.ADLER32));
+
+        assertSameNode(dt, load(4), "/");
+    }
+
+    @Test
+    public void testCorruptChunk() throws Exception {
+        new FileSnap(tmpDir).serialize(createTree(),
+                new HashMap<Long, Integer>(), snap);
+        RandomAccessFile raf = new RandomAccessFile(snap, "rw");
+        raf.seek(raf.length() / 2);
+        int b = raf.read();
+        raf.seek(raf.length() / 2);
+        raf.write(b ^ 0xff);
+        raf.close();
+        System.setProperty(FileSnap.ZOOKEEPER_SNAPSHOT_LOAD_THREADS, "4");
+        try {
+            new FileSnap(tmpDir).deserialize(new DataTree(),
+                    new HashMap<Long, Integer>());
+            Assert.fail("Corrupt snapshot should not load");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Quotas;
+import org.apache.zookeeper.StatsTrack;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.ZooKeeperMain;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.PrepRequestProcessor;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QuotaEnforcementTest extends ClientBase {
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(PrepRequestProcessor.ZOOKEEPER_ENFORCE_QUOTA,
+                           "true");
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(PrepRequestProcessor.ZOOKEEPER_ENFORCE_QUOTA);
+    }
+
+    private static StatsTrack getStats(ZooKeeper zk, String path)
+            throws Exception {
+        Stat stat = new Stat();
+        byte[] data = zk.getData(Quotas.statPath(path), false, stat);
+        Assert.assertEquals(data.length, stat.getDataLength());
+        return new StatsTrack(new String(data));
+    }
+
+    @Test
+    public void testCountQuota() throws Exception {
+        ZooKeeper zk = createClient();
+        try {
+            zk.create("/count", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+            zk.create("/count/a", "aa".getBytes(), Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+            ZooKeeperMain.createQuota(zk, "/count", -1L, 3);
+
+            StatsTrack stats = getStats(zk, "/count");
+            Assert.assertEquals(2, stats.getCount());
+            Assert.assertEquals(2L, stats.getBytes());
+
+            zk.create("/count/b", "bbb".getBytes(), Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+            try {
+                zk.create("/count/c", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                          CreateMode.PERSISTENT);
+                Assert.fail("Created a node over the count quota");
+            } catch (KeeperException.QuotaExceededException e) {
+                Assert.assertEquals("/count/c", e.getPath());
+            }
+            Assert.assertNull(zk.exists("/count/c", false));
+            stats = getStats(zk, "/count");
+            Assert.assertEquals(3, stats.getCount());
+            Assert.assertEquals(5L, stats.getBytes());
+
+            // a node outside the quota isn't limited
+            zk.create("/other", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+
+            zk.delete("/count/a", -1);
+            zk.create("/count/c", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+            stats = getStats(zk, "/count");
+            Assert.assertEquals(3, stats.getCount());
+            Assert.assertEquals(3L, stats.getBytes());
+        } finally {
+            zk.close();
+        }
+    }
+
+    @Test
+    public void testBytesQuota() throws Exception {
+        ZooKeeper zk = createClient();
+        try {
+            zk.create("/bytes", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+            ZooKeeperMain.createQuota(zk, "/bytes", 10L, -1);
+            zk.create("/bytes/a", new byte[6], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+            try {
+                zk.create("/bytes/b", new byte[5], Ids.OPEN_ACL_UNSAFE,
+                          CreateMode.PERSISTENT);
+                Assert.fail("Created a node over the bytes quota");
+            } catch (KeeperException.QuotaExceededException e) {
+                // expected
+            }
+            try {
+                zk.setData("/bytes/a", new byte[11], -1);
+                Assert.fail("Set data over the bytes quota");
+            } catch (KeeperException.QuotaExceededException e) {
+                // expected
+            }
+            // growing within the quota and shrinking are fine
+            zk.setData("/bytes/a", new byte[10], -1);
+            zk.setData("/bytes/a", new byte[2], -1);
+            Assert.assertEquals(2L, getStats(zk, "/bytes").getBytes());
+        } finally {
+            zk.close();
+        }
+
+        // the limits come back from the snapshot
+        stopServer();
+        startServer();
+        zk = createClient();
+        try {
+            StatsTrack stats = getStats(zk, "/bytes");
+            Assert.assertEquals(2, stats.getCount());
+            Assert.assertEquals(2L, stats.getBytes());
+            try {
+                zk.create("/bytes/b", new byte[9], Ids.OPEN_ACL_UNSAFE,
+                          CreateMode.PERSISTENT);
+                Assert.fail("Created a node over the bytes quota");
+            } catch (KeeperException.QuotaExceededException e) {
+                // expected
+            }
+            zk.create("/bytes/b", new byte[8], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+
+            // raising the limit lets more in
+            zk.setData(Quotas.quotaPath("/bytes"),
+                       "count=-1,bytes=20".getBytes(), -1);
+            zk.setData("/bytes/b", new byte[18], -1);
+            Assert.assertEquals(20L, getStats(zk, "/bytes").getBytes());
+        } finally {
+            zk.close();
+        }
+    }
+}
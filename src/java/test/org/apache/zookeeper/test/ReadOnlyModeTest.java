@@ -23,6 +23,8 @@ import java.io.LineNumberReader;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import junit.framework.Assert;
@@ -31,6 +33,7 @@ import org.apache.log4j.Layout;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.WriterAppender;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.NotReadOnlyException;
@@ -41,6 +44,9 @@ import org.apache.zookeeper.ZKTestCase;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.ZooKeeper.States;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.RequestThrottler;
+import org.apache.zookeeper.server.ServerCnxnFactoryAccessor;
 import org.apache.zookeeper.test.ClientBase.CountdownWatcher;
 import org.junit.After;
 import org.junit.Before;
@@ -103,6 +109,60 @@ public class ReadOnlyModeTest extends ZKTestCase {
         zk.close();
     }
 
+    /**
+     * Writes refused by a read-only server don't stay in flight, so more
+     * of them than the limit on requests in flight don't throttle the
+     * clients of the server.
+     */
+    @Test
+    public void testManyRefusedWrites() throws Exception {
+        final int limit = 20;
+        System.setProperty("zookeeper.globalOutstandingLimit",
+                           Integer.toString(limit));
+        try {
+            CountdownWatcher watcher = new CountdownWatcher();
+            ZooKeeper zk = new ZooKeeper(qu.getConnString(),
+                    CONNECTION_TIMEOUT, watcher, true);
+            watcher.waitForConnected(CONNECTION_TIMEOUT);
+            final String node = "/tnode";
+            zk.create(node, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+
+            watcher.reset();
+            qu.shutdown(2);
+            watcher.waitForConnected(CONNECTION_TIMEOUT);
+            Assert.assertEquals(States.CONNECTEDREADONLY, zk.getState());
+
+            for (int round = 0; round < 5; round++) {
+                final CountDownLatch refused = new CountDownLatch(2 * limit);
+                for (int i = 0; i < 2 * limit; i++) {
+                    zk.setData(node, new byte[1], -1, new StatCallback() {
+                        public void processResult(int rc, String path,
+                                                  Object ctx, Stat stat) {
+                            if (rc == KeeperException.Code.NOTREADONLY
+                                    .intValue()) {
+                                refused.countDown();
+                            }
+                        }
+                    }, null);
+                }
+                Assert.assertTrue("Not all writes were refused",
+                        refused.await(CONNECTION_TIMEOUT,
+                                      TimeUnit.MILLISECONDS));
+                // reads go on
+                zk.getData(node, false, null);
+            }
+
+            RequestThrottler throttler = ServerCnxnFactoryAccessor.getZkServer(
+                    qu.getPeer(1).peer.getCnxnFactory()).getRequestThrottler();
+            Assert.assertEquals(0, throttler.getInFlight());
+            Assert.assertEquals(0, throttler.getThrottledConnections());
+            zk.close();
+        } finally {
+            System.clearProperty("zookeeper.globalOutstandingLimit");
+        }
+    }
+
     /**
      * Ensures that upon connection to a read-only server client receives
      * ConnectedReadOnly state notification.
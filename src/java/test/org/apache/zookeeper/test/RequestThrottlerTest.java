@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.RequestThrottler;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs clients against a server with low limits on the requests in flight.
+ */
+public class RequestThrottlerTest extends ClientBase {
+    private static final int OUTSTANDING_LIMIT = 10;
+    private static final int MAX_IN_FLIGHT_BYTES = 4096;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty("zookeeper.globalOutstandingLimit",
+                           Integer.toString(OUTSTANDING_LIMIT));
+        System.setProperty(RequestThrottler.ZOOKEEPER_THROTTLE_MAX_IN_FLIGHT_BYTES,
+                           Integer.toString(MAX_IN_FLIGHT_BYTES));
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty("zookeeper.globalOutstandingLimit");
+        System.clearProperty(RequestThrottler.ZOOKEEPER_THROTTLE_MAX_IN_FLIGHT_BYTES);
+    }
+
+    /**
+     * Send requests from several clients without waiting for the responses,
+     * and wait for them all to complete.
+     */
+    private void createMany(int numClients, final int perClient, int size)
+        throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(numClients * perClient);
+        final AtomicInteger failed = new AtomicInteger();
+        StringCallback cb = new StringCallback() {
+            public void processResult(int rc, String path, Object ctx,
+                                      String name) {
+                if (rc != Code.OK.intValue()) {
+                    failed.incrementAndGet();
+                }
+                latch.countDown();
+            }
+        };
+        for (int c = 0; c < numClients; c++) {
+            ZooKeeper zk = createClient();
+            for (int i = 0; i < perClient; i++) {
+                zk.create("/throttle-", new byte[size],
+                          Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL,
+                          cb, null);
+            }
+        }
+        Assert.assertTrue("Not all requests completed",
+                          latch.await(CONNECTION_TIMEOUT * 2,
+                                      TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, failed.get());
+    }
+
+    private void assertAllResumed(RequestThrottler throttler) throws Exception {
+        // the requests of the last connections resumed may still be in flight
+        for (int i = 0; i < 50 && throttler.getThrottledConnections() > 0; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(0, throttler.getThrottledConnections());
+    }
+
+    @Test(timeout = 90000)
+    public void testRequestLimit() throws Exception {
+        ZooKeeperServer zks = getServer(serverFactory);
+        RequestThrottler throttler = zks.getRequestThrottler();
+        Assert.assertEquals(OUTSTANDING_LIMIT, throttler.getLimit());
+
+        createMany(5, 200, 0);
+
+        Assert.assertTrue("No connection was throttled",
+                          zks.serverStats().getThrottledTime().getCount() > 0);
+        assertAllResumed(throttler);
+    }
+
+    @Test(timeout = 90000)
+    public void testBytesLimit() throws Exception {
+        ZooKeeperServer zks = getServer(serverFactory);
+        RequestThrottler throttler = zks.getRequestThrottler();
+
+        // a single request bigger than the limit still goes through
+        createMany(1, 1, MAX_IN_FLIGHT_BYTES * 2);
+        createMany(2, 20, MAX_IN_FLIGHT_BYTES / 4);
+
+        Assert.assertTrue("No connection was throttled",
+                          zks.serverStats().getThrottledTime().getCount() > 0);
+        assertAllResumed(throttler);
+        Assert.assertEquals(0, throttler.getInFlightBytes());
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.SegmentTxnLog;
+import org.apache.zookeeper.server.persistence.TxnLog;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentTxnLogTest extends ZKTestCase {
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File tmpDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = ClientBase.createTmpDir();
+        FileTxnLog.setPreallocSize(SEGMENT_SIZE);
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_TXN_LOG,
+                           SegmentTxnLog.class.getName());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(FileTxnSnapLog.ZOOKEEPER_TXN_LOG);
+        ClientBase.setupTestEnv();
+        ClientBase.recursiveDelete(tmpDir);
+    }
+
+    private void append(TxnLog log, long zxid) throws Exception {
+        TxnHeader hdr = new TxnHeader(1, 1, zxid, 1, OpCode.create);
+        // all txns are the same size, whatever their zxid
+        CreateTxn txn = new CreateTxn(String.format("/node%08d", zxid),
+                new byte[100], Ids.OPEN_ACL_UNSAFE, false, 1);
+        Assert.assertTrue(log.append(hdr, txn));
+    }
+
+    private void assertZxids(long first, long last) throws Exception {
+        TxnIterator itr = new FileTxnLog(tmpDir).read(0);
+        long zxid = first;
+        do {
+            Assert.assertNotNull("missing " + zxid, itr.getHeader());
+            Assert.assertEquals(zxid++, itr.getHeader().getZxid());
+        } while (itr.next());
+        Assert.assertEquals(last + 1, zxid);
+    }
+
+    private File[] listFiles(final String prefix) {
+        return tmpDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix);
+            }
+        });
+    }
+
+    /**
+     * Txns are spread over segments, which read back as ordinary logs.
+     */
+    @Test
+    public void testSegments() throws Exception {
+        SegmentTxnLog log = new SegmentTxnLog(tmpDir);
+        for (int zxid = 1; zxid <= 200; zxid++) {
+            append(log, zxid);
+            if (zxid % 10 == 0) {
+                log.startCommit().sync();
+            }
+            if (zxid == 100) {
+                log.rollLog();
+            }
+        }
+        log.commit();
+        log.close();
+
+        // ~180 bytes a txn, ~22 txns a segment
+        Assert.assertTrue(listFiles("log.").length >= 9);
+        assertZxids(1, 200);
+    }
+
+    /**
+     * Write 20 txns to a log and recycle it into the only spare.
+     */
+    private void recycleLog() throws Exception {
+        SegmentTxnLog log = new SegmentTxnLog(tmpDir);
+        for (int zxid = 1; zxid <= 20; zxid++) {
+            append(log, zxid);
+        }
+        log.commit();
+        log.close();
+        for (File spare : listFiles("logspare.")) {
+            Assert.assertTrue(spare.delete());
+        }
+        File[] logs = listFiles("log.");
+        Assert.assertEquals(1, logs.length);
+        // make it a full segment
+        RandomAccessFile raf = new RandomAccessFile(logs[0], "rw");
+        raf.setLength(SEGMENT_SIZE);
+        raf.close();
+        Assert.assertTrue(SegmentTxnLog.recycle(logs[0]));
+        Assert.assertEquals(0, listFiles("log.").length);
+        Assert.assertEquals(1, listFiles("logspare.").length);
+    }
+
+    /**
+     * A segment recycled from an old log doesn't expose the old txns.
+     */
+    @Test
+    public void testRecycledSegment() throws Exception {
+        recycleLog();
+
+        // the txns are the same size as the old ones, so without the end of
+        // log marker the old txns following them would be read back too
+        SegmentTxnLog log = new SegmentTxnLog(tmpDir);
+        for (int zxid = 100; zxid <= 105; zxid++) {
+            append(log, zxid);
+        }
+        log.commit();
+        log.close();
+        Assert.assertTrue(new File(tmpDir, "log.64").exists());
+        assertZxids(100, 105);
+    }
+
+    /**
+     * A crash before the first commit to a recycled segment leaves an empty
+     * log rather than the old txns.
+     */
+    @Test
+    public void testCrashBeforeFirstCommit() throws Exception {
+        recycleLog();
+
+        SegmentTxnLog log = new SegmentTxnLog(tmpDir);
+        for (int zxid = 100; zxid <= 105; zxid++) {
+            append(log, zxid);
+        }
+        // the spare is now log.64, the txns are only in memory
+        Assert.assertTrue(new File(tmpDir, "log.64").exists());
+        Assert.assertNull(new FileTxnLog(tmpDir).read(0).getHeader());
+
+        log.close();
+        assertZxids(100, 105);
+    }
+
+    /**
+     * A crash that keeps the end of log marker of a write to a recycled
+     * segment from reaching the disk doesn't expose the old txns behind it.
+     */
+    @Test
+    public void testTornWriteToRecycledSegment() throws Exception {
+        recycleLog();
+        File spare = listFiles("logspare.")[0];
+        byte[] old = readFile(spare);
+
+        SegmentTxnLog log = new SegmentTxnLog(tmpDir);
+        for (int zxid = 100; zxid <= 105; zxid++) {
+            append(log, zxid);
+        }
+        log.commit();
+        log.close();
+        File logFile = new File(tmpDir, "log.64");
+        assertZxids(100, 105);
+
+        // put back the old txn the end of log marker was written over
+        ByteBuffer bb = ByteBuffer.wrap(readFile(logFile));
+        int end = 4 + 4 + 8;
+        while (bb.getInt(end + 8) != 0) {
+            end += 8 + 4 + bb.getInt(end + 8) + 1;
+        }
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        raf.seek(end);
+        raf.write(old, end, 8 + 4);
+        raf.close();
+        assertZxids(100, 105);
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.PortAssignment;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.NettyServerCnxnFactory;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.test.ClientBase.CountdownWatcher;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the same load, clients reading and writing small nodes with a window
+ * of requests outstanding each, against a server with each of the
+ * connection factories, and logs the throughput and latency of each.
+ */
+public class ServerCnxnFactoryPerfTest extends ZKTestCase {
+    protected static final Logger LOG =
+        LoggerFactory.getLogger(ServerCnxnFactoryPerfTest.class);
+
+    private static final int CLIENTS = 8;
+    private static final int OPS_PER_CLIENT = 2000;
+    /** Requests each client keeps outstanding */
+    private static final int WINDOW = 20;
+    /** One request in WRITE_RATIO is a setData, the others getData */
+    private static final int WRITE_RATIO = 10;
+    private static final int DATA_SIZE = 1024;
+
+    private static class Load implements DataCallback, StatCallback {
+        final Semaphore window = new Semaphore(WINDOW);
+        final CountDownLatch done;
+        final AtomicInteger failed;
+        final long[] latencies = new long[OPS_PER_CLIENT];
+
+        Load(CountDownLatch done, AtomicInteger failed) {
+            this.done = done;
+            this.failed = failed;
+        }
+
+        void run(ZooKeeper zk, String path) throws InterruptedException {
+            byte[] data = new byte[DATA_SIZE];
+            for (int i = 0; i < OPS_PER_CLIENT; i++) {
+                window.acquire();
+                Object ctx = new long[] { i, System.nanoTime() };
+                if (i % WRITE_RATIO == 0) {
+                    zk.setData(path, data, -1, this, ctx);
+                } else {
+                    zk.getData(path, false, this, ctx);
+                }
+            }
+        }
+
+        private void complete(int rc, Object ctx) {
+            long[] op = (long[]) ctx;
+            latencies[(int) op[0]] = System.nanoTime() - op[1];
+            if (rc != Code.OK.intValue()) {
+                failed.incrementAndGet();
+            }
+            window.release();
+            done.countDown();
+        }
+
+        public void processResult(int rc, String path, Object ctx,
+                                  byte[] data, Stat stat) {
+            complete(rc, ctx);
+        }
+
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            complete(rc, ctx);
+        }
+    }
+
+    private void run(Class<? extends ServerCnxnFactory> factoryClass)
+        throws Exception
+    {
+        System.setProperty(ServerCnxnFactory.ZOOKEEPER_SERVER_CNXN_FACTORY,
+                           factoryClass.getName());
+        ClientBase.setupTestEnv();
+        File tmpDir = ClientBase.createTmpDir();
+        String hostPort = "127.0.0.1:" + PortAssignment.unique();
+        ServerCnxnFactory factory = null;
+        ZooKeeper[] clients = new ZooKeeper[CLIENTS];
+        try {
+            factory = ClientBase.createNewServerInstance(tmpDir, null,
+                                                         hostPort, 0);
+            for (int c = 0; c < CLIENTS; c++) {
+                CountdownWatcher watcher = new CountdownWatcher();
+                clients[c] = new ZooKeeper(hostPort,
+                        ClientBase.CONNECTION_TIMEOUT, watcher);
+                watcher.waitForConnected(ClientBase.CONNECTION_TIMEOUT);
+                clients[c].create("/perf-" + c, new byte[DATA_SIZE],
+                        Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+
+            CountDownLatch done = new CountDownLatch(CLIENTS * OPS_PER_CLIENT);
+            AtomicInteger failed = new AtomicInteger();
+            Load[] loads = new Load[CLIENTS];
+            Thread[] threads = new Thread[CLIENTS];
+            long start = System.nanoTime();
+            for (int c = 0; c < CLIENTS; c++) {
+                final Load load = loads[c] = new Load(done, failed);
+                final ZooKeeper zk = clients[c];
+                final String path = "/perf-" + c;
+                threads[c] = new Thread("PerfClient-" + c) {
+                    @Override
+                    public void run() {
+                        try {
+                            load.run(zk, path);
+                        } catch (InterruptedException e) {
+                            LOG.warn("Interrupted", e);
+                        }
+                    }
+                };
+                threads[c].start();
+            }
+            Assert.assertTrue("Not all requests completed",
+                              done.await(120, TimeUnit.SECONDS));
+            long elapsed = System.nanoTime() - start;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(0, failed.get());
+
+            long[] latencies = new long[CLIENTS * OPS_PER_CLIENT];
+            for (int c = 0; c < CLIENTS; c++) {
+                System.arraycopy(loads[c].latencies, 0, latencies,
+                                 c * OPS_PER_CLIENT, OPS_PER_CLIENT);
+            }
+            Arrays.sort(latencies);
+            LOG.info(factoryClass.getSimpleName() + ": " + latencies.length
+                     + " requests from " + CLIENTS + " clients in "
+                     + elapsed / 1000000 + " ms, "
+                     + (long) latencies.length * 1000000000L / elapsed
+                     + " ops/s, latency p50 "
+                     + latencies[latencies.length / 2] / 1000 + " us, p99 "
+                     + latencies[(int) (latencies.length * 0.99)] / 1000
+                     + " us, max " + latencies[latencies.length - 1] / 1000
+                     + " us");
+        } finally {
+            for (ZooKeeper zk : clients) {
+                if (zk != null) {
+                    zk.close();
+                }
+            }
+            ClientBase.shutdownServerInstance(factory, hostPort);
+            System.clearProperty(ServerCnxnFactory.ZOOKEEPER_SERVER_CNXN_FACTORY);
+            ClientBase.recursiveDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void testSameLoadOnBothFactories() throws Exception {
+        run(NIOServerCnxnFactory.class);
+        run(NettyServerCnxnFactory.class);
+    }
+}
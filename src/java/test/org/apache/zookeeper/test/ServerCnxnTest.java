@@ -25,6 +25,7 @@ import java.io.OutputStream;
 import java.net.Socket;
 
 import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.NettyServerCnxnFactory;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -44,6 +45,9 @@ public class ServerCnxnTest extends ClientBase {
         System.setProperty(
             NIOServerCnxnFactory.ZOOKEEPER_NIO_SESSIONLESS_CNXN_TIMEOUT,
             Integer.toString(cnxnTimeout));
+        System.setProperty(
+            NettyServerCnxnFactory.ZOOKEEPER_NETTY_SESSIONLESS_CNXN_TIMEOUT,
+            Integer.toString(cnxnTimeout));
         super.setUp();
     }
 
@@ -52,6 +56,8 @@ public class ServerCnxnTest extends ClientBase {
         super.tearDown();
         System.clearProperty(
             NIOServerCnxnFactory.ZOOKEEPER_NIO_SESSIONLESS_CNXN_TIMEOUT);
+        System.clearProperty(
+            NettyServerCnxnFactory.ZOOKEEPER_NETTY_SESSIONLESS_CNXN_TIMEOUT);
     }
 
     @Test
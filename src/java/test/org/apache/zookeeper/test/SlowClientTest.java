@@ -0,0 +1,236 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.proto.ConnectRequest;
+import org.apache.zookeeper.proto.GetDataRequest;
+import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.server.BufferPool;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.apache.zookeeper.client.FourLetterWordMain.send4LetterWord;
+
+/**
+ * Sends requests for big nodes from a client that doesn't read the
+ * responses, and checks the slow client policies bound what the server
+ * queues for it.
+ */
+public class SlowClientTest extends ClientBase {
+    private static final int MAX_OUTGOING_BYTES = 1024 * 1024;
+    private static final int DATA_SIZE = 100 * 1024;
+    private static final int REQUESTS = 200;
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(ServerCnxnFactory.ZOOKEEPER_CNXN_MAX_OUTGOING_BYTES);
+        System.clearProperty(ServerCnxnFactory.ZOOKEEPER_CNXN_SLOW_CLIENT_POLICY);
+    }
+
+    private void restartServer(String policy) throws Exception {
+        System.setProperty(ServerCnxnFactory.ZOOKEEPER_CNXN_MAX_OUTGOING_BYTES,
+                           Integer.toString(MAX_OUTGOING_BYTES));
+        System.setProperty(ServerCnxnFactory.ZOOKEEPER_CNXN_SLOW_CLIENT_POLICY,
+                           policy);
+        stopServer();
+        startServer();
+        Assert.assertEquals(MAX_OUTGOING_BYTES,
+                            serverFactory.getMaxOutgoingBytes());
+
+        ZooKeeper zk = createClient();
+        try {
+            zk.create("/slow", new byte[DATA_SIZE], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+        } finally {
+            zk.close();
+        }
+        waitForConnections(0);
+    }
+
+    /**
+     * Connect with a small receive buffer and send the requests one at a
+     * time without reading anything, until they are all sent or the server
+     * closes the connection.
+     */
+    private Socket sendRequests() throws Exception {
+        String hp[] = hostPort.split(":");
+        Socket sock = new Socket();
+        sock.setReceiveBufferSize(4096);
+        sock.setTcpNoDelay(true);
+        sock.connect(new InetSocketAddress(hp[0], Integer.parseInt(hp[1])));
+        OutputStream out = sock.getOutputStream();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
+        boa.writeInt(44, "len");
+        new ConnectRequest(0, 0, 30000, 0, new byte[16])
+            .serialize(boa, "connect");
+        try {
+            out.write(baos.toByteArray());
+            for (int i = 1; i <= REQUESTS; i++) {
+                baos.reset();
+                boa.writeInt(4 + 4 + 4 + "/slow".length() + 1, "len");
+                new RequestHeader(i, OpCode.getData).serialize(boa, "header");
+                new GetDataRequest("/slow", false).serialize(boa, "request");
+                out.write(baos.toByteArray());
+                out.flush();
+                Thread.sleep(5);
+            }
+        } catch (IOException e) {
+            // closed by the server
+        }
+        return sock;
+    }
+
+    private void waitForConnections(int count) throws InterruptedException {
+        for (int i = 0; i < 100
+                 && serverFactory.getNumAliveConnections() != count; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(count, serverFactory.getNumAliveConnections());
+    }
+
+    /**
+     * @return the number of responses read until the connection was closed
+     */
+    private int readResponses(Socket sock, int max) throws IOException {
+        DataInputStream in = new DataInputStream(sock.getInputStream());
+        int responses = -1; // the connect response isn't one
+        try {
+            while (responses < max) {
+                int len = in.readInt();
+                in.readFully(new byte[len]);
+                responses++;
+            }
+        } catch (EOFException e) {
+            // closed by the server
+        } catch (IOException e) {
+            // reset by the server
+        }
+        return responses;
+    }
+
+    /**
+     * Check that the buffers queued for closed connections went back to
+     * the pool.
+     */
+    private void assertBuffersFreed() throws InterruptedException {
+        BufferPool pool = serverFactory.getBufferPool();
+        for (int i = 0; i < 50 && pool.getOutstanding() != 0; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(0, pool.getOutstanding());
+    }
+
+    @Test(timeout = 90000)
+    public void testClose() throws Exception {
+        restartServer("close");
+        Socket sock = sendRequests();
+        try {
+            waitForConnections(0);
+            Assert.assertTrue(readResponses(sock, REQUESTS) < REQUESTS);
+        } finally {
+            sock.close();
+        }
+        assertBuffersFreed();
+    }
+
+    @Test(timeout = 90000)
+    public void testCloseByClient() throws Exception {
+        restartServer("throttle");
+        Socket sock = sendRequests();
+        try {
+            for (int i = 0; i < 100; i++) {
+                ServerCnxn cnxn = null;
+                for (ServerCnxn c : serverFactory.getConnections()) {
+                    cnxn = c;
+                }
+                if (cnxn != null
+                        && cnxn.getOutgoingBytes() > MAX_OUTGOING_BYTES / 2) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+        } finally {
+            // with the responses still queued
+            sock.close();
+        }
+        waitForConnections(0);
+        assertBuffersFreed();
+    }
+
+    @Test(timeout = 90000)
+    public void testThrottle() throws Exception {
+        restartServer("throttle");
+        Socket sock = sendRequests();
+        try {
+            ServerCnxn cnxn = null;
+            for (int i = 0; i < 100; i++) {
+                for (ServerCnxn c : serverFactory.getConnections()) {
+                    cnxn = c;
+                }
+                if (cnxn != null
+                        && cnxn.getOutgoingBytes() > MAX_OUTGOING_BYTES / 2) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            Assert.assertNotNull(cnxn);
+            Assert.assertTrue(cnxn.getOutgoingQueueAge() >= 0);
+
+            // the server stops reading requests, which bounds the backlog
+            Thread.sleep(500);
+            Assert.assertTrue(cnxn.getPacketsReceived() < REQUESTS);
+            Assert.assertTrue(cnxn.getOutgoingBytes() > MAX_OUTGOING_BYTES / 2);
+            Assert.assertTrue(cnxn.getOutgoingBytes() <= 2 * MAX_OUTGOING_BYTES);
+            String cons = send4LetterWord(hostPort.split(":")[0],
+                    serverFactory.getLocalPort(), "cons");
+            Assert.assertTrue(cons, cons.contains(",outb="));
+
+            // the client catches up and gets everything
+            Assert.assertEquals(REQUESTS, readResponses(sock, REQUESTS));
+            waitForConnections(1);
+            for (int i = 0; i < 50 && cnxn.getOutgoingBytes() != 0; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(0, cnxn.getOutgoingBytes());
+            Assert.assertEquals(0, cnxn.getOutgoingQueueAge());
+        } finally {
+            sock.close();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.SnapshotFormatter;
+import org.apache.zookeeper.server.persistence.FileChecksum;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.SnapshotCompression;
+import org.apache.zookeeper.server.persistence.SnapshotIndex;
+import org.apache.zookeeper.server.persistence.Util;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotCompressionTest extends ZKTestCase {
+    private File tmpDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = ClientBase.createTmpDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(SnapshotCompression.ZOOKEEPER_SNAPSHOT_COMPRESSION);
+        System.clearProperty(FileSnap.ZOOKEEPER_SNAPSHOT_CHUNK_SIZE);
+        System.clearProperty(FileSnap.ZOOKEEPER_SNAPSHOT_LOAD_THREADS);
+        ClientBase.recursiveDelete(tmpDir);
+    }
+
+    private DataTree createTree() throws Exception {
+        DataTree dt = new DataTree();
+        dt.createNode("/app", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, 1, 1, 1);
+        for (int i = 0; i < 500; i++) {
+            String data = "{\"host\":\"server" + i
+                + ".example.com\",\"port\":2181,\"state\":\"active\"}";
+            dt.createNode("/app/member-" + i, data.getBytes(),
+                    Ids.OPEN_ACL_UNSAFE, i % 2, 1, 1, 1);
+        }
+        return dt;
+    }
+
+    private File serialize(DataTree dt, long zxid, String compression)
+        throws IOException
+    {
+        if (compression == null) {
+            System.clearProperty(
+                    SnapshotCompression.ZOOKEEPER_SNAPSHOT_COMPRESSION);
+        } else {
+            System.setProperty(
+                    SnapshotCompression.ZOOKEEPER_SNAPSHOT_COMPRESSION,
+                    compression);
+        }
+        Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+        sessions.put(1L, 30000);
+        File snap = new File(tmpDir, Util.makeSnapshotName(zxid));
+        new FileSnap(tmpDir).serialize(dt, sessions, snap);
+        return snap;
+    }
+
+    private void assertLoads(DataTree expected, long zxid) throws Exception {
+        DataTree dt = new DataTree();
+        Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+        Assert.assertEquals(zxid, new FileSnap(tmpDir).deserialize(dt, sessions));
+        Assert.assertEquals(1, sessions.size());
+        Assert.assertEquals(expected.getNodeCount(), dt.getNodeCount());
+        Assert.assertEquals(expected.getEphemerals(1), dt.getEphemerals(1));
+        for (int i = 0; i < 500; i += 50) {
+            String path = "/app/member-" + i;
+            Assert.assertArrayEquals(expected.getData(path, new Stat(), null),
+                                     dt.getData(path, new Stat(), null));
+        }
+    }
+
+    private static int readMagic(File snap) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(snap));
+        try {
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testCompressedSnapshot() throws Exception {
+        DataTree dt = createTree();
+        File plain = serialize(dt, 1, null);
+        File compressed = serialize(dt, 2, "deflate");
+
+        Assert.assertEquals(FileSnap.SNAP_MAGIC, readMagic(plain));
+        Assert.assertEquals(SnapshotCompression.COMPRESSED_SNAP_MAGIC,
+                            readMagic(compressed));
+        Assert.assertTrue(Util.isValidSnapshot(compressed));
+        Assert.assertTrue("compressed " + compressed.length() + " plain "
+                          + plain.length(),
+                          compressed.length() * 3 < plain.length());
+
+        System.setProperty(FileSnap.ZOOKEEPER_SNAPSHOT_LOAD_THREADS, "1");
+        assertLoads(dt, 2);
+    }
+
+    /**
+     * The index of a compressed snapshot is readable and its chunks are
+     * loaded in parallel.
+     */
+    @Test
+    public void testParallelLoad() throws Exception {
+        System.setProperty(FileSnap.ZOOKEEPER_SNAPSHOT_CHUNK_SIZE, "1024");
+        DataTree dt = createTree();
+        File compressed = serialize(dt, 3, "deflate");
+
+        Assert.assertNull(SnapshotIndex.read(compressed, FileChecksum.ADLER32));
+        SnapshotIndex index = SnapshotIndex.read(compressed,
+                FileChecksum.ADLER32, true);
+        Assert.assertNotNull(index);
+        Assert.assertTrue(index.getChunkCount() > 10);
+
+        System.setProperty(FileSnap.ZOOKEEPER_SNAPSHOT_LOAD_THREADS, "4");
+        assertLoads(dt, 3);
+    }
+
+    /**
+     * Compressed and uncompressed snapshots in the same directory are read
+     * whatever the configured compression.
+     */
+    @Test
+    public void testMixedSnapshots() throws Exception {
+        DataTree dt = createTree();
+        serialize(dt, 4, "deflate");
+        dt.createNode("/added", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, 1, 5, 5);
+        File plain = serialize(dt, 5, "none");
+        assertLoads(dt, 5);
+
+        // a corrupt uncompressed snapshot falls back to the compressed one
+        RandomAccessFile raf = new RandomAccessFile(plain, "rw");
+        raf.seek(plain.length() / 2);
+        raf.write(0xff);
+        raf.close();
+        System.setProperty(FileSnap.ZOOKEEPER_SNAPSHOT_LOAD_THREADS, "1");
+        DataTree loaded = new DataTree();
+        Assert.assertEquals(4L, new FileSnap(tmpDir).deserialize(loaded,
+                new HashMap<Long, Integer>()));
+        Assert.assertNull(loaded.getNode("/added"));
+    }
+
+    @Test
+    public void testCorruptCompressedSnapshot() throws Exception {
+        File compressed = serialize(createTree(), 6, "deflate");
+        // the header of the compressed data, after the magic and codec
+        RandomAccessFile raf = new RandomAccessFile(compressed, "rw");
+        raf.seek(8);
+        int b = raf.read();
+        raf.seek(8);
+        raf.write(b ^ 0xff);
+        raf.close();
+        try {
+            new FileSnap(tmpDir).deserialize(new DataTree(),
+                    new HashMap<Long, Integer>());
+            Assert.fail("Corrupt snapshot should not load");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFormatter() throws Exception {
+        DataTree dt = createTree();
+        File compressed = serialize(dt, 7, "deflate");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(baos));
+        try {
+            new SnapshotFormatter().run(compressed.getPath());
+        } finally {
+            System.setOut(out);
+        }
+        String output = baos.toString();
+        Assert.assertTrue(output.contains(
+                "ZNode Details (count=" + dt.getNodeCount() + ")"));
+        Assert.assertTrue(output.contains("/app/member-499"));
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.SyncRequestProcessor;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs writes through the SyncRequestProcessor in pipeline mode.
+ */
+public class SyncPipelineTest extends ClientBase {
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(SyncRequestProcessor.PIPELINE, "true");
+        // roll the log a few times while syncs are in progress
+        SyncRequestProcessor.setSnapCount(100);
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(SyncRequestProcessor.PIPELINE);
+        SyncRequestProcessor.setSnapCount(ZooKeeperServer.getSnapCount());
+    }
+
+    @Test(timeout = 90000)
+    public void testPipeline() throws Exception {
+        ZooKeeper zk = createClient();
+        int numRequests = 500;
+        final CountDownLatch latch = new CountDownLatch(numRequests);
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger lastSeq = new AtomicInteger(-1);
+        StringCallback cb = new StringCallback() {
+            public void processResult(int rc, String path, Object ctx,
+                                      String name) {
+                // responses must come back in the order the requests were sent
+                if (rc != Code.OK.intValue()
+                    || !lastSeq.compareAndSet((Integer) ctx - 1, (Integer) ctx)) {
+                    failed.incrementAndGet();
+                }
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < numRequests; i++) {
+            zk.create("/pipeline" + i, new byte[100], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT, cb, i);
+            if (i % 50 == 0) {
+                // a read must not overtake the writes ahead of it
+                Assert.assertNotNull(zk.exists("/pipeline" + i, false));
+            }
+        }
+        Assert.assertTrue(latch.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, failed.get());
+        zk.close();
+        stopServer();
+
+        // every txn made it to the logs, in order
+        File logDir = new File(tmpDir,
+                FileTxnSnapLog.version + FileTxnSnapLog.VERSION);
+        TxnIterator itr = new FileTxnLog(logDir).read(0);
+        long expectedZxid = 1;
+        do {
+            Assert.assertEquals(expectedZxid++, itr.getHeader().getZxid());
+        } while (itr.next());
+        // the session create and close txns come on top of the creates
+        Assert.assertEquals(numRequests + 2, expectedZxid - 1);
+        startServer();
+    }
+}
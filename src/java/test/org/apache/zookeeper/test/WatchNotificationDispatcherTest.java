@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.WatchNotificationDispatcher;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs watches through the WatchNotificationDispatcher.
+ */
+public class WatchNotificationDispatcherTest extends ClientBase {
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(
+            WatchNotificationDispatcher.ZOOKEEPER_WATCH_DISPATCHER_NUM_WORKER_THREADS,
+            "2");
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(
+            WatchNotificationDispatcher.ZOOKEEPER_WATCH_DISPATCHER_NUM_WORKER_THREADS);
+    }
+
+    /**
+     * All the watchers of a node are notified through the dispatcher.
+     */
+    @Test(timeout = 60000)
+    public void testManyWatchers() throws Exception {
+        ZooKeeper zk = createClient();
+        zk.create("/dispatch", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                  CreateMode.PERSISTENT);
+
+        int numClients = 10;
+        final CountDownLatch latch = new CountDownLatch(numClients);
+        Watcher watcher = new Watcher() {
+            public void process(WatchedEvent event) {
+                if (event.getType() == EventType.NodeDataChanged) {
+                    latch.countDown();
+                }
+            }
+        };
+        for (int i = 0; i < numClients; i++) {
+            createClient().exists("/dispatch", watcher);
+        }
+        zk.setData("/dispatch", new byte[1], -1);
+        Assert.assertTrue("Not all watchers were notified",
+                          latch.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        WatchNotificationDispatcher dispatcher =
+            getServer(serverFactory).getWatchNotificationDispatcher();
+        Assert.assertNotNull(dispatcher);
+        // the statistics are updated after the batch is handed to the socket
+        for (int i = 0; i < 50 && dispatcher.getSentNotifications() < numClients; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(numClients, dispatcher.getSentNotifications());
+        Assert.assertEquals(0, dispatcher.getQueuedNotifications());
+    }
+
+    /**
+     * A client sees the watch event triggered by its own update before the
+     * response to the update.
+     */
+    @Test(timeout = 60000)
+    public void testEventBeforeResponse() throws Exception {
+        final List<String> seen =
+            Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch = new CountDownLatch(1);
+        ZooKeeper zk = createClient();
+        for (int i = 0; i < 20; i++) {
+            String path = "/order" + i;
+            zk.create(path, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+            zk.exists(path, new Watcher() {
+                public void process(WatchedEvent event) {
+                    seen.add("event");
+                }
+            });
+            final boolean last = i == 19;
+            zk.setData(path, new byte[1], -1, new StatCallback() {
+                public void processResult(int rc, String p, Object ctx,
+                                          Stat stat) {
+                    seen.add("response");
+                    if (last) {
+                        latch.countDown();
+                    }
+                }
+            }, null);
+        }
+        Assert.assertTrue(latch.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(40, seen.size());
+        for (int i = 0; i < seen.size(); i += 2) {
+            Assert.assertEquals("event", seen.get(i));
+            Assert.assertEquals("response", seen.get(i + 1));
+        }
+    }
+
+    /**
+     * A client sees the watch event triggered by another client's update
+     * before the response to any read it sends after the update, even
+     * while a worker is sending the event.
+     */
+    @Test(timeout = 60000)
+    public void testEventBeforeLaterRead() throws Exception {
+        ZooKeeper writer = createClient();
+        ZooKeeper reader = createClient();
+        writer.create("/later", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                      CreateMode.PERSISTENT);
+        for (int i = 0; i < 200; i++) {
+            final CountDownLatch event = new CountDownLatch(1);
+            reader.exists("/later", new Watcher() {
+                public void process(WatchedEvent e) {
+                    event.countDown();
+                }
+            });
+            writer.setData("/later", new byte[1], -1);
+            final CountDownLatch response = new CountDownLatch(1);
+            final boolean[] eventFirst = new boolean[1];
+            reader.exists("/later", false, new StatCallback() {
+                public void processResult(int rc, String p, Object ctx,
+                                          Stat stat) {
+                    eventFirst[0] = event.getCount() == 0;
+                    response.countDown();
+                }
+            }, null);
+            Assert.assertTrue(response.await(CONNECTION_TIMEOUT,
+                                             TimeUnit.MILLISECONDS));
+            Assert.assertTrue("Response of read " + i + " came before the event",
+                              eventFirst[0]);
+        }
+    }
+}